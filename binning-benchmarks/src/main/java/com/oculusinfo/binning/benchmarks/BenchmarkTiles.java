@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.avro.file.CodecFactory;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.PackedSparseTileData;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.DoubleJsonSerializer;
+import com.oculusinfo.binning.io.serialization.impl.KryoSerializer;
+import com.oculusinfo.binning.io.serialization.impl.KryoSerializer.Codec;
+import com.oculusinfo.binning.io.serialization.impl.PairArrayAvroSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveArrayAvroSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+import com.oculusinfo.binning.io.serialization.impl.StringIntPairArrayJsonSerializer;
+import com.oculusinfo.binning.util.TypeDescriptor;
+import com.oculusinfo.factory.util.Pair;
+
+/**
+ * The tiles and serializers used by the benchmarks.
+ *
+ * Tiles come in three bin types, each representative of a common kind of
+ * pyramid: scalar (heatmap counts), vector (a fixed-length array of doubles
+ * per bin, as in time-series or multi-bucket pyramids) and topic (a short
+ * list of string/count pairs per bin). Each can be dense, with every bin
+ * filled, or sparse, with only a small fraction filled, as is typical of
+ * the deeper levels of a pyramid. Empty list bins are empty lists rather
+ * than null, as not all serializers can write null bins.
+ *
+ * All data is generated from a fixed seed, so runs are comparable.
+ */
+public class BenchmarkTiles {
+	public static final String DENSE  = "dense";
+	public static final String SPARSE = "sparse";
+
+	public static final int    BINS            = 256;
+	public static final double SPARSE_FRACTION = 0.05;
+	public static final int    VECTOR_LENGTH   = 24;
+	public static final int    TOPICS_PER_BIN  = 10;
+
+	/** Names of the serializers that handle scalar (Double) bins */
+	public static final List<String> SCALAR_SERIALIZERS = Arrays.asList(
+		"kryo-gzip", "kryo-bzip", "kryo-deflate", "kryo-none", "kryo-lz4", "avro-null", "avro-deflate", "avro-bzip2", "json");
+	/** Names of the serializers that handle vector (List&lt;Double&gt;) bins */
+	public static final List<String> VECTOR_SERIALIZERS = Arrays.asList(
+		"kryo-gzip", "kryo-bzip", "kryo-deflate", "kryo-none", "kryo-lz4", "avro-null", "avro-deflate", "avro-bzip2");
+	/** Names of the serializers that handle topic (List&lt;Pair&lt;String, Integer&gt;&gt;) bins */
+	public static final List<String> TOPIC_SERIALIZERS = Arrays.asList(
+		"kryo-gzip", "kryo-bzip", "kryo-deflate", "kryo-none", "kryo-lz4", "avro-null", "avro-deflate", "avro-bzip2", "json");
+
+	private static final String[] TOPICS = {
+		"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+		"india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa",
+		"quebec", "romeo", "sierra", "tango", "uniform", "victor", "whiskey",
+		"xray", "yankee", "zulu"
+	};
+
+
+
+	private static Codec getKryoCodec (String name) {
+		if (name.endsWith("gzip")) return Codec.GZIP;
+		if (name.endsWith("bzip")) return Codec.BZIP;
+		if (name.endsWith("deflate")) return Codec.DEFLATE;
+		if (name.endsWith("none")) return Codec.NONE;
+		if (name.endsWith("lz4")) return Codec.LZ4;
+		throw new IllegalArgumentException("Unknown kryo codec in "+name);
+	}
+
+	private static CodecFactory getAvroCodec (String name) {
+		if (name.endsWith("null")) return CodecFactory.nullCodec();
+		if (name.endsWith("deflate")) return CodecFactory.deflateCodec(4);
+		if (name.endsWith("bzip2")) return CodecFactory.bzip2Codec();
+		throw new IllegalArgumentException("Unknown avro codec in "+name);
+	}
+
+	/** Get a serializer, by name, for scalar tiles */
+	public static TileSerializer<Double> getScalarSerializer (String name) {
+		if (name.startsWith("kryo")) {
+			return new KryoSerializer<>(new TypeDescriptor(Double.class), getKryoCodec(name));
+		} else if (name.startsWith("avro")) {
+			return new PrimitiveAvroSerializer<>(Double.class, getAvroCodec(name));
+		} else if ("json".equals(name)) {
+			return new DoubleJsonSerializer();
+		}
+		throw new IllegalArgumentException("Unknown scalar serializer "+name);
+	}
+
+	/** Get a serializer, by name, for vector tiles */
+	public static TileSerializer<List<Double>> getVectorSerializer (String name) {
+		if (name.startsWith("kryo")) {
+			return new KryoSerializer<>(new TypeDescriptor(List.class, new TypeDescriptor(Double.class)),
+			                            getKryoCodec(name));
+		} else if (name.startsWith("avro")) {
+			return new PrimitiveArrayAvroSerializer<>(Double.class, getAvroCodec(name));
+		}
+		throw new IllegalArgumentException("Unknown vector serializer "+name);
+	}
+
+	/** Get a serializer, by name, for topic tiles */
+	public static TileSerializer<List<Pair<String, Integer>>> getTopicSerializer (String name) {
+		if (name.startsWith("kryo")) {
+			return new KryoSerializer<>(new TypeDescriptor(List.class,
+			                                               new TypeDescriptor(Pair.class,
+			                                                                  new TypeDescriptor(String.class),
+			                                                                  new TypeDescriptor(Integer.class))),
+			                            getKryoCodec(name));
+		} else if (name.startsWith("avro")) {
+			return new PairArrayAvroSerializer<>(String.class, Integer.class, getAvroCodec(name));
+		} else if ("json".equals(name)) {
+			return new StringIntPairArrayJsonSerializer();
+		}
+		throw new IllegalArgumentException("Unknown topic serializer "+name);
+	}
+
+
+
+	private static <T> TileData<T> createTile (TileIndex index, String density, T defaultValue) {
+		if (DENSE.equals(density)) {
+			return new DenseTileData<T>(index, defaultValue);
+		} else if (SPARSE.equals(density)) {
+			return new PackedSparseTileData<T>(index, defaultValue);
+		}
+		throw new IllegalArgumentException("Unknown tile density "+density);
+	}
+
+	// Whether a bin should be filled; dense tiles fill every bin
+	private static boolean isFilled (Random random, String density) {
+		return DENSE.equals(density) || random.nextDouble() < SPARSE_FRACTION;
+	}
+
+	/** Create a tile of counts */
+	public static TileData<Double> createScalarTile (TileIndex index, String density) {
+		Random random = new Random(15485863);
+		TileData<Double> tile = createTile(index, density, 0.0);
+		for (int y=0; y<index.getYBins(); ++y) {
+			for (int x=0; x<index.getXBins(); ++x) {
+				if (isFilled(random, density)) {
+					tile.setBin(x, y, Math.floor(Math.exp(random.nextDouble()*10.0)));
+				}
+			}
+		}
+		return tile;
+	}
+
+	/** Create a tile with an array of doubles in each bin */
+	public static TileData<List<Double>> createVectorTile (TileIndex index, String density) {
+		Random random = new Random(15485863);
+		TileData<List<Double>> tile = createTile(index, density, (List<Double>) new ArrayList<Double>());
+		for (int y=0; y<index.getYBins(); ++y) {
+			for (int x=0; x<index.getXBins(); ++x) {
+				if (isFilled(random, density)) {
+					List<Double> bin = new ArrayList<>(VECTOR_LENGTH);
+					for (int i=0; i<VECTOR_LENGTH; ++i) {
+						bin.add(random.nextBoolean() ? Math.floor(random.nextDouble()*100.0) : 0.0);
+					}
+					tile.setBin(x, y, bin);
+				}
+			}
+		}
+		return tile;
+	}
+
+	/** Create a tile with a list of topics and their counts in each bin */
+	public static TileData<List<Pair<String, Integer>>> createTopicTile (TileIndex index, String density) {
+		Random random = new Random(15485863);
+		TileData<List<Pair<String, Integer>>> tile =
+			createTile(index, density, (List<Pair<String, Integer>>) new ArrayList<Pair<String, Integer>>());
+		for (int y=0; y<index.getYBins(); ++y) {
+			for (int x=0; x<index.getXBins(); ++x) {
+				if (isFilled(random, density)) {
+					List<Pair<String, Integer>> bin = new ArrayList<>(TOPICS_PER_BIN);
+					int count = 1 + random.nextInt(1000);
+					for (int i=0; i<TOPICS_PER_BIN; ++i) {
+						bin.add(new Pair<>(TOPICS[random.nextInt(TOPICS.length)], count));
+						count = count/2;
+					}
+					tile.setBin(x, y, bin);
+				}
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Get a tile with the same data as the given one, at a new index. Dense
+	 * tiles share their data with the original; sparse tiles are copied.
+	 */
+	public static <T> TileData<T> relocate (TileData<T> tile, TileIndex index) {
+		if (tile instanceof DenseTileData) {
+			DenseTileData<T> dense = (DenseTileData<T>) tile;
+			return new DenseTileData<T>(index, dense.getDefaultValue(), dense.getData());
+		} else if (tile instanceof PackedSparseTileData) {
+			PackedSparseTileData<T> sparse = (PackedSparseTileData<T>) tile;
+			int entries = sparse.getEntryCount();
+			PackedSparseTileData<T> copy = new PackedSparseTileData<T>(index, sparse.getDefaultValue(), entries);
+			for (int n=0; n<entries; ++n) {
+				copy.setBin(sparse.getEntryX(n), sparse.getEntryY(n), sparse.getEntryValue(n));
+			}
+			return copy;
+		}
+		throw new IllegalArgumentException("Unexpected tile type "+tile.getClass());
+	}
+
+	/** Get the index of the nth tile of a block of tiles at level 12, 64 tiles wide */
+	public static TileIndex getTileIndex (int n) {
+		return new TileIndex(12, 1000 + n % 64, 1000 + n / 64, BINS, BINS);
+	}
+}
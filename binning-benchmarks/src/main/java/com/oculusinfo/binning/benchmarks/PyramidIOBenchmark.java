@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.impl.DummyPyramidIO;
+import com.oculusinfo.binning.io.impl.FileBasedPyramidIO;
+import com.oculusinfo.binning.io.impl.FileSystemPyramidSource;
+import com.oculusinfo.binning.io.impl.JDBCPyramidIO;
+import com.oculusinfo.binning.io.impl.PackedFilePyramidSource;
+import com.oculusinfo.binning.io.impl.SQLitePyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+
+/**
+ * Common setup for the pyramid I/O benchmarks. Each backend stores its
+ * pyramid in a fresh temporary directory, and reads and writes batches of
+ * scalar tiles, serialized with Avro and deflate compression.
+ *
+ * The backends are:
+ * <dl>
+ * <dt>file</dt><dd>FileBasedPyramidIO, one file per tile</dd>
+ * <dt>packed</dt><dd>FileBasedPyramidIO, one memory-mapped file per level</dd>
+ * <dt>sqlite</dt><dd>SQLitePyramidIO, and so JDBCPyramidIO</dd>
+ * <dt>dummy</dt><dd>DummyPyramidIO, which stores nothing, and so measures
+ * the cost of the benchmark itself</dd>
+ * </dl>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public abstract class PyramidIOBenchmark {
+	protected static final String PYRAMID_ID = "benchmark";
+	protected static final int    BATCH_SIZE = 16;
+
+	@Param({"file", "packed", "sqlite", "dummy"})
+	public String io;
+
+	@Param({BenchmarkTiles.DENSE, BenchmarkTiles.SPARSE})
+	public String density;
+
+	protected TileSerializer<Double> _serializer;
+	protected PyramidIO              _pyramidIO;
+	private File                     _directory;
+
+	/** Create a new, empty pyramid for the selected backend */
+	protected void openPyramid () throws Exception {
+		_serializer = BenchmarkTiles.getScalarSerializer("avro-deflate");
+		_directory = Files.createTempDirectory("pyramid-io-benchmark").toFile();
+		String root = _directory.getAbsolutePath();
+		if ("file".equals(io)) {
+			_pyramidIO = new FileBasedPyramidIO(new FileSystemPyramidSource(root, "avro"));
+		} else if ("packed".equals(io)) {
+			_pyramidIO = new FileBasedPyramidIO(new PackedFilePyramidSource(root));
+		} else if ("sqlite".equals(io)) {
+			_pyramidIO = new SQLitePyramidIO(new File(_directory, "pyramid.db").getAbsolutePath());
+		} else if ("dummy".equals(io)) {
+			_pyramidIO = new DummyPyramidIO(-180.0, 180.0, -90.0, 90.0, 0, 12);
+		} else {
+			throw new IllegalArgumentException("Unknown pyramid I/O type "+io);
+		}
+		_pyramidIO.initializeForWrite(PYRAMID_ID);
+	}
+
+	/** Close and delete the current pyramid */
+	protected void closePyramid () {
+		if (_pyramidIO instanceof JDBCPyramidIO) {
+			((JDBCPyramidIO) _pyramidIO).shutdown();
+		}
+		_pyramidIO = null;
+		delete(_directory);
+	}
+
+	/**
+	 * Create a batch of tiles, from the given tile number on, all with the
+	 * data of the given template tile.
+	 */
+	protected List<TileData<Double>> createBatch (TileData<Double> template, int firstTile) {
+		List<TileData<Double>> batch = new ArrayList<>(BATCH_SIZE);
+		for (int n=firstTile; n<firstTile+BATCH_SIZE; ++n) {
+			batch.add(BenchmarkTiles.relocate(template, BenchmarkTiles.getTileIndex(n)));
+		}
+		return batch;
+	}
+
+	/** Get the indices of a batch of tiles, from the given tile number on */
+	protected List<TileIndex> getBatchIndices (int firstTile) {
+		List<TileIndex> indices = new ArrayList<>(BATCH_SIZE);
+		for (int n=firstTile; n<firstTile+BATCH_SIZE; ++n) {
+			indices.add(BenchmarkTiles.getTileIndex(n));
+		}
+		return indices;
+	}
+
+	private static void delete (File file) {
+		if (null == file) return;
+		File[] children = file.listFiles();
+		if (null != children) {
+			for (File child: children) delete(child);
+		}
+		file.delete();
+	}
+}
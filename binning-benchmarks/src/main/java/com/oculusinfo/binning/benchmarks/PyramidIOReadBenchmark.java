@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+
+/**
+ * Measures the time to read a batch of tiles from a pyramid. The pyramid
+ * holds several batches, which are read in turn.
+ */
+public class PyramidIOReadBenchmark extends PyramidIOBenchmark {
+	private static final int BATCHES = 4;
+
+	private List<List<TileIndex>> _batches;
+	private int                   _nextBatch;
+
+	@Setup
+	public void setup () throws Exception {
+		openPyramid();
+		TileData<Double> template = BenchmarkTiles.createScalarTile(BenchmarkTiles.getTileIndex(0), density);
+		_batches = new ArrayList<>(BATCHES);
+		for (int b=0; b<BATCHES; ++b) {
+			_pyramidIO.writeTiles(PYRAMID_ID, _serializer, createBatch(template, b*BATCH_SIZE));
+			_batches.add(getBatchIndices(b*BATCH_SIZE));
+		}
+		_pyramidIO.initializeForRead(PYRAMID_ID, BenchmarkTiles.BINS, BenchmarkTiles.BINS, null);
+		_nextBatch = 0;
+	}
+
+	@TearDown
+	public void teardown () {
+		closePyramid();
+	}
+
+	@Benchmark
+	public List<TileData<Double>> readTiles () throws Exception {
+		List<TileIndex> batch = _batches.get(_nextBatch);
+		_nextBatch = (_nextBatch + 1) % BATCHES;
+		return _pyramidIO.readTiles(PYRAMID_ID, _serializer, batch);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.oculusinfo.binning.TileData;
+
+/**
+ * Measures the time to write a batch of new tiles to a pyramid, as when a
+ * pyramid is being generated. Each write adds tiles that aren't yet in the
+ * pyramid (JDBCPyramidIO can't overwrite tiles), so the pyramid grows over
+ * each iteration; it is recreated between iterations to bound its size.
+ *
+ * Sparse tiles are copied to their new indices as part of the measured
+ * write; dense tiles share their data, and so are not.
+ */
+public class PyramidIOWriteBenchmark extends PyramidIOBenchmark {
+	private TileData<Double> _template;
+	private int              _nextTile;
+
+	@Setup(Level.Trial)
+	public void createTemplate () {
+		_template = BenchmarkTiles.createScalarTile(BenchmarkTiles.getTileIndex(0), density);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup () throws Exception {
+		openPyramid();
+		_nextTile = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void teardown () {
+		closePyramid();
+	}
+
+	@Benchmark
+	public void writeTiles () throws Exception {
+		_pyramidIO.writeTiles(PYRAMID_ID, _serializer, createBatch(_template, _nextTile));
+		_nextTile += BATCH_SIZE;
+	}
+}
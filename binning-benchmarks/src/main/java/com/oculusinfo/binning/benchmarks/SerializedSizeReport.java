@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.factory.util.Pair;
+
+/**
+ * Writes the serialized size of each benchmark tile under each serializer
+ * as a JSON array, so size regressions can be caught along with speed ones.
+ * Each entry has the form:
+ *
+ * <pre>
+ *   {"bins": "scalar", "density": "dense", "serializer": "avro-deflate", "bytes": 12345}
+ * </pre>
+ *
+ * Usage: SerializedSizeReport [output file]; with no output file, the report
+ * is written to standard out.
+ */
+public class SerializedSizeReport {
+	private static <T> void addSizes (JSONArray report, String bins, Iterable<String> serializers,
+	                                  TileData<T> denseTile, TileData<T> sparseTile,
+	                                  SerializerSource<T> source) throws IOException, JSONException {
+		for (String name: serializers) {
+			TileSerializer<T> serializer = source.getSerializer(name);
+			report.put(getSize(bins, BenchmarkTiles.DENSE, name, serializer, denseTile));
+			report.put(getSize(bins, BenchmarkTiles.SPARSE, name, serializer, sparseTile));
+		}
+	}
+
+	private static <T> JSONObject getSize (String bins, String density, String name,
+	                                       TileSerializer<T> serializer, TileData<T> tile)
+		throws IOException, JSONException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		serializer.serialize(tile, output);
+
+		JSONObject entry = new JSONObject();
+		entry.put("bins", bins);
+		entry.put("density", density);
+		entry.put("serializer", name);
+		entry.put("bytes", output.size());
+		return entry;
+	}
+
+	private static interface SerializerSource<T> {
+		TileSerializer<T> getSerializer (String name);
+	}
+
+	public static void main (String[] args) throws Exception {
+		TileIndex index = BenchmarkTiles.getTileIndex(0);
+		JSONArray report = new JSONArray();
+
+		addSizes(report, "scalar", BenchmarkTiles.SCALAR_SERIALIZERS,
+		         BenchmarkTiles.createScalarTile(index, BenchmarkTiles.DENSE),
+		         BenchmarkTiles.createScalarTile(index, BenchmarkTiles.SPARSE),
+		         new SerializerSource<Double>() {
+			         public TileSerializer<Double> getSerializer (String name) {
+				         return BenchmarkTiles.getScalarSerializer(name);
+			         }
+		         });
+		addSizes(report, "vector", BenchmarkTiles.VECTOR_SERIALIZERS,
+		         BenchmarkTiles.createVectorTile(index, BenchmarkTiles.DENSE),
+		         BenchmarkTiles.createVectorTile(index, BenchmarkTiles.SPARSE),
+		         new SerializerSource<List<Double>>() {
+			         public TileSerializer<List<Double>> getSerializer (String name) {
+				         return BenchmarkTiles.getVectorSerializer(name);
+			         }
+		         });
+		addSizes(report, "topic", BenchmarkTiles.TOPIC_SERIALIZERS,
+		         BenchmarkTiles.createTopicTile(index, BenchmarkTiles.DENSE),
+		         BenchmarkTiles.createTopicTile(index, BenchmarkTiles.SPARSE),
+		         new SerializerSource<List<Pair<String, Integer>>>() {
+			         public TileSerializer<List<Pair<String, Integer>>> getSerializer (String name) {
+				         return BenchmarkTiles.getTopicSerializer(name);
+			         }
+		         });
+
+		String text = report.toString(2);
+		if (args.length > 0) {
+			File file = new File(args[0]);
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.exists()) parent.mkdirs();
+			Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				writer.write(text);
+			} finally {
+				writer.close();
+			}
+		} else {
+			System.out.println(text);
+		}
+	}
+}
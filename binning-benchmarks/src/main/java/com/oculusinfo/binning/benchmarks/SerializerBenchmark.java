@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+
+/**
+ * Measures the time to serialize and deserialize a single tile. Subclasses
+ * supply the tiles and serializers for one type of bin; each runs against
+ * both dense and sparse tiles.
+ *
+ * @param <T> The bin type of the tiles being serialized
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public abstract class SerializerBenchmark<T> {
+	@Param({BenchmarkTiles.DENSE, BenchmarkTiles.SPARSE})
+	public String density;
+
+	private TileSerializer<T> _serializer;
+	private TileData<T>       _tile;
+	private byte[]            _serializedTile;
+
+	/** Create the tile to serialize */
+	protected abstract TileData<T> createTile (TileIndex index, String density);
+
+	/** Get the serializer being measured */
+	protected abstract TileSerializer<T> getSerializer ();
+
+	@Setup
+	public void setup () throws IOException {
+		_serializer = getSerializer();
+		_tile = createTile(BenchmarkTiles.getTileIndex(0), density);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		_serializer.serialize(_tile, output);
+		_serializedTile = output.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] serialize () throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(_serializedTile.length);
+		_serializer.serialize(_tile, output);
+		return output.toByteArray();
+	}
+
+	@Benchmark
+	public TileData<T> deserialize () throws IOException {
+		return _serializer.deserialize(_tile.getDefinition(), new ByteArrayInputStream(_serializedTile));
+	}
+}
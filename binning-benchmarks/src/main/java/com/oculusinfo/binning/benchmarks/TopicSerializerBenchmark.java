@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.benchmarks;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Param;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.factory.util.Pair;
+
+/**
+ * Serialization benchmarks for tiles with a list of topics and their counts in each bin
+ */
+public class TopicSerializerBenchmark extends SerializerBenchmark<List<Pair<String, Integer>>> {
+	// Should match BenchmarkTiles.TOPIC_SERIALIZERS
+	@Param({"kryo-gzip", "kryo-bzip", "kryo-deflate", "kryo-none", "kryo-lz4", "avro-null", "avro-deflate", "avro-bzip2", "json"})
+	public String serializer;
+
+	@Override
+	protected TileData<List<Pair<String, Integer>>> createTile (TileIndex index, String density) {
+		return BenchmarkTiles.createTopicTile(index, density);
+	}
+
+	@Override
+	protected TileSerializer<List<Pair<String, Integer>>> getSerializer () {
+		return BenchmarkTiles.getTopicSerializer(serializer);
+	}
+}
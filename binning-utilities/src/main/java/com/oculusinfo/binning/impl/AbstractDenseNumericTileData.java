@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * Common base for dense tiles whose bins are numbers stored in a primitive
+ * array, rather than as boxed objects in a list. Bins are stored row-by-row,
+ * exactly as in {@link DenseTileData}, and these tiles can be used anywhere a
+ * DenseTileData can; none of the list-based storage of the superclass is used.
+ *
+ * Subclasses expose typed, unboxed accessors for their own primitive type;
+ * this class provides an unboxed {@link #getDouble(int, int)} common to all of
+ * them, so that consumers that only need a double value (renderers, for
+ * instance) can read any of them without boxing.
+ *
+ * Because the bins are primitive, null cannot be stored in them. Setting a
+ * bin to null resets it to the tile's default value.
+ *
+ * @param <T> The boxed type of data stored in the bins of this tile.
+ */
+abstract public class AbstractDenseNumericTileData<T extends Number> extends DenseTileData<T> {
+	private static final long serialVersionUID = 1L;
+
+
+
+	private TileIndex _index;
+
+
+
+	// No-argument constructor, really just for use by Kryo.
+	protected AbstractDenseNumericTileData () {
+		super();
+	}
+
+	protected AbstractDenseNumericTileData (TileIndex definition) {
+		this();
+		_index = definition;
+	}
+
+	/**
+	 * Check that a data array passed in by a subclass is the right length for our tile.
+	 */
+	protected void checkLength (int length) {
+		int requiredLength = _index.getXBins() * _index.getYBins();
+		if (length != requiredLength) {
+			throw new IllegalArgumentException(
+			                                   "Data was of the wrong length.  Should have been "
+			                                   + requiredLength
+			                                   + ", was "
+			                                   + length);
+		}
+	}
+
+	/**
+	 * Get the index into the data array of the given bin, checking that the bin is valid.
+	 */
+	protected int getIndex (int x, int y) {
+		if (x < 0 || x >= _index.getXBins()) {
+			throw new IllegalArgumentException("Bin x index is outside of tile's valid bin range");
+		}
+		if (y < 0 || y >= _index.getYBins()) {
+			throw new IllegalArgumentException("Bin y index is outside of tile's valid bin range");
+		}
+		return x + y * _index.getXBins();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public TileIndex getDefinition () {
+		return _index;
+	}
+
+	/**
+	 * Get the value of a particular bin in this tile as an unboxed double.
+	 *
+	 * @param x The x coordinate of the bin in question.
+	 * @param y The y coordinate of the bin in question.
+	 * @return The value of the bin in question.
+	 */
+	abstract public double getDouble (int x, int y);
+
+	/**
+	 * Determine if a value can be stored in one of our primitive-backed dense tiles.
+	 */
+	public static boolean isPrimitiveNumeric (Object value) {
+		return value instanceof Double || value instanceof Long || value instanceof Integer;
+	}
+
+	/**
+	 * Create an empty primitive-backed dense tile suited to storing the same type
+	 * as the given default value.
+	 *
+	 * @param definition The index of the tile to create.
+	 * @param defaultValue The default value of each bin; must be a Double, Long,
+	 *            or Integer.
+	 */
+	// Checked by isPrimitiveNumeric - we only return a tile of T if T is the
+	// type of our default value.
+	@SuppressWarnings("unchecked")
+	static <T> DenseTileData<T> createNumericTile (TileIndex definition, T defaultValue) {
+		if (defaultValue instanceof Double) {
+			return (DenseTileData<T>) new DenseDoubleTileData(definition, (Double) defaultValue);
+		} else if (defaultValue instanceof Long) {
+			return (DenseTileData<T>) new DenseLongTileData(definition, (Long) defaultValue);
+		} else if (defaultValue instanceof Integer) {
+			return (DenseTileData<T>) new DenseIntTileData(definition, (Integer) defaultValue);
+		} else {
+			throw new IllegalArgumentException("No primitive dense tile available for "+defaultValue);
+		}
+	}
+}
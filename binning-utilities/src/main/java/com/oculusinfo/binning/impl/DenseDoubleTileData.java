@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.primitives.Doubles;
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * A dense tile of double values, stored as a primitive array rather than as a
+ * list of boxed Doubles.
+ *
+ * This object is not necessarily immutable.
+ */
+public class DenseDoubleTileData extends AbstractDenseNumericTileData<Double> {
+	private static final long serialVersionUID = 1L;
+
+
+
+	private double[] _values;
+	private double   _defaultValue;
+
+
+
+	// No-argument constructor, really just for use by Kryo.
+	private DenseDoubleTileData () {
+		super();
+	}
+
+	/**
+	 * Construct a dense tile for a particular tile index. All entries are initialized to the given default value.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by this object.
+	 * @param defaultValue The default value of each bin
+	 */
+	public DenseDoubleTileData (TileIndex definition, double defaultValue) {
+		super(definition);
+		_defaultValue = defaultValue;
+		_values = new double[definition.getXBins() * definition.getYBins()];
+		if (0.0 != defaultValue) Arrays.fill(_values, defaultValue);
+	}
+
+	/**
+	 * Construct a tile for a particular tile index, with preset data. Note the passed-in preset data is used as is,
+	 * not copied.
+	 *
+	 * @param definition The index of the tile whose data is to be represented by this object.
+	 * @param defaultValue The default value to use for undefined bins
+	 * @param tileData The data for this tile, row by row
+	 */
+	public DenseDoubleTileData (TileIndex definition, double defaultValue, double[] tileData) {
+		super(definition);
+		checkLength(tileData.length);
+		_defaultValue = defaultValue;
+		_values = tileData;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Double getDefaultValue () {
+		return _defaultValue;
+	}
+
+	/**
+	 * Set the default value of this tile. Since bins are all stored, this does not
+	 * change the value of any bin.
+	 */
+	@Override
+	public void setDefaultValue (Double defaultValue) {
+		if (null == defaultValue) {
+			throw new IllegalArgumentException("Primitive tiles must have a non-null default value");
+		}
+		_defaultValue = defaultValue;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBin (int x, int y, Double value) {
+		_values[getIndex(x, y)] = (null == value ? _defaultValue : value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Double getBin (int x, int y) {
+		return _values[getIndex(x, y)];
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public double getDouble (int x, int y) {
+		return _values[getIndex(x, y)];
+	}
+
+	/**
+	 * Set the value of a particular bin in this tile, without boxing.
+	 *
+	 * @param x The x coordinate of the bin to be changed.
+	 * @param y The y coordinate of the bin to be changed.
+	 * @param value The value to which to set the bin in question.
+	 */
+	public void setDouble (int x, int y, double value) {
+		_values[getIndex(x, y)] = value;
+	}
+
+	/**
+	 * Get all the data for this tile, row by row, in the same form expected by
+	 * {@link #DenseDoubleTileData(TileIndex, double, double[])}. The returned
+	 * array is the tile's own storage, not a copy, and is intended for block use
+	 * (such as I/O).
+	 */
+	public double[] getDoubleData () {
+		return _values;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The returned list is a boxing view of our primitive data; where possible,
+	 * use {@link #getDoubleData()} instead.
+	 */
+	@Override
+	public List<Double> getData () {
+		return Collections.unmodifiableList(Doubles.asList(_values));
+	}
+
+	@Override
+	public String toString () {
+		return "<dense-double-tile index=\""+getDefinition()+"\", default=\""+_defaultValue+"\"/>";
+	}
+}
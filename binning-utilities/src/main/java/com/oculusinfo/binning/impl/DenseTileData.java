@@ -55,8 +55,9 @@ public class DenseTileData<T> extends TileDataMetadataImpl<T> implements TileDat
 
 
 	// No-argument constructor, really just for use by Kryo, but we call it from
-	// the main constructor just to get rid of the warning.
-	private DenseTileData() {
+	// the main constructor just to get rid of the warning.  Also used by
+	// subclasses that store their data in some other form.
+	protected DenseTileData() {
 		super();
 	}
 
@@ -181,6 +182,23 @@ public class DenseTileData<T> extends TileDataMetadataImpl<T> implements TileDat
 		return Collections.unmodifiableList(_data);
 	}
 
+	/**
+	 * Create an empty dense tile for a particular tile index, with all entries initialized to the given default
+	 * value. If the default value is a Double, Long, or Integer, the returned tile stores its bins in a primitive
+	 * array (see {@link DenseDoubleTileData}, {@link DenseLongTileData} and {@link DenseIntTileData}); otherwise,
+	 * it is a standard DenseTileData.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by the new tile.
+	 * @param defaultValue The default value of each bin
+	 */
+	static public <T> DenseTileData<T> createDenseTile (TileIndex definition, T defaultValue) {
+		if (AbstractDenseNumericTileData.isPrimitiveNumeric(defaultValue)) {
+			return AbstractDenseNumericTileData.createNumericTile(definition, defaultValue);
+		} else {
+			return new DenseTileData<T>(definition, defaultValue);
+		}
+	}
+
 	/**
 	 * Get all the data for a given tile, in a form that can be used to initialize a dense tile.
 	 */
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+
+
+import java.io.ObjectStreamException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.oculusinfo.binning.BinIndex;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.factory.util.Pair;
+
+
+
+/**
+ * This class represents a tile's worth of data as a sparse array, stored as a
+ * pair of parallel arrays - one of packed bin keys (<code>x + y * xBins</code>),
+ * kept sorted, and one of the values of those bins.
+ *
+ * This can be used anywhere a {@link SparseTileData} can, but avoids boxing
+ * bin coordinates and keeping nested hash maps per tile (none of the map-based
+ * storage of the superclass is used); lookups are a binary search, and
+ * defined bins can be iterated in order, without allocation, using
+ * {@link #getEntryCount()}, {@link #getEntryX(int)}, {@link #getEntryY(int)}
+ * and {@link #getEntryValue(int)}.
+ *
+ * Writes in increasing bin order are simple appends. Writes out of order are
+ * also appended, and only sorted into place by {@link #compact()}, so filling
+ * a tile in arbitrary order costs a single sort rather than one insertion per
+ * bin. Whoever builds a tile out of order should compact it once it is
+ * complete; the serializers and binners in this package do so when they
+ * create tiles.
+ *
+ * Reads never change a tile's storage, so once built, a tile may be read by
+ * several threads at once. Reads of a tile that has not been compacted since
+ * an out-of-order write are still correct, but go through a sorted copy of
+ * its bins, made on first use.
+ *
+ * This object is not necessarily immutable; writes must not overlap reads or
+ * other writes.
+ *
+ * @param <T> The type of data stored in the bins of this tile.
+ */
+public class PackedSparseTileData<T> extends SparseTileData<T> {
+	private static final long serialVersionUID = 1L;
+	private static final int  DEFAULT_CAPACITY = 16;
+
+
+
+	private TileIndex _index;
+	private T         _default;
+	// Packed bin keys, and their values.  Only the first _size entries are used.
+	private int[]     _keys;
+	private Object[]  _values;
+	private int       _size;
+	// True if _keys is sorted and has no duplicates; false if there have been
+	// out-of-order writes since the last sort.
+	private boolean   _sorted;
+	// A sorted copy of our bins, for reads while _sorted is false
+	private transient volatile SortedBins _sortedCopy;
+
+
+
+	// No-argument constructor, really just for use by Kryo.
+	private PackedSparseTileData () {
+		super();
+	}
+
+	/**
+	 * Construct an empty sparse tile data object for a particular tile with no data.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by this object.
+	 */
+	public PackedSparseTileData (TileIndex definition) {
+		this(definition, (T) null);
+	}
+
+	/**
+	 * Construct an empty, sparse tile for a particular tile index.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by this object.
+	 * @param defaultValue The default value of each bin
+	 */
+	public PackedSparseTileData (TileIndex definition, T defaultValue) {
+		this(definition, defaultValue, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Construct an empty, sparse tile for a particular tile index, with room for a
+	 * given number of defined bins before any storage needs to be reallocated.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by this object.
+	 * @param defaultValue The default value of each bin
+	 * @param expectedSize The expected number of defined bins
+	 */
+	public PackedSparseTileData (TileIndex definition, T defaultValue, int expectedSize) {
+		this();
+		_index = definition;
+		_default = defaultValue;
+		_keys = new int[Math.max(1, expectedSize)];
+		_values = new Object[_keys.length];
+		_size = 0;
+		_sorted = true;
+	}
+
+
+
+	/** {@inheritDoc} */
+	@Override
+	public TileIndex getDefinition () {
+		return _index;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public T getDefaultValue () {
+		return _default;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public T getDefaultBinValue () {
+		return _default;
+	}
+
+	private int getKey (int x, int y) {
+		if (x < 0 || x >= _index.getXBins()) {
+			throw new IllegalArgumentException("Bin x index is outside of tile's valid bin range");
+		}
+		if (y < 0 || y >= _index.getYBins()) {
+			throw new IllegalArgumentException("Bin y index is outside of tile's valid bin range");
+		}
+		return x + y * _index.getXBins();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBin (int x, int y, T value) {
+		int key = getKey(x, y);
+
+		if (_sorted) {
+			if (0 == _size || key > _keys[_size - 1]) {
+				// In-order write; just append.
+				append(key, value);
+				return;
+			}
+			int index = Arrays.binarySearch(_keys, 0, _size, key);
+			if (index >= 0) {
+				_values[index] = value;
+				return;
+			}
+			_sorted = false;
+		}
+		// Out-of-order write; append it anyway, to be sorted into place by compact().
+		append(key, value);
+		_sortedCopy = null;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public T getBin (int x, int y) {
+		int key = getKey(x, y);
+		SortedBins bins = getSortedBins();
+		int index = Arrays.binarySearch(bins._keys, 0, bins._size, key);
+		if (index >= 0) {
+			return bins.getValue(index);
+		}
+		return _default;
+	}
+
+	/**
+	 * Get the number of defined bins in this tile.
+	 */
+	public int getEntryCount () {
+		return getSortedBins()._size;
+	}
+
+	/**
+	 * Get the x coordinate of the n<sup>th</sup> defined bin in this tile. Defined
+	 * bins are ordered row by row.
+	 */
+	public int getEntryX (int n) {
+		SortedBins bins = getSortedBins();
+		return bins._keys[bins.checkEntry(n)] % _index.getXBins();
+	}
+
+	/**
+	 * Get the y coordinate of the n<sup>th</sup> defined bin in this tile. Defined
+	 * bins are ordered row by row.
+	 */
+	public int getEntryY (int n) {
+		SortedBins bins = getSortedBins();
+		return bins._keys[bins.checkEntry(n)] / _index.getXBins();
+	}
+
+	/**
+	 * Get the value of the n<sup>th</sup> defined bin in this tile. Defined bins
+	 * are ordered row by row.
+	 */
+	public T getEntryValue (int n) {
+		SortedBins bins = getSortedBins();
+		return bins.getValue(bins.checkEntry(n));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * Bins are returned row by row. Note that, unlike the indexed accessors, this
+	 * allocates a pair per bin.
+	 */
+	@Override
+	public Iterator<Pair<BinIndex, T>> getData () {
+		return new DataIterator(getSortedBins());
+	}
+
+	/**
+	 * Sort any out-of-order writes into place, and release any unused storage.
+	 * This should be called once a tile written out of order is complete, and
+	 * before it is shared; it is also a way to make tiles as small as possible
+	 * before they are stored or sent over the network.
+	 */
+	public void compact () {
+		sort();
+		if (_keys.length > _size) {
+			_keys = Arrays.copyOf(_keys, Math.max(1, _size));
+			_values = Arrays.copyOf(_values, Math.max(1, _size));
+		}
+		_sortedCopy = null;
+	}
+
+	/**
+	 * Get a compacted version of this tile, without changing this one. If this
+	 * tile is already compact, it is returned as is; otherwise, a compacted
+	 * copy is returned.
+	 */
+	public PackedSparseTileData<T> getCompacted () {
+		if (_sorted && _keys.length == Math.max(1, _size)) {
+			return this;
+		}
+		SortedBins bins = getSortedBins();
+		PackedSparseTileData<T> copy = new PackedSparseTileData<T>(_index, _default, bins._size);
+		System.arraycopy(bins._keys, 0, copy._keys, 0, bins._size);
+		System.arraycopy(bins._values, 0, copy._values, 0, bins._size);
+		copy._size = bins._size;
+		Collection<String> properties = getMetaDataProperties();
+		if (null != properties) {
+			for (String property: properties) {
+				copy.setMetaData(property, getMetaData(property));
+			}
+		}
+		return copy;
+	}
+
+	// Get our bins in sorted order. If we are sorted, these are our own
+	// storage; otherwise, they are a sorted copy of it, made the first time
+	// they are needed after each out-of-order write.
+	private SortedBins getSortedBins () {
+		if (_sorted) {
+			return new SortedBins(_keys, _values, _size);
+		}
+		SortedBins copy = _sortedCopy;
+		if (null == copy) {
+			int[] keys = Arrays.copyOf(_keys, _size);
+			Object[] values = Arrays.copyOf(_values, _size);
+			int size = sort(keys, values, _size);
+			copy = new SortedBins(keys, values, size);
+			_sortedCopy = copy;
+		}
+		return copy;
+	}
+
+	private void append (int key, T value) {
+		if (_size == _keys.length) {
+			// Out-of-order writes may have left duplicates we can get rid of before growing.
+			sort();
+			if (_size == _keys.length) {
+				int newLength = _keys.length * 2;
+				_keys = Arrays.copyOf(_keys, newLength);
+				_values = Arrays.copyOf(_values, newLength);
+			}
+		}
+		_keys[_size] = key;
+		_values[_size] = value;
+		++_size;
+	}
+
+	// Sort our storage in place; only ever done by writers.
+	private void sort () {
+		if (_sorted) return;
+		_size = sort(_keys, _values, _size);
+		_sorted = true;
+	}
+
+	// Sort the first size keys, and their values, and drop all but the latest
+	// write to each bin, returning the number of bins left. Keys are paired
+	// with their write order in a single long, so this can be done with a
+	// single primitive sort.
+	private static int sort (int[] keys, Object[] values, int size) {
+		long[] order = new long[size];
+		for (int i = 0; i < size; ++i) {
+			order[i] = (((long) keys[i]) << 32) | i;
+		}
+		Arrays.sort(order);
+
+		Object[] unsortedValues = Arrays.copyOf(values, size);
+		int newSize = 0;
+		for (int i = 0; i < order.length; ++i) {
+			int key = (int) (order[i] >>> 32);
+			// Within a run of identical keys, the last one is the latest write
+			if (i + 1 < order.length && key == (int) (order[i + 1] >>> 32)) continue;
+
+			keys[newSize] = key;
+			values[newSize] = unsortedValues[(int) order[i]];
+			++newSize;
+		}
+		Arrays.fill(values, newSize, size, null);
+		return newSize;
+	}
+
+	// Java serialization writes a compacted version of this tile, rather than
+	// compacting this one.
+	private Object writeReplace () throws ObjectStreamException {
+		return getCompacted();
+	}
+
+
+
+	// Bins in sorted order, and their values
+	private static class SortedBins {
+		final int[]    _keys;
+		final Object[] _values;
+		final int      _size;
+
+		SortedBins (int[] keys, Object[] values, int size) {
+			_keys = keys;
+			_values = values;
+			_size = size;
+		}
+
+		// Values are only ever set through setBin, so they are always Ts
+		@SuppressWarnings("unchecked")
+		<T> T getValue (int index) {
+			return (T) _values[index];
+		}
+
+		int checkEntry (int n) {
+			if (n < 0 || n >= _size) {
+				throw new IndexOutOfBoundsException("Entry "+n+" requested from a tile with "+_size+" defined bins");
+			}
+			return n;
+		}
+	}
+
+	private class DataIterator implements Iterator<Pair<BinIndex, T>> {
+		private SortedBins _bins;
+		private int        _next = 0;
+
+		DataIterator (SortedBins bins) {
+			_bins = bins;
+		}
+
+		@Override
+		public boolean hasNext () {
+			return _next < _bins._size;
+		}
+
+		@Override
+		public Pair<BinIndex, T> next () {
+			if (!hasNext()) throw new NoSuchElementException();
+			int key = _bins._keys[_next];
+			T value = _bins.getValue(_next);
+			++_next;
+			return new Pair<BinIndex, T>(new BinIndex(key % _index.getXBins(), key / _index.getXBins()), value);
+		}
+
+		@Override
+		public void remove () {
+			throw new UnsupportedOperationException("Illegal to remove elements from PackedSparseTileData.getData()");
+		}
+	}
+
+	@Override
+	public String toString () {
+		return "<packed-sparse-tile index=\""+getDefinition()+"\", default=\""+_default+"\"/>";
+	}
+}
@@ -55,8 +55,9 @@ public class SparseTileData<T> extends TileDataMetadataImpl<T> implements TileDa
 	private T                                _defaultValue;
 
 	// No-argument constructor, really just for use by Kryo, but we call it from
-	// the main constructor just to get rid of the warning.
-	private SparseTileData () {
+	// the main constructor just to get rid of the warning.  Also used by
+	// subclasses that store their data in some other form.
+	protected SparseTileData () {
 		super();
 	}
 
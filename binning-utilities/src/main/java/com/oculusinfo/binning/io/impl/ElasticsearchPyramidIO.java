@@ -1,5 +1,8 @@
 package com.oculusinfo.binning.io.impl;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.oculusinfo.binning.BinIndex;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
@@ -9,6 +12,10 @@ import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.binning.util.JsonUtilities;
 import org.apache.commons.lang.StringEscapeUtils;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
@@ -39,7 +46,9 @@ import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -48,11 +57,27 @@ import java.util.Set;
 
 /**
  * Created by cmenezes on 2015-06-04.
+ *
+ * Tiles are aggregated live, with one query per tile, but all the queries
+ * needed by a single read are sent together in one multi-search request.
+ * Where two or more sibling tiles are wanted, and their bin boundaries line
+ * up with the histogram buckets, a single query on their parent's bounds
+ * is used to derive all four siblings at once.
+ *
+ * Aggregation results are cached by tile, filter properties, and index
+ * refresh count, so re-reading the same area with the same filters doesn't
+ * re-run the same queries until new data becomes visible in the index.
  */
 public class ElasticsearchPyramidIO implements PyramidIO {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchPyramidIO.class);
 	public static final int BINS = 256;
+	public static final int DEFAULT_CACHE_SIZE = 1000;
+	// How long, in milliseconds, the refresh count of the index is trusted
+	// before it is checked again, by default. New data only becomes visible to
+	// searches once the index refreshes, once a second by default, so this adds
+	// little staleness.
+	public static final long DEFAULT_REFRESH_CHECK_INTERVAL = 1000L;
 
 	private Client client;
 
@@ -64,6 +89,13 @@ public class ElasticsearchPyramidIO implements PyramidIO {
 	private final int numZoomlevels;
 	private List<Double> maxValues;
 
+	// Cached aggregation results. Tiles with no data are cached as empty maps.
+	private int cacheSize;
+	private Cache<AggregationKey, Map<Integer, Map<Integer, Long>>> aggregationCache;
+	private long refreshCount;
+	private long refreshCheckTime;
+	private long refreshCheckInterval;
+
 	public ElasticsearchPyramidIO(
 		String esClusterName,
 		String esIndex,
@@ -73,32 +105,92 @@ public class ElasticsearchPyramidIO implements PyramidIO {
 		int esTransportPort,
 		TilePyramid tilePyramid,
 		int zoomLevelPrecompute) {
+		this(esClusterName, esIndex, xField, yField, esTransportAddress, esTransportPort, tilePyramid, zoomLevelPrecompute,
+		     DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param cacheSize The maximum number of tiles for which to cache
+	 *            aggregation results. 0 turns off caching.
+	 */
+	public ElasticsearchPyramidIO(
+		String esClusterName,
+		String esIndex,
+		String xField,
+		String yField,
+		String esTransportAddress,
+		int esTransportPort,
+		TilePyramid tilePyramid,
+		int zoomLevelPrecompute,
+		int cacheSize) {
+		this(createTransportClient(esClusterName, esTransportAddress, esTransportPort),
+		     esIndex, xField, yField, tilePyramid, zoomLevelPrecompute, cacheSize);
+	}
+
+	/**
+	 * Create a pyramid IO that reads through an existing client, such as that
+	 * of an in-process node.
+	 *
+	 * @param cacheSize The maximum number of tiles for which to cache
+	 *            aggregation results. 0 turns off caching.
+	 */
+	public ElasticsearchPyramidIO(
+		Client client,
+		String esIndex,
+		String xField,
+		String yField,
+		TilePyramid tilePyramid,
+		int zoomLevelPrecompute,
+		int cacheSize) {
 
+		this.client = client;
 		this.index = esIndex;
 		this.xField = xField;
 		this.yField = yField;
 		this.tilePyramid = tilePyramid;
 		this.numZoomlevels = zoomLevelPrecompute;
 
-		if ( this.client == null ) {
-			LOGGER.debug("Existing node not found.");
-			try{
-				Settings settings = ImmutableSettings.settingsBuilder()
-					.put("cluster.name", esClusterName)
-					.put("client.transport.sniff", false)
-					.put("sniffOnConnection", true).build();
-				this.client = new TransportClient(settings)
-					.addTransportAddress(new InetSocketTransportAddress(esTransportAddress, esTransportPort));
-
-			}catch (IllegalArgumentException e){
-				LOGGER.debug("Illegal arguments to Elasticsearch node builder.");
-			}
-		}
-		else {
-			LOGGER.debug("An Elasticsearch client already exists.");
+		this.cacheSize = cacheSize;
+		this.aggregationCache = CacheBuilder.newBuilder()
+			.maximumSize(cacheSize)
+			.recordStats()
+			.build();
+		this.refreshCount = -1L;
+		this.refreshCheckTime = 0L;
+		this.refreshCheckInterval = DEFAULT_REFRESH_CHECK_INTERVAL;
+	}
+
+	/**
+	 * Set how long, in milliseconds, the refresh count of the index is trusted
+	 * before it is checked again. Cached aggregation results can be this much
+	 * older than the last refresh of the index; 0 checks on every read.
+	 */
+	public synchronized void setRefreshCheckInterval (long refreshCheckInterval) {
+		this.refreshCheckInterval = refreshCheckInterval;
+	}
+
+	private static Client createTransportClient(String esClusterName, String esTransportAddress, int esTransportPort) {
+		try{
+			Settings settings = ImmutableSettings.settingsBuilder()
+				.put("cluster.name", esClusterName)
+				.put("client.transport.sniff", false)
+				.put("sniffOnConnection", true).build();
+			return new TransportClient(settings)
+				.addTransportAddress(new InetSocketTransportAddress(esTransportAddress, esTransportPort));
+
+		}catch (IllegalArgumentException e){
+			LOGGER.debug("Illegal arguments to Elasticsearch node builder.");
+			return null;
 		}
 	}
 
+	/**
+	 * Get the hit, miss, and eviction counts of the aggregation result cache.
+	 */
+	public CacheStats getCacheStats() {
+		return aggregationCache.stats();
+	}
+
 	private SearchRequestBuilder baseQuery(FilterBuilder filter){
 
 		return this.client.prepareSearch(this.index)
@@ -110,7 +202,8 @@ public class ElasticsearchPyramidIO implements PyramidIO {
 			));
 	}
 
-	private SearchResponse timeFilteredRequest(double startX, double endX, double startY, double endY, JSONObject filterJSON){
+	private SearchRequestBuilder timeFilteredRequest(double startX, double endX, double startY, double endY,
+	                                                 long xInterval, long yInterval, JSONObject filterJSON){
 
 		// the first filter added excludes everything outside of the tile boundary
 		// on both the xField and the yField
@@ -183,21 +276,20 @@ public class ElasticsearchPyramidIO implements PyramidIO {
 			.addAggregation(
 				AggregationBuilders.histogram("xField")
 					.field(this.xField)
-					.interval(getHistogramIntervalFromBounds(startX, endX))
+					.interval(xInterval)
 					.minDocCount(1)
 					.subAggregation(
 						AggregationBuilders.histogram("yField")
 							.field(this.yField)
-							.interval(getHistogramIntervalFromBounds(endY, startY))
+							.interval(yInterval)
 							.minDocCount(1)
 					)
 			);
 
-		return searchRequest
-				.execute()
-				.actionGet();
+		return searchRequest;
 	}
 
+
 	private Long getHistogramIntervalFromBounds(double start, double end) {
 		long interval = ((long) Math.floor((end - start) / BINS));
 		// the calculated interval can be less than 1 if the data is sparse
@@ -236,62 +328,218 @@ public class ElasticsearchPyramidIO implements PyramidIO {
 
 	}
 
-	private Map<Integer, Map> parseAggregations(Histogram date_agg, TileIndex tileIndex) {
-		List<? extends Histogram.Bucket> dateBuckets = date_agg.getBuckets();
-
-		Map<Integer, Map> result = new HashMap<>();
 
-		long maxval = 0;
+	/*
+	 * Parse the buckets of a tile query into sparse tile data for each tile
+	 * it covers. Tiles without any data get empty maps.
+	 */
+	private Map<TileIndex, Map<Integer, Map<Integer, Long>>> parseAggregations(Histogram date_agg, TileQuery query) {
+		Map<TileIndex, Map<Integer, Map<Integer, Long>>> result = new HashMap<>();
+		for (TileIndex tileIndex : query.getTiles()) {
+			result.put(tileIndex, new HashMap<Integer, Map<Integer, Long>>());
+		}
+		if (null == date_agg) {
+			return result;
+		}
 
-		for (Histogram.Bucket dateBucket : dateBuckets) {
+		for (Histogram.Bucket dateBucket : date_agg.getBuckets()) {
+			double x = dateBucket.getKeyAsNumber().doubleValue();
 			Histogram cluster_agg = dateBucket.getAggregations().get("yField");
-			List<? extends Histogram.Bucket> clusterBuckets = cluster_agg.getBuckets();
-
-			BinIndex xBinIndex = tilePyramid.rootToBin(dateBucket.getKeyAsNumber().doubleValue(), 0, tileIndex);
-			int xBin = xBinIndex.getX();
-			Map<Integer,Long> intermediate = new HashMap<>();
-			result.put(xBin, intermediate);
 
-			for( Histogram.Bucket clusterBucket : clusterBuckets) {
+			for( Histogram.Bucket clusterBucket : cluster_agg.getBuckets()) {
 				//given the bin coordinates, see if there's any data in those bins, add values to existing bins
-				BinIndex binIndex = tilePyramid.rootToBin(dateBucket.getKeyAsNumber().doubleValue(), clusterBucket.getKeyAsNumber().doubleValue(), tileIndex);
-				int yBin = binIndex.getY();
-
-				if (result.containsKey(xBin) && result.get(xBin).containsKey(yBin)) {
-					intermediate.put(yBin, (long) intermediate.get(yBin) + clusterBucket.getDocCount());
-				}
-				else if (result.containsKey(xBin) && !(intermediate.containsKey(yBin))) {
-					intermediate.put(yBin, clusterBucket.getDocCount());
-				}
-				if (maxval < clusterBucket.getDocCount()){
-					maxval = clusterBucket.getDocCount();
+				double y = clusterBucket.getKeyAsNumber().doubleValue();
+				TileIndex tileIndex = query.getTile(x, y);
+				BinIndex binIndex = tilePyramid.rootToBin(x, y, tileIndex);
+
+				Map<Integer, Map<Integer, Long>> tileMap = result.get(tileIndex);
+				Map<Integer, Long> intermediate = tileMap.get(binIndex.getX());
+				if (null == intermediate) {
+					intermediate = new HashMap<>();
+					tileMap.put(binIndex.getX(), intermediate);
 				}
+				Long count = intermediate.get(binIndex.getY());
+				intermediate.put(binIndex.getY(), (null == count ? 0L : count) + clusterBucket.getDocCount());
 			}
 		}
 
 		return result;
 	}
 
+	/*
+	 * Get the number of times the index has been refreshed. Searches only see
+	 * new data once the index has refreshed, so as long as this doesn't
+	 * change, neither do aggregation results.
+	 */
+	private synchronized long getRefreshCount() throws IOException {
+		long now = System.currentTimeMillis();
+		if (refreshCount < 0 || now - refreshCheckTime >= refreshCheckInterval) {
+			try {
+				IndicesStatsResponse stats = this.client.admin().indices().prepareStats(this.index)
+					.clear()
+					.setRefresh(true)
+					.execute()
+					.actionGet();
+				refreshCount = stats.getTotal().getRefresh().getTotal();
+				refreshCheckTime = now;
+			} catch (ElasticsearchException e) {
+				throw new IOException("Error reading the refresh count of index "+this.index, e);
+			}
+		}
+		return refreshCount;
+	}
+
+	private TileIndex getParent(TileIndex tileIndex) {
+		if (tileIndex.getLevel() < 1) {
+			return null;
+		}
+		return new TileIndex(tileIndex.getLevel()-1, tileIndex.getX()/2, tileIndex.getY()/2,
+		                     tileIndex.getXBins(), tileIndex.getYBins());
+	}
+
+	private boolean isAligned(double value, long interval) {
+		double buckets = value / interval;
+		return Math.abs(buckets - Math.rint(buckets)) < 1E-9;
+	}
+
+	/*
+	 * A parent query can stand in for queries of its four children when every
+	 * histogram bucket falls entirely within one child. That is the case when
+	 * the parent's edges and center are all bucket boundaries, at the bucket
+	 * size a child query would use.
+	 */
+	private boolean canDeriveChildren(TileIndex parent) {
+		Rectangle2D rect = tilePyramid.getTileBounds(parent);
+		long xInterval = getHistogramIntervalFromBounds(rect.getMinX(), rect.getCenterX());
+		long yInterval = getHistogramIntervalFromBounds(rect.getMinY(), rect.getCenterY());
+		return isAligned(rect.getMinX(), xInterval) && isAligned(rect.getCenterX(), xInterval) &&
+			isAligned(rect.getMinY(), yInterval) && isAligned(rect.getCenterY(), yInterval);
+	}
+
+	private TileQuery createTileQuery(TileIndex tileIndex, JSONObject properties) {
+		Rectangle2D rect = tilePyramid.getTileBounds(tileIndex);
+
+		// get minimum/start time, max/end time
+		double startX = rect.getX();
+		double endX = rect.getMaxX();
+		double startY = rect.getMaxY();
+		double endY = rect.getY();
+
+		SearchRequestBuilder request = timeFilteredRequest(startX, endX, startY, endY,
+		                                                   getHistogramIntervalFromBounds(startX, endX),
+		                                                   getHistogramIntervalFromBounds(endY, startY),
+		                                                   properties);
+		return new TileQuery(request, rect, Collections.singletonList(tileIndex), tilePyramid);
+	}
+
+	/*
+	 * Create a query of the given parent tile that aggregates at the
+	 * resolution of its children
+	 */
+	private TileQuery createChildrenQuery(TileIndex parent, JSONObject properties) {
+		Rectangle2D rect = tilePyramid.getTileBounds(parent);
+
+		double startX = rect.getX();
+		double endX = rect.getMaxX();
+		double startY = rect.getMaxY();
+		double endY = rect.getY();
+
+		SearchRequestBuilder request = timeFilteredRequest(startX, endX, startY, endY,
+		                                                   getHistogramIntervalFromBounds(startX, rect.getCenterX()),
+		                                                   getHistogramIntervalFromBounds(endY, rect.getCenterY()),
+		                                                   properties);
+		List<TileIndex> children = new ArrayList<>(4);
+		for (int x = 0; x < 2; ++x) {
+			for (int y = 0; y < 2; ++y) {
+				children.add(new TileIndex(parent.getLevel()+1, parent.getX()*2+x, parent.getY()*2+y,
+				                           parent.getXBins(), parent.getYBins()));
+			}
+		}
+		return new TileQuery(request, rect, children, tilePyramid);
+	}
+
 	@Override
 	public <T> List<TileData<T>> readTiles(String pyramidId, TileSerializer<T> serializer, Iterable<TileIndex> tiles, JSONObject properties) throws IOException{
+		String filterKey = (null == properties) ? "" : properties.toString();
+		long refresh = (cacheSize > 0) ? getRefreshCount() : 0L;
 
-		List<TileData<T>> results = new LinkedList<TileData<T>>();
-
-		// iterate over the tile indices
+		// Use what we can from the cache, and group the rest by parent
+		List<TileIndex> requested = new ArrayList<>();
+		Map<TileIndex, Map<Integer, Map<Integer, Long>>> tileMaps = new HashMap<>();
+		Map<TileIndex, List<TileIndex>> missesByParent = new LinkedHashMap<>();
 		for (TileIndex tileIndex: tiles) {
-			Rectangle2D rect = tilePyramid.getTileBounds(tileIndex);
-
-			// get minimum/start time, max/end time
-			double startX = rect.getX();
-			double endX = rect.getMaxX();
-			double startY = rect.getMaxY();
-			double endY = rect.getY();
-
-			SearchResponse sr = timeFilteredRequest(startX, endX, startY, endY, properties);
-			if (responseHasData(sr)) {
-				Histogram date_agg = sr.getAggregations().get("xField");
-				Map<Integer, Map> tileMap = parseAggregations(date_agg, tileIndex);
-				SparseTileData tileData = new SparseTileData(tileIndex,tileMap, 0);
+			requested.add(tileIndex);
+			Map<Integer, Map<Integer, Long>> cached = aggregationCache.getIfPresent(new AggregationKey(tileIndex, filterKey, refresh));
+			if (null != cached) {
+				tileMaps.put(tileIndex, cached);
+				continue;
+			}
+
+			TileIndex parent = getParent(tileIndex);
+			List<TileIndex> siblings = missesByParent.get(parent);
+			if (null == siblings) {
+				siblings = new ArrayList<>();
+				missesByParent.put(parent, siblings);
+			}
+			if (!siblings.contains(tileIndex)) {
+				siblings.add(tileIndex);
+			}
+		}
+
+		// Query a parent for its children when that saves queries, or each
+		// tile on its own otherwise
+		List<TileQuery> queries = new ArrayList<>();
+		for (Map.Entry<TileIndex, List<TileIndex>> entry : missesByParent.entrySet()) {
+			TileIndex parent = entry.getKey();
+			List<TileIndex> siblings = entry.getValue();
+			if (null != parent && siblings.size() > 1 && canDeriveChildren(parent)) {
+				queries.add(createChildrenQuery(parent, properties));
+			} else {
+				for (TileIndex tileIndex : siblings) {
+					queries.add(createTileQuery(tileIndex, properties));
+				}
+			}
+		}
+
+		// Run all the queries in a single multi-search
+		if (!queries.isEmpty()) {
+			MultiSearchRequestBuilder multiSearch = this.client.prepareMultiSearch();
+			for (TileQuery query : queries) {
+				multiSearch.add(query.getRequest());
+			}
+
+			MultiSearchResponse.Item[] responses;
+			try {
+				responses = multiSearch.execute().actionGet().getResponses();
+			} catch (ElasticsearchException e) {
+				throw new IOException("Error reading tiles from Elasticsearch", e);
+			}
+
+			for (int i = 0; i < responses.length; ++i) {
+				if (responses[i].isFailure()) {
+					throw new IOException("Error reading tiles from Elasticsearch: "+responses[i].getFailureMessage());
+				}
+				SearchResponse sr = responses[i].getResponse();
+				Histogram date_agg = responseHasData(sr) ? (Histogram) sr.getAggregations().get("xField") : null;
+				Map<TileIndex, Map<Integer, Map<Integer, Long>>> parsed = parseAggregations(date_agg, queries.get(i));
+				for (Map.Entry<TileIndex, Map<Integer, Map<Integer, Long>>> entry : parsed.entrySet()) {
+					aggregationCache.put(new AggregationKey(entry.getKey(), filterKey, refresh), entry.getValue());
+					tileMaps.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		List<TileData<T>> results = new LinkedList<TileData<T>>();
+		for (TileIndex tileIndex : requested) {
+			Map<Integer, Map<Integer, Long>> tileMap = tileMaps.get(tileIndex);
+			if (null != tileMap && !tileMap.isEmpty()) {
+				// Copy the cached data, so changes to the tile can't leak back
+				// into the cache
+				Map<Integer, Map> copy = new HashMap<>();
+				for (Map.Entry<Integer, Map<Integer, Long>> entry : tileMap.entrySet()) {
+					copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+				}
+				SparseTileData tileData = new SparseTileData(tileIndex, copy, 0);
 				results.add(tileData);
 			}
 		}
@@ -307,7 +555,7 @@ public class ElasticsearchPyramidIO implements PyramidIO {
 
 	@Override
 	public <T> List<TileData<T>> readTiles(String pyramidId, TileSerializer<T> serializer, Iterable<TileIndex> tiles) throws IOException {
-		return readTiles(pyramidId,serializer,tiles);
+		return readTiles(pyramidId, serializer, tiles, null);
 	}
 
 	@Override
@@ -489,4 +737,80 @@ public class ElasticsearchPyramidIO implements PyramidIO {
 	public void removeTiles(String id, Iterable<TileIndex> tiles) throws IOException {
 
 	}
+
+	/*
+	 * The key under which aggregation results for a tile are cached
+	 */
+	private static class AggregationKey {
+		private final TileIndex tileIndex;
+		private final String filter;
+		private final long refresh;
+
+		AggregationKey(TileIndex tileIndex, String filter, long refresh) {
+			this.tileIndex = tileIndex;
+			this.filter = filter;
+			this.refresh = refresh;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof AggregationKey)) return false;
+			AggregationKey that = (AggregationKey) obj;
+			return refresh == that.refresh && tileIndex.equals(that.tileIndex) && filter.equals(that.filter);
+		}
+
+		@Override
+		public int hashCode() {
+			return (tileIndex.hashCode() * 31 + filter.hashCode()) * 31 + (int) (refresh ^ (refresh >>> 32));
+		}
+	}
+
+	/*
+	 * A single search, along with the tiles whose data it aggregates. A search
+	 * covers either one tile, or all four children of one tile.
+	 */
+	private static class TileQuery {
+		private final SearchRequestBuilder request;
+		private final double centerX;
+		private final double centerY;
+		private final List<TileIndex> tiles;
+		private final List<Rectangle2D> tileBounds;
+
+		TileQuery(SearchRequestBuilder request, Rectangle2D bounds, List<TileIndex> tiles, TilePyramid tilePyramid) {
+			this.request = request;
+			this.centerX = bounds.getCenterX();
+			this.centerY = bounds.getCenterY();
+			this.tiles = tiles;
+			this.tileBounds = new ArrayList<>(tiles.size());
+			for (TileIndex tileIndex : tiles) {
+				tileBounds.add(tilePyramid.getTileBounds(tileIndex));
+			}
+		}
+
+		SearchRequestBuilder getRequest() {
+			return request;
+		}
+
+		List<TileIndex> getTiles() {
+			return tiles;
+		}
+
+		// Get the tile to which the bucket at the given point belongs; for
+		// children, that is the child on the same side of the center as the
+		// point in each dimension.
+		TileIndex getTile(double x, double y) {
+			if (1 == tiles.size()) {
+				return tiles.get(0);
+			}
+			for (int i = 0; i < tiles.size(); ++i) {
+				Rectangle2D bounds = tileBounds.get(i);
+				if ((x < centerX) == (bounds.getCenterX() < centerX) &&
+				    (y < centerY) == (bounds.getCenterY() < centerY)) {
+					return tiles.get(i);
+				}
+			}
+			return tiles.get(0);
+		}
+	}
 }
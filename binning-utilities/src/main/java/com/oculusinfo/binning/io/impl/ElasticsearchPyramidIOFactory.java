@@ -36,6 +36,10 @@ public class ElasticsearchPyramidIOFactory extends SharedInstanceFactory<Pyramid
 		"es.num.zoom.levels",
 		"Number of levels to precompute when configuring the layer",
 		3);
+	public static IntegerProperty ES_CACHE_SIZE = new IntegerProperty(
+		"es.cache.size",
+		"The maximum number of tiles for which to cache aggregation results; 0 turns caching off",
+		ElasticsearchPyramidIO.DEFAULT_CACHE_SIZE);
 
 	// data properties
 	public static StringProperty ES_INDEX = new StringProperty(
@@ -62,6 +66,7 @@ public class ElasticsearchPyramidIOFactory extends SharedInstanceFactory<Pyramid
 		addProperty(ES_FIELD_X);
 		addProperty(ES_FIELD_Y);
 		addProperty(NUM_ZOOM_LEVELS);
+		addProperty(ES_CACHE_SIZE);
 	}
 
 	@Override
@@ -73,12 +78,13 @@ public class ElasticsearchPyramidIOFactory extends SharedInstanceFactory<Pyramid
 		int transportPort = getPropertyValue(ES_TRANSPORT_PORT);
 
 		Integer numZoomLevels = getPropertyValue(NUM_ZOOM_LEVELS);
+		int cacheSize = getPropertyValue(ES_CACHE_SIZE);
 
 		String elasticIndex = getPropertyValue(ES_INDEX);
 		String esFieldX = getPropertyValue(ES_FIELD_X);
 		String esFieldY = getPropertyValue(ES_FIELD_Y);
 		TilePyramid tilePyramid = getRoot().produce(TilePyramid.class);
 
-		return new ElasticsearchPyramidIO(clusterName, elasticIndex, esFieldX, esFieldY, transportAddress, transportPort, tilePyramid, numZoomLevels);
+		return new ElasticsearchPyramidIO(clusterName, elasticIndex, esFieldX, esFieldY, transportAddress, transportPort, tilePyramid, numZoomLevels, cacheSize);
 	}
 }
@@ -36,7 +36,7 @@ import java.util.List;
 
 
 /**
- * Extends a ConfigurableFactory for file system based (zip, resource, or directory) PyramidIO types.
+ * Extends a ConfigurableFactory for file system based (zip, resource, directory, or packed) PyramidIO types.
  * 	This class will be injected with a PyramidSource object that will provide the necesarry tile access depending
  *  on the particular type of file system tile used.
  *
@@ -48,6 +48,7 @@ public class FileBasedPyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 
 	public static StringProperty ROOT_PATH              = new StringProperty("root.path",
 		   "Indicates the root path of the tile pyramid - the full path to an archive file(zip), directory, or resource location."
+		   + "  Prefix a directory with packed:// to store each level of the pyramid in a single packed file."
 		   + "  There is no default for this property.",
 		   null);
 	public static StringProperty EXTENSION              = new StringProperty("extension",
@@ -78,6 +79,10 @@ public class FileBasedPyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 			// currently only handle zip, can expand to others (tar, rar, etc...)
 			// We need a cache of zip sources - they are slow to read.
 			source = ZipResourcePyramidSource.getZipSource(rootpath, extension);
+		} else if (rootpath.startsWith("packed://")) {
+			// a directory on the file system, holding one packed file per pyramid level
+			rootpath = rootpath.substring(9);
+			source = PackedFilePyramidSource.getPackedSource(rootpath);
 		} else if (rootpath.startsWith("file://")) {
 			// a file/directory on the file system
 			rootpath = rootpath.substring(7);
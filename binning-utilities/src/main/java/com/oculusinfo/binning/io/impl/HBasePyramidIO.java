@@ -26,10 +26,13 @@ package com.oculusinfo.binning.io.impl;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.*;
@@ -70,21 +73,64 @@ public class HBasePyramidIO implements PyramidIO {
 	private Admin           _admin;
 	private Connection      _connection;
 	private HBaseTilePutter _putter;
+	private int             _readThreads;
+	private ExecutorService _readExecutor;
+	private boolean         _closed;
 
 	public HBasePyramidIO (String zookeeperQuorum, String zookeeperPort, String hbaseMaster)
 		throws IOException {
+		this(zookeeperQuorum, zookeeperPort, hbaseMaster, Runtime.getRuntime().availableProcessors());
+	}
 
-		Logger.getLogger("org.apache.zookeeper").setLevel(Level.WARN);
-		Logger.getLogger("org.apache.hadoop").setLevel(Level.WARN);
+	/**
+	 * @param readThreads The maximum number of worker threads used to fetch
+	 *            and deserialize tiles when reading more than one tile at a
+	 *            time
+	 */
+	public HBasePyramidIO (String zookeeperQuorum, String zookeeperPort, String hbaseMaster, int readThreads)
+		throws IOException {
+		this(connect(zookeeperQuorum, zookeeperPort, hbaseMaster, readThreads), readThreads);
+	}
 
-		_config = HBaseConfiguration.create();
-		_config.set("hbase.zookeeper.quorum", zookeeperQuorum);
-		_config.set("hbase.zookeeper.property.clientPort", zookeeperPort);
-		_config.set("hbase.master", hbaseMaster);
-		_config.set("hbase.client.keyvalue.maxsize", "0");
-		_connection = ConnectionFactory.createConnection(_config);
+	/**
+	 * Create a pyramid IO that uses an already-established HBase connection.
+	 *
+	 * @param connection The connection to HBase
+	 * @param readThreads The maximum number of worker threads used to fetch
+	 *            and deserialize tiles when reading more than one tile at a
+	 *            time
+	 */
+	public HBasePyramidIO (Connection connection, int readThreads) throws IOException {
+		checkReadThreads(readThreads);
+		_config = connection.getConfiguration();
+		_connection = connection;
 		_admin = _connection.getAdmin();
 		_putter = new StandardHBaseTilePutter();
+		_readThreads = readThreads;
+		_readExecutor = null;
+		_closed = false;
+	}
+
+	private static void checkReadThreads (int readThreads) {
+		if (readThreads < 1) {
+			throw new IllegalArgumentException("HBase pyramid IO needs at least one read thread, got "+readThreads);
+		}
+	}
+
+	private static Connection connect (String zookeeperQuorum, String zookeeperPort, String hbaseMaster, int readThreads)
+		throws IOException {
+		// Check this before bothering to connect
+		checkReadThreads(readThreads);
+
+		Logger.getLogger("org.apache.zookeeper").setLevel(Level.WARN);
+		Logger.getLogger("org.apache.hadoop").setLevel(Level.WARN);
+
+		Configuration config = HBaseConfiguration.create();
+		config.set("hbase.zookeeper.quorum", zookeeperQuorum);
+		config.set("hbase.zookeeper.property.clientPort", zookeeperPort);
+		config.set("hbase.master", hbaseMaster);
+		config.set("hbase.client.keyvalue.maxsize", "0");
+		return ConnectionFactory.createConnection(config);
 	}
 
 
@@ -111,9 +157,17 @@ public class HBasePyramidIO implements PyramidIO {
 
 
 	/**
-	 * Close down this pyramid IO
+	 * Close down this pyramid IO. Reads already under way finish; any of their
+	 * tiles that can no longer be scheduled are reported as failed.
 	 */
 	public void close () throws IOException {
+		synchronized (this) {
+			_closed = true;
+			if (null != _readExecutor) {
+				_readExecutor.shutdown();
+				_readExecutor = null;
+			}
+		}
 		_admin.close();
 	}
 
@@ -126,6 +180,50 @@ public class HBasePyramidIO implements PyramidIO {
 	}
 
 
+	/*
+	 * Get the pool on which bulk reads fetch and deserialize tiles. The pool
+	 * and its work queue are both bounded; if they are full, work is done on
+	 * the submitting thread instead, which throttles whoever is submitting.
+	 */
+	private synchronized ExecutorService getReadExecutor () throws IOException {
+		if (_closed) {
+			throw new IOException("Error reading tiles: HBase pyramid IO has been closed");
+		}
+		if (null == _readExecutor) {
+			final AtomicInteger threadCount = new AtomicInteger(0);
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(_readThreads, _readThreads, 60L, TimeUnit.SECONDS,
+			                                                     new ArrayBlockingQueue<Runnable>(_readThreads * 64),
+			                                                     new ThreadFactory() {
+				                                                     @Override
+				                                                     public Thread newThread (Runnable r) {
+					                                                     Thread thread = new Thread(r, "hbase-tile-reader-"+threadCount.incrementAndGet());
+					                                                     thread.setDaemon(true);
+					                                                     return thread;
+				                                                     }
+			                                                     },
+			                                                     new CallerRunsUnlessShutdown());
+			executor.allowCoreThreadTimeOut(true);
+			_readExecutor = executor;
+		}
+		return _readExecutor;
+	}
+
+	/*
+	 * Run work on the submitting thread when the read pool is full, like
+	 * CallerRunsPolicy - but once the pool has been shut down, refuse the
+	 * work rather than silently dropping it, so whoever is waiting on it can
+	 * be told.
+	 */
+	private static class CallerRunsUnlessShutdown implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution (Runnable work, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("HBase pyramid IO has been closed");
+			}
+			work.run();
+		}
+	}
+
 	/*
 	 * Gets an existing table (without creating it)
 	 */
@@ -303,7 +401,7 @@ public class HBasePyramidIO implements PyramidIO {
 	}
 
 	protected <T> List<TileData<T>> readTiles (String tableName,
-											   TileSerializer<T> serializer,
+											   final TileSerializer<T> serializer,
 											   Iterable<TileIndex> tiles,
 											   HBaseColumn... columns) throws IOException {
 		List<String> rowIds = new ArrayList<String>();
@@ -313,27 +411,242 @@ public class HBasePyramidIO implements PyramidIO {
 
 		List<Map<HBaseColumn, byte[]>> rawResults = readRows(tableName, rowIds, columns);
 
-		List<TileData<T>> results = new LinkedList<TileData<T>>();
+		List<Callable<TileData<T>>> deserializations = new ArrayList<Callable<TileData<T>>>();
 
 		Iterator<Map<HBaseColumn, byte[]>> iData = rawResults.iterator();
 		Iterator<TileIndex> indexIterator = tiles.iterator();
 
 		while (iData.hasNext()) {
 			Map<HBaseColumn, byte[]> rawResult = iData.next();
-			TileIndex index = indexIterator.next();
+			final TileIndex index = indexIterator.next();
 			if (null != rawResult) {
 				for (HBaseColumn column: columns) {
-					byte[] rawData = rawResult.get(column);
-					ByteArrayInputStream bais = new ByteArrayInputStream(rawData);
-					TileData<T> data = serializer.deserialize(index, bais);
-					results.add(data);
+					final byte[] rawData = rawResult.get(column);
+					deserializations.add(new Callable<TileData<T>>() {
+						@Override
+						public TileData<T> call () throws Exception {
+							return serializer.deserialize(index, new ByteArrayInputStream(rawData));
+						}
+					});
 				}
 			}
 		}
 
+		List<TileData<T>> results = new LinkedList<TileData<T>>();
+		if (deserializations.size() < 2) {
+			// Not worth handing off to another thread
+			for (Callable<TileData<T>> deserialization: deserializations) {
+				try {
+					results.add(deserialization.call());
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException("Error deserializing tile", e);
+				}
+			}
+		} else {
+			// Deserialize in parallel, keeping the order in which tiles were requested
+			try {
+				for (Future<TileData<T>> future: getReadExecutor().invokeAll(deserializations)) {
+					results.add(future.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while deserializing tiles");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException("Error deserializing tile", e.getCause());
+			} catch (RejectedExecutionException e) {
+				throw new IOException("Error deserializing tiles: HBase pyramid IO has been closed", e);
+			}
+		}
+
 		return results;
 	}
 
+	/**
+	 * Read tiles from any number of pyramids at once.
+	 *
+	 * All requested tiles are grouped by table and by the region server
+	 * hosting them, and each group is fetched with a single multi-get, so a
+	 * whole viewport across several layers costs roughly one round trip per
+	 * region server rather than one per tile. Groups are fetched in parallel,
+	 * and tiles are deserialized on a bounded worker pool; each tile is handed
+	 * to its request's listener as soon as it is ready, rather than when the
+	 * whole read is done.
+	 *
+	 * This method returns once every requested tile has been reported to its
+	 * listener, either as read, missing, or failed. If this pyramid IO is
+	 * closed during the read, any tiles not yet fetched are reported as
+	 * failed, with an IOException.
+	 *
+	 * @param requests The tiles to read, one request per pyramid
+	 */
+	public void readTiles (List<? extends TileReadRequest<?>> requests) throws IOException {
+		Map<String, List<PendingRead<?>>> groups = new LinkedHashMap<String, List<PendingRead<?>>>();
+		int totalTiles = 0;
+		for (TileReadRequest<?> request: requests) {
+			totalTiles += groupReads(request, groups);
+		}
+		if (0 == totalTiles) return;
+
+		CountDownLatch remaining = new CountDownLatch(totalTiles);
+		ExecutorService executor = getReadExecutor();
+		for (Map.Entry<String, List<PendingRead<?>>> entry: groups.entrySet()) {
+			String tableName = entry.getValue().get(0).getRequest().getPyramidId();
+			try {
+				executor.execute(new GroupFetch(tableName, entry.getValue(), remaining, executor));
+			} catch (RejectedExecutionException e) {
+				failAll(entry.getValue(), new IOException("Error reading tiles: HBase pyramid IO has been closed", e), remaining);
+			}
+		}
+
+		try {
+			remaining.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading tiles");
+		}
+	}
+
+	/*
+	 * Split the tiles of a single request up by the region server that holds
+	 * them, adding them to the list of groups, keyed by table and server.
+	 *
+	 * @return The number of tiles added
+	 */
+	private <T> int groupReads (TileReadRequest<T> request, Map<String, List<PendingRead<?>>> groups) throws IOException {
+		String tableName = request.getPyramidId();
+		int count = 0;
+		RegionLocator locator = _connection.getRegionLocator(TableName.valueOf(tableName));
+		try {
+			for (TileIndex index: request.getTiles()) {
+				byte[] row = rowIdFromTileIndex(index).getBytes();
+				HRegionLocation location = locator.getRegionLocation(row);
+				String key = tableName+"@"+(null == location ? "" : location.getServerName().getServerName());
+
+				List<PendingRead<?>> group = groups.get(key);
+				if (null == group) {
+					group = new ArrayList<PendingRead<?>>();
+					groups.put(key, group);
+				}
+				Get get = new Get(row);
+				get.addColumn(TILE_COLUMN.family, TILE_COLUMN.qualifier);
+				group.add(new PendingRead<T>(request, index, get));
+				++count;
+			}
+		} finally {
+			locator.close();
+		}
+		return count;
+	}
+
+	/*
+	 * Report a set of scheduled reads as failed
+	 */
+	private static void failAll (List<PendingRead<?>> reads, Exception cause, CountDownLatch remaining) {
+		for (PendingRead<?> read: reads) {
+			try {
+				read.fail(cause);
+			} finally {
+				remaining.countDown();
+			}
+		}
+	}
+
+	/*
+	 * A single tile read that has been scheduled, but not yet returned
+	 */
+	private static class PendingRead<T> {
+		private TileReadRequest<T> _request;
+		private TileIndex          _index;
+		private Get                _get;
+
+		PendingRead (TileReadRequest<T> request, TileIndex index, Get get) {
+			_request = request;
+			_index = index;
+			_get = get;
+		}
+
+		TileReadRequest<T> getRequest () {return _request;}
+		Get getGet () {return _get;}
+
+		void deliver (Result result) {
+			try {
+				TileData<T> tile = null;
+				if (null != result && result.containsColumn(TILE_COLUMN.family, TILE_COLUMN.qualifier)) {
+					byte[] rawData = result.getValue(TILE_COLUMN.family, TILE_COLUMN.qualifier);
+					tile = _request.getSerializer().deserialize(_index, new ByteArrayInputStream(rawData));
+				}
+				_request.getListener().tileRead(_request.getPyramidId(), _index, tile);
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+
+		void fail (Exception cause) {
+			_request.getListener().tileFailed(_request.getPyramidId(), _index, cause);
+		}
+	}
+
+	/*
+	 * Fetch one group of tiles - all in the same table, on the same region
+	 * server - and hand each one off to be deserialized.
+	 */
+	private class GroupFetch implements Runnable {
+		private String               _tableName;
+		private List<PendingRead<?>> _reads;
+		private CountDownLatch       _remaining;
+		private Executor             _executor;
+
+		GroupFetch (String tableName, List<PendingRead<?>> reads, CountDownLatch remaining, Executor executor) {
+			_tableName = tableName;
+			_reads = reads;
+			_remaining = remaining;
+			_executor = executor;
+		}
+
+		@Override
+		public void run () {
+			Result[] results;
+			try {
+				List<Get> gets = new ArrayList<Get>(_reads.size());
+				for (PendingRead<?> read: _reads) {
+					gets.add(read.getGet());
+				}
+				Table table = getTable(_tableName);
+				try {
+					results = table.get(gets);
+				} finally {
+					table.close();
+				}
+			} catch (Exception e) {
+				failAll(_reads, e, _remaining);
+				return;
+			}
+
+			for (int i=0; i<_reads.size(); ++i) {
+				final PendingRead<?> read = _reads.get(i);
+				final Result result = results[i];
+				try {
+					_executor.execute(new Runnable() {
+						@Override
+						public void run () {
+							try {
+								read.deliver(result);
+							} finally {
+								_remaining.countDown();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					failAll(Collections.<PendingRead<?>>singletonList(read),
+					        new IOException("Error deserializing tile: HBase pyramid IO has been closed", e), _remaining);
+				}
+			}
+		}
+	}
+
 	@Override
 	public <T> InputStream getTileStream (String tableName,
 	                                      TileSerializer<T> serializer,
@@ -400,6 +713,52 @@ public class HBasePyramidIO implements PyramidIO {
 
 
 
+	/**
+	 * Receives the tiles from a bulk read as they become available. Listeners
+	 * are called from the reader's worker threads, so must be thread-safe.
+	 */
+	public static interface TileReadListener<T> {
+		/**
+		 * Called once a requested tile has been read.
+		 *
+		 * @param pyramidId The pyramid from which the tile was read
+		 * @param index The index of the requested tile
+		 * @param tile The tile, or null if the pyramid has no data for it
+		 */
+		public void tileRead (String pyramidId, TileIndex index, TileData<T> tile);
+
+		/**
+		 * Called, instead of {@link #tileRead}, if a requested tile could not
+		 * be fetched or deserialized.
+		 */
+		public void tileFailed (String pyramidId, TileIndex index, Exception cause);
+	}
+
+	/**
+	 * The part of a bulk read that comes from a single pyramid.
+	 */
+	public static class TileReadRequest<T> {
+		private String              _pyramidId;
+		private TileSerializer<T>   _serializer;
+		private Iterable<TileIndex> _tiles;
+		private TileReadListener<T> _listener;
+
+		public TileReadRequest (String pyramidId, TileSerializer<T> serializer,
+		                        Iterable<TileIndex> tiles, TileReadListener<T> listener) {
+			_pyramidId = pyramidId;
+			_serializer = serializer;
+			_tiles = tiles;
+			_listener = listener;
+		}
+
+		public String getPyramidId () {return _pyramidId;}
+		public TileSerializer<T> getSerializer () {return _serializer;}
+		public Iterable<TileIndex> getTiles () {return _tiles;}
+		public TileReadListener<T> getListener () {return _listener;}
+	}
+
+
+
 	// A separate object to separate out our Put generator, so it can be used in distributed environments
 	public static interface HBaseTilePutter extends Serializable {
 		public <T> Put getPutForTile (TileData<T> tile, TileSerializer<T> serializer) throws IOException;
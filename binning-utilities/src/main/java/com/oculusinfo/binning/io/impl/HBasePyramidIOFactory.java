@@ -27,6 +27,7 @@ import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.ConfigurationException;
 import com.oculusinfo.factory.SharedInstanceFactory;
+import com.oculusinfo.factory.properties.IntegerProperty;
 import com.oculusinfo.factory.properties.StringProperty;
 
 import org.slf4j.Logger;
@@ -49,6 +50,9 @@ public class HBasePyramidIOFactory extends SharedInstanceFactory<PyramidIO> {
 	public static StringProperty HBASE_MASTER = new StringProperty("hbase.master",
 		   "Only used if type=\"hbase\".  An HBase configuration parameter, this should match the similar value in hbase-site.xml.  There is no default for this property.",
 		   null);
+	public static IntegerProperty HBASE_READ_THREADS = new IntegerProperty("hbase.read.threads",
+		   "Only used if type=\"hbase\".  The maximum number of threads used to fetch and deserialize tiles when several are read at once.  Defaults to the number of available processors.",
+		   Runtime.getRuntime().availableProcessors());
 	
 	public HBasePyramidIOFactory(ConfigurableFactory<?> parent, List<String> path) {
 		super("hbase", PyramidIO.class, parent, path);
@@ -56,6 +60,7 @@ public class HBasePyramidIOFactory extends SharedInstanceFactory<PyramidIO> {
 		addProperty(HBASE_ZOOKEEPER_QUORUM);
 		addProperty(HBASE_ZOKEEPER_PORT);
 		addProperty(HBASE_MASTER);
+		addProperty(HBASE_READ_THREADS);
 	}
 
 	@Override
@@ -64,7 +69,8 @@ public class HBasePyramidIOFactory extends SharedInstanceFactory<PyramidIO> {
 			String quorum = getPropertyValue(HBASE_ZOOKEEPER_QUORUM);
 			String port = getPropertyValue(HBASE_ZOKEEPER_PORT);
 			String master = getPropertyValue(HBASE_MASTER);
-			return new HBasePyramidIO(quorum, port, master);
+			int readThreads = getPropertyValue(HBASE_READ_THREADS);
+			return new HBasePyramidIO(quorum, port, master, readThreads);
 		} catch (IOException e) {
 			throw new ConfigurationException("Exception creating HBase pyramid IO", e);
 		}
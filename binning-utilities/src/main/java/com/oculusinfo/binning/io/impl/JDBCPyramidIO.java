@@ -28,31 +28,60 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
-import org.json.JSONObject;
 
 /**
  * JDBC-based implementation of PyramidIO.
  *
+ * Connections are pooled; up to a fixed number of them are opened, as they
+ * are needed, and each keeps its own cache of prepared statements. Reads of
+ * more than one tile are grouped by tile column, so each group can be
+ * fetched with a single IN-list query, and the groups are spread across the
+ * pool so they can be fetched and deserialized concurrently. Writes insert
+ * many rows per statement, all within a single transaction.
+ *
  * @author rcameron
  *
  */
 public class JDBCPyramidIO implements PyramidIO {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JDBCPyramidIO.class);
+
 	private static final String TABLE_METADATA = "metadata";
-	private static final int BATCH_SIZE = 10000;
 	private static final String COL_ZOOM_LVL = "zoom_level";
 	private static final String COL_TILE_COLUMN = "tile_column";
 	private static final String COL_TILE_ROW = "tile_row";
@@ -60,27 +89,210 @@ public class JDBCPyramidIO implements PyramidIO {
 	private static final String COL_METADATA = "metadata";
 	private static final String COL_PYRAMID_ID = "pyramid_id";
 
-	private Connection _connection;
+	// The number of rows written by each insert statement. Each row takes 4
+	// parameters, and many databases (SQLite included) limit statements to
+	// 999 parameters.
+	private static final int INSERT_ROWS = 200;
+	// The largest number of tiles read by a single IN-list query. IN-lists
+	// are padded to the next power of two, so only a few distinct read
+	// statements are ever prepared per table.
+	private static final int MAX_IN_LIST = 128;
+	// The number of prepared statements each connection keeps open
+	private static final int STATEMENT_CACHE_SIZE = 32;
+
+	private String                          _dbUrl;
+	private Properties                      _connectionProperties;
+	private int                             _poolSize;
+	private List<PooledConnection>          _connections;
+	private BlockingQueue<PooledConnection> _idleConnections;
+	private volatile boolean                _shutdown;
+	private Set<String>                     _knownTables;
+	private ExecutorService                 _readExecutor;
 
 	public JDBCPyramidIO(String driverClassName, String dbUrl) throws ClassNotFoundException, SQLException {
+		this(driverClassName, dbUrl, 1);
+	}
+
+	/**
+	 * @param poolSize The maximum number of connections to open to the
+	 *            database, and so the maximum number of reads that can run
+	 *            at once.
+	 */
+	public JDBCPyramidIO(String driverClassName, String dbUrl, int poolSize) throws ClassNotFoundException, SQLException {
+		this(driverClassName, dbUrl, poolSize, null);
+	}
+
+	/**
+	 * @param poolSize The maximum number of connections to open to the
+	 *            database, and so the maximum number of reads that can run
+	 *            at once.
+	 * @param connectionProperties The properties with which to open each
+	 *            connection, or null for none.
+	 */
+	public JDBCPyramidIO(String driverClassName, String dbUrl, int poolSize, Properties connectionProperties)
+		throws ClassNotFoundException, SQLException {
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("JDBC pyramid IO needs at least one connection, got "+poolSize);
+		}
 		Class.forName(driverClassName);
-		_connection = DriverManager.getConnection(dbUrl);
+		_dbUrl = dbUrl;
+		_connectionProperties = connectionProperties;
+		_poolSize = poolSize;
+		_connections = new ArrayList<PooledConnection>(poolSize);
+		_idleConnections = new LinkedBlockingQueue<PooledConnection>();
+		_shutdown = false;
+		_knownTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		_readExecutor = null;
+
+		// Open the first connection right away, so a bad URL is reported here
+		// rather than at first use.
+		try {
+			release(acquire());
+		} catch (InterruptedIOException e) {
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Get the maximum number of connections this pyramid IO will open.
+	 */
+	public int getPoolSize () {
+		return _poolSize;
 	}
 
+	/**
+	 * Close the pool. Idle connections are closed immediately; connections
+	 * still in use are closed when released.
+	 */
 	public void shutdown() {
+		synchronized (this) {
+			_shutdown = true;
+			if (null != _readExecutor) {
+				_readExecutor.shutdown();
+				_readExecutor = null;
+			}
+			PooledConnection connection;
+			while (null != (connection = _idleConnections.poll())) {
+				_connections.remove(connection);
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Prepare a newly opened connection for use. This is called once for each
+	 * connection in the pool, before it is first used; subclasses can
+	 * override it to set database-specific connection options.
+	 */
+	protected void configureConnection (Connection connection) throws SQLException {
+		// Noop
+	}
+
+	/**
+	 * Prepare the database for writing. This is called each time the pyramid
+	 * IO is initialized for writing, on one connection from the pool;
+	 * subclasses can override it to set database-wide options only needed by
+	 * writers.
+	 */
+	protected void configureForWrite (Connection connection) throws SQLException {
+		// Noop
+	}
+
+	/*
+	 * Get a connection from the pool, opening a new one if none are free and
+	 * the pool isn't yet full, or waiting for one to be released otherwise.
+	 * Every connection acquired must be released.
+	 */
+	private PooledConnection acquire () throws SQLException, InterruptedIOException {
+		checkNotShutdown();
+		PooledConnection connection = _idleConnections.poll();
+		if (null != connection) return connection;
+
+		synchronized (this) {
+			checkNotShutdown();
+			if (_connections.size() < _poolSize) {
+				Connection rawConnection = (null == _connectionProperties
+				                            ? DriverManager.getConnection(_dbUrl)
+				                            : DriverManager.getConnection(_dbUrl, _connectionProperties));
+				try {
+					configureConnection(rawConnection);
+				} catch (SQLException e) {
+					rawConnection.close();
+					throw e;
+				}
+				connection = new PooledConnection(rawConnection);
+				_connections.add(connection);
+				return connection;
+			}
+		}
+
+		// Released connections are closed rather than pooled once the pool is
+		// shut down, so check periodically rather than waiting forever.
 		try {
-			_connection.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
+			while (true) {
+				connection = _idleConnections.poll(1, TimeUnit.SECONDS);
+				if (null != connection) return connection;
+				checkNotShutdown();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a database connection");
 		}
 	}
 
+	private void checkNotShutdown () throws SQLException {
+		if (_shutdown) {
+			throw new SQLException("JDBC pyramid IO has been shut down");
+		}
+	}
+
+	private void release (PooledConnection connection) {
+		if (null != connection) {
+			synchronized (this) {
+				if (_shutdown) {
+					_connections.remove(connection);
+					connection.close();
+				} else {
+					_idleConnections.add(connection);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Get the pool on which bulk reads fetch and deserialize tiles. There is
+	 * one thread per connection; if all are busy, work is done on the
+	 * submitting thread instead.
+	 */
+	private synchronized ExecutorService getReadExecutor () {
+		if (null == _readExecutor) {
+			final AtomicInteger threadCount = new AtomicInteger(0);
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(_poolSize, _poolSize, 60L, TimeUnit.SECONDS,
+			                                                     new ArrayBlockingQueue<Runnable>(_poolSize * 64),
+			                                                     new ThreadFactory() {
+				                                                     @Override
+				                                                     public Thread newThread (Runnable r) {
+					                                                     Thread thread = new Thread(r, "jdbc-tile-reader-"+threadCount.incrementAndGet());
+					                                                     thread.setDaemon(true);
+					                                                     return thread;
+				                                                     }
+			                                                     },
+			                                                     new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+			_readExecutor = executor;
+		}
+		return _readExecutor;
+	}
+
 	@Override
 	public void initializeForWrite(String pyramidId) throws IOException {
 		// Create the table and columns if necessary.
+		PooledConnection connection = null;
 		Statement stmt = null;
 		try {
-			if (!tableExists(pyramidId)) {
+			connection = acquire();
+			configureForWrite(connection.get());
+			if (!tableExists(connection, pyramidId)) {
 				StringBuilder sb = new StringBuilder();
 				sb.append("CREATE TABLE ");
 				sb.append(toTableName(pyramidId));
@@ -101,11 +313,11 @@ public class JDBCPyramidIO implements PyramidIO {
 				sb.append(COL_TILE_ROW);
 				sb.append("))");
 
-				stmt = _connection.createStatement();
+				stmt = connection.get().createStatement();
 				stmt.executeUpdate(sb.toString());
 			}
 
-			if (!tableExists(TABLE_METADATA)) {
+			if (!tableExists(connection, TABLE_METADATA)) {
 				StringBuilder sb = new StringBuilder();
 				sb.append("CREATE TABLE ");
 				sb.append(TABLE_METADATA);
@@ -113,7 +325,7 @@ public class JDBCPyramidIO implements PyramidIO {
 				sb.append(COL_PYRAMID_ID);
 				sb.append(" TEXT PRIMARY KEY, metadata TEXT)");
 
-				if (stmt == null) stmt = _connection.createStatement();
+				if (stmt == null) stmt = connection.get().createStatement();
 				stmt.executeUpdate(sb.toString());
 			}
 		} catch (Exception e) {
@@ -126,6 +338,7 @@ public class JDBCPyramidIO implements PyramidIO {
 					e.printStackTrace();
 				}
 			}
+			release(connection);
 		}
 	}
 
@@ -138,83 +351,132 @@ public class JDBCPyramidIO implements PyramidIO {
 	}
 
 	protected boolean tableExists(String pyramidId) throws SQLException {
-		StringBuilder sb = new StringBuilder();
-		sb.append("SELECT name FROM 'sqlite_master' WHERE type='table' AND name=");
-		sb.append(toTableName(pyramidId));
-
-		Statement stmt = null;
-		boolean exists = false;
+		if (_knownTables.contains(pyramidId)) return true;
 
+		PooledConnection connection = null;
 		try {
-			stmt = _connection.createStatement();
-			stmt.execute(sb.toString());
-			exists = stmt.getResultSet().next();
+			connection = acquire();
+			return tableExists(connection, pyramidId);
+		} catch (InterruptedIOException e) {
+			throw new SQLException(e);
 		} finally {
-			if (stmt != null) {
-				stmt.close();
+			release(connection);
+		}
+	}
+
+	/*
+	 * Tables are never dropped by this class, so once one has been seen to
+	 * exist, that is remembered, and not checked again.
+	 */
+	private boolean tableExists (PooledConnection connection, String pyramidId) throws SQLException {
+		if (_knownTables.contains(pyramidId)) return true;
+
+		PreparedStatement ps = connection.prepare("SELECT name FROM 'sqlite_master' WHERE type='table' AND name=?");
+		ps.setString(1, pyramidId);
+		ResultSet resultSet = ps.executeQuery();
+		try {
+			if (resultSet.next()) {
+				_knownTables.add(pyramidId);
+				return true;
 			}
+			return false;
+		} finally {
+			resultSet.close();
 		}
+	}
 
-		return exists;
+	// Get the SQL to insert the given number of tiles with a single statement
+	private String getInsertSQL (String pyramidId, int rows) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("INSERT INTO ");
+		sb.append(toTableName(pyramidId));
+		sb.append(" (");
+		sb.append(COL_ZOOM_LVL);
+		sb.append(",");
+		sb.append(COL_TILE_COLUMN);
+		sb.append(",");
+		sb.append(COL_TILE_ROW);
+		sb.append(",");
+		sb.append(COL_TILE_DATA);
+		sb.append(") ");
+		sb.append("VALUES ");
+		for (int i=0; i<rows; ++i) {
+			if (i > 0) sb.append(",");
+			sb.append("(?,?,?,?)");
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Write a block of tiles with a single insert statement
+	 */
+	private void insertRows (PreparedStatement ps, List<TileIndex> indices, List<byte[]> tileBytes) throws SQLException {
+		int parameter = 0;
+		for (int i=0; i<indices.size(); ++i) {
+			TileIndex index = indices.get(i);
+			ps.setInt(++parameter, index.getLevel());
+			ps.setInt(++parameter, index.getX());
+			ps.setInt(++parameter, index.getY());
+			ps.setBytes(++parameter, tileBytes.get(i));
+		}
+		ps.executeUpdate();
 	}
 
 	@Override
 	public <T> void writeTiles(String pyramidId,
 	                           TileSerializer<T> serializer, Iterable<TileData<T>> data)
 		throws IOException {
-		PreparedStatement ps = null;
+		PooledConnection connection = null;
+		PreparedStatement tail = null;
+		boolean committed = false;
 
 		try {
-			_connection.setAutoCommit(false);
+			connection = acquire();
+			connection.get().setAutoCommit(false);
 
-			StringBuilder sb = new StringBuilder();
-			sb.append("INSERT INTO ");
-			sb.append(toTableName(pyramidId));
-			sb.append(" (");
-			sb.append(COL_ZOOM_LVL);
-			sb.append(",");
-			sb.append(COL_TILE_COLUMN);
-			sb.append(",");
-			sb.append(COL_TILE_ROW);
-			sb.append(",");
-			sb.append(COL_TILE_DATA);
-			sb.append(") ");
-			sb.append("VALUES (?,?,?,?)");
-			ps = _connection.prepareStatement(sb.toString());
-
-			int count = 0;
+			PreparedStatement ps = connection.prepare(getInsertSQL(pyramidId, INSERT_ROWS));
+			List<TileIndex> indices = new ArrayList<TileIndex>(INSERT_ROWS);
+			List<byte[]> tileBytes = new ArrayList<byte[]>(INSERT_ROWS);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			for (TileData<T> tile : data) {
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				baos.reset();
 				serializer.serialize(tile, baos);
 
-				TileIndex index = tile.getDefinition();
-
-				ps.setInt(1, index.getLevel());
-				ps.setInt(2, index.getX());
-				ps.setInt(3, index.getY());
-				ps.setBytes(4, baos.toByteArray());
-
-				ps.addBatch();
-
-				++count;
-				if (count % BATCH_SIZE == 0) {
-					ps.executeBatch();
+				indices.add(tile.getDefinition());
+				tileBytes.add(baos.toByteArray());
+				if (INSERT_ROWS == indices.size()) {
+					insertRows(ps, indices, tileBytes);
+					indices.clear();
+					tileBytes.clear();
 				}
 			}
 
-			ps.executeBatch();
-			_connection.commit();
+			// The last, partial block gets its own statement, which isn't
+			// worth caching, as its size varies.
+			if (!indices.isEmpty()) {
+				tail = connection.get().prepareStatement(getInsertSQL(pyramidId, indices.size()));
+				insertRows(tail, indices, tileBytes);
+			}
+
+			connection.get().commit();
+			committed = true;
 		} catch (Exception e) {
 			throw new IOException("Error writing tiles.", e);
 		} finally {
 			try {
-				if (ps != null) {
-					ps.close();
+				if (tail != null) {
+					tail.close();
+				}
+				if (connection != null) {
+					if (!committed) {
+						connection.get().rollback();
+					}
+					connection.get().setAutoCommit(true);
 				}
-				_connection.setAutoCommit(true);
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
+			release(connection);
 		}
 
 	}
@@ -232,48 +494,39 @@ public class JDBCPyramidIO implements PyramidIO {
 	@Override
 	public void writeMetaData(String pyramidId, String metaData)
 		throws IOException {
-		Statement stmt = null;
+		boolean exists = metaDataExistsFor(pyramidId);
+		PooledConnection connection = null;
 		try {
+			connection = acquire();
+
 			StringBuilder sb = new StringBuilder();
-			if (metaDataExistsFor(pyramidId)) {
+			if (exists) {
 				sb.append("UPDATE ");
 				sb.append(TABLE_METADATA);
 				sb.append(" SET ");
 				sb.append(COL_METADATA);
-				sb.append(" = '");
-				sb.append(metaData);
-				sb.append("' WHERE ");
+				sb.append(" = ? WHERE ");
 				sb.append(COL_PYRAMID_ID);
-				sb.append(" = '");
-				sb.append(toTableName(pyramidId));
-				sb.append("';");
+				sb.append(" = ?");
 			}
 			else {
 				sb.append("INSERT INTO ");
 				sb.append(TABLE_METADATA);
 				sb.append(" (");
-				sb.append(COL_PYRAMID_ID);
-				sb.append(", ");
 				sb.append(COL_METADATA);
-				sb.append(") VALUES('");
-				sb.append(toTableName(pyramidId));
-				sb.append("','");
-				sb.append(metaData);
-				sb.append("')");
+				sb.append(", ");
+				sb.append(COL_PYRAMID_ID);
+				sb.append(") VALUES (?, ?)");
 			}
 
-			stmt = _connection.createStatement();
-			stmt.execute(sb.toString());
+			PreparedStatement ps = connection.prepare(sb.toString());
+			ps.setString(1, metaData);
+			ps.setString(2, toTableName(pyramidId));
+			ps.executeUpdate();
 		} catch (SQLException e) {
 			throw new IOException("Error writing metadata.", e);
 		} finally {
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
+			release(connection);
 		}
 	}
 
@@ -282,60 +535,198 @@ public class JDBCPyramidIO implements PyramidIO {
 		// Noop
 	}
 
+	// Get the SQL to read a single tile
+	private String getReadSQL (String pyramidId) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT ");
+		sb.append(COL_TILE_DATA);
+		sb.append(" FROM ");
+		sb.append(toTableName(pyramidId));
+		sb.append(" WHERE ");
+		sb.append(COL_ZOOM_LVL);
+		sb.append(" = ? AND ");
+		sb.append(COL_TILE_COLUMN);
+		sb.append(" = ? AND ");
+		sb.append(COL_TILE_ROW);
+		sb.append(" = ?");
+		return sb.toString();
+	}
+
+	// Get the SQL to read the given number of tiles from a single column
+	private String getColumnReadSQL (String pyramidId, int rows) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT ");
+		sb.append(COL_TILE_ROW);
+		sb.append(",");
+		sb.append(COL_TILE_DATA);
+		sb.append(" FROM ");
+		sb.append(toTableName(pyramidId));
+		sb.append(" WHERE ");
+		sb.append(COL_ZOOM_LVL);
+		sb.append(" = ? AND ");
+		sb.append(COL_TILE_COLUMN);
+		sb.append(" = ? AND ");
+		sb.append(COL_TILE_ROW);
+		sb.append(" IN (");
+		for (int i=0; i<rows; ++i) {
+			if (i > 0) sb.append(",");
+			sb.append("?");
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+	/*
+	 * Read the raw data of a single tile, or null if it doesn't exist
+	 */
+	private byte[] fetchTile (PooledConnection connection, String pyramidId, TileIndex tile) throws SQLException {
+		PreparedStatement ps = connection.prepare(getReadSQL(pyramidId));
+		ps.setInt(1, tile.getLevel());
+		ps.setInt(2, tile.getX());
+		ps.setInt(3, tile.getY());
+
+		ResultSet resultSet = ps.executeQuery();
+		try {
+			if (resultSet.next()) {
+				return resultSet.getBytes(COL_TILE_DATA);
+			}
+			return null;
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	/*
+	 * Read the raw data of a group of tiles in the same column, adding
+	 * whatever tiles exist to the given map.
+	 */
+	private void fetchColumn (PooledConnection connection, String pyramidId, TileColumn column,
+	                          Map<TileIndex, byte[]> results) throws SQLException {
+		List<Integer> rows = new ArrayList<Integer>(column.getRows().keySet());
+		for (int start=0; start<rows.size(); start += MAX_IN_LIST) {
+			List<Integer> block = rows.subList(start, Math.min(rows.size(), start + MAX_IN_LIST));
+			if (1 == block.size()) {
+				TileIndex index = column.getRows().get(block.get(0));
+				byte[] tileBytes = fetchTile(connection, pyramidId, index);
+				if (null != tileBytes) results.put(index, tileBytes);
+				continue;
+			}
+
+			// Pad the IN-list to a power of two by repeating the last row, so
+			// there are few enough distinct statements to cache them all.
+			int size = Integer.highestOneBit(block.size() - 1) << 1;
+			PreparedStatement ps = connection.prepare(getColumnReadSQL(pyramidId, size));
+			ps.setInt(1, column.getLevel());
+			ps.setInt(2, column.getColumn());
+			for (int i=0; i<size; ++i) {
+				ps.setInt(3 + i, block.get(Math.min(i, block.size() - 1)));
+			}
+
+			ResultSet resultSet = ps.executeQuery();
+			try {
+				while (resultSet.next()) {
+					TileIndex index = column.getRows().get(resultSet.getInt(1));
+					results.put(index, resultSet.getBytes(2));
+				}
+			} finally {
+				resultSet.close();
+			}
+		}
+	}
+
+	/*
+	 * Read and deserialize a set of tile columns on a single connection
+	 */
+	private <T> Map<TileIndex, TileData<T>> readColumns (String pyramidId, TileSerializer<T> serializer,
+	                                                   List<TileColumn> columns) throws Exception {
+		Map<TileIndex, byte[]> rawTiles = new HashMap<TileIndex, byte[]>();
+		PooledConnection connection = null;
+		try {
+			connection = acquire();
+			for (TileColumn column: columns) {
+				fetchColumn(connection, pyramidId, column, rawTiles);
+			}
+		} finally {
+			release(connection);
+		}
+
+		// Deserialize once the connection is free for someone else to use
+		Map<TileIndex, TileData<T>> tiles = new HashMap<TileIndex, TileData<T>>();
+		for (Map.Entry<TileIndex, byte[]> entry: rawTiles.entrySet()) {
+			tiles.put(entry.getKey(), serializer.deserialize(entry.getKey(), new ByteArrayInputStream(entry.getValue())));
+		}
+		return tiles;
+	}
+
 	@Override
-	public <T> List<TileData<T>> readTiles(String pyramidId,
-	                                       TileSerializer<T> serializer, Iterable<TileIndex> tiles)
+	public <T> List<TileData<T>> readTiles(final String pyramidId,
+	                                       final TileSerializer<T> serializer, Iterable<TileIndex> tiles)
 		throws IOException {
-		PreparedStatement ps = null;
 		try {
 			if (!tableExists(pyramidId)) {
 				// TODO: Right thing to return when the table doesn't exist?
 				return null;
 			}
 
-			StringBuilder sb = new StringBuilder();
-			sb.append("SELECT ");
-			sb.append(COL_TILE_DATA);
-			sb.append(" FROM ");
-			sb.append(toTableName(pyramidId));
-			sb.append(" WHERE ");
-			sb.append(COL_ZOOM_LVL);
-			sb.append(" = ? AND ");
-			sb.append(COL_TILE_COLUMN);
-			sb.append(" = ? AND ");
-			sb.append(COL_TILE_ROW);
-			sb.append(" = ?");
-
-			ps = _connection.prepareStatement(sb.toString());
-
-			List<TileData<T>> results = new LinkedList<TileData<T>>();
+			// Group the requested tiles by column
+			List<TileIndex> requested = new ArrayList<TileIndex>();
+			Map<String, TileColumn> columns = new LinkedHashMap<String, TileColumn>();
 			for (TileIndex tile : tiles) {
-				ps.setInt(1, tile.getLevel());
-				ps.setInt(2, tile.getX());
-				ps.setInt(3, tile.getY());
+				requested.add(tile);
+				String key = tile.getLevel()+","+tile.getX();
+				TileColumn column = columns.get(key);
+				if (null == column) {
+					column = new TileColumn(tile.getLevel(), tile.getX());
+					columns.put(key, column);
+				}
+				column.getRows().put(tile.getY(), tile);
+			}
 
-				ResultSet resultSet = ps.executeQuery();
-				if (!resultSet.next())
-					continue;
+			// Spread the columns across as many connections as we can use
+			int readers = Math.min(_poolSize, columns.size());
+			List<List<TileColumn>> work = new ArrayList<List<TileColumn>>(readers);
+			for (int i=0; i<readers; ++i) {
+				work.add(new ArrayList<TileColumn>());
+			}
+			int n = 0;
+			for (TileColumn column: columns.values()) {
+				work.get(n % readers).add(column);
+				++n;
+			}
 
-				byte[] tileBytes = resultSet.getBytes(COL_TILE_DATA);
+			Map<TileIndex, TileData<T>> readTiles = new HashMap<TileIndex, TileData<T>>();
+			if (readers > 1) {
+				ExecutorService executor = getReadExecutor();
+				List<Future<Map<TileIndex, TileData<T>>>> futures = new ArrayList<Future<Map<TileIndex, TileData<T>>>>(readers);
+				for (final List<TileColumn> readerColumns: work) {
+					futures.add(executor.submit(new Callable<Map<TileIndex, TileData<T>>>() {
+						@Override
+						public Map<TileIndex, TileData<T>> call () throws Exception {
+							return readColumns(pyramidId, serializer, readerColumns);
+						}
+					}));
+				}
+				for (Future<Map<TileIndex, TileData<T>>> future: futures) {
+					readTiles.putAll(future.get());
+				}
+			} else if (1 == readers) {
+				readTiles.putAll(readColumns(pyramidId, serializer, work.get(0)));
+			}
 
-				TileData<T> data = serializer.deserialize(tile,
-				                                          new ByteArrayInputStream(tileBytes));
-				results.add(data);
+			// Return the tiles in the order in which they were requested
+			List<TileData<T>> results = new ArrayList<TileData<T>>(readTiles.size());
+			for (TileIndex tile: requested) {
+				TileData<T> data = readTiles.get(tile);
+				if (null != data) results.add(data);
 			}
 			return results;
-
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading tiles");
+		} catch (ExecutionException e) {
+			throw new IOException("Error reading tiles.", e.getCause());
 		} catch (Exception e) {
 			throw new IOException("Error reading tiles.", e);
-		} finally {
-			if (ps != null) {
-				try {
-					ps.close();
-				} catch (SQLException e) {
-					throw new IOException(e);
-				}
-			}
 		}
 	}
 
@@ -351,53 +742,29 @@ public class JDBCPyramidIO implements PyramidIO {
 	public <T> InputStream getTileStream (String pyramidId,
 	                                      TileSerializer<T> serializer,
 	                                      TileIndex tile) throws IOException {
-		PreparedStatement ps = null;
+		PooledConnection connection = null;
 		try {
 			if (!tableExists(pyramidId)) {
 				// TODO: Right thing to return when the table doesn't exist?
 				return null;
 			}
 
-			StringBuilder sb = new StringBuilder();
-			sb.append("SELECT ");
-			sb.append(COL_TILE_DATA);
-			sb.append(" FROM ");
-			sb.append(toTableName(pyramidId));
-			sb.append(" WHERE ");
-			sb.append(COL_ZOOM_LVL);
-			sb.append(" = ? AND ");
-			sb.append(COL_TILE_COLUMN);
-			sb.append(" = ? AND ");
-			sb.append(COL_TILE_ROW);
-			sb.append(" = ?");
-
-			ps = _connection.prepareStatement(sb.toString());
-			ps.setInt(1, tile.getLevel());
-			ps.setInt(2, tile.getX());
-			ps.setInt(3, tile.getY());
-
-			ResultSet resultSet = ps.executeQuery();
-			if (resultSet.next()) {
-				byte[] tileBytes = resultSet.getBytes(COL_TILE_DATA);
+			connection = acquire();
+			byte[] tileBytes = fetchTile(connection, pyramidId, tile);
+			if (null != tileBytes) {
 				return new ByteArrayInputStream(tileBytes);
 			}
 		} catch (Exception e) {
 			throw new IOException("Error reading tiles.", e);
 		} finally {
-			if (ps != null) {
-				try {
-					ps.close();
-				} catch (SQLException e) {
-					throw new IOException(e);
-				}
-			}
+			release(connection);
 		}
 		return null;
 	}
 
 	@Override
 	public String readMetaData(String pyramidId) throws IOException {
-		Statement stmt = null;
+		PooledConnection connection = null;
 		try {
 			if (!tableExists(TABLE_METADATA)) {
 				return null;
@@ -410,27 +777,24 @@ public class JDBCPyramidIO implements PyramidIO {
 			sb.append(TABLE_METADATA);
 			sb.append(" WHERE ");
 			sb.append(COL_PYRAMID_ID);
-			sb.append(" = '");
-			sb.append(toTableName(pyramidId));
-			sb.append("'");
-
-			stmt = _connection.createStatement();
-			ResultSet resultSet = stmt.executeQuery(sb
-			                                        .toString());
-			if (!resultSet.next())
-				return null;
+			sb.append(" = ?");
 
-			return resultSet.getString(TABLE_METADATA);
+			connection = acquire();
+			PreparedStatement ps = connection.prepare(sb.toString());
+			ps.setString(1, toTableName(pyramidId));
+			ResultSet resultSet = ps.executeQuery();
+			try {
+				if (!resultSet.next())
+					return null;
+
+				return resultSet.getString(COL_METADATA);
+			} finally {
+				resultSet.close();
+			}
 		} catch (SQLException e) {
 			throw new IOException("Error reading tiles.", e);
 		} finally {
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
+			release(connection);
 		}
 	}
 
@@ -439,4 +803,86 @@ public class JDBCPyramidIO implements PyramidIO {
 		throw new IOException("removeTiles not currently supported for JDBCPyramidIO");
 	}
 
+
+
+	/*
+	 * A group of requested tiles, all from the same column of the same level,
+	 * keyed by row
+	 */
+	private static class TileColumn {
+		private int                     _level;
+		private int                     _column;
+		private Map<Integer, TileIndex> _rows;
+
+		TileColumn (int level, int column) {
+			_level = level;
+			_column = column;
+			_rows = new LinkedHashMap<Integer, TileIndex>();
+		}
+
+		int getLevel () {return _level;}
+		int getColumn () {return _column;}
+		Map<Integer, TileIndex> getRows () {return _rows;}
+	}
+
+	/*
+	 * A pooled connection, along with the statements prepared on it. Only one
+	 * thread uses a pooled connection at a time, so neither needs any locking.
+	 */
+	private static class PooledConnection {
+		private Connection                     _connection;
+		private Map<String, PreparedStatement> _statements;
+
+		PooledConnection (Connection connection) {
+			_connection = connection;
+			// Least-recently-used statements are closed when the cache is full
+			_statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest) {
+					if (size() > STATEMENT_CACHE_SIZE) {
+						closeStatement(eldest.getValue());
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		Connection get () {
+			return _connection;
+		}
+
+		// Get a prepared statement for the given SQL, preparing it only the
+		// first time it is needed on this connection.
+		PreparedStatement prepare (String sql) throws SQLException {
+			PreparedStatement statement = _statements.get(sql);
+			if (null == statement) {
+				statement = _connection.prepareStatement(sql);
+				_statements.put(sql, statement);
+			}
+			return statement;
+		}
+
+		void close () {
+			for (PreparedStatement statement: _statements.values()) {
+				closeStatement(statement);
+			}
+			_statements.clear();
+			try {
+				_connection.close();
+			} catch (SQLException e) {
+				LOGGER.warn("Error closing database connection", e);
+			}
+		}
+
+		private static void closeStatement (PreparedStatement statement) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				LOGGER.warn("Error closing prepared statement", e);
+			}
+		}
+	}
 }
@@ -27,6 +27,7 @@ package com.oculusinfo.binning.io.impl;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.ConfigurationException;
+import com.oculusinfo.factory.properties.IntegerProperty;
 import com.oculusinfo.factory.properties.StringProperty;
 
 import org.slf4j.Logger;
@@ -47,12 +48,16 @@ public class JDBCPyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 	public static StringProperty JDBC_DRIVER            = new StringProperty("jdbc.driver",
 		   "The full class name of the JDBC driver to use.  There is no default for this property.",
 		   null);
+	public static IntegerProperty CONNECTIONS           = new IntegerProperty("connections",
+		   "The maximum number of connections to open to the database, and so the maximum number of concurrent tile readers.  Defaults to 1.",
+		   1);
 	
 	public JDBCPyramidIOFactory (ConfigurableFactory<?> parent, List<String> path) {
 		super("jdbc", PyramidIO.class, parent, path);
 		
 		addProperty(ROOT_PATH);
 		addProperty(JDBC_DRIVER);
+		addProperty(CONNECTIONS);
 	}
 
 	@Override
@@ -60,7 +65,8 @@ public class JDBCPyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 		try {
 			String driver = getPropertyValue(JDBC_DRIVER);
 			String rootPath = getPropertyValue(ROOT_PATH);
-			return new JDBCPyramidIO(driver, rootPath);
+			int connections = getPropertyValue(CONNECTIONS);
+			return new JDBCPyramidIO(driver, rootPath, connections);
 		} catch (ClassNotFoundException | SQLException e) {
 			throw new ConfigurationException("Error creating JDBCPyramidIO", e);
 		}
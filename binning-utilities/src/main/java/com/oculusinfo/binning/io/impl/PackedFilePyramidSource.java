@@ -0,0 +1,687 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.util.ByteBufferInputStream;
+
+
+/**
+ * A PyramidSource that packs each level of a pyramid into a single file,
+ * rather than writing each tile to its own file.  This keeps the number of
+ * files in a deep pyramid down to a handful, which makes pyramids much cheaper
+ * to copy, and takes the load off file system metadata servers.
+ *
+ * Each level file starts with an index of the tiles it contains, sorted by
+ * the Morton (Z-order) code of the tile coordinates, so that tiles that are
+ * near each other in space are near each other in the file.  The serialized
+ * tiles follow the index.  The layout of a level file (big-endian) is:
+ *
+ * <pre>
+ *   int   magic number
+ *   int   format version
+ *   int   level
+ *   int   number of tiles, N
+ *   N x { long morton code, long offset of tile in file, int tile length }
+ *   serialized tiles
+ * </pre>
+ *
+ * Writes don't rewrite the level file.  Instead, each write adds a delta file
+ * (<code>level.sequence.pyrd</code>, in the same format) holding just the
+ * tiles written; tiles in newer deltas shadow those in older deltas and in
+ * the level file.  When a new delta is at least as large as the newest
+ * existing one, they are merged, so the number of deltas stays logarithmic
+ * in the number of writes, and each tile is copied a logarithmic number of
+ * times; once the deltas outgrow the level file, everything is merged back
+ * into the level file.  Removals always merge the whole level, so that the
+ * space of removed tiles is reclaimed straight away.
+ *
+ * Level and delta files are memory-mapped when first read, and tile streams
+ * read directly from the mapping, without copying.  New files are written to
+ * temporary files and moved into place atomically, so readers holding on to
+ * old mappings are unaffected.  Writers - in this process or others - are
+ * serialized by a lock on a lock file in the pyramid directory.  Level files
+ * changed by other processes are not seen once they have been opened.
+ */
+public class PackedFilePyramidSource implements PyramidSource {
+	public static final String LEVEL_FILE_EXTENSION = "pyr";
+	public static final String DELTA_FILE_EXTENSION = "pyrd";
+	public static final String LOCK_FILENAME        = "tiles.lock";
+
+	private static final int MAGIC_NUMBER = 0x50595244; // "PYRD"
+	private static final int VERSION      = 1;
+	private static final int HEADER_SIZE  = 16;
+	private static final int ENTRY_SIZE   = 20;
+	// An upper bound on the number of deltas per level, past which the level
+	// is compacted regardless of size.
+	private static final int MAX_DELTAS   = 32;
+	// How many times to retry opening a level whose files are changed under us
+	private static final int OPEN_RETRIES = 3;
+
+	// Sources are shared per root path, so that level files are only mapped
+	// once.
+	private static ConcurrentMap<String, PackedFilePyramidSource> _sourceCache = new ConcurrentHashMap<>();
+	// File locks are held per process, so writers within a process also need
+	// to be serialized on a monitor per lock file.
+	private static ConcurrentMap<String, Object> _writeMonitors = new ConcurrentHashMap<>();
+
+	static PackedFilePyramidSource getPackedSource (String rootPath) {
+		PackedFilePyramidSource source = _sourceCache.get(rootPath);
+		if (null == source) {
+			source = new PackedFilePyramidSource(rootPath);
+			PackedFilePyramidSource existing = _sourceCache.putIfAbsent(rootPath, source);
+			if (null != existing) source = existing;
+		}
+		return source;
+	}
+
+
+
+	private String                       _rootPath;
+	private ConcurrentMap<String, Level> _levels;
+
+
+	public PackedFilePyramidSource (String rootPath) {
+		//if there's no root path, then it should be based on a relative path, so make sure to set root path to '.'
+		if (rootPath == null || rootPath.trim().length() == 0) {
+			rootPath = "./";
+		}
+
+		//make sure the root path ends with a slash
+		_rootPath = (rootPath.trim().endsWith("/"))? rootPath : rootPath.trim() + "/";
+		_levels = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Compute the Morton code of a tile - the interleaving of the bits of its
+	 * x and y coordinates.
+	 */
+	static long mortonCode (int x, int y) {
+		return spreadBits(x) | (spreadBits(y) << 1);
+	}
+
+	private static long spreadBits (int value) {
+		long v = value & 0xffffffffL;
+		v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+		v = (v | (v << 8))  & 0x00ff00ff00ff00ffL;
+		v = (v | (v << 4))  & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v << 2))  & 0x3333333333333333L;
+		v = (v | (v << 1))  & 0x5555555555555555L;
+		return v;
+	}
+
+	@Override
+	public void initializeForWrite (String basePath) throws IOException {
+		File tilesDir = getTilesDir(basePath);
+		if (!tilesDir.exists()) tilesDir.mkdirs();
+	}
+
+	@Override
+	public <T> void writeTiles (String basePath, TileSerializer<T> serializer,
+	                            Iterable<TileData<T>> data) throws IOException {
+		Map<Integer, Map<Long, byte[]>> byLevel = new HashMap<>();
+		for (TileData<T> tile: data) {
+			TileIndex index = tile.getDefinition();
+			Map<Long, byte[]> levelTiles = byLevel.get(index.getLevel());
+			if (null == levelTiles) {
+				levelTiles = new HashMap<>();
+				byLevel.put(index.getLevel(), levelTiles);
+			}
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			serializer.serialize(tile, stream);
+			levelTiles.put(mortonCode(index.getX(), index.getY()), stream.toByteArray());
+		}
+
+		for (Map.Entry<Integer, Map<Long, byte[]>> entry: byLevel.entrySet()) {
+			updateLevel(basePath, entry.getKey(), entry.getValue(), null);
+		}
+	}
+
+	@Override
+	public void writeMetaData (String basePath, String metaData) throws IOException {
+		File metaDataFile = getMetaDataFile(basePath);
+		File parent = metaDataFile.getParentFile();
+		if (!parent.exists()) parent.mkdirs();
+
+		FileOutputStream stream = new FileOutputStream(metaDataFile);
+		stream.write(metaData.getBytes());
+		stream.close();
+	}
+
+	@Override
+	public void initializeForRead (String pyramidId, int width, int height, Properties dataDescription) {
+		// Not Implemented
+	}
+
+	@Override
+	public <T> List<TileData<T>> readTiles (String basePath,
+	                                        TileSerializer<T> serializer,
+	                                        Iterable<TileIndex> tiles) throws IOException {
+		List<TileData<T>> results = new LinkedList<TileData<T>>();
+		for (TileIndex tile: tiles) {
+			InputStream stream = getTileStream(basePath, serializer, tile);
+			if (null != stream) {
+				results.add(serializer.deserialize(tile, stream));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The stream returned is a {@link ByteBufferInputStream} reading straight
+	 * from the memory-mapped level file.
+	 */
+	@Override
+	public <T> InputStream getTileStream (String basePath,
+	                                      TileSerializer<T> serializer,
+	                                      TileIndex tile) throws IOException {
+		Level level = getLevel(basePath, tile.getLevel());
+		if (null == level) return null;
+
+		ByteBuffer data = level.getTile(mortonCode(tile.getX(), tile.getY()));
+		if (null == data) return null;
+		return new ByteBufferInputStream(data);
+	}
+
+	@Override
+	public String readMetaData (String basePath) throws IOException {
+		File metaDataFile = getMetaDataFile(basePath);
+		if (!metaDataFile.exists()) return null;
+
+		FileInputStream stream = new FileInputStream(metaDataFile);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+		String rawMetaData = "";
+		String line;
+		while (null != (line = reader.readLine())) {
+			rawMetaData = rawMetaData + line;
+		}
+		reader.close();
+		return rawMetaData;
+	}
+
+	@Override
+	public void removeTiles (String basePath, Iterable<TileIndex> tiles) throws IOException {
+		Map<Integer, Set<Long>> byLevel = new HashMap<>();
+		for (TileIndex tile: tiles) {
+			Set<Long> levelTiles = byLevel.get(tile.getLevel());
+			if (null == levelTiles) {
+				levelTiles = new HashSet<>();
+				byLevel.put(tile.getLevel(), levelTiles);
+			}
+			levelTiles.add(mortonCode(tile.getX(), tile.getY()));
+		}
+
+		for (Map.Entry<Integer, Set<Long>> entry: byLevel.entrySet()) {
+			updateLevel(basePath, entry.getKey(), null, entry.getValue());
+		}
+	}
+
+
+
+	private File getTilesDir (String basePath) {
+		return new File(_rootPath + basePath + "/" + PyramidIO.TILES_FOLDERNAME);
+	}
+
+	private File getLevelFile (String basePath, int level) {
+		return new File(getTilesDir(basePath), level + "." + LEVEL_FILE_EXTENSION);
+	}
+
+	private File getDeltaFile (String basePath, int level, long sequence) {
+		return new File(getTilesDir(basePath), level + "." + sequence + "." + DELTA_FILE_EXTENSION);
+	}
+
+	private File getLockFile (String basePath) {
+		return new File(_rootPath + basePath + "/" + LOCK_FILENAME);
+	}
+
+	private File getMetaDataFile (String basePath) {
+		return new File(_rootPath + basePath + "/" + PyramidIO.METADATA_FILENAME);
+	}
+
+	/*
+	 * Find the delta files of a level currently on disk, keyed by sequence
+	 * number.
+	 */
+	private TreeMap<Long, File> getDeltaFiles (String basePath, int level) {
+		TreeMap<Long, File> deltas = new TreeMap<>();
+		String prefix = level + ".";
+		String suffix = "." + DELTA_FILE_EXTENSION;
+		String[] names = getTilesDir(basePath).list();
+		if (null == names) return deltas;
+
+		for (String name: names) {
+			if (name.startsWith(prefix) && name.endsWith(suffix) && name.length() > prefix.length() + suffix.length()) {
+				try {
+					long sequence = Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+					deltas.put(sequence, getDeltaFile(basePath, level, sequence));
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+		return deltas;
+	}
+
+	/*
+	 * Get the mapped files for the given level, opening them if they aren't
+	 * open yet.
+	 *
+	 * @return The level, or null if there is no data for that level
+	 */
+	private Level getLevel (String basePath, int level) throws IOException {
+		String key = getLevelFile(basePath, level).getPath();
+		Level levelFiles = _levels.get(key);
+		if (null == levelFiles) {
+			levelFiles = openLevel(basePath, level);
+			if (null == levelFiles) return null;
+			Level existing = _levels.putIfAbsent(key, levelFiles);
+			if (null != existing) levelFiles = existing;
+		}
+		return levelFiles;
+	}
+
+	/*
+	 * Map the files of a level as they are on disk right now, bypassing the
+	 * cache.
+	 *
+	 * @return The level, or null if there is no data for that level
+	 */
+	private Level openLevel (String basePath, int level) throws IOException {
+		for (int attempt = 0; ; ++attempt) {
+			File file = getLevelFile(basePath, level);
+			TreeMap<Long, File> deltaFiles = getDeltaFiles(basePath, level);
+			if (!file.isFile() && deltaFiles.isEmpty()) return null;
+
+			try {
+				LevelFile base = file.isFile() ? new LevelFile(file) : null;
+				List<LevelFile> deltas = new ArrayList<>();
+				for (File deltaFile: deltaFiles.descendingMap().values()) {
+					deltas.add(new LevelFile(deltaFile));
+				}
+				long nextSequence = deltaFiles.isEmpty() ? 0L : deltaFiles.lastKey() + 1;
+				return new Level(base, deltas, nextSequence);
+			} catch (FileNotFoundException e) {
+				// A writer merged away a file between our listing and our
+				// opening it; its contents are in a newer file, so look again.
+				if (attempt >= OPEN_RETRIES) throw e;
+			}
+		}
+	}
+
+	/*
+	 * Add and remove the given tiles on a level, holding the pyramid's write
+	 * lock.
+	 *
+	 * @param additions New tiles, keyed by Morton code; null for none
+	 * @param removals The Morton codes of tiles to remove; null for none
+	 */
+	private void updateLevel (String basePath, int level,
+	                          Map<Long, byte[]> additions, Set<Long> removals) throws IOException {
+		File tilesDir = getTilesDir(basePath);
+		if (!tilesDir.exists()) tilesDir.mkdirs();
+
+		File lockFile = getLockFile(basePath);
+		String lockKey = lockFile.getCanonicalPath();
+		Object monitor = _writeMonitors.get(lockKey);
+		if (null == monitor) {
+			monitor = new Object();
+			Object existing = _writeMonitors.putIfAbsent(lockKey, monitor);
+			if (null != existing) monitor = existing;
+		}
+
+		synchronized (monitor) {
+			RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+			try {
+				// Released when the file is closed
+				lock.getChannel().lock();
+				updateLevelLocked(basePath, level, additions, removals);
+			} finally {
+				lock.close();
+			}
+		}
+	}
+
+	private void updateLevelLocked (String basePath, int level,
+	                                Map<Long, byte[]> additions, Set<Long> removals) throws IOException {
+		// Work from what is on disk now, not from what we last mapped, as
+		// another process may have written since.
+		Level current = openLevel(basePath, level);
+		LevelFile base = (null == current) ? null : current._base;
+		List<LevelFile> deltas = (null == current) ? Collections.<LevelFile>emptyList() : current._deltas;
+		long nextSequence = (null == current) ? 0L : current._nextSequence;
+
+		long size = HEADER_SIZE;
+		if (null != additions) {
+			for (byte[] tile: additions.values()) size += ENTRY_SIZE + tile.length;
+		}
+
+		// Fold in the newest deltas while they are no bigger than what we
+		// have so far, so delta sizes grow geometrically.
+		int folded = 0;
+		while (folded < deltas.size() && deltas.get(folded).getSize() <= size) {
+			size += deltas.get(folded).getSize();
+			++folded;
+		}
+		boolean compact = null != removals
+			|| deltas.size() - folded >= MAX_DELTAS
+			|| (folded == deltas.size() && (null == base || base.getSize() <= size));
+		if (compact) folded = deltas.size();
+
+		// Merge, oldest first, so newer tiles replace older ones. Values are
+		// either new tile data, or a reference to a tile in an existing file.
+		TreeMap<Long, Object> merged = new TreeMap<>();
+		if (compact && null != base) {
+			addTiles(merged, base);
+		}
+		for (int i = folded - 1; i >= 0; --i) {
+			addTiles(merged, deltas.get(i));
+		}
+		if (null != removals) {
+			for (Long key: removals) merged.remove(key);
+		}
+		if (null != additions) {
+			merged.putAll(additions);
+		}
+
+		File file = getLevelFile(basePath, level);
+		if (!compact) {
+			writeLevelFile(getDeltaFile(basePath, level, nextSequence), level, merged);
+		} else if (merged.isEmpty()) {
+			Files.deleteIfExists(file.toPath());
+		} else {
+			writeLevelFile(file, level, merged);
+		}
+		// Only delete merged deltas once their replacement is in place; if we
+		// die in between, the leftovers hold nothing their replacement doesn't.
+		for (int i = 0; i < folded; ++i) {
+			Files.deleteIfExists(deltas.get(i).getFile().toPath());
+		}
+
+		// Replace, rather than invalidate, the cached level, so that a reader
+		// that opened the old files while we were writing can't cache them
+		// after us.
+		Level updated = openLevel(basePath, level);
+		_levels.put(file.getPath(), null == updated ? new Level(null, Collections.<LevelFile>emptyList(), 0L) : updated);
+	}
+
+	private static void addTiles (TreeMap<Long, Object> merged, LevelFile source) {
+		for (int i = 0; i < source.getTileCount(); ++i) {
+			merged.put(source.getKey(i), new TileReference(source, i));
+		}
+	}
+
+	/*
+	 * Write a level or delta file, through a temporary file in the same
+	 * directory that is moved into place atomically once complete.
+	 */
+	private static void writeLevelFile (File file, int level, TreeMap<Long, Object> tiles) throws IOException {
+		long indexSize = HEADER_SIZE + (long) tiles.size() * ENTRY_SIZE;
+		if (indexSize > Integer.MAX_VALUE) {
+			throw new IOException("Too many tiles on level "+level+" for a single level file");
+		}
+
+		File tempFile = Files.createTempFile(file.getParentFile().toPath(), file.getName() + ".", ".tmp").toFile();
+		boolean moved = false;
+		try {
+			FileOutputStream newFile = new FileOutputStream(tempFile);
+			try {
+				FileChannel out = newFile.getChannel();
+
+				ByteBuffer index = ByteBuffer.allocate((int) indexSize);
+				index.putInt(MAGIC_NUMBER);
+				index.putInt(VERSION);
+				index.putInt(level);
+				index.putInt(tiles.size());
+				long offset = indexSize;
+				for (Map.Entry<Long, Object> entry: tiles.entrySet()) {
+					Object value = entry.getValue();
+					int length = (value instanceof byte[]) ? ((byte[]) value).length : ((TileReference) value).getLength();
+					index.putLong(entry.getKey());
+					index.putLong(offset);
+					index.putInt(length);
+					offset += length;
+				}
+				index.flip();
+				writeFully(out, index);
+
+				for (Object value: tiles.values()) {
+					if (value instanceof byte[]) {
+						writeFully(out, ByteBuffer.wrap((byte[]) value));
+					} else {
+						writeFully(out, ((TileReference) value).getData());
+					}
+				}
+			} finally {
+				newFile.close();
+			}
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			if (!moved) Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+
+	private static void writeFully (FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+
+
+	/*
+	 * The mapped files of a level: the level file itself, if any, and its
+	 * deltas, newest first.
+	 */
+	private static class Level {
+		private LevelFile       _base;
+		private List<LevelFile> _deltas;
+		private long            _nextSequence;
+
+		Level (LevelFile base, List<LevelFile> deltas, long nextSequence) {
+			_base = base;
+			_deltas = deltas;
+			_nextSequence = nextSequence;
+		}
+
+		ByteBuffer getTile (long key) {
+			for (LevelFile delta: _deltas) {
+				ByteBuffer data = delta.getTile(key);
+				if (null != data) return data;
+			}
+			if (null == _base) return null;
+			return _base.getTile(key);
+		}
+	}
+
+	/*
+	 * A tile already written to a level or delta file.
+	 */
+	private static class TileReference {
+		private LevelFile _file;
+		private int       _entry;
+
+		TileReference (LevelFile file, int entry) {
+			_file = file;
+			_entry = entry;
+		}
+
+		int getLength () {
+			return _file.getLength(_entry);
+		}
+
+		ByteBuffer getData () {
+			return _file.getData(_entry);
+		}
+	}
+
+	/*
+	 * A single memory-mapped level or delta file. Files larger than a single
+	 * mapping can hold are mapped in overlapping segments, the overlap being
+	 * the size of the largest tile, so that every tile lies entirely within
+	 * the segment in which it starts.
+	 */
+	private static class LevelFile {
+		private static final long SEGMENT_SIZE = 1L << 30;
+
+		private File         _file;
+		private long         _size;
+		private ByteBuffer   _index;
+		private ByteBuffer[] _segments;
+		private int          _tileCount;
+
+		LevelFile (File file) throws IOException {
+			_file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if (size < HEADER_SIZE) {
+					throw new IOException("Level file "+file+" is truncated");
+				}
+				_size = size;
+
+				ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+				if (MAGIC_NUMBER != header.getInt(0)) {
+					throw new IOException(file+" is not a packed pyramid level file");
+				}
+				if (VERSION != header.getInt(4)) {
+					throw new IOException("Unsupported packed pyramid level file version "+header.getInt(4)+" in "+file);
+				}
+				_tileCount = header.getInt(12);
+
+				long indexSize = HEADER_SIZE + (long) _tileCount * ENTRY_SIZE;
+				if (indexSize > size) {
+					throw new IOException("Level file "+file+" is truncated");
+				}
+				_index = channel.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+
+				int maxLength = 0;
+				for (int i = 0; i < _tileCount; ++i) {
+					maxLength = Math.max(maxLength, getLength(i));
+				}
+
+				int numSegments = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+				_segments = new ByteBuffer[numSegments];
+				for (int i = 0; i < numSegments; ++i) {
+					long start = i * SEGMENT_SIZE;
+					long length = Math.min(size - start, SEGMENT_SIZE + maxLength);
+					_segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				}
+			} finally {
+				// Mappings stay valid after the file is closed
+				raf.close();
+			}
+		}
+
+		File getFile () {
+			return _file;
+		}
+
+		long getSize () {
+			return _size;
+		}
+
+		int getTileCount () {
+			return _tileCount;
+		}
+
+		long getKey (int entry) {
+			return _index.getLong(HEADER_SIZE + entry * ENTRY_SIZE);
+		}
+
+		long getOffset (int entry) {
+			return _index.getLong(HEADER_SIZE + entry * ENTRY_SIZE + 8);
+		}
+
+		int getLength (int entry) {
+			return _index.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 16);
+		}
+
+		/*
+		 * Get a view of the serialized data of the given index entry.
+		 */
+		ByteBuffer getData (int entry) {
+			long offset = getOffset(entry);
+			int segment = (int) (offset / SEGMENT_SIZE);
+			int start = (int) (offset - segment * SEGMENT_SIZE);
+
+			ByteBuffer data = _segments[segment].duplicate();
+			data.limit(start + getLength(entry));
+			data.position(start);
+			return data.slice();
+		}
+
+		/*
+		 * Get a view of the serialized data of the tile with the given Morton
+		 * code, or null if the tile isn't in this file.
+		 */
+		ByteBuffer getTile (long key) {
+			int low = 0;
+			int high = _tileCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long midKey = getKey(mid);
+				if (midKey < key) low = mid + 1;
+				else if (midKey > key) high = mid - 1;
+				else return getData(mid);
+			}
+			return null;
+		}
+	}
+}
@@ -24,17 +24,119 @@
  */
 package com.oculusinfo.binning.io.impl;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 /**
  * A SQLite-based JDBC PyramidIO.
  *
+ * Databases are put in write-ahead-log mode when first initialized for
+ * writing, so readers on separate connections don't block each other or the
+ * writer; the mode is kept in the database file, so readers get it too.
+ * Databases are read through memory-mapped I/O.
+ *
  * @author rcameron
  *
  */
 public class SQLitePyramidIO extends JDBCPyramidIO {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SQLitePyramidIO.class);
+
+	// The most of the database file to memory-map
+	private static final long MMAP_SIZE = 256L * 1024L * 1024L;
 
 	public SQLitePyramidIO(String dbPath) throws SQLException, ClassNotFoundException {
-		super("org.sqlite.JDBC", "jdbc:sqlite:" + dbPath);
+		this(dbPath, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param poolSize The maximum number of connections to open to the
+	 *            database, and so the maximum number of concurrent readers.
+	 *            In-memory databases are private to each connection, so
+	 *            only ever use one.
+	 */
+	public SQLitePyramidIO(String dbPath, int poolSize) throws SQLException, ClassNotFoundException {
+		this(dbPath, poolSize, false);
+	}
+
+	/**
+	 * @param poolSize The maximum number of connections to open to the
+	 *            database, and so the maximum number of concurrent readers.
+	 *            In-memory databases are private to each connection, so
+	 *            only ever use one.
+	 * @param readOnly If true, connections are opened read-only, so the
+	 *            database can be read where it can't be written, and can't
+	 *            be changed by mistake.
+	 */
+	public SQLitePyramidIO(String dbPath, int poolSize, boolean readOnly) throws SQLException, ClassNotFoundException {
+		super("org.sqlite.JDBC", "jdbc:sqlite:" + dbPath, isInMemory(dbPath) ? 1 : poolSize,
+		      readOnly ? getReadOnlyConfiguration().toProperties() : null);
+	}
+
+	private static SQLiteConfig getReadOnlyConfiguration () {
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		return config;
+	}
+
+	private static boolean isInMemory (String dbPath) {
+		return null == dbPath || dbPath.isEmpty() || dbPath.startsWith(":memory:");
+	}
+
+	@Override
+	protected void configureConnection (Connection connection) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.execute("PRAGMA mmap_size="+MMAP_SIZE);
+			if (isWAL(stmt.executeQuery("PRAGMA journal_mode"))) {
+				relaxSynchronous(stmt);
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	@Override
+	protected void configureForWrite (Connection connection) throws SQLException {
+		// WAL only lets readers run alongside the writer; without it, writes
+		// still work, so failing to switch (for instance, because another
+		// connection is using the database) isn't an error.
+		Statement stmt = connection.createStatement();
+		try {
+			if (isWAL(stmt.executeQuery("PRAGMA journal_mode=WAL"))) {
+				relaxSynchronous(stmt);
+			} else {
+				LOGGER.warn("Couldn't put SQLite database in write-ahead-log mode");
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Couldn't put SQLite database in write-ahead-log mode", e);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/*
+	 * Check the journal mode reported by a journal_mode pragma.
+	 */
+	private static boolean isWAL (ResultSet journalMode) throws SQLException {
+		try {
+			return journalMode.next() && "wal".equalsIgnoreCase(journalMode.getString(1));
+		} finally {
+			journalMode.close();
+		}
+	}
+
+	/*
+	 * Only the most recent commits can be lost, and only on power failure -
+	 * but that's only true in WAL mode, so only call this once the
+	 * connection's database is known to be in WAL mode.
+	 */
+	private static void relaxSynchronous (Statement stmt) throws SQLException {
+		stmt.execute("PRAGMA synchronous=NORMAL");
 	}
 }
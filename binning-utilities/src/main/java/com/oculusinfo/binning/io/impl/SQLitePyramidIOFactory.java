@@ -27,6 +27,8 @@ package com.oculusinfo.binning.io.impl;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.ConfigurationException;
+import com.oculusinfo.factory.properties.BooleanProperty;
+import com.oculusinfo.factory.properties.IntegerProperty;
 import com.oculusinfo.factory.properties.StringProperty;
 
 import org.slf4j.Logger;
@@ -44,18 +46,28 @@ public class SQLitePyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 	public static StringProperty ROOT_PATH              = new StringProperty("root.path",
 		   "Indicates the root path of the tile pyramid - the database path.  There is no default for this property.",
 		   null);
+	public static IntegerProperty CONNECTIONS           = new IntegerProperty("connections",
+		   "The maximum number of connections to open to the database, and so the maximum number of concurrent tile readers.  Defaults to the number of available processors.",
+		   Runtime.getRuntime().availableProcessors());
+	public static BooleanProperty READ_ONLY             = new BooleanProperty("read.only",
+		   "If true, the database is opened read-only.  Defaults to false.",
+		   false);
 	
 	public SQLitePyramidIOFactory (ConfigurableFactory<?> parent, List<String> path) {
 		super("sqlite", PyramidIO.class, parent, path);
 		
 		addProperty(ROOT_PATH);
+		addProperty(CONNECTIONS);
+		addProperty(READ_ONLY);
 	}
 
 	@Override
 	protected PyramidIO create() throws ConfigurationException {
 		try {
 			String rootPath = getPropertyValue(ROOT_PATH);
-			return new SQLitePyramidIO(rootPath);
+			int connections = getPropertyValue(CONNECTIONS);
+			boolean readOnly = getPropertyValue(READ_ONLY);
+			return new SQLitePyramidIO(rootPath, connections, readOnly);
 		} catch (ClassNotFoundException | SQLException e) {
 			throw new ConfigurationException("Error creating SQLite pyramid IO", e);
 		}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.serialization;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+
+import com.oculusinfo.binning.metadata.PyramidMetaData;
+
+/**
+ * A process-wide registry of the tile schemas used to write compact avro tiles
+ * (see {@link GenericAvroSerializer}), keyed by their 64-bit parsing
+ * fingerprints.
+ *
+ * Compact tiles record only the fingerprint of the schema with which they were
+ * written.  Each avro serializer registers the schemas it writes, so a
+ * serializer can always read its own tiles; schemas written by other
+ * serializers are recorded in the metadata of the pyramids they write (see
+ * {@link GenericAvroSerializer#recordTileSchemas(PyramidMetaData)}), and
+ * registered from there when that metadata is read, so their tiles can be
+ * read too.
+ */
+public class AvroSchemaRegistry {
+	private static final ConcurrentMap<Long, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+	private AvroSchemaRegistry () {
+	}
+
+	/**
+	 * Get the fingerprint by which compact tiles identify a schema.
+	 */
+	public static long getFingerprint (Schema schema) {
+		return SchemaNormalization.parsingFingerprint64(schema);
+	}
+
+	/**
+	 * Register a schema, so that compact tiles written with it can be read.
+	 *
+	 * @return The fingerprint of the schema
+	 */
+	public static long register (Schema schema) {
+		long fingerprint = getFingerprint(schema);
+		SCHEMAS.putIfAbsent(fingerprint, schema);
+		return fingerprint;
+	}
+
+	/**
+	 * Register a schema, given as JSON, so that compact tiles written with it
+	 * can be read.
+	 *
+	 * @return The fingerprint of the schema
+	 */
+	public static long register (String schemaJSON) {
+		return register(new Schema.Parser().parse(schemaJSON));
+	}
+
+	/**
+	 * Register all the tile schemas recorded in a pyramid's metadata, so that
+	 * the compact tiles of that pyramid can be read.
+	 */
+	public static void register (PyramidMetaData metaData) {
+		for (Map.Entry<Long, String> entry: metaData.getTileSchemas().entrySet()) {
+			Schema schema = new Schema.Parser().parse(entry.getValue());
+			SCHEMAS.putIfAbsent(entry.getKey(), schema);
+		}
+	}
+
+	/**
+	 * Get the registered schema with the given fingerprint.
+	 *
+	 * @return The schema, or null if no schema with that fingerprint has been
+	 *         registered
+	 */
+	public static Schema getSchema (long fingerprint) {
+		return SCHEMAS.get(fingerprint);
+	}
+}
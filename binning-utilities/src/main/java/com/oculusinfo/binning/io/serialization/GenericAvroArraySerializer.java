@@ -42,7 +42,11 @@ abstract public class GenericAvroArraySerializer<T> extends GenericAvroSerialize
 
 
 	public GenericAvroArraySerializer (CodecFactory compressionCodec, TypeDescriptor elementTypeDescription) {
-		super(compressionCodec, new TypeDescriptor(List.class, elementTypeDescription));
+		this(compressionCodec, elementTypeDescription, false);
+	}
+
+	public GenericAvroArraySerializer (CodecFactory compressionCodec, TypeDescriptor elementTypeDescription, boolean compact) {
+		super(compressionCodec, new TypeDescriptor(List.class, elementTypeDescription), compact);
 	}
 
 	transient private Schema _entrySchema;
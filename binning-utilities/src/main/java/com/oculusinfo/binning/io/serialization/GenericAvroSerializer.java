@@ -27,7 +27,9 @@ package com.oculusinfo.binning.io.serialization;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.oculusinfo.binning.BinIndex;
 import com.oculusinfo.binning.TileIndex;
@@ -43,16 +45,64 @@ import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
-
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.JsonEncoder;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.JsonGeneratorDelegate;
+import org.json.JSONException;
+
+import com.oculusinfo.binning.impl.AbstractDenseNumericTileData;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.PackedSparseTileData;
 import com.oculusinfo.binning.impl.SparseTileData;
+import com.oculusinfo.binning.metadata.PyramidMetaData;
 import com.oculusinfo.binning.util.TypeDescriptor;
 
+/**
+ * Base class for serializers that write tiles with avro.
+ *
+ * By default, each tile is written as a complete avro container file, holding
+ * the tile's schema, codec, and sync marker along with the single tile record.
+ * In compact mode, tiles are instead written as {@link #COMPACT_MAGIC}, the
+ * 8-byte little-endian fingerprint of the tile schema (see
+ * {@link AvroSchemaRegistry}), and then the tile record as a bare, uncompressed
+ * avro binary datum.  Compact tiles are read straight from the binary decoder,
+ * without building GenericRecords, into primitive-backed tiles where possible.
+ *
+ * Either kind of tile can be read by any avro serializer for the same bin type,
+ * whichever mode it writes, so pyramids written in container form remain
+ * readable.
+ */
 abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 	private static final long serialVersionUID = 5775555328063499845L;
 
+	/**
+	 * The bytes that start a compact tile.  Avro container files start with
+	 * "Obj", so the two can't be confused.
+	 */
+	public static final byte[] COMPACT_MAGIC = {(byte) 0xC3, (byte) 0x01};
+	private static final int FINGERPRINT_LENGTH = 8;
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+	// Encoders and decoders are reused, per thread
+	private static final ThreadLocal<BinaryEncoder> ENCODERS = new ThreadLocal<>();
+	private static final ThreadLocal<BinaryDecoder> DECODERS = new ThreadLocal<>();
+
 
 
 	// Functions to encode and decode codecs as strings, so we can serialize
@@ -76,13 +126,28 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 
 	private transient ThreadLocal<Map<StorageType, Schema>> _tileSchema;
 	private transient Schema                                _recordSchema;
+	private transient Map<StorageType, Long>                _tileFingerprints;
+	private transient DatumReader<GenericRecord>            _valueReader;
+	private transient DatumWriter<GenericRecord>            _valueWriter;
 
 	private String                                          _compressionCodec;
 	private TypeDescriptor                                  _typeDescription;
+	private boolean                                         _compact;
 
 	protected GenericAvroSerializer (CodecFactory compressionCodec, TypeDescriptor typeDescription) {
+		this(compressionCodec, typeDescription, false);
+	}
+
+	/**
+	 * @param compressionCodec The codec with which to compress container-form tiles
+	 * @param typeDescription A description of the bin type of our tiles
+	 * @param compact True to write tiles in compact form, rather than as avro
+	 *            container files; the codec is then unused.
+	 */
+	protected GenericAvroSerializer (CodecFactory compressionCodec, TypeDescriptor typeDescription, boolean compact) {
 		_compressionCodec = codecToDescription(compressionCodec);
 		_typeDescription = typeDescription;
+		_compact = compact;
 		_tileSchema = null;
 		_recordSchema = null;
 	}
@@ -131,11 +196,49 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 		}
 	}
 
+	/**
+	 * Get the fingerprint of our tile schema for the given storage type,
+	 * registering the schema so compact tiles written with it can be read.
+	 */
+	protected long getTileFingerprint (StorageType storage) throws IOException {
+		if (null == _tileFingerprints)
+			_tileFingerprints = new ConcurrentHashMap<>();
+		Long fingerprint = _tileFingerprints.get(storage);
+		if (null == fingerprint) {
+			fingerprint = AvroSchemaRegistry.register(getTileSchema(storage));
+			_tileFingerprints.put(storage, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Record the tile schemas of this serializer in the metadata of a pyramid
+	 * it writes, so that readers of that pyramid can read its compact tiles.
+	 * Does nothing if this serializer doesn't write compact tiles.
+	 */
+	public void recordTileSchemas (PyramidMetaData metaData) throws IOException {
+		if (!_compact) return;
+		try {
+			for (StorageType storage: StorageType.values()) {
+				Schema schema = getTileSchema(storage);
+				if (null != schema)
+					metaData.addTileSchema(getTileFingerprint(storage), schema.toString());
+			}
+		} catch (JSONException e) {
+			throw new IOException("Error recording tile schemas in pyramid metadata", e);
+		}
+	}
+
 	@Override
 	public TypeDescriptor getBinTypeDescription () {
 		return _typeDescription;
 	}
 
+	/** Whether this serializer writes tiles in compact form */
+	public boolean isCompact () {
+		return _compact;
+	}
+
 	protected Map<String, String> getTileMetaData (TileData<T> tile) {
 		Collection<String> keys = tile.getMetaDataProperties();
 		if (null == keys || keys.isEmpty()) return null;
@@ -150,36 +253,81 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 
 	@Override
 	public TileData<T> deserialize(TileIndex index, InputStream stream) throws IOException {
+		// Tell compact tiles from container files by their first bytes
+		PushbackInputStream source = new PushbackInputStream(stream, COMPACT_MAGIC.length);
+		byte[] start = new byte[COMPACT_MAGIC.length];
+		int read = readFully(source, start);
+		if (read == start.length && Arrays.equals(COMPACT_MAGIC, start)) {
+			try {
+				return deserializeCompact(source);
+			} finally {
+				stream.close();
+			}
+		}
+		if (read > 0) source.unread(start, 0, read);
 
 		DatumReader<GenericRecord> reader = new GenericDatumReader<GenericRecord>();
-		DataFileStream<GenericRecord> dataFileReader = new DataFileStream<GenericRecord>(stream, reader);
+		DataFileStream<GenericRecord> dataFileReader = new DataFileStream<GenericRecord>(source, reader);
 
 		try {
+			return createTile(dataFileReader.next());
+		} finally {
+			dataFileReader.close();
+			stream.close();
+		}
+	}
+
+	// Read as many bytes as are available, up to the length of the buffer
+	private static int readFully (InputStream stream, byte[] buffer) throws IOException {
+		int read = 0;
+		while (read < buffer.length) {
+			int n = stream.read(buffer, read, buffer.length - read);
+			if (n < 0) break;
+			read += n;
+		}
+		return read;
+	}
+
+	// Convert a tile record, as read generically, into a tile
+	private TileData<T> createTile (GenericRecord r) {
+		int level = (Integer) r.get("level");
+		int xIndex = (Integer) r.get("xIndex");
+		int yIndex = (Integer) r.get("yIndex");
+		int xBins = (Integer) r.get("xBinCount");
+		int yBins = (Integer) r.get("yBinCount");
+		Map<?, ?> meta = (Map<?, ?>) r.get("meta");
+		TileIndex newTileIndex = new TileIndex(level, xIndex, yIndex, xBins, yBins);
+
+		// Warning suppressed because Array.newInstance definitionally returns
+		// something of the correct type, or throws an exception
+		@SuppressWarnings("unchecked")
+		GenericData.Array<GenericRecord> bins = (GenericData.Array<GenericRecord>) r.get("values");
+
+		// See if this is a sparse or dense array.
+		StorageType storage = StorageType.Dense;
+		if (r.getSchema().getName().equals("sparseTile")) {
+			storage = StorageType.Sparse;
+		}
+		TileData<T> newTile = null;
 
-			GenericRecord r = dataFileReader.next();
-
-			int level = (Integer) r.get("level");
-			int xIndex = (Integer) r.get("xIndex");
-			int yIndex = (Integer) r.get("yIndex");
-			int xBins = (Integer) r.get("xBinCount");
-			int yBins = (Integer) r.get("yBinCount");
-			Map<?, ?> meta = (Map<?, ?>) r.get("meta");
-			TileIndex newTileIndex = new TileIndex(level, xIndex, yIndex, xBins, yBins);
-
-			// Warning suppressed because Array.newInstance definitionally returns
-			// something of the correct type, or throws an exception
-			@SuppressWarnings("unchecked")
-			GenericData.Array<GenericRecord> bins = (GenericData.Array<GenericRecord>) r.get("values");
-
-			// See if this is a sparse or dense array.
-			StorageType storage = StorageType.Dense;
-			if (r.getSchema().getName().equals("sparseTile")) {
-				storage = StorageType.Sparse;
+		switch (storage) {
+		case Dense: {
+			T defaultValue = null;
+			GenericRecord defaultBin = (GenericRecord) r.get("default");
+			if (null != defaultBin) {
+				defaultValue = getValue((GenericRecord) r.get("default"));
 			}
-			TileData<T> newTile = null;
 
-			switch (storage) {
-			case Dense: {
+			if (AbstractDenseNumericTileData.isPrimitiveNumeric(defaultValue)) {
+				// Numeric bins go straight into a primitive-backed tile
+				newTile = DenseTileData.createDenseTile(newTileIndex, defaultValue);
+				int i = 0;
+				for (GenericRecord bin : bins) {
+					newTile.setBin(i % xBins, i / xBins, getValue(bin));
+					++i;
+					if (i >= xBins * yBins) break;
+				}
+			} else {
 				List<T> data = new ArrayList<T>(xBins * yBins);
 				int i = 0;
 				for (GenericRecord bin : bins) {
@@ -187,59 +335,220 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 					++i;
 					if (i >= xBins * yBins) break;
 				}
-				T defaultValue = null;
-				GenericRecord defaultBin = (GenericRecord) r.get("default");
-				if (null != defaultBin) {
-					defaultValue = getValue((GenericRecord) r.get("default"));
-				}
 
 				newTile = new DenseTileData<T>(newTileIndex, defaultValue, data);
-				break;
 			}
-			case Sparse: {
-				Map<Integer, Map<Integer, T>> data = new HashMap<>();
-				for (GenericRecord bin : bins) {
-					int x = (Integer) (bin.get("xIndex"));
-					int y = (Integer) (bin.get("yIndex"));
-					T value = getValue((GenericRecord) bin.get("value"));
-					if (!data.containsKey(x)) data.put(x, new HashMap<Integer, T>());
-					data.get(x).put(y, value);
+			break;
+		}
+		case Sparse: {
+			T defaultValue = getValue((GenericRecord) r.get("default"));
+			PackedSparseTileData<T> data = new PackedSparseTileData<T>(newTileIndex, defaultValue, bins.size());
+			for (GenericRecord bin : bins) {
+				int x = (Integer) (bin.get("xIndex"));
+				int y = (Integer) (bin.get("yIndex"));
+				T value = getValue((GenericRecord) bin.get("value"));
+				data.setBin(x, y, value);
+			}
+			// Older tiles may have written their bins in any order
+			data.compact();
+
+			newTile = data;
+			break;
+		}
+		default: return null;
+		}
+
+		// Add in metaData
+		if (null != meta) {
+			for (Object key : meta.keySet()) {
+				if (null != key) {
+					Object value = meta.get(key);
+					if (null != value) {
+						newTile.setMetaData(key.toString(), value.toString());
+					}
 				}
-				T defaultValue = getValue((GenericRecord) r.get("default"));
+			}
+		}
+		return newTile;
+	}
+
+	private TileData<T> deserializeCompact (InputStream stream) throws IOException {
+		byte[] fingerprintBytes = new byte[FINGERPRINT_LENGTH];
+		if (readFully(stream, fingerprintBytes) < FINGERPRINT_LENGTH)
+			throw new IOException("Truncated compact avro tile");
+		long fingerprint = 0L;
+		for (int i = FINGERPRINT_LENGTH - 1; i >= 0; --i) {
+			fingerprint = (fingerprint << 8) | (fingerprintBytes[i] & 0xFF);
+		}
+
+		BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(stream, DECODERS.get());
+		DECODERS.set(decoder);
+
+		if (fingerprint == getTileFingerprint(StorageType.Dense)) {
+			return readCompactTile(decoder, StorageType.Dense);
+		} else if (fingerprint == getTileFingerprint(StorageType.Sparse)) {
+			return readCompactTile(decoder, StorageType.Sparse);
+		} else {
+			// Written with a schema other than our own; resolve it against ours generically.
+			Schema writerSchema = AvroSchemaRegistry.getSchema(fingerprint);
+			if (null == writerSchema)
+				throw new IOException("Unknown avro tile schema fingerprint "+Long.toHexString(fingerprint));
+			StorageType storage = "sparseTile".equals(writerSchema.getName()) ? StorageType.Sparse : StorageType.Dense;
+			DatumReader<GenericRecord> reader = new GenericDatumReader<GenericRecord>(writerSchema, getTileSchema(storage));
+			return createTile(reader.read(null, decoder));
+		}
+	}
 
-				newTile = new SparseTileData<T>(newTileIndex, data, defaultValue);
-				break;
+	private TileData<T> readCompactTile (Decoder decoder, StorageType storage) throws IOException {
+		int level = decoder.readInt();
+		int xIndex = decoder.readInt();
+		int yIndex = decoder.readInt();
+		int xBins = decoder.readInt();
+		int yBins = decoder.readInt();
+		TileIndex index = new TileIndex(level, xIndex, yIndex, xBins, yBins);
+
+		TileData<T> tile;
+		if (StorageType.Sparse == storage) {
+			tile = readSparseBins(index, decoder);
+		} else {
+			tile = readDenseBins(index, decoder);
+		}
+
+		// Add in metaData
+		if (0 != decoder.readIndex()) {
+			for (long n = decoder.readMapStart(); n > 0; n = decoder.mapNext()) {
+				for (long i = 0; i < n; ++i) {
+					String key = decoder.readString(null).toString();
+					String value = decoder.readString(null).toString();
+					tile.setMetaData(key, value);
+				}
 			}
-			default: return null;
+		}
+		return tile;
+	}
+
+	/**
+	 * Read the bin values and default value of a dense tile from a compact tile
+	 * record, and create the tile.
+	 *
+	 * Subclasses whose bin values are primitives can override this to read bins
+	 * straight into a primitive-backed tile.
+	 */
+	protected TileData<T> readDenseBins (TileIndex index, Decoder decoder) throws IOException {
+		int size = index.getXBins() * index.getYBins();
+		List<T> data = new ArrayList<T>(size);
+		for (long n = decoder.readArrayStart(); n > 0; n = decoder.arrayNext()) {
+			for (long i = 0; i < n; ++i) {
+				T value = readValue(decoder);
+				if (data.size() < size) data.add(value);
 			}
+		}
+		T defaultValue = readOptionalValue(decoder);
 
-			// Add in metaData
-			if (null != meta) {
-				for (Object key : meta.keySet()) {
-					if (null != key) {
-						Object value = meta.get(key);
-						if (null != value) {
-							newTile.setMetaData(key.toString(), value.toString());
-						}
-					}
+		if (AbstractDenseNumericTileData.isPrimitiveNumeric(defaultValue)) {
+			TileData<T> tile = DenseTileData.createDenseTile(index, defaultValue);
+			for (int i = 0; i < data.size(); ++i) {
+				tile.setBin(i % index.getXBins(), i / index.getXBins(), data.get(i));
+			}
+			return tile;
+		} else {
+			return new DenseTileData<T>(index, defaultValue, data);
+		}
+	}
+
+	private TileData<T> readSparseBins (TileIndex index, Decoder decoder) throws IOException {
+		int[] xs = new int[16];
+		int[] ys = new int[16];
+		List<T> values = new ArrayList<T>();
+		for (long n = decoder.readArrayStart(); n > 0; n = decoder.arrayNext()) {
+			for (long i = 0; i < n; ++i) {
+				int entry = values.size();
+				if (entry == xs.length) {
+					xs = Arrays.copyOf(xs, entry * 2);
+					ys = Arrays.copyOf(ys, entry * 2);
 				}
+				xs[entry] = decoder.readInt();
+				ys[entry] = decoder.readInt();
+				values.add(readValue(decoder));
 			}
-			return newTile;
-		} finally {
-			dataFileReader.close();
-			stream.close();
+		}
+		T defaultValue = readOptionalValue(decoder);
+
+		PackedSparseTileData<T> tile = new PackedSparseTileData<T>(index, defaultValue, values.size());
+		for (int i = 0; i < values.size(); ++i) {
+			tile.setBin(xs[i], ys[i], values.get(i));
+		}
+		tile.compact();
+		return tile;
+	}
+
+	/**
+	 * Read a single bin value from a compact tile record.  By default, this
+	 * reads the bin's record generically, and converts it with
+	 * {@link #getValue(GenericRecord)}; subclasses can override this, and
+	 * {@link #writeValue(Encoder, Object)}, to read and write values directly.
+	 */
+	protected T readValue (Decoder decoder) throws IOException {
+		if (null == _valueReader)
+			_valueReader = new GenericDatumReader<GenericRecord>(getRecordSchema());
+		return getValue(_valueReader.read(null, decoder));
+	}
+
+	/**
+	 * Write a single bin value into a compact tile record.  By default, this
+	 * fills in the bin's record with {@link #setValue(GenericRecord, Object)},
+	 * and writes it generically.
+	 */
+	protected void writeValue (Encoder encoder, T value) throws IOException {
+		if (null == _valueWriter)
+			_valueWriter = new GenericDatumWriter<GenericRecord>(getRecordSchema());
+		GenericRecord record = new GenericData.Record(getRecordSchema());
+		setValue(record, value);
+		_valueWriter.write(record, encoder);
+	}
+
+	// Read a value of a ["null", recordType] union
+	protected T readOptionalValue (Decoder decoder) throws IOException {
+		if (0 == decoder.readIndex()) {
+			decoder.readNull();
+			return null;
+		} else {
+			return readValue(decoder);
+		}
+	}
+
+	// Write a value of a ["null", recordType] union
+	private void writeOptionalValue (Encoder encoder, T value) throws IOException {
+		if (null == value) {
+			encoder.writeIndex(0);
+			encoder.writeNull();
+		} else {
+			encoder.writeIndex(1);
+			writeValue(encoder, value);
 		}
 	}
 
 	@Override
 	public void serialize (TileData<T> tile, OutputStream stream) throws IOException {
-		if (tile instanceof SparseTileData<?>) {
+		if (_compact) {
+			serializeCompact(tile, stream);
+		} else if (tile instanceof SparseTileData<?>) {
 			serializeSparse((SparseTileData<T>) tile, stream);
 		} else {
 			serializeDense(tile, stream);
 		}
 	}
 
+	private GenericRecord createSparseBin (Schema recordSchema, Schema binSchema, int x, int y, T value) throws IOException {
+		GenericRecord valueRecord = new GenericData.Record(recordSchema);
+		setValue(valueRecord, value);
+		GenericRecord binRecord = new GenericData.Record(binSchema);
+		binRecord.put("xIndex", x);
+		binRecord.put("yIndex", y);
+		binRecord.put("value", valueRecord);
+		return binRecord;
+	}
+
 	private void serializeSparse (SparseTileData<T> tile, OutputStream stream) throws IOException {
 		Schema recordSchema = getRecordSchema();
 		Schema tileSchema = getTileSchema(StorageType.Sparse);
@@ -247,18 +556,19 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 
 		List<GenericRecord> bins = new ArrayList<GenericRecord>();
 
-		Iterator<Pair<BinIndex, T>> i = tile.getData();
-		while (i.hasNext()) {
-			Pair<BinIndex, T> next = i.next();
-			BinIndex index = next.getFirst();
-			T value = next.getSecond();
-			GenericRecord valueRecord = new GenericData.Record(recordSchema);
-			setValue(valueRecord, value);
-			GenericRecord binRecord = new GenericData.Record(binSchema);
-			binRecord.put("xIndex", index.getX());
-			binRecord.put("yIndex", index.getY());
-			binRecord.put("value", valueRecord);
-			bins.add(binRecord);
+		if (tile instanceof PackedSparseTileData<?>) {
+			PackedSparseTileData<T> packed = (PackedSparseTileData<T>) tile;
+			int entries = packed.getEntryCount();
+			for (int n = 0; n < entries; ++n) {
+				bins.add(createSparseBin(recordSchema, binSchema, packed.getEntryX(n), packed.getEntryY(n), packed.getEntryValue(n)));
+			}
+		} else {
+			Iterator<Pair<BinIndex, T>> i = tile.getData();
+			while (i.hasNext()) {
+				Pair<BinIndex, T> next = i.next();
+				BinIndex index = next.getFirst();
+				bins.add(createSparseBin(recordSchema, binSchema, index.getX(), index.getY(), next.getSecond()));
+			}
 		}
 
 		GenericRecord tileRecord = new GenericData.Record(tileSchema);
@@ -313,6 +623,108 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 		writeRecord(tileRecord, tileSchema, stream);
 	}
 
+	private void serializeCompact (TileData<T> tile, OutputStream stream) throws IOException {
+		StorageType storage = (tile instanceof SparseTileData<?>) ? StorageType.Sparse : StorageType.Dense;
+		long fingerprint = getTileFingerprint(storage);
+		byte[] header = Arrays.copyOf(COMPACT_MAGIC, COMPACT_MAGIC.length + FINGERPRINT_LENGTH);
+		for (int i = 0; i < FINGERPRINT_LENGTH; ++i) {
+			header[COMPACT_MAGIC.length + i] = (byte) (fingerprint >>> (8 * i));
+		}
+		stream.write(header);
+
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, ENCODERS.get());
+		ENCODERS.set(encoder);
+		writeTileRecord(tile, storage, encoder);
+		encoder.flush();
+		stream.close();
+	}
+
+	/**
+	 * Write a tile to a stream as JSON, in the form in which
+	 * {@link com.oculusinfo.binning.util.AvroJSONConverter} presents a tile read
+	 * from an avro container file - that is, avro's JSON encoding of the tile
+	 * record, with any "bins" metadata expanded from a string into JSON.
+	 *
+	 * The JSON is written straight from the tile, without building avro records
+	 * or JSON objects along the way.  The stream is left open.
+	 */
+	public void serializeJSON (TileData<T> tile, OutputStream stream) throws IOException {
+		StorageType storage = (tile instanceof SparseTileData<?>) ? StorageType.Sparse : StorageType.Dense;
+		JsonGenerator generator = JSON_FACTORY.createJsonGenerator(stream, JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		JsonEncoder encoder = EncoderFactory.get().jsonEncoder(getTileSchema(storage), new MetaDataExpandingGenerator(generator));
+		writeTileRecord(tile, storage, encoder);
+		encoder.flush();
+	}
+
+	// Write a tile record, field by field, in tile schema order
+	private void writeTileRecord (TileData<T> tile, StorageType storage, Encoder encoder) throws IOException {
+		TileIndex idx = tile.getDefinition();
+		encoder.writeInt(idx.getLevel());
+		encoder.writeInt(idx.getX());
+		encoder.writeInt(idx.getY());
+		encoder.writeInt(idx.getXBins());
+		encoder.writeInt(idx.getYBins());
+
+		if (StorageType.Sparse == storage) {
+			writeSparseBins((SparseTileData<T>) tile, encoder);
+		} else {
+			List<T> denseData = DenseTileData.getData(tile);
+			encoder.writeArrayStart();
+			encoder.setItemCount(denseData.size());
+			for (T value: denseData) {
+				encoder.startItem();
+				writeValue(encoder, value);
+			}
+			encoder.writeArrayEnd();
+		}
+		writeOptionalValue(encoder, tile.getDefaultValue());
+
+		Map<String, String> metaData = getTileMetaData(tile);
+		if (null == metaData) {
+			encoder.writeIndex(0);
+			encoder.writeNull();
+		} else {
+			encoder.writeIndex(1);
+			encoder.writeMapStart();
+			encoder.setItemCount(metaData.size());
+			for (Map.Entry<String, String> entry: metaData.entrySet()) {
+				encoder.startItem();
+				encoder.writeString(entry.getKey());
+				encoder.writeString(entry.getValue());
+			}
+			encoder.writeMapEnd();
+		}
+	}
+
+	private void writeSparseBins (SparseTileData<T> tile, Encoder encoder) throws IOException {
+		encoder.writeArrayStart();
+		if (tile instanceof PackedSparseTileData<?>) {
+			PackedSparseTileData<T> packed = (PackedSparseTileData<T>) tile;
+			int entries = packed.getEntryCount();
+			encoder.setItemCount(entries);
+			for (int n = 0; n < entries; ++n) {
+				encoder.startItem();
+				encoder.writeInt(packed.getEntryX(n));
+				encoder.writeInt(packed.getEntryY(n));
+				writeValue(encoder, packed.getEntryValue(n));
+			}
+		} else {
+			List<Pair<BinIndex, T>> entries = new ArrayList<Pair<BinIndex, T>>();
+			Iterator<Pair<BinIndex, T>> i = tile.getData();
+			while (i.hasNext()) entries.add(i.next());
+			encoder.setItemCount(entries.size());
+			for (Pair<BinIndex, T> entry: entries) {
+				encoder.startItem();
+				encoder.writeInt(entry.getFirst().getX());
+				encoder.writeInt(entry.getFirst().getY());
+				writeValue(encoder, entry.getSecond());
+			}
+		}
+		encoder.writeArrayEnd();
+	}
+
 	private void writeRecord (GenericRecord record, Schema schema, OutputStream stream) throws IOException {
 		DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<GenericRecord>(schema);
 		DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<GenericRecord>(datumWriter);
@@ -324,4 +736,47 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 			stream.close();
 		} catch (IOException e) {throw new RuntimeException("Error serializing",e);}
 	}
+
+	/*
+	 * A JSON generator that writes the "bins" metadata entry - a string holding
+	 * JSON - as the JSON it holds, rather than as a string.  Avro's JSON encoder
+	 * writes map keys as field names, so the value following a "bins" field name
+	 * is that entry.
+	 */
+	private static class MetaDataExpandingGenerator extends JsonGeneratorDelegate {
+		private boolean _inBins = false;
+
+		MetaDataExpandingGenerator (JsonGenerator delegate) {
+			super(delegate);
+		}
+
+		@Override
+		public void writeFieldName (String name) throws IOException {
+			_inBins = "bins".equals(name);
+			super.writeFieldName(name);
+		}
+
+		@Override
+		public void writeString (String text) throws IOException {
+			if (_inBins) {
+				_inBins = false;
+				// Parse the whole entry before writing any of it, so that a string that
+				// only starts out as JSON is still written whole, as a string.
+				JsonNode tree = null;
+				try {
+					JsonParser parser = JSON_MAPPER.getJsonFactory().createJsonParser(text);
+					JsonNode parsed = JSON_MAPPER.readTree(parser);
+					if (null == parser.nextToken()) tree = parsed;
+					parser.close();
+				} catch (JsonProcessingException e) {
+					// Not JSON after all; write it as the string it is.
+				}
+				if (null != tree) {
+					JSON_MAPPER.writeTree(delegate, tree);
+					return;
+				}
+			}
+			super.writeString(text);
+		}
+	}
 }
@@ -32,6 +32,7 @@ import org.apache.avro.file.CodecFactory;
 
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.UberFactory;
+import com.oculusinfo.factory.properties.BooleanProperty;
 import com.oculusinfo.factory.properties.EnumProperty;
 import com.oculusinfo.factory.properties.IntegerProperty;
 
@@ -52,6 +53,9 @@ public class TileSerializerFactory
 	public static IntegerProperty         DEFLATE_LEVEL   = new IntegerProperty("deflation",
 		      "The deflation setting used if the serializer is an Avro serializer, and the deflate codec is chosen",
 		      4);
+	public static BooleanProperty         COMPACT         = new BooleanProperty("compact",
+		      "If the serializer is an Avro serializer, whether to write tiles as bare, uncompressed avro records identified by a schema fingerprint, rather than as complete avro container files",
+		      false);
 
 
 
@@ -79,6 +83,7 @@ public class TileSerializerFactory
 
 		addProperty(CODEC_TYPE);
 		addProperty(DEFLATE_LEVEL);
+		addProperty(COMPACT);
 	}
 
 	public static <T> CodecFactory getCodecFactory (ConfigurableFactory<TileSerializer<T>> subFactory) throws ConfigurationException {
@@ -96,4 +101,8 @@ public class TileSerializerFactory
 			return CodecFactory.bzip2Codec();
 		}
 	}
+
+	public static <T> boolean isCompact (ConfigurableFactory<TileSerializer<T>> subFactory) throws ConfigurationException {
+		return subFactory.getPropertyValue(COMPACT);
+	}
 }
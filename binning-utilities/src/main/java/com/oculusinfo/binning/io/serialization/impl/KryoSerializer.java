@@ -1,11 +1,15 @@
 package com.oculusinfo.binning.io.serialization.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
@@ -18,24 +22,44 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseDoubleTileData;
+import com.oculusinfo.binning.impl.DenseIntTileData;
+import com.oculusinfo.binning.impl.DenseLongTileData;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.PackedSparseTileData;
 import com.oculusinfo.binning.impl.SparseTileData;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.binning.util.TypeDescriptor;
 import com.oculusinfo.factory.util.Pair;
 
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
 
 
 /**
  * A generic Kryo serializer capable of serializing all sorts of tile data.
  *
+ * Tiles written with the DEFLATE, BZIP or GZIP codecs are just the compressed
+ * Kryo output, as they always have been. Tiles written with the NONE or LZ4
+ * codecs start with a short header - {@link #HEADER_MAGIC}, followed by a
+ * byte giving the codec, and for LZ4, an int giving the uncompressed length. Every codec can therefore be recognized from the tile
+ * itself, and tiles are read with whatever codec they were written with, so
+ * pyramids written with a mix of codecs can be read with any Kryo serializer.
+ *
+ * Kryo instances, Kryo buffers and compressor contexts are kept per thread,
+ * and shared by all serializers that register the same classes.
+ *
  * @author nkronenfeld
  *
  * @param <T> The type of data this instance of the serializer intends to serialize.
  */
 public class KryoSerializer<T> implements TileSerializer<T> {
 	private static final long serialVersionUID = 611839716702420914L;
-	public static enum Codec {DEFLATE, BZIP, GZIP};
+	// New codecs must be added at the end; the ordinal is written in the tile header.
+	public static enum Codec {DEFLATE, BZIP, GZIP, NONE, LZ4};
 	public static final Set<Class<?>> PRIMITIVE_TYPES =
 		Collections.unmodifiableSet(new HashSet<Class<?>>() {
 			private static final long serialVersionUID = 1L;
@@ -46,6 +70,32 @@ public class KryoSerializer<T> implements TileSerializer<T> {
 			}
 		});
 
+	/**
+	 * The bytes that start a tile with a codec header. These can't be
+	 * mistaken for the start of a deflate (zlib), gzip, or bzip2 stream.
+	 */
+	public static final byte[] HEADER_MAGIC = {'K', 'T', 'I', 'L'};
+	private static final int HEADER_LENGTH = HEADER_MAGIC.length + 1;
+
+	// The pure-Java LZ4 (de)compressors, so no native library is needed. They
+	// keep no state between calls, and are thread-safe, so they can be shared.
+	private static final LZ4Compressor       LZ4_COMPRESSOR   = LZ4Factory.fastestJavaInstance().fastCompressor();
+	private static final LZ4SafeDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestJavaInstance().safeDecompressor();
+
+	// Thread buffers larger than this are not kept after use, so one huge tile
+	// doesn't pin its buffers to a thread forever.
+	private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+	// Kryo instances, per thread, for each set of classes to register
+	private static final ConcurrentMap<List<Class<?>>, LocalizedKryo> KRYOS = new ConcurrentHashMap<>();
+	// Buffers and compression contexts, per thread
+	private static final ThreadLocal<ThreadBuffers> BUFFERS = new ThreadLocal<ThreadBuffers>() {
+		@Override
+		protected ThreadBuffers initialValue () {
+			return new ThreadBuffers();
+		}
+	};
+
 
 
 	// Store a kryo instance per thread
@@ -76,76 +126,250 @@ public class KryoSerializer<T> implements TileSerializer<T> {
 
 	// Get the kryo instance for this thread.
 	private Kryo kryo () {
-		if (null == _localKryo)
-			_localKryo = new LocalizedKryo();
+		if (null == _localKryo) {
+			List<Class<?>> key = Arrays.<Class<?>>asList(_classesToRegister);
+			LocalizedKryo localKryo = KRYOS.get(key);
+			if (null == localKryo) {
+				localKryo = new LocalizedKryo(_classesToRegister);
+				LocalizedKryo existing = KRYOS.putIfAbsent(key, localKryo);
+				if (null != existing) localKryo = existing;
+			}
+			_localKryo = localKryo;
+		}
 		return _localKryo.get();
 	}
 
+	public Codec getCodec () {
+		return _codec;
+	}
+
 	@Override
 	public TypeDescriptor getBinTypeDescription() {
 		return _typeDesc;
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	// Determine the codec of a serialized tile from its first few bytes
+	private static Codec detectCodec (byte[] data, int length) throws IOException {
+		if (hasHeader(data, length)) {
+			int ordinal = data[HEADER_MAGIC.length];
+			Codec[] codecs = Codec.values();
+			if (ordinal < 0 || ordinal >= codecs.length) {
+				throw new IOException("Unknown kryo tile codec "+ordinal);
+			}
+			return codecs[ordinal];
+		}
+		if (length >= 2 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b) {
+			return Codec.GZIP;
+		}
+		if (length >= 3 && data[0] == 'B' && data[1] == 'Z' && data[2] == 'h') {
+			return Codec.BZIP;
+		}
+		return Codec.DEFLATE;
+	}
+
+	private static boolean hasHeader (byte[] data, int length) {
+		if (length < HEADER_LENGTH) return false;
+		for (int i=0; i<HEADER_MAGIC.length; ++i) {
+			if (data[i] != HEADER_MAGIC[i]) return false;
+		}
+		return true;
+	}
+
+	private static int readInt (byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16)
+			| ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+	}
+
+	private static void writeInt (byte[] data, int offset, int value) {
+		data[offset]   = (byte) (value >>> 24);
+		data[offset+1] = (byte) (value >>> 16);
+		data[offset+2] = (byte) (value >>> 8);
+		data[offset+3] = (byte) value;
+	}
+
+	@SuppressWarnings({ "rawtypes" })
 	@Override
 	public TileData<T> deserialize(TileIndex index, InputStream stream)
 		throws IOException {
-		InputStream compressionStream;
-		switch (_codec) {
-		case BZIP:
-			compressionStream = new BZipInputStreamWrapper(new BZip2CompressorInputStream(stream));
-			break;
-		case GZIP:
-			compressionStream = new GzipCompressorInputStream(stream);
-			break;
-		case DEFLATE:
-		default:
-			compressionStream = new InflaterInputStream(stream);
-			break;
-		}
-		Input input = new Input(compressionStream);
+		ThreadBuffers buffers = BUFFERS.get();
 		try {
+			int length = buffers.readFully(stream);
+			byte[] raw = buffers.raw;
+			Codec codec = detectCodec(raw, length);
+
+			Input input = buffers.input;
+			InputStream compressionStream = null;
+			switch (codec) {
+			case NONE:
+				// Kryo 2's setBuffer takes a limit, not a count
+				input.setBuffer(raw, HEADER_LENGTH, length);
+				break;
+			case LZ4:
+				int uncompressedLength = readInt(raw, HEADER_LENGTH);
+				byte[] uncompressed = buffers.getUncompressed(uncompressedLength);
+				int offset = HEADER_LENGTH + 4;
+				int decompressedLength;
+				try {
+					decompressedLength = LZ4_DECOMPRESSOR.decompress(raw, offset, length - offset, uncompressed, 0, uncompressedLength);
+				} catch (LZ4Exception e) {
+					throw new IOException("Corrupt "+codec+" kryo tile", e);
+				}
+				if (decompressedLength != uncompressedLength) {
+					throw new IOException("Corrupt "+codec+" kryo tile: expected "+uncompressedLength+" bytes, got "+decompressedLength);
+				}
+				input.setBuffer(uncompressed, 0, uncompressedLength);
+				break;
+			case BZIP:
+				compressionStream = new BZipInputStreamWrapper(new BZip2CompressorInputStream(new ByteArrayInputStream(raw, 0, length)));
+				break;
+			case GZIP:
+				compressionStream = new GzipCompressorInputStream(new ByteArrayInputStream(raw, 0, length));
+				break;
+			case DEFLATE:
+			default:
+				buffers.inflater.reset();
+				compressionStream = new InflaterInputStream(new ByteArrayInputStream(raw, 0, length), buffers.inflater);
+				break;
+			}
 
-			Object data = kryo().readClassAndObject(input);
-			if (data instanceof TileData) return (TileData) data;
-			else return null;
+			try {
+				if (null != compressionStream) {
+					input.setBuffer(buffers.inputBuffer);
+					input.setInputStream(compressionStream);
+				}
+				Object data = kryo().readClassAndObject(input);
+				if (data instanceof TileData) return (TileData) data;
+				else return null;
+			} finally {
+				if (null != compressionStream) {
+					compressionStream.close();
+				}
+			}
 		} finally {
-			compressionStream.close();
-			input.close();
+			buffers.release();
 		}
 	}
 
 	@Override
 	public void serialize(TileData<T> data, OutputStream stream)
 		throws IOException {
-		OutputStream compressionStream;
-		switch (_codec) {
-		case BZIP:
-			compressionStream = new BZip2CompressorOutputStream(stream);
-			break;
-		case GZIP:
-			compressionStream = new GzipCompressorOutputStream(stream);
-			break;
-		case DEFLATE:
-		default:
-			compressionStream = new DeflaterOutputStream(stream);
-			break;
-		}
-		Output output = new Output(compressionStream);
+		// Don't write out unused storage in packed sparse tiles. The tile may
+		// be shared, so write a compacted copy rather than compacting it.
+		if (data instanceof PackedSparseTileData) {
+			data = ((PackedSparseTileData<T>) data).getCompacted();
+		}
+
+		ThreadBuffers buffers = BUFFERS.get();
 		try {
+			Output output = buffers.output;
+			output.clear();
 			kryo().writeClassAndObject(output, data);
-
-			output.flush();
-			compressionStream.flush();
+			byte[] serialized = output.getBuffer();
+			int length = output.position();
+
+			switch (_codec) {
+			case NONE:
+				writeHeader(stream, _codec);
+				stream.write(serialized, 0, length);
+				break;
+			case LZ4:
+				int maxLength = LZ4_COMPRESSOR.maxCompressedLength(length);
+				byte[] compressed = buffers.getCompressed(HEADER_LENGTH + 4 + maxLength);
+				System.arraycopy(HEADER_MAGIC, 0, compressed, 0, HEADER_MAGIC.length);
+				compressed[HEADER_MAGIC.length] = (byte) _codec.ordinal();
+				writeInt(compressed, HEADER_LENGTH, length);
+				int offset = HEADER_LENGTH + 4;
+				int compressedLength = LZ4_COMPRESSOR.compress(serialized, 0, length, compressed, offset, maxLength);
+				stream.write(compressed, 0, offset + compressedLength);
+				break;
+			case BZIP:
+			case GZIP:
+			case DEFLATE:
+			default:
+				OutputStream compressionStream;
+				if (Codec.BZIP == _codec) {
+					compressionStream = new BZip2CompressorOutputStream(stream);
+				} else if (Codec.GZIP == _codec) {
+					compressionStream = new GzipCompressorOutputStream(stream);
+				} else {
+					buffers.deflater.reset();
+					compressionStream = new DeflaterOutputStream(stream, buffers.deflater);
+				}
+				try {
+					compressionStream.write(serialized, 0, length);
+					compressionStream.flush();
+				} finally {
+					compressionStream.close();
+				}
+				break;
+			}
+			stream.flush();
 		} finally {
-			output.close();
-			compressionStream.close();
+			buffers.release();
+		}
+	}
+
+	private static void writeHeader (OutputStream stream, Codec codec) throws IOException {
+		stream.write(HEADER_MAGIC);
+		stream.write(codec.ordinal());
+	}
+
+
+
+	/*
+	 * The reusable buffers and compression contexts of a single thread.
+	 */
+	private static class ThreadBuffers {
+		final Output           output           = new Output(4096, -1);
+		final byte[]           inputBuffer      = new byte[4096];
+		final Input            input            = new Input(inputBuffer);
+		final Deflater         deflater         = new Deflater();
+		final Inflater         inflater         = new Inflater();
+		byte[]                 raw              = new byte[4096];
+		byte[]                 compressed       = new byte[0];
+		byte[]                 uncompressed     = new byte[0];
+
+		// Read a whole stream into raw, returning the number of bytes read
+		int readFully (InputStream stream) throws IOException {
+			int length = 0;
+			while (true) {
+				if (length == raw.length) {
+					raw = Arrays.copyOf(raw, raw.length * 2);
+				}
+				int read = stream.read(raw, length, raw.length - length);
+				if (read < 0) return length;
+				length += read;
+			}
+		}
+
+		byte[] getCompressed (int size) {
+			if (compressed.length < size) compressed = new byte[size];
+			return compressed;
+		}
+
+		byte[] getUncompressed (int size) {
+			if (uncompressed.length < size) uncompressed = new byte[size];
+			return uncompressed;
+		}
+
+		// Drop references to the data just handled, and any oversized buffers
+		void release () {
+			input.setBuffer(inputBuffer);
+			if (output.getBuffer().length > MAX_RETAINED_BUFFER) output.setBuffer(new byte[4096], -1);
+			if (raw.length > MAX_RETAINED_BUFFER) raw = new byte[4096];
+			if (compressed.length > MAX_RETAINED_BUFFER) compressed = new byte[0];
+			if (uncompressed.length > MAX_RETAINED_BUFFER) uncompressed = new byte[0];
 		}
 	}
 
+	private static class LocalizedKryo extends ThreadLocal<Kryo> {
+		private Class<?>[] _classesToRegister;
 
+		LocalizedKryo (Class<?>[] classesToRegister) {
+			_classesToRegister = classesToRegister;
+		}
 
-	private class LocalizedKryo extends ThreadLocal<Kryo> {
+		@Override
 		protected Kryo initialValue () {
 			Kryo kryo = new Kryo();
 
@@ -175,6 +399,17 @@ public class KryoSerializer<T> implements TileSerializer<T> {
 			for (Class<?> ctr: _classesToRegister) {
 				kryo.register(ctr);
 			}
+
+			// Primitive-backed and packed tile types. These are registered last so as not to change
+			// the registration ids of any of the above, which are used in existing tile sets.
+			kryo.register(DenseDoubleTileData.class);
+			kryo.register(DenseLongTileData.class);
+			kryo.register(DenseIntTileData.class);
+			kryo.register(double[].class);
+			kryo.register(long[].class);
+			kryo.register(int[].class);
+			kryo.register(PackedSparseTileData.class);
+			kryo.register(Object[].class);
 			return kryo;
 		}
 	}
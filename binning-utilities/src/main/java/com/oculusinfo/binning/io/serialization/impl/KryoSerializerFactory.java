@@ -60,7 +60,10 @@ public class KryoSerializerFactory<T> extends ConfigurableFactory<TileSerializer
 		        "classes",
 		        "A list of fully-specified classes (as read by Class.forName()) that will need to be registered with Kryo for this serializer to work properly.");
 	private static final EnumProperty<Codec> CODEC = new EnumProperty<Codec>(
-		   "codec", "The compression scheme to use to compress Kryo's output", Codec.class, Codec.GZIP);
+		   "codec",
+		   "The compression scheme to use to compress Kryo's output.  Tiles written with any codec can be read by "+
+		   "any Kryo serializer, so this need not match the codec with which existing tiles were written.",
+		   Codec.class, Codec.GZIP);
 
 
 
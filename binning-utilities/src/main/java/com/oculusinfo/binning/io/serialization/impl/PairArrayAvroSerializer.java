@@ -67,10 +67,16 @@ public class PairArrayAvroSerializer<S, T> extends GenericAvroArraySerializer<Pa
 
 	public PairArrayAvroSerializer (Class<? extends S> keyType, Class<? extends T> valueType,
 	                                CodecFactory compressionCodec) {
+		this(keyType, valueType, compressionCodec, false);
+	}
+
+	public PairArrayAvroSerializer (Class<? extends S> keyType, Class<? extends T> valueType,
+	                                CodecFactory compressionCodec, boolean compact) {
 		super(compressionCodec,
 		      new TypeDescriptor(Pair.class,
 		                         PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(keyType),
-		                         PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(valueType)));
+		                         PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(valueType)),
+		      compact);
 
 		_keyType = keyType;
 		_valueType = valueType;
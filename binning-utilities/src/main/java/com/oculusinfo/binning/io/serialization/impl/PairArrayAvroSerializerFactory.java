@@ -74,6 +74,7 @@ public class PairArrayAvroSerializerFactory<S, T>
 
 	@Override
 	protected TileSerializer<List<Pair<S, T>>> create () throws ConfigurationException {
-		return new PairArrayAvroSerializer<S, T>(_keyType, _valueType, TileSerializerFactory.getCodecFactory(this));
+		return new PairArrayAvroSerializer<S, T>(_keyType, _valueType, TileSerializerFactory.getCodecFactory(this),
+		                                           TileSerializerFactory.isCompact(this));
 	}
 }
@@ -63,10 +63,16 @@ public class PairAvroSerializer<S, T> extends GenericAvroSerializer<Pair<S, T>>
 
 	public PairAvroSerializer (Class<? extends S> keyType, Class<? extends T> valueType,
 	                           CodecFactory compressionCodec) {
+		this(keyType, valueType, compressionCodec, false);
+	}
+
+	public PairAvroSerializer (Class<? extends S> keyType, Class<? extends T> valueType,
+	                           CodecFactory compressionCodec, boolean compact) {
 		super(compressionCodec,
 		      new TypeDescriptor(Pair.class,
 		                         PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(keyType),
-		                         PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(valueType)));
+		                         PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(valueType)),
+		      compact);
 
 		_keyType = keyType;
 		_valueType = valueType;
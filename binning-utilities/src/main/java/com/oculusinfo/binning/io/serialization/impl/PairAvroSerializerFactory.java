@@ -71,6 +71,7 @@ public class PairAvroSerializerFactory<S, T> extends ConfigurableFactory<TileSer
 
 	@Override
 	protected TileSerializer<Pair<S, T>> create () throws ConfigurationException {
-		return new PairAvroSerializer<S, T>(_keyType, _valueType, TileSerializerFactory.getCodecFactory(this));
+		return new PairAvroSerializer<S, T>(_keyType, _valueType, TileSerializerFactory.getCodecFactory(this),
+		                                      TileSerializerFactory.isCompact(this));
 	}
 }
@@ -59,7 +59,11 @@ public class PrimitiveArrayAvroSerializer<T> extends GenericAvroArraySerializer<
 	private boolean                     _toString;
 
 	public PrimitiveArrayAvroSerializer (Class<? extends T> type, CodecFactory compressionCodec) {
-		super(compressionCodec, PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(type));
+		this(type, compressionCodec, false);
+	}
+
+	public PrimitiveArrayAvroSerializer (Class<? extends T> type, CodecFactory compressionCodec, boolean compact) {
+		super(compressionCodec, PrimitiveAvroSerializer.getPrimitiveTypeDescriptor(type), compact);
 
 		_type = type;
 		_toString = (String.class.equals(type));
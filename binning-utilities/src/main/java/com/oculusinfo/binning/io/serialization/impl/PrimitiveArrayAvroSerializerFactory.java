@@ -62,6 +62,7 @@ public class PrimitiveArrayAvroSerializerFactory<T>  extends ConfigurableFactory
 
 	@Override
 	protected TileSerializer<List<T>> create () throws ConfigurationException {
-		return new PrimitiveArrayAvroSerializer<>(_entryType, TileSerializerFactory.getCodecFactory(this));
+		return new PrimitiveArrayAvroSerializer<>(_entryType, TileSerializerFactory.getCodecFactory(this),
+		                                          TileSerializerFactory.isCompact(this));
 	}
 }
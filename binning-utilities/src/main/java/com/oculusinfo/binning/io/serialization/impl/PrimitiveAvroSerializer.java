@@ -26,6 +26,7 @@ package com.oculusinfo.binning.io.serialization.impl;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -34,7 +35,15 @@ import java.util.Set;
 import org.apache.avro.Schema;
 import org.apache.avro.file.CodecFactory;
 import org.apache.avro.generic.GenericRecord;
-
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.Encoder;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseDoubleTileData;
+import com.oculusinfo.binning.impl.DenseIntTileData;
+import com.oculusinfo.binning.impl.DenseLongTileData;
+import com.oculusinfo.binning.impl.DenseTileData;
 import com.oculusinfo.binning.io.serialization.GenericAvroSerializer;
 import com.oculusinfo.binning.util.TypeDescriptor;
 
@@ -110,7 +119,11 @@ public class PrimitiveAvroSerializer<T> extends GenericAvroSerializer<T> {
 	private boolean                     _toString;
 
 	public PrimitiveAvroSerializer (Class<? extends T> type, CodecFactory compressionCodec) {
-		super(compressionCodec, getPrimitiveTypeDescriptor(type));
+		this(type, compressionCodec, false);
+	}
+
+	public PrimitiveAvroSerializer (Class<? extends T> type, CodecFactory compressionCodec, boolean compact) {
+		super(compressionCodec, getPrimitiveTypeDescriptor(type), compact);
 
 		_type = type;
 		_toString = (String.class.equals(type));
@@ -153,4 +166,86 @@ public class PrimitiveAvroSerializer<T> extends GenericAvroSerializer<T> {
 		if (null == value) throw new IOException("Null value for bin");
 		bin.put("value", value);
 	}
+
+	// Compact tiles read and write primitive values directly, rather than
+	// through single-field records
+	@SuppressWarnings("unchecked")
+	@Override
+	protected T readValue (Decoder decoder) throws IOException {
+		if (Double.class.equals(_type)) return (T) Double.valueOf(decoder.readDouble());
+		if (Integer.class.equals(_type)) return (T) Integer.valueOf(decoder.readInt());
+		if (Long.class.equals(_type)) return (T) Long.valueOf(decoder.readLong());
+		if (Float.class.equals(_type)) return (T) Float.valueOf(decoder.readFloat());
+		if (Boolean.class.equals(_type)) return (T) Boolean.valueOf(decoder.readBoolean());
+		if (ByteBuffer.class.equals(_type)) return (T) decoder.readBytes(null);
+		if (_toString) return (T) decoder.readString(null).toString();
+		return super.readValue(decoder);
+	}
+
+	@Override
+	protected void writeValue (Encoder encoder, T value) throws IOException {
+		if (null == value) throw new IOException("Null value for bin");
+		if (Double.class.equals(_type)) encoder.writeDouble((Double) value);
+		else if (Integer.class.equals(_type)) encoder.writeInt((Integer) value);
+		else if (Long.class.equals(_type)) encoder.writeLong((Long) value);
+		else if (Float.class.equals(_type)) encoder.writeFloat((Float) value);
+		else if (Boolean.class.equals(_type)) encoder.writeBoolean((Boolean) value);
+		else if (ByteBuffer.class.equals(_type)) encoder.writeBytes((ByteBuffer) value);
+		else if (_toString) encoder.writeString((String) value);
+		else super.writeValue(encoder, value);
+	}
+
+	// Numeric dense tiles are read straight into primitive arrays
+	@SuppressWarnings("unchecked")
+	@Override
+	protected TileData<T> readDenseBins (TileIndex index, Decoder decoder) throws IOException {
+		boolean isDouble = Double.class.equals(_type);
+		boolean isInt = Integer.class.equals(_type);
+		boolean isLong = Long.class.equals(_type);
+		if (!isDouble && !isInt && !isLong)
+			return super.readDenseBins(index, decoder);
+
+		int size = index.getXBins() * index.getYBins();
+		double[] doubles = isDouble ? new double[size] : null;
+		int[] ints = isInt ? new int[size] : null;
+		long[] longs = isLong ? new long[size] : null;
+		int read = 0;
+		for (long n = decoder.readArrayStart(); n > 0; n = decoder.arrayNext()) {
+			for (long i = 0; i < n; ++i) {
+				if (isDouble) {
+					double value = decoder.readDouble();
+					if (read < size) doubles[read] = value;
+				} else if (isInt) {
+					int value = decoder.readInt();
+					if (read < size) ints[read] = value;
+				} else {
+					long value = decoder.readLong();
+					if (read < size) longs[read] = value;
+				}
+				++read;
+			}
+		}
+		T defaultValue = readOptionalValue(decoder);
+		if (null == defaultValue) {
+			// Primitive tiles need a default; fall back on a generic tile
+			TileData<T> tile = new DenseTileData<T>(index, (T) null);
+			for (int i = 0; i < Math.min(read, size); ++i) {
+				T value = (T) (isDouble ? (Object) doubles[i] : isInt ? (Object) ints[i] : (Object) longs[i]);
+				tile.setBin(i % index.getXBins(), i / index.getXBins(), value);
+			}
+			return tile;
+		}
+
+		// Bins not written take the default value
+		if (isDouble) {
+			Arrays.fill(doubles, Math.min(read, size), size, (Double) defaultValue);
+			return (TileData<T>) new DenseDoubleTileData(index, (Double) defaultValue, doubles);
+		} else if (isInt) {
+			Arrays.fill(ints, Math.min(read, size), size, (Integer) defaultValue);
+			return (TileData<T>) new DenseIntTileData(index, (Integer) defaultValue, ints);
+		} else {
+			Arrays.fill(longs, Math.min(read, size), size, (Long) defaultValue);
+			return (TileData<T>) new DenseLongTileData(index, (Long) defaultValue, longs);
+		}
+	}
 }
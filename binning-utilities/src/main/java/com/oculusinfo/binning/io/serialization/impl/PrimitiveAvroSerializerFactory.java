@@ -67,6 +67,7 @@ public class PrimitiveAvroSerializerFactory<T> extends ConfigurableFactory<TileS
 
 	@Override
 	protected TileSerializer<T> create () throws ConfigurationException {
-		return new PrimitiveAvroSerializer<>(_type, TileSerializerFactory.getCodecFactory(this));
+		return new PrimitiveAvroSerializer<>(_type, TileSerializerFactory.getCodecFactory(this),
+		                                     TileSerializerFactory.isCompact(this));
 	}
 }
@@ -363,6 +363,40 @@ public class PyramidMetaData {
 		JsonUtilities.overlayInPlace(metaInfo, JsonUtilities.expandKeysInPlace(metadata));
 	}
 
+	/**
+	 * Get the avro tile schemas recorded for the tile pyramid described by this
+	 * metadata object, keyed by their fingerprints (see
+	 * {@link com.oculusinfo.binning.io.serialization.AvroSchemaRegistry}).
+	 * Compact avro tiles identify their schema only by that fingerprint.
+	 */
+	public Map<Long, String> getTileSchemas () {
+		Map<Long, String> schemas = new HashMap<>();
+		JSONObject schemaInfo = _metaData.optJSONObject("tileschemas");
+		if (null != schemaInfo) {
+			String[] fingerprints = JSONObject.getNames(schemaInfo);
+			if (null != fingerprints) {
+				for (String fingerprint: fingerprints) {
+					try {
+						schemas.put(Long.parseLong(fingerprint), schemaInfo.getString(fingerprint));
+					} catch (NumberFormatException|JSONException e) {
+						LOGGER.log(Level.WARNING, "Bad tile schema "+fingerprint+" in tile pyramid", e);
+					}
+				}
+			}
+		}
+		return schemas;
+	}
+
+	/**
+	 * Record an avro tile schema, under its fingerprint, for the tile pyramid
+	 * described by this metadata object.
+	 */
+	public void addTileSchema (long fingerprint, String schema) throws JSONException {
+		if (!_metaData.has("tileschemas"))
+			_metaData.put("tileschemas", new JSONObject());
+		_metaData.getJSONObject("tileschemas").put(Long.toString(fingerprint), schema);
+	}
+
 	public Map<String, Object> getAllCustomMetaData () {
 		Object metaInfo = _metaData.opt("meta");
 		if (null == metaInfo)
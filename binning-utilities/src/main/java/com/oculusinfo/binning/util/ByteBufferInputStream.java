@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+
+/**
+ * An input stream that reads directly from a byte buffer, without copying it.
+ * Reading does not change the position of the buffer passed in.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private ByteBuffer _buffer;
+
+	public ByteBufferInputStream (ByteBuffer buffer) {
+		_buffer = buffer.duplicate();
+	}
+
+	/**
+	 * Get the (remaining) contents of this stream as a buffer, so consumers
+	 * that can use buffers directly don't need to go through the stream.
+	 */
+	public ByteBuffer getBuffer () {
+		return _buffer.duplicate();
+	}
+
+	@Override
+	public int read () {
+		if (!_buffer.hasRemaining()) return -1;
+		return _buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read (byte[] b, int off, int len) {
+		if (0 == len) return 0;
+		if (!_buffer.hasRemaining()) return -1;
+		int n = Math.min(len, _buffer.remaining());
+		_buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip (long n) {
+		if (n <= 0) return 0;
+		int skipped = (int) Math.min(n, _buffer.remaining());
+		_buffer.position(_buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available () {
+		return _buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported () {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark (int readLimit) {
+		_buffer.mark();
+	}
+
+	@Override
+	public synchronized void reset () throws IOException {
+		try {
+			_buffer.reset();
+		} catch (InvalidMarkException e) {
+			throw new IOException("Stream reset without a mark", e);
+		}
+	}
+}
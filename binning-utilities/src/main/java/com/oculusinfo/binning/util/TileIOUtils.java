@@ -34,6 +34,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Utility class for reading tile data
@@ -98,4 +101,44 @@ public class TileIOUtils {
 
 		return data;
 	}
+
+	/**
+	 * Fetch a set of tiles from a single tile set, such as all the tiles in a
+	 * viewport, with one read rather than one read per tile.
+	 *
+	 * @param indices The TileIndices of the tiles to fetch
+	 * @param dataId The id of the tile set
+	 * @param serializer The TileSerializer for tile source
+	 * @param pyramidIO The PyramidIO used to fetch the tiles
+	 * @param coarseness The coarseness/resolution of the fetched bins
+	 * @param tileProperties Additional tile properties used to read the tiles
+	 *
+	 * @return A map from requested TileIndex to the tile read for it. Tiles
+	 *         that could not be found are absent from the map.
+	 */
+	public static <T> Map<TileIndex, TileData<T>> tileDataForIndices(List<TileIndex> indices, String dataId, TileSerializer<T> serializer, PyramidIO pyramidIO, int coarseness, JSONObject tileProperties) throws IOException {
+		Map<TileIndex, TileData<T>> results = new HashMap<>();
+		if ( coarseness > 1 ) {
+			// Coarse tiles may each come from a different level, so have to be searched for separately
+			for ( TileIndex index: indices ) {
+				TileData<T> data = tileDataForIndex( index, dataId, serializer, pyramidIO, coarseness, tileProperties );
+				if ( null != data ) {
+					results.put( index, data );
+				}
+			}
+		} else {
+			// Tiles read may not have the same bin counts as the indices requested, so match on level, x, and y only
+			Map<TileIndex, TileIndex> requested = new HashMap<>();
+			for ( TileIndex index: indices ) {
+				requested.put( new TileIndex( index.getLevel(), index.getX(), index.getY() ), index );
+			}
+			for ( TileData<T> data: pyramidIO.readTiles( dataId, serializer, indices, tileProperties ) ) {
+				if ( null == data ) continue;
+				TileIndex tile = data.getDefinition();
+				TileIndex index = requested.get( new TileIndex( tile.getLevel(), tile.getX(), tile.getY() ) );
+				results.put( null == index ? tile : index, data );
+			}
+		}
+		return results;
+	}
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning;
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.avro.file.CodecFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.impl.AbstractDenseNumericTileData;
+import com.oculusinfo.binning.impl.DenseDoubleTileData;
+import com.oculusinfo.binning.impl.DenseIntTileData;
+import com.oculusinfo.binning.impl.DenseLongTileData;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.KryoSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+import com.oculusinfo.binning.util.TypeDescriptor;
+
+
+
+public class DenseNumericTileDataTests {
+	@Test
+	public void testDefaultValues () {
+		DenseDoubleTileData doubleTile = new DenseDoubleTileData(new TileIndex(0, 0, 0, 4, 4), 1.5);
+		DenseLongTileData longTile = new DenseLongTileData(new TileIndex(0, 0, 0, 4, 4), 3L);
+		DenseIntTileData intTile = new DenseIntTileData(new TileIndex(0, 0, 0, 4, 4), 0);
+		for (int x = 0; x < 4; ++x) {
+			for (int y = 0; y < 4; ++y) {
+				Assert.assertEquals(1.5, doubleTile.getDouble(x, y), 0.0);
+				Assert.assertEquals(1.5, doubleTile.getBin(x, y), 0.0);
+				Assert.assertEquals(3L, longTile.getLong(x, y));
+				Assert.assertEquals(3L, longTile.getBin(x, y).longValue());
+				Assert.assertEquals(0, intTile.getInt(x, y));
+				Assert.assertEquals(0.0, intTile.getDouble(x, y), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testSetAndGet () {
+		DenseDoubleTileData tile = new DenseDoubleTileData(new TileIndex(0, 0, 0, 4, 4), 0.0);
+		tile.setDouble(1, 2, 3.5);
+		tile.setBin(2, 1, 4.5);
+		Assert.assertEquals(3.5, tile.getBin(1, 2), 0.0);
+		Assert.assertEquals(4.5, tile.getDouble(2, 1), 0.0);
+		Assert.assertEquals(3.5, tile.getDoubleData()[1 + 2 * 4], 0.0);
+
+		// Nulls reset a bin to the default value
+		tile.setBin(1, 2, null);
+		Assert.assertEquals(0.0, tile.getDouble(1, 2), 0.0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testOutOfBounds () {
+		DenseIntTileData tile = new DenseIntTileData(new TileIndex(0, 0, 0, 4, 4), 0);
+		tile.getInt(4, 0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testWrongDataLength () {
+		new DenseLongTileData(new TileIndex(0, 0, 0, 4, 4), 0L, new long[15]);
+	}
+
+	@Test
+	public void testCreateDenseTile () {
+		TileIndex index = new TileIndex(0, 0, 0, 4, 4);
+		Assert.assertTrue(DenseTileData.createDenseTile(index, 0.0) instanceof DenseDoubleTileData);
+		Assert.assertTrue(DenseTileData.createDenseTile(index, 0L) instanceof DenseLongTileData);
+		Assert.assertTrue(DenseTileData.createDenseTile(index, 0) instanceof DenseIntTileData);
+		Assert.assertFalse(DenseTileData.createDenseTile(index, 0.0f) instanceof AbstractDenseNumericTileData);
+		Assert.assertFalse(DenseTileData.createDenseTile(index, (Double) null) instanceof AbstractDenseNumericTileData);
+	}
+
+	@Test
+	public void testListView () {
+		DenseLongTileData tile = new DenseLongTileData(new TileIndex(0, 0, 0, 2, 2), 0L, new long[] {1L, 2L, 3L, 4L});
+		List<Long> data = DenseTileData.getData(tile);
+		Assert.assertEquals(Arrays.asList(1L, 2L, 3L, 4L), data);
+		Assert.assertEquals(3L, tile.getBin(0, 1).longValue());
+	}
+
+	private <T> TileData<T> roundTrip (TileSerializer<T> serializer, TileData<T> input) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		serializer.serialize(input, baos);
+		baos.flush();
+		baos.close();
+
+		ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+		return serializer.deserialize(input.getDefinition(), bais);
+	}
+
+	private <T> void assertTilesEqual (TileData<T> expected, TileData<T> actual) {
+		TileIndex index = expected.getDefinition();
+		Assert.assertEquals(index, actual.getDefinition());
+		Assert.assertEquals(expected.getDefaultValue(), actual.getDefaultValue());
+		for (int x = 0; x < index.getXBins(); ++x) {
+			for (int y = 0; y < index.getYBins(); ++y) {
+				Assert.assertEquals(expected.getBin(x, y), actual.getBin(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void testAvroRoundTrip () throws Exception {
+		TileIndex index = new TileIndex(3, 2, 1, 4, 4);
+		DenseDoubleTileData input = new DenseDoubleTileData(index, 0.0);
+		input.setDouble(0, 0, 1.25);
+		input.setDouble(3, 2, -7.5);
+		input.setMetaData("a", "abc");
+
+		TileData<Double> output = roundTrip(new PrimitiveAvroSerializer<>(Double.class, CodecFactory.nullCodec()), input);
+		Assert.assertTrue(output instanceof DenseDoubleTileData);
+		assertTilesEqual(input, output);
+		Assert.assertEquals("abc", output.getMetaData("a"));
+	}
+
+	@Test
+	public void testAvroReadsBoxedTilesAsPrimitive () throws Exception {
+		TileIndex index = new TileIndex(3, 2, 1, 4, 4);
+		TileData<Long> input = new DenseTileData<>(index, 0L);
+		input.setBin(2, 2, 42L);
+
+		TileData<Long> output = roundTrip(new PrimitiveAvroSerializer<>(Long.class, CodecFactory.nullCodec()), input);
+		Assert.assertTrue(output instanceof DenseLongTileData);
+		assertTilesEqual(input, output);
+	}
+
+	@Test
+	public void testKryoRoundTrip () throws Exception {
+		TileIndex index = new TileIndex(3, 2, 1, 4, 4);
+		DenseIntTileData input = new DenseIntTileData(index, -1);
+		input.setInt(1, 1, 17);
+		input.setInt(2, 3, 23);
+
+		TileData<Integer> output = roundTrip(new KryoSerializer<Integer>(new TypeDescriptor(Integer.class)), input);
+		Assert.assertTrue(output instanceof DenseIntTileData);
+		assertTilesEqual(input, output);
+	}
+}
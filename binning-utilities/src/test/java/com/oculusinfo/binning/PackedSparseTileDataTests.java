@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning;
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+
+import org.apache.avro.file.CodecFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.impl.PackedSparseTileData;
+import com.oculusinfo.binning.impl.SparseTileData;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.KryoSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+import com.oculusinfo.binning.util.TypeDescriptor;
+import com.oculusinfo.factory.util.Pair;
+
+
+
+public class PackedSparseTileDataTests {
+	private PackedSparseTileData<Integer> createTile () {
+		PackedSparseTileData<Integer> tile = new PackedSparseTileData<>(new TileIndex(0, 0, 0), -1);
+		tile.setBin(20, 2, 12);
+		tile.setBin(10, 1, 3);
+		tile.setBin(10, 5, 2);
+		tile.setBin(120, 25, -2);
+		tile.setBin(10, 4, 1);
+		tile.setBin(120, 10, 10);
+		tile.setBin(120, 9, 11);
+		return tile;
+	}
+
+	@Test
+	public void testGetAndSet () {
+		PackedSparseTileData<Integer> tile = createTile();
+		Assert.assertEquals(12, tile.getBin(20, 2).intValue());
+		Assert.assertEquals(-2, tile.getBin(120, 25).intValue());
+		Assert.assertEquals(-1, tile.getBin(0, 0).intValue());
+		Assert.assertEquals(7, tile.getEntryCount());
+
+		// Overwrite existing bins, both before and after the tile has been sorted
+		tile.setBin(10, 4, 100);
+		tile.setBin(0, 0, 5);
+		tile.setBin(0, 0, 6);
+		Assert.assertEquals(100, tile.getBin(10, 4).intValue());
+		Assert.assertEquals(6, tile.getBin(0, 0).intValue());
+		Assert.assertEquals(8, tile.getEntryCount());
+	}
+
+	@Test
+	public void testIndexedIteration () {
+		PackedSparseTileData<Integer> tile = createTile();
+		int[] xs = {10, 20, 10, 10, 120, 120, 120};
+		int[] ys = { 1,  2,  4,  5,   9,  10,  25};
+		int[] values = {3, 12, 1, 2, 11, 10, -2};
+		Assert.assertEquals(xs.length, tile.getEntryCount());
+		for (int n = 0; n < xs.length; ++n) {
+			Assert.assertEquals(xs[n], tile.getEntryX(n));
+			Assert.assertEquals(ys[n], tile.getEntryY(n));
+			Assert.assertEquals(values[n], tile.getEntryValue(n).intValue());
+		}
+	}
+
+	@Test
+	public void testIterator () {
+		Iterator<Pair<BinIndex, Integer>> i = createTile().getData();
+		Assert.assertEquals(new Pair<BinIndex, Integer>(new BinIndex(10, 1), 3), i.next());
+		Assert.assertEquals(new Pair<BinIndex, Integer>(new BinIndex(20, 2), 12), i.next());
+		Assert.assertEquals(new Pair<BinIndex, Integer>(new BinIndex(10, 4), 1), i.next());
+		Assert.assertEquals(new Pair<BinIndex, Integer>(new BinIndex(10, 5), 2), i.next());
+		Assert.assertEquals(new Pair<BinIndex, Integer>(new BinIndex(120, 9), 11), i.next());
+		Assert.assertEquals(new Pair<BinIndex, Integer>(new BinIndex(120, 10), 10), i.next());
+		Assert.assertEquals(new Pair<BinIndex, Integer>(new BinIndex(120, 25), -2), i.next());
+		Assert.assertFalse(i.hasNext());
+	}
+
+	@Test
+	public void testGrowth () {
+		PackedSparseTileData<Integer> tile = new PackedSparseTileData<>(new TileIndex(0, 0, 0, 64, 64), 0, 1);
+		for (int x = 63; x >= 0; --x) {
+			for (int y = 0; y < 64; y += 2) {
+				tile.setBin(x, y, x * y);
+			}
+		}
+		Assert.assertEquals(64 * 32, tile.getEntryCount());
+		for (int x = 0; x < 64; ++x) {
+			for (int y = 0; y < 64; ++y) {
+				Assert.assertEquals((0 == y % 2) ? x * y : 0, tile.getBin(x, y).intValue());
+			}
+		}
+	}
+
+	// Make sure compacted copies leave the original alone, and that compacted
+	// tiles are their own compacted version
+	@Test
+	public void testGetCompacted () {
+		PackedSparseTileData<Integer> tile = createTile();
+		tile.setBin(10, 4, 100);
+		PackedSparseTileData<Integer> copy = tile.getCompacted();
+		Assert.assertNotSame(tile, copy);
+		Assert.assertSame(copy, copy.getCompacted());
+		Assert.assertEquals(7, copy.getEntryCount());
+		Assert.assertEquals(100, copy.getBin(10, 4).intValue());
+
+		// Writes to the original after reading it must still show up
+		tile.setBin(0, 0, 5);
+		Assert.assertEquals(8, tile.getEntryCount());
+		Assert.assertEquals(7, copy.getEntryCount());
+
+		tile.compact();
+		Assert.assertSame(tile, tile.getCompacted());
+		Assert.assertEquals(5, tile.getBin(0, 0).intValue());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testOutOfBounds () {
+		createTile().setBin(256, 0, 1);
+	}
+
+	private void assertTilesEqual (TileData<Integer> expected, TileData<Integer> actual) {
+		TileIndex index = expected.getDefinition();
+		Assert.assertEquals(index, actual.getDefinition());
+		Assert.assertEquals(expected.getDefaultValue(), actual.getDefaultValue());
+		for (int x = 0; x < index.getXBins(); ++x) {
+			for (int y = 0; y < index.getYBins(); ++y) {
+				Assert.assertEquals(expected.getBin(x, y), actual.getBin(x, y));
+			}
+		}
+	}
+
+	private TileData<Integer> roundTrip (TileSerializer<Integer> serializer, TileData<Integer> input) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		serializer.serialize(input, baos);
+		baos.flush();
+		baos.close();
+
+		ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+		return serializer.deserialize(input.getDefinition(), bais);
+	}
+
+	@Test
+	public void testAvroRoundTrip () throws Exception {
+		PackedSparseTileData<Integer> input = createTile();
+		TileData<Integer> output = roundTrip(new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec()), input);
+		Assert.assertTrue(output instanceof PackedSparseTileData);
+		assertTilesEqual(input, output);
+	}
+
+	@Test
+	public void testAvroReadsMapBasedTiles () throws Exception {
+		SparseTileData<Integer> input = new SparseTileData<>(new TileIndex(0, 0, 0, 8, 8), 0);
+		input.setBin(3, 4, 5);
+		input.setBin(1, 7, 9);
+		TileData<Integer> output = roundTrip(new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec()), input);
+		Assert.assertTrue(output instanceof PackedSparseTileData);
+		assertTilesEqual(input, output);
+	}
+
+	@Test
+	public void testKryoRoundTrip () throws Exception {
+		PackedSparseTileData<Integer> input = createTile();
+		TileData<Integer> output = roundTrip(new KryoSerializer<Integer>(new TypeDescriptor(Integer.class)), input);
+		Assert.assertTrue(output instanceof PackedSparseTileData);
+		assertTilesEqual(input, output);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.TilePyramid;
+import com.oculusinfo.binning.impl.AOITilePyramid;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test live tiling from Elasticsearch against an in-process node.
+ */
+public class ElasticsearchPyramidIOTest {
+	private static final String INDEX = "pyramid-test";
+	private static final int POINTS = 2000;
+
+	private static File _dataDir;
+	private static Node _node;
+	private static Client _client;
+	private static TilePyramid _pyramid;
+
+
+
+	@BeforeClass
+	public static void setup () throws Exception {
+		_dataDir = Files.createTempDirectory("es-pyramid-test").toFile();
+		_node = NodeBuilder.nodeBuilder()
+			.local(true)
+			.clusterName("es-pyramid-test-"+System.nanoTime())
+			.settings(ImmutableSettings.settingsBuilder()
+			          .put("path.data", _dataDir.getAbsolutePath())
+			          .put("http.enabled", false)
+			          .put("index.number_of_shards", 1)
+			          .put("index.number_of_replicas", 0))
+			.node();
+		_client = _node.client();
+		_client.admin().indices().prepareCreate(INDEX)
+			.addMapping("datum", "x", "type=double", "y", "type=double", "kind", "type=string,index=not_analyzed")
+			.execute().actionGet();
+		_client.admin().cluster().prepareHealth(INDEX).setWaitForYellowStatus().execute().actionGet();
+
+		// Points are kept off bin edges, so the tile they fall in is unambiguous
+		Random random = new Random(15485863);
+		for (int i=0; i<POINTS; ++i) {
+			addPoint(random.nextInt(1024) + 0.5, random.nextInt(1024) + 0.5, 0 == i % 2 ? "even" : "odd");
+		}
+		_client.admin().indices().prepareRefresh(INDEX).execute().actionGet();
+
+		_pyramid = new AOITilePyramid(0.0, 0.0, 1024.0, 1024.0);
+	}
+
+	@AfterClass
+	public static void teardown () throws Exception {
+		_client.close();
+		_node.close();
+		deleteRecursively(_dataDir);
+	}
+
+	private static void addPoint (double x, double y, String kind) {
+		_client.prepareIndex(INDEX, "datum")
+			.setSource("x", x, "y", y, "kind", kind)
+			.execute().actionGet();
+	}
+
+	private static void deleteRecursively (File file) {
+		File[] children = file.listFiles();
+		if (null != children) {
+			for (File child: children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private ElasticsearchPyramidIO createPyramidIO (int cacheSize) {
+		return new ElasticsearchPyramidIO(_client, INDEX, "x", "y", _pyramid, 1, cacheSize);
+	}
+
+	private static List<TileIndex> getLevel (int level) {
+		List<TileIndex> tiles = new ArrayList<>();
+		for (int x=0; x < 1 << level; ++x) {
+			for (int y=0; y < 1 << level; ++y) {
+				tiles.add(new TileIndex(level, x, y));
+			}
+		}
+		return tiles;
+	}
+
+	private static long getTotal (List<TileData<Long>> tiles) {
+		long total = 0;
+		for (TileData<Long> tile: tiles) {
+			for (int x=0; x<tile.getDefinition().getXBins(); ++x) {
+				for (int y=0; y<tile.getDefinition().getYBins(); ++y) {
+					total += ((Number) tile.getBin(x, y)).longValue();
+				}
+			}
+		}
+		return total;
+	}
+
+
+
+	// Make sure tiles derived from a query of their parent match those
+	// queried on their own
+	@Test
+	public void testDerivedChildren () throws Exception {
+		ElasticsearchPyramidIO separateIO = createPyramidIO(0);
+		ElasticsearchPyramidIO derivedIO = createPyramidIO(0);
+
+		List<TileIndex> tiles = getLevel(2);
+		List<TileData<Long>> derived = derivedIO.readTiles(INDEX, null, tiles);
+		Assert.assertEquals(tiles.size(), derived.size());
+		Assert.assertEquals(POINTS, getTotal(derived));
+
+		for (int i=0; i<tiles.size(); ++i) {
+			List<TileData<Long>> separate = separateIO.readTiles(INDEX, null, Collections.singletonList(tiles.get(i)));
+			Assert.assertEquals(1, separate.size());
+			TileData<Long> expected = separate.get(0);
+			TileData<Long> actual = derived.get(i);
+			Assert.assertEquals(expected.getDefinition(), actual.getDefinition());
+			for (int x=0; x<expected.getDefinition().getXBins(); ++x) {
+				for (int y=0; y<expected.getDefinition().getYBins(); ++y) {
+					Assert.assertEquals(((Number) expected.getBin(x, y)).longValue(),
+					                    ((Number) actual.getBin(x, y)).longValue());
+				}
+			}
+		}
+	}
+
+	// Make sure repeated reads are served from the cache, until new data is
+	// visible in the index
+	@Test
+	public void testCaching () throws Exception {
+		ElasticsearchPyramidIO pyramidIO = createPyramidIO(100);
+		// Check for new data on every read
+		pyramidIO.setRefreshCheckInterval(0L);
+		List<TileIndex> tiles = getLevel(1);
+
+		long total = getTotal(pyramidIO.<Long>readTiles(INDEX, null, tiles));
+		Assert.assertEquals(0, pyramidIO.getCacheStats().hitCount());
+		Assert.assertEquals(4, pyramidIO.getCacheStats().missCount());
+
+		Assert.assertEquals(total, getTotal(pyramidIO.<Long>readTiles(INDEX, null, tiles)));
+		Assert.assertEquals(4, pyramidIO.getCacheStats().hitCount());
+
+		addPoint(100.5, 100.5, "even");
+		_client.admin().indices().prepareRefresh(INDEX).execute().actionGet();
+
+		Assert.assertEquals(total + 1, getTotal(pyramidIO.<Long>readTiles(INDEX, null, tiles)));
+		Assert.assertEquals(4, pyramidIO.getCacheStats().hitCount());
+		Assert.assertEquals(8, pyramidIO.getCacheStats().missCount());
+	}
+
+	// Make sure results with different filters are cached separately
+	@Test
+	public void testFilteredCaching () throws Exception {
+		ElasticsearchPyramidIO pyramidIO = createPyramidIO(100);
+		List<TileIndex> tiles = Collections.singletonList(new TileIndex(0, 0, 0));
+		JSONObject evenOnly = new JSONObject("{\"kind\": {\"type\": \"terms\", \"path\": \"kind\", \"terms\": {\"0\": \"even\"}}}");
+
+		long all = getTotal(pyramidIO.<Long>readTiles(INDEX, null, tiles, null));
+		long even = getTotal(pyramidIO.<Long>readTiles(INDEX, null, tiles, evenOnly));
+		Assert.assertTrue(even > 0);
+		Assert.assertTrue(even < all);
+		Assert.assertEquals(0, pyramidIO.getCacheStats().hitCount());
+
+		Assert.assertEquals(even, getTotal(pyramidIO.<Long>readTiles(INDEX, null, tiles, evenOnly)));
+		Assert.assertEquals(all, getTotal(pyramidIO.<Long>readTiles(INDEX, null, tiles, null)));
+		Assert.assertEquals(2, pyramidIO.getCacheStats().hitCount());
+	}
+}
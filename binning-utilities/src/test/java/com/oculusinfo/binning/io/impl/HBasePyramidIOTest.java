@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+import org.apache.avro.file.CodecFactory;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HBasePyramidIOTest {
+	private static TileData<Integer> createTile (int level, int x, int y, int value) {
+		TileData<Integer> tile = new DenseTileData<Integer>(new TileIndex(level, x, y, 1, 1), 0);
+		tile.setBin(0, 0, value);
+		return tile;
+	}
+
+	// Needs a live HBase cluster
+	@Ignore
+	@Test
+	public void testBulkReadAcrossPyramids () throws Exception {
+		HBasePyramidIO io = new HBasePyramidIO("hadoop-s1", "2181", "hadoop-s1:60000", 4);
+		TileSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+		String[] tables = {"hbpioBulkTest1", "hbpioBulkTest2"};
+		try {
+			List<TileIndex> indices = new ArrayList<>();
+			for (int t=0; t<tables.length; ++t) {
+				List<TileData<Integer>> tiles = new ArrayList<>();
+				for (int x=0; x<4; ++x) {
+					for (int y=0; y<4; ++y) {
+						tiles.add(createTile(2, x, y, t*100 + x*10 + y));
+						if (0 == t) indices.add(new TileIndex(2, x, y, 1, 1));
+					}
+				}
+				io.initializeForWrite(tables[t]);
+				io.writeTiles(tables[t], serializer, tiles);
+			}
+			// One tile that isn't there
+			indices.add(new TileIndex(3, 0, 0, 1, 1));
+
+			final Map<String, Integer> values = new ConcurrentHashMap<>();
+			final List<TileIndex> missing = new ArrayList<>();
+			HBasePyramidIO.TileReadListener<Integer> listener = new HBasePyramidIO.TileReadListener<Integer>() {
+				@Override
+				public void tileRead (String pyramidId, TileIndex index, TileData<Integer> tile) {
+					if (null == tile) {
+						synchronized (missing) {
+							missing.add(index);
+						}
+					} else {
+						values.put(pyramidId+":"+index, tile.getBin(0, 0));
+					}
+				}
+
+				@Override
+				public void tileFailed (String pyramidId, TileIndex index, Exception cause) {
+					Assert.fail("Failed to read "+index+" from "+pyramidId+": "+cause.getMessage());
+				}
+			};
+
+			List<HBasePyramidIO.TileReadRequest<Integer>> requests = new ArrayList<>();
+			for (String table: tables) {
+				requests.add(new HBasePyramidIO.TileReadRequest<>(table, serializer, indices, listener));
+			}
+			io.readTiles(requests);
+
+			Assert.assertEquals(32, values.size());
+			Assert.assertEquals(2, missing.size());
+			for (int t=0; t<tables.length; ++t) {
+				for (int x=0; x<4; ++x) {
+					for (int y=0; y<4; ++y) {
+						Assert.assertEquals(t*100 + x*10 + y, values.get(tables[t]+":"+new TileIndex(2, x, y, 1, 1)).intValue());
+					}
+				}
+			}
+
+			// The standard read should give the same tiles, in the order requested
+			List<TileData<Integer>> tiles = io.readTiles(tables[1], serializer, indices);
+			Assert.assertEquals(16, tiles.size());
+			for (int i=0; i<16; ++i) {
+				Assert.assertEquals(indices.get(i), tiles.get(i).getDefinition());
+				Assert.assertEquals(values.get(tables[1]+":"+indices.get(i)), tiles.get(i).getBin(0, 0));
+			}
+		} finally {
+			for (String table: tables) {
+				io.dropTable(table);
+			}
+			io.close();
+		}
+	}
+
+	// Check the bulk read path against a mocked connection, in which tiles
+	// with even x coordinates live on one region server, and those with odd
+	// x coordinates on another
+	@Test
+	public void testBulkReadGrouping () throws Exception {
+		TileSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+		String[] tables = {"table1", "table2"};
+		final Map<String, byte[]> rows = new HashMap<>();
+		List<TileIndex> indices = new ArrayList<>();
+		for (int t=0; t<tables.length; ++t) {
+			for (int x=0; x<4; ++x) {
+				for (int y=0; y<4; ++y) {
+					TileData<Integer> tile = createTile(2, x, y, t*100 + x*10 + y);
+					ByteArrayOutputStream stream = new ByteArrayOutputStream();
+					serializer.serialize(tile, stream);
+					rows.put(tables[t]+":"+HBasePyramidIO.rowIdFromTileIndex(tile.getDefinition()), stream.toByteArray());
+					if (0 == t) indices.add(tile.getDefinition());
+				}
+			}
+		}
+		// One tile that isn't there
+		indices.add(new TileIndex(3, 0, 0, 1, 1));
+
+		final List<List<String>> multiGets = Collections.synchronizedList(new ArrayList<List<String>>());
+		Connection connection = mock(Connection.class);
+		when(connection.getAdmin()).thenReturn(mock(Admin.class));
+		when(connection.getRegionLocator(any(TableName.class))).thenAnswer(new Answer<RegionLocator>() {
+			@Override
+			public RegionLocator answer (InvocationOnMock invocation) throws Throwable {
+				RegionLocator locator = mock(RegionLocator.class);
+				when(locator.getRegionLocation(any(byte[].class))).thenAnswer(new Answer<HRegionLocation>() {
+					@Override
+					public HRegionLocation answer (InvocationOnMock invocation) throws Throwable {
+						TileIndex index = HBasePyramidIO.tileIndexFromRowId(new String((byte[]) invocation.getArguments()[0]));
+						return new HRegionLocation(null, ServerName.valueOf("server"+(index.getX() % 2), 60020, 1L));
+					}
+				});
+				return locator;
+			}
+		});
+		when(connection.getTable(any(TableName.class))).thenAnswer(new Answer<Table>() {
+			@Override
+			public Table answer (InvocationOnMock invocation) throws Throwable {
+				final String tableName = ((TableName) invocation.getArguments()[0]).getNameAsString();
+				Table table = mock(Table.class);
+				when(table.get(anyListOf(Get.class))).thenAnswer(new Answer<Result[]>() {
+					@Override
+					public Result[] answer (InvocationOnMock invocation) throws Throwable {
+						@SuppressWarnings("unchecked")
+						List<Get> gets = (List<Get>) invocation.getArguments()[0];
+						List<String> rowIds = new ArrayList<>();
+						Result[] results = new Result[gets.size()];
+						for (int i=0; i<gets.size(); ++i) {
+							byte[] row = gets.get(i).getRow();
+							rowIds.add(tableName+":"+new String(row));
+							byte[] data = rows.get(tableName+":"+new String(row));
+							if (null == data) {
+								results[i] = Result.create(new Cell[0]);
+							} else {
+								results[i] = Result.create(new Cell[] {
+									new KeyValue(row, HBasePyramidIO.TILE_COLUMN.getFamily(), HBasePyramidIO.TILE_COLUMN.getQualifier(), data)
+								});
+							}
+						}
+						multiGets.add(rowIds);
+						return results;
+					}
+				});
+				return table;
+			}
+		});
+
+		HBasePyramidIO io = new HBasePyramidIO(connection, 4);
+		try {
+			final Map<String, Integer> values = new ConcurrentHashMap<>();
+			final AtomicInteger missing = new AtomicInteger(0);
+			HBasePyramidIO.TileReadListener<Integer> listener = new HBasePyramidIO.TileReadListener<Integer>() {
+				@Override
+				public void tileRead (String pyramidId, TileIndex index, TileData<Integer> tile) {
+					if (null == tile) {
+						missing.incrementAndGet();
+					} else {
+						values.put(pyramidId+":"+index, tile.getBin(0, 0));
+					}
+				}
+
+				@Override
+				public void tileFailed (String pyramidId, TileIndex index, Exception cause) {
+					Assert.fail("Failed to read "+index+" from "+pyramidId+": "+cause.getMessage());
+				}
+			};
+
+			List<HBasePyramidIO.TileReadRequest<Integer>> requests = new ArrayList<>();
+			for (String table: tables) {
+				requests.add(new HBasePyramidIO.TileReadRequest<>(table, serializer, indices, listener));
+			}
+			io.readTiles(requests);
+
+			// Every tile should have been reported
+			Assert.assertEquals(32, values.size());
+			Assert.assertEquals(2, missing.get());
+			for (int t=0; t<tables.length; ++t) {
+				for (int x=0; x<4; ++x) {
+					for (int y=0; y<4; ++y) {
+						Assert.assertEquals(t*100 + x*10 + y, values.get(tables[t]+":"+new TileIndex(2, x, y, 1, 1)).intValue());
+					}
+				}
+			}
+
+			// ... with one multi-get per table and region server
+			Assert.assertEquals(4, multiGets.size());
+			for (List<String> multiGet: multiGets) {
+				String first = multiGet.get(0);
+				int server = HBasePyramidIO.tileIndexFromRowId(first.substring(first.indexOf(':')+1)).getX() % 2;
+				for (String row: multiGet) {
+					Assert.assertEquals(first.substring(0, first.indexOf(':')), row.substring(0, row.indexOf(':')));
+					Assert.assertEquals(server, HBasePyramidIO.tileIndexFromRowId(row.substring(row.indexOf(':')+1)).getX() % 2);
+				}
+			}
+
+			// The standard read should give the same tiles, in the order requested
+			List<TileData<Integer>> tiles = io.readTiles(tables[1], serializer, indices);
+			Assert.assertEquals(16, tiles.size());
+			for (int i=0; i<16; ++i) {
+				Assert.assertEquals(indices.get(i), tiles.get(i).getDefinition());
+				Assert.assertEquals(values.get(tables[1]+":"+indices.get(i)), tiles.get(i).getBin(0, 0));
+			}
+		} finally {
+			io.close();
+		}
+	}
+
+	// Closing the pyramid IO in the middle of a bulk read should fail the
+	// tiles it can no longer deserialize, rather than leave the reader waiting
+	@Test(timeout=10000)
+	public void testCloseFailsPendingReads () throws Exception {
+		final AtomicReference<HBasePyramidIO> ioRef = new AtomicReference<>();
+		Connection connection = mock(Connection.class);
+		when(connection.getAdmin()).thenReturn(mock(Admin.class));
+		RegionLocator locator = mock(RegionLocator.class);
+		when(locator.getRegionLocation(any(byte[].class))).thenReturn(new HRegionLocation(null, ServerName.valueOf("server", 60020, 1L)));
+		when(connection.getRegionLocator(any(TableName.class))).thenReturn(locator);
+		Table table = mock(Table.class);
+		when(table.get(anyListOf(Get.class))).thenAnswer(new Answer<Result[]>() {
+			@Override
+			public Result[] answer (InvocationOnMock invocation) throws Throwable {
+				ioRef.get().close();
+				List<?> gets = (List<?>) invocation.getArguments()[0];
+				Result[] results = new Result[gets.size()];
+				for (int i=0; i<results.length; ++i) {
+					results[i] = Result.create(new Cell[0]);
+				}
+				return results;
+			}
+		});
+		when(connection.getTable(any(TableName.class))).thenReturn(table);
+
+		HBasePyramidIO io = new HBasePyramidIO(connection, 1);
+		ioRef.set(io);
+		TileSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+		List<TileIndex> indices = new ArrayList<>();
+		for (int x=0; x<4; ++x) {
+			indices.add(new TileIndex(2, x, 0, 1, 1));
+		}
+		final AtomicInteger failed = new AtomicInteger(0);
+		HBasePyramidIO.TileReadListener<Integer> listener = new HBasePyramidIO.TileReadListener<Integer>() {
+			@Override
+			public void tileRead (String pyramidId, TileIndex index, TileData<Integer> tile) {
+				Assert.fail("Read "+index+" after close");
+			}
+
+			@Override
+			public void tileFailed (String pyramidId, TileIndex index, Exception cause) {
+				Assert.assertTrue(cause instanceof IOException);
+				failed.incrementAndGet();
+			}
+		};
+		io.readTiles(Collections.singletonList(new HBasePyramidIO.TileReadRequest<>("table", serializer, indices, listener)));
+		Assert.assertEquals(4, failed.get());
+
+		// ... and later reads should fail straight away
+		try {
+			io.readTiles(Collections.singletonList(new HBasePyramidIO.TileReadRequest<>("table", serializer, indices, listener)));
+			Assert.fail("Read after close");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
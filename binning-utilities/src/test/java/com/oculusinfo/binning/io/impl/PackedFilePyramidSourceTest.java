@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+import com.oculusinfo.binning.util.ByteBufferInputStream;
+
+import org.apache.avro.file.CodecFactory;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class PackedFilePyramidSourceTest {
+	private static String PYRAMID = "test";
+
+	private File _rootDir;
+	private TileSerializer<Integer> _serializer;
+
+	@Before
+	public void setup () throws Exception {
+		_rootDir = Files.createTempDirectory("packedPyramid").toFile();
+		_serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+	}
+
+	@After
+	public void teardown () {
+		try {
+			FileUtils.deleteDirectory(_rootDir);
+		} catch (Exception e) {
+			// swallow exception
+		}
+	}
+
+	private TileData<Integer> createTile (int level, int x, int y) {
+		TileData<Integer> tile = new DenseTileData<>(new TileIndex(level, x, y, 4, 4), 0);
+		for (int bx = 0; bx < 4; ++bx) {
+			for (int by = 0; by < 4; ++by) {
+				tile.setBin(bx, by, level * 1000000 + x * 10000 + y * 100 + bx * 4 + by);
+			}
+		}
+		return tile;
+	}
+
+	private void assertTileMatches (int level, int x, int y, TileData<Integer> tile) {
+		Assert.assertNotNull(tile);
+		Assert.assertEquals(new TileIndex(level, x, y, 4, 4), tile.getDefinition());
+		for (int bx = 0; bx < 4; ++bx) {
+			for (int by = 0; by < 4; ++by) {
+				Assert.assertEquals(level * 1000000 + x * 10000 + y * 100 + bx * 4 + by, tile.getBin(bx, by).intValue());
+			}
+		}
+	}
+
+	@Test
+	public void testMortonCode () {
+		Assert.assertEquals(0L, PackedFilePyramidSource.mortonCode(0, 0));
+		Assert.assertEquals(1L, PackedFilePyramidSource.mortonCode(1, 0));
+		Assert.assertEquals(2L, PackedFilePyramidSource.mortonCode(0, 1));
+		Assert.assertEquals(3L, PackedFilePyramidSource.mortonCode(1, 1));
+		Assert.assertEquals(12L, PackedFilePyramidSource.mortonCode(2, 2));
+		Assert.assertEquals(0x2aaaaaaaaaaaaaaaL, PackedFilePyramidSource.mortonCode(0, Integer.MAX_VALUE));
+		Assert.assertEquals(0x1555555555555555L, PackedFilePyramidSource.mortonCode(Integer.MAX_VALUE, 0));
+	}
+
+	@Test
+	public void testRoundTrip () throws Exception {
+		PyramidIO io = new FileBasedPyramidIO(new PackedFilePyramidSource(_rootDir.getPath()));
+		List<TileData<Integer>> tiles = new ArrayList<>();
+		for (int level = 0; level < 4; ++level) {
+			int n = 1 << level;
+			for (int x = 0; x < n; ++x) {
+				for (int y = 0; y < n; ++y) {
+					tiles.add(createTile(level, x, y));
+				}
+			}
+		}
+		io.initializeForWrite(PYRAMID);
+		io.writeTiles(PYRAMID, _serializer, tiles);
+		io.writeMetaData(PYRAMID, "{\"name\":\"test\"}");
+
+		// One file per level, rather than one per tile
+		Assert.assertEquals(4, new File(_rootDir, PYRAMID + "/" + PyramidIO.TILES_FOLDERNAME).list().length);
+
+		// Read with a fresh source, so we're reading from the files
+		io = new FileBasedPyramidIO(new PackedFilePyramidSource(_rootDir.getPath()));
+		Assert.assertEquals("{\"name\":\"test\"}", io.readMetaData(PYRAMID));
+		for (int level = 0; level < 4; ++level) {
+			int n = 1 << level;
+			for (int x = 0; x < n; ++x) {
+				for (int y = 0; y < n; ++y) {
+					List<TileData<Integer>> read = io.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(level, x, y, 4, 4)));
+					Assert.assertEquals(1, read.size());
+					assertTileMatches(level, x, y, read.get(0));
+				}
+			}
+		}
+
+		// Missing tiles, both in existing and missing levels
+		Assert.assertTrue(io.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(2, 5, 5, 4, 4))).isEmpty());
+		Assert.assertNull(io.getTileStream(PYRAMID, _serializer, new TileIndex(7, 0, 0, 4, 4)));
+	}
+
+	@Test
+	public void testStreamsAreBufferBacked () throws Exception {
+		PackedFilePyramidSource source = new PackedFilePyramidSource(_rootDir.getPath());
+		source.initializeForWrite(PYRAMID);
+		source.writeTiles(PYRAMID, _serializer, Arrays.asList(createTile(1, 1, 0)));
+
+		InputStream stream = source.getTileStream(PYRAMID, _serializer, new TileIndex(1, 1, 0, 4, 4));
+		Assert.assertTrue(stream instanceof ByteBufferInputStream);
+		assertTileMatches(1, 1, 0, _serializer.deserialize(new TileIndex(1, 1, 0, 4, 4), stream));
+	}
+
+	@Test
+	public void testAppendAndRemove () throws Exception {
+		PackedFilePyramidSource source = new PackedFilePyramidSource(_rootDir.getPath());
+		source.initializeForWrite(PYRAMID);
+		source.writeTiles(PYRAMID, _serializer, Arrays.asList(createTile(2, 0, 0), createTile(2, 3, 3)));
+		// Read once, so the first version of the level is mapped
+		Assert.assertEquals(2, source.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(2, 0, 0, 4, 4),
+		                                                                             new TileIndex(2, 3, 3, 4, 4))).size());
+
+		source.writeTiles(PYRAMID, _serializer, Arrays.asList(createTile(2, 1, 2)));
+		List<TileData<Integer>> read = source.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(2, 0, 0, 4, 4),
+		                                                                                     new TileIndex(2, 1, 2, 4, 4),
+		                                                                                     new TileIndex(2, 3, 3, 4, 4)));
+		Assert.assertEquals(3, read.size());
+		assertTileMatches(2, 0, 0, read.get(0));
+		assertTileMatches(2, 1, 2, read.get(1));
+		assertTileMatches(2, 3, 3, read.get(2));
+
+		source.removeTiles(PYRAMID, Arrays.asList(new TileIndex(2, 0, 0, 4, 4)));
+		read = source.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(2, 0, 0, 4, 4),
+		                                                            new TileIndex(2, 1, 2, 4, 4),
+		                                                            new TileIndex(2, 3, 3, 4, 4)));
+		Assert.assertEquals(2, read.size());
+		assertTileMatches(2, 1, 2, read.get(0));
+		assertTileMatches(2, 3, 3, read.get(1));
+
+		// Removing everything removes the level file
+		source.removeTiles(PYRAMID, Arrays.asList(new TileIndex(2, 1, 2, 4, 4), new TileIndex(2, 3, 3, 4, 4)));
+		Assert.assertEquals(0, new File(_rootDir, PYRAMID + "/" + PyramidIO.TILES_FOLDERNAME).list().length);
+	}
+
+	private List<String> listTilesDir () {
+		return Arrays.asList(new File(_rootDir, PYRAMID + "/" + PyramidIO.TILES_FOLDERNAME).list());
+	}
+
+	@Test
+	public void testIncrementalWritesAddDeltas () throws Exception {
+		PackedFilePyramidSource source = new PackedFilePyramidSource(_rootDir.getPath());
+		source.initializeForWrite(PYRAMID);
+		List<TileData<Integer>> tiles = new ArrayList<>();
+		for (int x = 0; x < 8; ++x) {
+			for (int y = 0; y < 8; ++y) {
+				tiles.add(createTile(3, x, y));
+			}
+		}
+		source.writeTiles(PYRAMID, _serializer, tiles);
+		File levelFile = new File(_rootDir, PYRAMID + "/" + PyramidIO.TILES_FOLDERNAME + "/3.pyr");
+		byte[] levelContents = Files.readAllBytes(levelFile.toPath());
+
+		// Overwrite one tile, then add tiles one at a time
+		TileData<Integer> replacement = new DenseTileData<>(new TileIndex(3, 0, 0, 4, 4), -1);
+		source.writeTiles(PYRAMID, _serializer, Arrays.asList(replacement));
+		for (int x = 8; x < 16; ++x) {
+			source.writeTiles(PYRAMID, _serializer, Arrays.asList(createTile(3, x, 0)));
+		}
+
+		// The level file itself is untouched, and merging keeps the deltas few
+		Assert.assertArrayEquals(levelContents, Files.readAllBytes(levelFile.toPath()));
+		int deltas = 0;
+		for (String name: listTilesDir()) {
+			Assert.assertFalse(name.endsWith(".tmp"));
+			if (name.endsWith("." + PackedFilePyramidSource.DELTA_FILE_EXTENSION)) ++deltas;
+		}
+		Assert.assertTrue(0 < deltas && deltas <= 4);
+
+		// Both the writing source and a fresh one see the latest tiles
+		PackedFilePyramidSource[] readers = {source, new PackedFilePyramidSource(_rootDir.getPath())};
+		for (PackedFilePyramidSource reader: readers) {
+			TileData<Integer> read = reader.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(3, 0, 0, 4, 4))).get(0);
+			Assert.assertEquals(-1, read.getBin(2, 2).intValue());
+			for (int x = 0; x < 16; ++x) {
+				for (int y = 0; y < 8; ++y) {
+					if ((0 == x && 0 == y) || (x >= 8 && y > 0)) continue;
+					List<TileData<Integer>> readTiles = reader.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(3, x, y, 4, 4)));
+					Assert.assertEquals(1, readTiles.size());
+					assertTileMatches(3, x, y, readTiles.get(0));
+				}
+			}
+		}
+
+		// Once the deltas outgrow the level file, they are merged back into it
+		for (int x = 0; x < 8; ++x) {
+			for (int y = 8; y < 16; ++y) {
+				source.writeTiles(PYRAMID, _serializer, Arrays.asList(createTile(3, x, y)));
+			}
+		}
+		Assert.assertFalse(Arrays.equals(levelContents, Files.readAllBytes(levelFile.toPath())));
+		PackedFilePyramidSource reader = new PackedFilePyramidSource(_rootDir.getPath());
+		for (int x = 0; x < 8; ++x) {
+			for (int y = 0; y < 16; ++y) {
+				if (0 == x && 0 == y) continue;
+				assertTileMatches(3, x, y, reader.readTiles(PYRAMID, _serializer, Arrays.asList(new TileIndex(3, x, y, 4, 4))).get(0));
+			}
+		}
+	}
+}
@@ -27,10 +27,13 @@ package com.oculusinfo.binning.io.impl;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.avro.file.CodecFactory;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -40,6 +43,7 @@ import org.junit.Test;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
 import com.oculusinfo.binning.io.serialization.impl.StringIntPairArrayJsonSerializer;
 import com.oculusinfo.factory.util.Pair;
 
@@ -129,6 +133,31 @@ public class SQLitePyramidIOTest {
 		}
 	}
 
+	@Test
+	public void testReadOnly() throws Exception {
+		sqlitePyramidIO.initializeForWrite(PYRAMID_ID);
+		TileIndex tileDef = new TileIndex(0, 0, 0, 1, 1);
+		PrimitiveAvroSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+		TileData<Integer> tile = new DenseTileData<Integer>(tileDef, 3);
+		sqlitePyramidIO.writeTiles(PYRAMID_ID, serializer, Collections.singletonList(tile));
+
+		JDBCPyramidIO readOnlyIO = new SQLitePyramidIO("test.db", 2, true);
+		try {
+			List<TileData<Integer>> read = readOnlyIO.readTiles(PYRAMID_ID, serializer, Collections.singletonList(tileDef));
+			Assert.assertEquals(1, read.size());
+			Assert.assertEquals(3, read.get(0).getBin(0, 0).intValue());
+
+			try {
+				readOnlyIO.initializeForWrite("another pyramid");
+				fail("Read-only pyramid IO created a table");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			readOnlyIO.shutdown();
+		}
+	}
+
 	@Test
 	public void testMetadata() {
 		try {
@@ -143,4 +172,92 @@ public class SQLitePyramidIOTest {
 		}
 	}
 
+	// Write enough tiles to need several insert statements, and read them
+	// back across several columns, some missing, in the order requested
+	@Test
+	public void testManyTiles() throws Exception {
+		sqlitePyramidIO.initializeForWrite(PYRAMID_ID);
+		PrimitiveAvroSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+
+		List<TileData<Integer>> tiles = new ArrayList<>();
+		for (int x=0; x<32; ++x) {
+			for (int y=0; y<32; y += 2) {
+				tiles.add(createTile(new TileIndex(5, x, y, 1, 1)));
+			}
+		}
+		sqlitePyramidIO.writeTiles(PYRAMID_ID, serializer, tiles);
+
+		List<TileIndex> request = new ArrayList<>();
+		for (int y=31; y>=0; --y) {
+			for (int x=0; x<4; ++x) {
+				request.add(new TileIndex(5, x, y, 1, 1));
+			}
+		}
+		List<TileData<Integer>> readTiles = sqlitePyramidIO.readTiles(PYRAMID_ID, serializer, request);
+		Assert.assertEquals(64, readTiles.size());
+		int n = 0;
+		for (TileIndex index: request) {
+			if (0 == index.getY() % 2) {
+				TileData<Integer> tile = readTiles.get(n++);
+				Assert.assertEquals(index, tile.getDefinition());
+				Assert.assertEquals(getValue(index), tile.getBin(0, 0).intValue());
+			}
+		}
+	}
+
+	// Read the same tiles from several threads at once
+	@Test
+	public void testConcurrentReads() throws Exception {
+		sqlitePyramidIO.initializeForWrite(PYRAMID_ID);
+		final PrimitiveAvroSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+
+		final List<TileIndex> indices = new ArrayList<>();
+		List<TileData<Integer>> tiles = new ArrayList<>();
+		for (int x=0; x<8; ++x) {
+			for (int y=0; y<8; ++y) {
+				TileIndex index = new TileIndex(3, x, y, 1, 1);
+				indices.add(index);
+				tiles.add(createTile(index));
+			}
+		}
+		sqlitePyramidIO.writeTiles(PYRAMID_ID, serializer, tiles);
+
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t=0; t<8; ++t) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run () {
+					try {
+						for (int i=0; i<20; ++i) {
+							List<TileData<Integer>> readTiles = sqlitePyramidIO.readTiles(PYRAMID_ID, serializer, indices);
+							Assert.assertEquals(indices.size(), readTiles.size());
+							for (TileData<Integer> tile: readTiles) {
+								Assert.assertEquals(getValue(tile.getDefinition()), tile.getBin(0, 0).intValue());
+							}
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		if (null != error.get()) throw new AssertionError(error.get());
+	}
+
+	private static int getValue (TileIndex index) {
+		return index.getX() * 100 + index.getY();
+	}
+
+	private static TileData<Integer> createTile (TileIndex index) {
+		TileData<Integer> tile = new DenseTileData<Integer>(index, 0);
+		tile.setBin(0, 0, getValue(index));
+		return tile;
+	}
+
 }
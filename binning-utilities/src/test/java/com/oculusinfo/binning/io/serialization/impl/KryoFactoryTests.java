@@ -26,6 +26,7 @@ package com.oculusinfo.binning.io.serialization.impl;
 import java.util.Arrays;
 
 import org.json.JSONObject;
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.oculusinfo.binning.io.serialization.SerializationTypeChecker;
@@ -78,6 +79,20 @@ public class KryoFactoryTests extends SerializerTestUtils {
 		assertSerializersEqual(expected, product, new IntegerSource());
 	}
 
+	@Test
+	public void testKryoNewCodecSpecification () throws Exception {
+		TypeDescriptor integerType = new TypeDescriptor(Integer.class);
+		for (Codec codec: new Codec[] {Codec.NONE, Codec.LZ4}) {
+			KryoSerializerFactory<Integer> factory = new KryoSerializerFactory<Integer>(null, Arrays.asList("factory"), integerType);
+			factory.readConfiguration(new JSONObject("{\"factory\": { \"codec\": \""+codec+"\"}}"));
+			TileSerializer<Integer> product = SerializationTypeChecker.checkBinClass(factory.produce(TileSerializer.class),
+			       Integer.class, integerType);
+			Assert.assertEquals(codec, ((KryoSerializer<Integer>) product).getCodec());
+			TileSerializer<Integer> expected = new KryoSerializer<Integer>(integerType, codec);
+			assertSerializersEqual(expected, product, new IntegerSource());
+		}
+	}
+
 	@Test
 	public void testKryoCustomClassSpecification () throws Exception {
 		TypeDescriptor testType = new TypeDescriptor(TestClass.class);
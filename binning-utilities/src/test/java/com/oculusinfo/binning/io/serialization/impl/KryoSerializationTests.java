@@ -390,4 +390,73 @@ public class KryoSerializationTests extends SerializerTestUtils {
 
 		assertListTilesEqual(input, output);
 	}
+
+
+	private static TileData<List<Integer>> createLargeListTile (TileIndex index, int zN) {
+		TileData<List<Integer>> tile = new DenseTileData<List<Integer>>(index);
+		for (int x=0; x<index.getXBins(); ++x) {
+			for (int y=0; y<index.getYBins(); ++y) {
+				List<Integer> bin = new ArrayList<>(zN);
+				for (int z=0; z<zN; ++z)  bin.add((int) Math.floor(Math.random()*1024));
+				tile.setBin(x, y, bin);
+			}
+		}
+		return tile;
+	}
+
+	private static <T> TileData<T> roundTrip (TileSerializer<T> writer, TileSerializer<T> reader, TileData<T> input) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writer.serialize(input, baos);
+		baos.flush();
+		baos.close();
+
+		ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+		return reader.deserialize(input.getDefinition(), bais);
+	}
+
+	private static KryoSerializer<List<Integer>> createListSerializer (KryoSerializer.Codec codec) {
+		return new KryoSerializer<>(new TypeDescriptor(List.class, new TypeDescriptor(Integer.class)), codec);
+	}
+
+	@Test
+	public void testNone () throws Exception {
+		TileData<List<Integer>> input = createLargeListTile(new TileIndex(0, 0, 0, 256, 256), 100);
+		KryoSerializer<List<Integer>> serializer = createListSerializer(KryoSerializer.Codec.NONE);
+		assertListTilesEqual(input, roundTrip(serializer, serializer, input));
+	}
+
+	@Test
+	public void testLZ4 () throws Exception {
+		TileData<List<Integer>> input = createLargeListTile(new TileIndex(0, 0, 0, 256, 256), 100);
+		KryoSerializer<List<Integer>> serializer = createListSerializer(KryoSerializer.Codec.LZ4);
+		assertListTilesEqual(input, roundTrip(serializer, serializer, input));
+	}
+
+	// Tiles should be readable whatever codec the reading serializer is set to use, so that
+	// pyramids written with several codecs can be read.
+	@Test
+	public void testMixedCodecs () throws Exception {
+		TileData<List<Integer>> input = createLargeListTile(new TileIndex(0, 0, 0, 16, 16), 10);
+		for (KryoSerializer.Codec writeCodec: KryoSerializer.Codec.values()) {
+			for (KryoSerializer.Codec readCodec: KryoSerializer.Codec.values()) {
+				TileData<List<Integer>> output = roundTrip(createListSerializer(writeCodec),
+				                                           createListSerializer(readCodec), input);
+				assertListTilesEqual(input, output);
+			}
+		}
+	}
+
+	// Tiles written with the original codecs should have no header, so that older versions can still read them
+	@Test
+	public void testOriginalCodecsHaveNoHeader () throws Exception {
+		TileData<Double> data = new DenseTileData<Double>(new TileIndex(0, 0, 0, 4, 4), 1.1);
+		for (KryoSerializer.Codec codec: new KryoSerializer.Codec[] {KryoSerializer.Codec.DEFLATE,
+		                                                             KryoSerializer.Codec.BZIP,
+		                                                             KryoSerializer.Codec.GZIP}) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			new KryoSerializer<Double>(new TypeDescriptor(Double.class), codec).serialize(data, output);
+			byte[] bytes = output.toByteArray();
+			Assert.assertFalse(bytes[0] == KryoSerializer.HEADER_MAGIC[0] && bytes[1] == KryoSerializer.HEADER_MAGIC[1]);
+		}
+	}
 }
@@ -41,10 +41,18 @@ import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.factory.util.Pair;
 
 public class PairArrayAvroSerializerTests {
+	// Test both container-file and compact serialization
 	@SafeVarargs
 	final <S, T> void testRoundTrip(Class<? extends S> keyType, Class<? extends T> valueType, int arraySize,
 	                                Pair<S, T>... data) throws Exception {
-		TileSerializer<List<Pair<S, T>>> serializer = new PairArrayAvroSerializer<>(keyType, valueType, CodecFactory.nullCodec());
+		testRoundTrip(false, keyType, valueType, arraySize, data);
+		testRoundTrip(true, keyType, valueType, arraySize, data);
+	}
+
+	@SafeVarargs
+	final <S, T> void testRoundTrip(boolean compact, Class<? extends S> keyType, Class<? extends T> valueType, int arraySize,
+	                                Pair<S, T>... data) throws Exception {
+		TileSerializer<List<Pair<S, T>>> serializer = new PairArrayAvroSerializer<>(keyType, valueType, CodecFactory.nullCodec(), compact);
 
 		// Create our tile
 		int n = (int) Math.ceil(data.length/(double)arraySize);
@@ -30,22 +30,36 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.avro.Schema;
 import org.apache.avro.file.CodecFactory;
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileData.StorageType;
 import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseDoubleTileData;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.PackedSparseTileData;
 import com.oculusinfo.binning.impl.SparseTileData;
+import com.oculusinfo.binning.io.serialization.AvroSchemaRegistry;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.metadata.PyramidMetaData;
 
 // Test that primitive avro serialization works
 public class PrimitiveAvroSerializerTest {
+	// Test both container-file and compact serialization
 	@SafeVarargs
 	final <T> void testRoundTrip(Class<? extends T> type, T... data) throws Exception {
-		TileSerializer<T> serializer = new PrimitiveAvroSerializer<T>(type, CodecFactory.nullCodec());
+		testRoundTrip(false, type, data);
+		testRoundTrip(true, type, data);
+	}
+
+	@SafeVarargs
+	final <T> void testRoundTrip(boolean compact, Class<? extends T> type, T... data) throws Exception {
+		TileSerializer<T> serializer = new PrimitiveAvroSerializer<T>(type, CodecFactory.nullCodec(), compact);
 
 		// Create our tile
 		int size = (int) Math.ceil(Math.sqrt(data.length));
@@ -168,4 +182,93 @@ public class PrimitiveAvroSerializerTest {
 		Assert.assertTrue(denseSize < sparseSize * 10);
 		Assert.assertTrue(sparseSize < denseSize * 10);
 	}
+
+	private static <T> byte[] toBytes (TileSerializer<T> serializer, TileData<T> tile) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		serializer.serialize(tile, baos);
+		baos.flush();
+		baos.close();
+		return baos.toByteArray();
+	}
+
+	private static <T> void assertTilesEqual (TileData<T> expected, TileData<T> actual) {
+		Assert.assertEquals(expected.getDefinition(), actual.getDefinition());
+		Assert.assertEquals(expected.getDefaultValue(), actual.getDefaultValue());
+		for (int x=0; x<expected.getDefinition().getXBins(); ++x) {
+			for (int y=0; y<expected.getDefinition().getYBins(); ++y) {
+				Assert.assertEquals(expected.getBin(x, y), actual.getBin(x, y));
+			}
+		}
+		Assert.assertEquals(expected.getMetaDataProperties(), actual.getMetaDataProperties());
+	}
+
+	// Test that compact tiles keep their density, default, and metadata, and are
+	// read into primitive-backed tiles
+	@Test
+	public void testCompactTiles () throws IOException {
+		TileIndex index = new TileIndex(4, 3, 2, 16, 16);
+		TileData<Double> dense = new DenseTileData<>(index, -1.0);
+		TileData<Double> sparse = new PackedSparseTileData<>(index, -1.0);
+		for (int x=0; x<16; ++x) {
+			for (int y=0; y<16; ++y) {
+				dense.setBin(x, y, x*16.0+y);
+				if (0 == (x+y)%5) sparse.setBin(x, y, x*16.0+y);
+			}
+		}
+		dense.setMetaData("source", "dense");
+		sparse.setMetaData("source", "sparse");
+
+		TileSerializer<Double> serializer = new PrimitiveAvroSerializer<Double>(Double.class, CodecFactory.nullCodec(), true);
+		TileData<Double> denseOut = serializer.deserialize(index, new ByteArrayInputStream(toBytes(serializer, dense)));
+		TileData<Double> sparseOut = serializer.deserialize(index, new ByteArrayInputStream(toBytes(serializer, sparse)));
+
+		Assert.assertTrue(denseOut instanceof DenseDoubleTileData);
+		Assert.assertTrue(sparseOut instanceof PackedSparseTileData);
+		assertTilesEqual(dense, denseOut);
+		assertTilesEqual(sparse, sparseOut);
+	}
+
+	// Test that compact and container-file tiles can each be read by either kind
+	// of serializer, and that compact tiles are smaller
+	@Test
+	public void testCompactCompatibility () throws IOException {
+		TileIndex index = new TileIndex(2, 1, 1, 8, 8);
+		TileData<Integer> tile = new DenseTileData<>(index, 0);
+		for (int x=0; x<8; ++x) {
+			for (int y=0; y<8; ++y) {
+				tile.setBin(x, y, x*y);
+			}
+		}
+
+		TileSerializer<Integer> container = new PrimitiveAvroSerializer<Integer>(Integer.class, CodecFactory.nullCodec());
+		TileSerializer<Integer> compact = new PrimitiveAvroSerializer<Integer>(Integer.class, CodecFactory.nullCodec(), true);
+		byte[] containerBytes = toBytes(container, tile);
+		byte[] compactBytes = toBytes(compact, tile);
+
+		assertTilesEqual(tile, compact.deserialize(index, new ByteArrayInputStream(containerBytes)));
+		assertTilesEqual(tile, container.deserialize(index, new ByteArrayInputStream(compactBytes)));
+		Assert.assertTrue(compactBytes.length < containerBytes.length);
+	}
+
+	// Test that compact serializers record their tile schemas in pyramid
+	// metadata, in a form that survives the metadata being written and read
+	@Test
+	public void testCompactSchemasInMetaData () throws Exception {
+		PyramidMetaData metaData = new PyramidMetaData("test", "test", 8, 8, null, null, null, null, null, null);
+		new PrimitiveAvroSerializer<Long>(Long.class, CodecFactory.nullCodec()).recordTileSchemas(metaData);
+		Assert.assertTrue(metaData.getTileSchemas().isEmpty());
+
+		PrimitiveAvroSerializer<Long> compact = new PrimitiveAvroSerializer<Long>(Long.class, CodecFactory.nullCodec(), true);
+		compact.recordTileSchemas(metaData);
+		PyramidMetaData readMetaData = new PyramidMetaData(metaData.toString());
+		Map<Long, String> schemas = readMetaData.getTileSchemas();
+		Assert.assertEquals(StorageType.values().length, schemas.size());
+
+		AvroSchemaRegistry.register(readMetaData);
+		for (Map.Entry<Long, String> entry: schemas.entrySet()) {
+			Schema schema = new Schema.Parser().parse(entry.getValue());
+			Assert.assertEquals(entry.getKey().longValue(), AvroSchemaRegistry.getFingerprint(schema));
+			Assert.assertEquals(schema, AvroSchemaRegistry.getSchema(entry.getKey()));
+		}
+	}
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.util;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.TestPyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+import org.apache.avro.file.CodecFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class TileIOUtilsTests {
+	private static TileData<Integer> createTile (int level, int x, int y, int value) {
+		TileData<Integer> tile = new DenseTileData<Integer>(new TileIndex(level, x, y, 2, 2), 0);
+		tile.setBin(0, 0, value);
+		return tile;
+	}
+
+	@Test
+	public void testReadSeveralTiles () throws Exception {
+		TestPyramidIO io = new TestPyramidIO();
+		TileSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+		io.writeTiles("test", serializer, Arrays.asList(createTile(1, 0, 0, 1),
+		                                                createTile(1, 1, 0, 2),
+		                                                createTile(1, 1, 1, 3)));
+
+		List<TileIndex> indices = new ArrayList<>();
+		indices.add(new TileIndex(1, 0, 0, 2, 2));
+		indices.add(new TileIndex(1, 1, 0, 2, 2));
+		indices.add(new TileIndex(1, 0, 1, 2, 2));
+		indices.add(new TileIndex(1, 1, 1, 2, 2));
+
+		Map<TileIndex, TileData<Integer>> tiles = TileIOUtils.tileDataForIndices(indices, "test", serializer, io, 1, null);
+		Assert.assertEquals(3, tiles.size());
+		Assert.assertEquals(1, tiles.get(indices.get(0)).getBin(0, 0).intValue());
+		Assert.assertEquals(2, tiles.get(indices.get(1)).getBin(0, 0).intValue());
+		Assert.assertFalse(tiles.containsKey(indices.get(2)));
+		Assert.assertEquals(3, tiles.get(indices.get(3)).getBin(0, 0).intValue());
+	}
+}
@@ -166,9 +166,13 @@ public class TileRegistrator implements KryoRegistrator {
 		kryo.register(AOITilePyramid.class);
 		kryo.register(DenseTileData.class);
 		kryo.register(DenseTileData[].class);
+		kryo.register(DenseDoubleTileData.class);
+		kryo.register(DenseLongTileData.class);
+		kryo.register(DenseIntTileData.class);
 		kryo.register(DenseTileSliceView.class);
 		kryo.register(SparseTileData.class);
 		kryo.register(SparseTileData[].class);
+		kryo.register(PackedSparseTileData.class);
 		kryo.register(SparseTileSliceView.class);
 		kryo.register(SubTileDataView.class);
 		kryo.register(WebMercatorTilePyramid.class);
@@ -38,6 +38,7 @@ import java.lang.{Integer => JavaInt}
 import java.util.{List => JavaList}
 import java.util.Properties
 
+import org.apache.spark.rdd.RDD
 import org.apache.spark.sql.SQLContext
 import org.json.JSONObject
 
@@ -55,7 +56,7 @@ import com.oculusinfo.binning.io.serialization.TileSerializer
 import com.oculusinfo.binning.metadata.PyramidMetaData
 
 import com.oculusinfo.tilegen.datasets.{CSVReader, CSVDataSource, TilingTask}
-import com.oculusinfo.tilegen.tiling.UniversalBinner
+import com.oculusinfo.tilegen.tiling.{SpatialPartitionIndex, UniversalBinner}
 import com.oculusinfo.tilegen.util.{PropertiesWrapper, Rectangle}
 import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
 import com.oculusinfo.tilegen.tiling.StandardBinningFunctions
@@ -66,17 +67,33 @@ import com.oculusinfo.tilegen.tiling.BinningParameters
 
 /**
  * This class reads and caches a data set for live queries of its tiles
+ *
+ * If asked to, before the first query of a data set, the data is spatially partitioned (see
+ * SpatialPartitionIndex), so that each query only has to read those partitions that could hold
+ * data on the requested tiles.  This is turned on, at a given level, for all data sets with
+ * setIndexLevel, or for a single data set with the oculus.binning.live.indexLevel property
+ * (DEFAULT_INDEX_LEVEL is a good choice).  The partitioned data is kept in memory in place of the
+ * cached table, rather than as well as it.
  */
 class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 	private val sc = sqlc.sparkContext
 	private val tasks = MutableMap[String, TilingTask[_, _, _, _]]()
 	private val metaData = MutableMap[String, PyramidMetaData]()
+	private val indexLevels = MutableMap[String, Option[Int]]()
+	private val indices = MutableMap[String, Option[SpatialPartitionIndex[_]]]()
+	private val tables = MutableMap[String, String]()
 	private var consolidationPartitions: Option[Int] = Some(1)
+	private var indexLevel: Option[Int] = None
 	def eliminateConsolidationPartitions: Unit =
 		consolidationPartitions = None
 	def setConsolidationPartitions (partitions: Int): Unit =
 		consolidationPartitions = Some(partitions)
 	def getConsolidationPartitions = consolidationPartitions
+	def eliminateIndexing: Unit =
+		indexLevel = None
+	def setIndexLevel (level: Int): Unit =
+		indexLevel = Some(level)
+	def getIndexLevel = indexLevel
 
 	def getTask (pyramidId: String) = tasks(pyramidId)
 
@@ -118,6 +135,15 @@ class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 					val table = TilingTask.rectifyTableName("table "+pyramidId)
 					reader.asDataFrame.registerTempTable(table)
 					if (cache) sqlc.cacheTable(table)
+					tables(pyramidId) = table
+
+					// Note the level at which to spatially partition our data, if at all
+					val level = wrappedDesc.getIntOption(
+						"oculus.binning.live.indexLevel",
+						"The level at which to spatially partition the data so that tile queries need not scan all of it. "+
+							"A negative value turns partitioning off.  By default, data is not partitioned.",
+						indexLevel)
+					indexLevels(pyramidId) = level.filter(_ >= 0)
 
 					// Create our tiling task
 					val newTask = TilingTask(sqlc, table, dataDescription)
@@ -237,7 +263,7 @@ class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 
 				val binner = new UniversalBinner
 
-				val results: Array[TileData[BT]] = task.transformRDD[TileData[BT]](
+				val binFcn: RDD[(Seq[Any], PT, Option[DT])] => RDD[TileData[BT]] =
 					rdd => {
 						binner.processData[Seq[Any], PT, AT, DT, BT](rdd,
 						                                             binningAnalytic,
@@ -248,7 +274,11 @@ class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 						                                             new BinningParameters(tileType = task.getTileType,
 						                                                                   maxPartitions = consolidationPartitions))
 					}
-				).collect
+				// Only read those partitions that might have data on our tiles, if we can
+				val results: Array[TileData[BT]] = getIndex[PT, DT](pyramidId, task) match {
+					case Some(index) => binFcn(index.getDataFor(tiles)).collect
+					case None => task.transformRDD[TileData[BT]](binFcn).collect
+				}
 
 				// Update metadata for these levels
 				val taskMetaData = getMetaData(pyramidId).get
@@ -281,6 +311,29 @@ class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 		inner
 	}
 
+	/*
+	 * Get the spatially partitioned form of a data set, partitioning it first if this is the first
+	 * request for it.  Returns None if the data set isn't to be partitioned.
+	 */
+	private def getIndex[PT: ClassTag, DT: ClassTag] (pyramidId: String, task: TilingTask[PT, DT, _, _]):
+			Option[SpatialPartitionIndex[(Seq[Any], PT, Option[DT])]] = {
+		indices.synchronized {
+			if (!indices.contains(pyramidId)) {
+				indices(pyramidId) = indexLevels.getOrElse(pyramidId, indexLevel).map { level =>
+					val indexScheme = task.getIndexScheme
+					val data = task.transformRDD[(Seq[Any], PT, Option[DT])](rdd => rdd)
+					val index = SpatialPartitionIndex[(Seq[Any], PT, Option[DT])](data, task.getTilePyramid,
+					                                                              record => indexScheme.toCartesian(record._1),
+					                                                              level, data.partitions.size)
+					// The index now holds its own copy of the data, so don't keep the cached table too
+					tables.get(pyramidId).filter(sqlc.isCached).foreach(sqlc.uncacheTable)
+					index
+				}
+			}
+			indices(pyramidId).asInstanceOf[Option[SpatialPartitionIndex[(Seq[Any], PT, Option[DT])]]]
+		}
+	}
+
 	def getTileStream[BT] (pyramidId: String, serializer: TileSerializer[BT],
 	                       tile: TileIndex): InputStream = {
 		val results: JavaList[TileData[BT]] =
@@ -311,3 +364,11 @@ class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 		throw new IOException("removeTiles not currently supported for OnDemandBinningPyramidIO")
 
 }
+
+object OnDemandBinningPyramidIO {
+	/**
+	 * A good level at which to spatially partition data; at level 8, there are 65536 base-level
+	 * tiles to divide among partitions, which is fine enough for any reasonable number of partitions.
+	 */
+	val DEFAULT_INDEX_LEVEL = 8
+}
@@ -39,6 +39,7 @@ import scala.collection.convert.Wrappers.SeqWrapper
 import scala.collection.mutable.Buffer
 import scala.reflect.ClassTag
 import org.apache.spark.SparkContext
+import org.json.JSONObject
 import com.oculusinfo.binning.TileData
 import com.oculusinfo.binning.TileIndex
 import com.oculusinfo.factory.ConfigurableFactory
@@ -205,6 +206,8 @@ class DataAnalyticWrapper[AT: ClassTag] (private[datasets] var base: AnalysisDes
 	def addAccumulator (sc: SparkContext, name: String, test: (TileIndex) => Boolean): Unit =
 		base.addAccumulator(sc, name, test)
 	def accumulatedResults = base.accumulatedResults
+	override def accumulatedResults (previous: String => Option[JSONObject]): JSONObject =
+		base.accumulatedResults(previous)
 }
 class AnalyticExtractor (_tileAnalytics: Seq[AnalysisDescription[TileData[_], _]],
                          _dataAnalytics: Seq[(AnalysisDescription[Seq[Any], _], Seq[String])]) {
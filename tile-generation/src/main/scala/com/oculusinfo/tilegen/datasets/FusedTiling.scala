@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2015 Uncharted Software Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.datasets
+
+
+
+import grizzled.slf4j.Logging
+
+import scala.collection.mutable.{Map => MutableMap}
+import scala.reflect.ClassTag
+
+import org.apache.spark.{HashPartitioner, SparkContext}
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.{Row, SQLContext}
+import org.apache.spark.storage.StorageLevel
+
+import com.oculusinfo.binning.{BinIndex, TileData, TileIndex}
+import com.oculusinfo.tilegen.tiling.analytics.{AnalysisDescription, BinningAnalytic}
+import com.oculusinfo.tilegen.tiling.{BinningParameters, PrimitiveBinAccumulator, PrimitiveBinning}
+import com.oculusinfo.tilegen.tiling.{StandardBinningFunctions, TileIO, UniversalBinner}
+
+
+
+/**
+ * Tiles several tiling tasks over the same table at once.
+ *
+ * Tiling each task separately (with TilingTask.doTiling) scans and converts the source data once
+ * per task, and shuffles it once per task and level set.  Here, instead, the fields needed by
+ * all the tasks are read in a single pass; each row is converted and located for every task, and
+ * the located records of all tasks are combined into tiles in a single shuffle, keyed by task and
+ * tile.  Each task's tiles are then written through that task's own TileIO.
+ *
+ * Tasks may differ in index and value fields, binning analytic, analytics, levels, and pyramid.
+ * All of each task's levels are tiled together, rather than level set by level set, and each task
+ * is binned from the top down, as by doTiling with point binning, but without skew partitioning,
+ * pre-aggregation, or columnar binning.
+ */
+object FusedTiling extends Logging {
+	/**
+	 * Tile several tasks in one pass over their data.
+	 * @param sqlc The SQL context in which the table is registered
+	 * @param table The table containing the raw data of all the tasks
+	 * @param outputs The tasks to tile, each with the TileIO with which to write its tiles
+	 * @param partitions The number of partitions to use in the shuffle that combines records into
+	 *                   tiles; None to use the greatest consolidation partition count of any task,
+	 *                   or, if none have one, as many as the source data has.
+	 */
+	def apply (sqlc: SQLContext,
+	           table: String,
+	           outputs: Seq[(TilingTask[_, _, _, _], TileIO)],
+	           partitions: Option[Int] = None): Unit = {
+		val tasks = outputs.map(_._1)
+
+		// Read each field needed by any task just once
+		val fields = tasks.flatMap(_.getFields).distinct
+		val data = sqlc.sql(fields.map(field => TilingTask.backtickEscapeFieldName(field)).mkString("SELECT ", ", ", " FROM "+table))
+
+		val fusedOutputs = outputs.map{case (task, tileIO) =>
+			createOutput(task, task.getFields.map(field => fields.indexOf(field)), tileIO, sqlc.sparkContext)
+		}
+		val binnings: Array[FusedTaskBinning[_, _, _, _]] = fusedOutputs.map(_.binning).toArray
+
+		val numPartitions = partitions.orElse(tasks.flatMap(_.getConsolidationPartitions).reduceOption(_ max _))
+			.getOrElse(data.rdd.partitions.size)
+		info("Tiling "+tasks.size+" tasks together from "+fields.size+" fields of "+table+", over "+numPartitions+" partitions")
+
+		// Locate each row for every task, and combine the located records by task and tile.  Records
+		// and combiners carry their task, so each can be handled by the right task's binning.
+		val located: RDD[((Int, TileIndex), (Int, Any))] = data.rdd.flatMap { row =>
+			binnings.indices.flatMap(task =>
+				binnings(task).locate(row).map{case (tile, record) => ((task, tile), (task, record))}
+			)
+		}
+		val combined: RDD[((Int, TileIndex), (Int, Any))] = located.combineByKey[(Int, Any)](
+			(record: (Int, Any)) => (record._1, binnings(record._1).createCombiner(record._2)),
+			(combiner: (Int, Any), record: (Int, Any)) => (combiner._1, binnings(combiner._1).mergeValue(combiner._2, record._2)),
+			(combiner1: (Int, Any), combiner2: (Int, Any)) => (combiner1._1, binnings(combiner1._1).mergeCombiners(combiner1._2, combiner2._2)),
+			new HashPartitioner(numPartitions)
+		).persist(StorageLevel.MEMORY_AND_DISK)
+
+		// Write out each task's tiles from the shared, combined data
+		fusedOutputs.zipWithIndex.foreach{case (output, n) =>
+			output.write(combined.filter(_._1._1 == n).map{case ((task, tile), (_, combiner)) => (tile, combiner)})
+		}
+
+		combined.unpersist(false)
+	}
+
+	// Bind the types of a task to those of its output
+	private def createOutput[PT, DT, AT, BT] (task: TilingTask[PT, DT, AT, BT], columns: Seq[Int], tileIO: TileIO,
+	                                          sc: SparkContext): FusedOutput[PT, DT, AT, BT] =
+		new FusedOutput[PT, DT, AT, BT](task, columns, tileIO, sc)
+
+	/*
+	 * The driver-side part of a single output of a fused tiling pass: the task's analytic accumulators,
+	 * its binning functions, and the writing of its tiles.
+	 */
+	private class FusedOutput[PT, DT, AT, BT] (task: TilingTask[PT, DT, AT, BT], columns: Seq[Int], tileIO: TileIO,
+	                                           sc: SparkContext) {
+		// Accumulators have to be in place before the binning functions are shipped out with the job
+		task.getTileAnalytics.map(_.addGlobalAccumulator(sc))
+		task.getDataAnalytics.map(_.addGlobalAccumulator(sc))
+		task.getLevels.flatten.distinct.foreach{level =>
+			task.getTileAnalytics.map(_.addLevelAccumulator(sc, level))
+			task.getDataAnalytics.map(_.addLevelAccumulator(sc, level))
+		}
+
+		val binning: FusedTaskBinning[PT, DT, AT, BT] = task.getFusedBinning(columns)
+
+		def write (tileInfos: RDD[(TileIndex, Any)]): Unit = {
+			// When adding to existing tiles, tile analytics are applied to the merged tiles, as they're written
+			val mergeAnalytic =
+				if (task.getIncremental) Some(UniversalBinner.getMergeableAnalytic(task.getBinningAnalytic))
+				else None
+			val localBinning = binning
+			val tiles = tileInfos.map{case (tile, combiner) => localBinning.createTile(tile, combiner)}
+
+			tileIO.writeTileSet(task.getTilePyramid, task.getName, tiles, task.getTileSerializer,
+				task.getTileAnalytics, task.getDataAnalytics, task.getName, task.getDescription, mergeAnalytic)
+		}
+	}
+}
+
+
+
+/**
+ * The binning functions for a single task in a fused tiling pass (see FusedTiling).  All records
+ * and combiners pass through the fused shuffle untyped, so this casts them back to this task's
+ * types as it converts and locates rows, combines located records into tiles, and creates the
+ * finished tiles.  Bin values are accumulated as primitives, as by
+ * UniversalBinner.aggregatePrimitiveBins, for those binning analytics that allow it, and in maps,
+ * as by UniversalBinner.aggregateBins, for the rest.
+ *
+ * @param convert A function to convert a row of raw data into a record for this task
+ * @param inRegion If given, a function that tells if a record's index should be tiled
+ * @param locateIndexFcn A function to locate a record's index on the tiles and bins of all the
+ *                       levels this task tiles, in universal bin coordinates
+ * @param binAnalytic The aggregation function to use to tile the data
+ * @param tileAnalytics Optional analytics to apply to each produced tile
+ * @param dataAnalytics Optional analytics to apply to each raw data point, and bin along with the tiles
+ * @param parameters General binning parameters affecting how tiles are created
+ */
+class FusedTaskBinning[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
+	(convert: Row => (Seq[Any], PT, Option[DT]),
+	 inRegion: Option[Seq[Any] => Boolean],
+	 locateIndexFcn: Seq[Any] => Traversable[(TileIndex, Array[BinIndex])],
+	 binAnalytic: BinningAnalytic[PT, BT],
+	 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+	 dataAnalytics: Option[AnalysisDescription[_, DT]],
+	 parameters: BinningParameters)
+		extends Serializable
+{
+	private type Record = (TileIndex, Array[BinIndex], PT, Option[DT])
+
+	private val primitiveBinning: Option[PrimitiveBinning[PT]] =
+		if (parameters.primitiveAccumulation) PrimitiveBinning(binAnalytic)
+		else None
+
+	/**
+	 * Convert a row of raw data, and locate it on this task's tiles.
+	 * @return Each tile on which the row falls, with the record to combine into it
+	 */
+	def locate (row: Row): Traversable[(TileIndex, Any)] = {
+		val (index, value, analyticValue) = convert(row)
+		if (inRegion.forall(_(index))) {
+			locateIndexFcn(index).map{case (tile, bins) => (tile, (tile, bins, value, analyticValue))}
+		} else {
+			Traversable()
+		}
+	}
+
+	/** Start a tile's combined bin values from a single located record */
+	def createCombiner (record: Any): Any = {
+		val (tile, bins, value, analyticValue) = record.asInstanceOf[Record]
+		val binValues: AnyRef = primitiveBinning match {
+			case Some(binning) => new PrimitiveBinAccumulator(tile.getXBins, tile.getYBins)
+			case None => MutableMap[BinIndex, PT]()
+		}
+		mergeValue((binValues, None), record)
+	}
+
+	/** Add a located record into a tile's combined bin values */
+	def mergeValue (combiner: Any, record: Any): Any = {
+		val (binValues, curAnalyticValue) = combiner.asInstanceOf[(AnyRef, Option[DT])]
+		val (tile, bins, value, analyticValue) = record.asInstanceOf[Record]
+
+		// Accumulate data analytic metadata
+		analyticValue.foreach(av => dataAnalytics.foreach(analytic => analytic.accumulate(tile, av)))
+
+		val newBinValues: AnyRef = primitiveBinning match {
+			case Some(binning) =>
+				// Convert from universal to tile bin coordinates, as populateTileIdentity would
+				val accumulator = binValues.asInstanceOf[PrimitiveBinAccumulator]
+				val primitiveValue = binning.value(value)
+				val primitiveCount = binning.count(value)
+				bins.foreach(bin =>
+					accumulator.add(bin.getX % tile.getXBins, bin.getY % tile.getYBins, primitiveValue, primitiveCount, binning)
+				)
+				accumulator
+			case None =>
+				UniversalBinner.aggregateMaps(binAnalytic.aggregate(_, _), binValues.asInstanceOf[MutableMap[BinIndex, PT]],
+				                              StandardBinningFunctions.populateTileIdentity(tile, bins, value))
+		}
+		(newBinValues, aggregateAnalytics(curAnalyticValue, analyticValue))
+	}
+
+	/** Merge two sets of combined bin values for the same tile */
+	def mergeCombiners (combiner1: Any, combiner2: Any): Any = {
+		val (binValues1, analyticValue1) = combiner1.asInstanceOf[(AnyRef, Option[DT])]
+		val (binValues2, analyticValue2) = combiner2.asInstanceOf[(AnyRef, Option[DT])]
+		val binValues: AnyRef = primitiveBinning match {
+			case Some(binning) =>
+				binValues1.asInstanceOf[PrimitiveBinAccumulator].merge(binValues2.asInstanceOf[PrimitiveBinAccumulator], binning)
+			case None =>
+				UniversalBinner.aggregateMaps(binAnalytic.aggregate(_, _), binValues1.asInstanceOf[MutableMap[BinIndex, PT]],
+				                              binValues2.asInstanceOf[MutableMap[BinIndex, PT]])
+		}
+		(binValues, aggregateAnalytics(analyticValue1, analyticValue2))
+	}
+
+	/** Convert a tile's combined bin values into a finished tile, and apply tile analytics to it */
+	def createTile (index: TileIndex, combiner: Any): TileData[BT] = {
+		val (binValues, analyticValue) = combiner.asInstanceOf[(AnyRef, Option[DT])]
+		val tile = primitiveBinning match {
+			case Some(binning) =>
+				val accumulator = binValues.asInstanceOf[PrimitiveBinAccumulator]
+				val tile = UniversalBinner.createEmptyTile(index, accumulator.size, binAnalytic, parameters)
+				accumulator.foreach((x, y, value, count) =>
+					tile.setBin(x, y, binAnalytic.finish(binning.processed(value, count)))
+				)
+				tile
+			case None =>
+				val values = binValues.asInstanceOf[MutableMap[BinIndex, PT]]
+				val tile = UniversalBinner.createEmptyTile(index, values.size, binAnalytic, parameters)
+				values.foreach{case (bin, value) =>
+					tile.setBin(bin.getX, bin.getY, binAnalytic.finish(value))
+				}
+				tile
+		}
+		UniversalBinner.compactTile(tile)
+
+		UniversalBinner.addAnalytics(tile, analyticValue, tileAnalytics, dataAnalytics)
+		tile
+	}
+
+	private def aggregateAnalytics (analyticValue1: Option[DT], analyticValue2: Option[DT]): Option[DT] =
+		UniversalBinner.optAggregate(dataAnalytics.map(analytic => analytic.analytic.aggregate(_, _)),
+		                             analyticValue1, analyticValue2)
+}
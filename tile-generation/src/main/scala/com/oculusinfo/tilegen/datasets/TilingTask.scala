@@ -32,6 +32,8 @@ import java.util.{ArrayList, Properties}
 
 import scala.collection.mutable.{Map => MutableMap}
 
+import grizzled.slf4j.Logging
+
 import com.oculusinfo.binning.metadata.PyramidMetaData
 import com.oculusinfo.factory.ConfigurableFactory
 import com.oculusinfo.factory.providers.FactoryProvider
@@ -39,9 +41,10 @@ import com.oculusinfo.factory.util.Pair
 import com.oculusinfo.binning.util.JsonUtilities
 import com.oculusinfo.binning.{BinIndex, TileData, TileIndex}
 import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
-import com.oculusinfo.tilegen.tiling.{BinningParameters, StandardBinningFunctions, TileIO, UniversalBinner}
+import com.oculusinfo.tilegen.tiling.{BinningParameters, ColumnarBinner, PreAggregation, PrimitiveBinning, SkewPartitioning}
+import com.oculusinfo.tilegen.tiling.{StandardBinningFunctions, TileIO, UniversalBinner}
 import org.apache.spark.rdd.RDD
-import org.apache.spark.sql.SQLContext
+import org.apache.spark.sql.{Row, SQLContext}
 import org.apache.spark.streaming.dstream.DStream
 
 import scala.reflect.ClassTag
@@ -183,6 +186,7 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 	 dataAnalyticFields: Seq[String],
 	 dataAnalytics: Option[AnalysisDescription[Seq[Any], DT]],
 	 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]])
+		extends Logging
 {
 	val binTypeTag = implicitly[ClassTag[PT]]
 	val dataAnalysisTypeTag = implicitly[ClassTag[DT]]
@@ -239,6 +243,48 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 	/** Get the type of tile storage to create when this task creates tiles */
 	def getTileType = config.tileType
 
+	/** Whether this task bins only the deepest level of each level set, and builds the rest from that */
+	def getBottomUp = config.bottomUp
+
+	/** The number of distinct bins per partition in which to combine records before shuffling them, if any */
+	def getPreAggregationCells = config.preAggregationCells
+
+	/** How to spread the busiest tiles over several partitions when combining records into tiles, if at all */
+	def getSkewPartitioning: Option[SkewPartitioning] =
+		config.skewSampleFraction.map(fraction => SkewPartitioning(fraction, config.consolidationPartitions))
+
+	/** Whether this task adds its data to any existing tiles, rather than replacing them */
+	def getIncremental = config.incremental
+
+	/** Whether this task bins its data straight from its columns, where it can */
+	def getColumnar = config.columnar
+
+	/**
+	 * Whether this task's data is simply the rows of its table, so could be read straight from it
+	 * rather than through its processing strategy.  Records outside the level 0 tile are still to
+	 * be dropped if the task filters to its region.
+	 */
+	protected def readsTableDirectly: Boolean = false
+
+	/**
+	 * Whether this task's data can be binned straight from its columns (see ColumnarBinner): that
+	 * takes data read straight from the task's table, one or two cartesian index fields, at most one
+	 * value field, a binning analytic that can be accumulated as primitives, no data analytics, and
+	 * none of bottom-up binning, pre-aggregation, or skew partitioning, which the columnar binner
+	 * doesn't do.  Columnar binning always skips records outside the level 0 tile, as if filtering
+	 * to region.
+	 */
+	def canBinColumns: Boolean =
+		readsTableDirectly &&
+			indexer.isInstanceOf[CartesianIndexExtractor] &&
+			(1 == indexer.fields.size || 2 == indexer.fields.size) &&
+			valuer.fields.size <= 1 &&
+			dataAnalytics.isEmpty &&
+			!getBottomUp &&
+			getPreAggregationCells.isEmpty &&
+			getSkewPartitioning.isEmpty &&
+			PrimitiveBinning(getBinningAnalytic).isDefined
+
 	/** Get the scheme used to determine axis values for our tiles */
 	def getIndexScheme = indexer.indexScheme
 
@@ -254,6 +300,66 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 	/** Get the tile analytics to apply to and record in our tiles */
 	def getTileAnalytics: Option[AnalysisDescription[TileData[BT], AT]] = tileAnalytics
 
+	/** Get the fields this task reads from its table: index fields, then value fields, then data analytic fields */
+	def getFields: Seq[String] = indexer.fields ++ valuer.fields ++ dataAnalyticFields
+
+	/**
+	 * Get a function that converts a row of raw data into a record for binning.
+	 * @param columns The position in the row of each of the fields given by getFields, in the same order
+	 */
+	def getRecordConverter (columns: Seq[Int]): Row => (Seq[Any], PT, Option[DT]) = {
+		val indexFields = indexer.fields.length
+		val valueFields = valuer.fields.length
+		val indexColumns = columns.take(indexFields)
+		val valueColumns = columns.slice(indexFields, indexFields+valueFields)
+		val analyticColumns = columns.drop(indexFields+valueFields)
+		val localDataAnalytics = dataAnalytics
+		val localValuer = valuer
+
+		row => {
+			val index = indexColumns.map(n => row(n))
+
+			val values = valueColumns.map(n => row(n))
+			val value = localValuer.convert(values)
+
+			val analyticInputs = analyticColumns.map(n => row(n))
+			val analysis = localDataAnalytics.map(analytic => analytic.convert(analyticInputs))
+
+			(index, value, analysis)
+		}
+	}
+
+	/** If this task is set to filter out data outside its level 0 tile, get a function that tells if an index is inside it */
+	def getRegionFilter: Option[Seq[Any] => Boolean] =
+		if (config.filterToRegion) {
+			val iScheme = indexer.indexScheme
+			val area = getTilePyramid.getTileBounds(new TileIndex(0, 0, 0))
+
+			Some(index => {
+				val (x, y) = iScheme.toCartesian(index)
+
+				area.contains(x, y)
+			})
+		} else {
+			None
+		}
+
+	/**
+	 * Get the binning functions needed to tile this task as one output of a fused, multi-task
+	 * tiling pass (see FusedTiling).  Tiles are located as in doTiling, over all this task's levels
+	 * at once.
+	 * @param columns The position in the raw data rows of each of the fields given by getFields
+	 */
+	def getFusedBinning (columns: Seq[Int]): FusedTaskBinning[PT, DT, AT, BT] = {
+		val levels = getLevels.flatten.distinct
+		val locFcn = StandardBinningFunctions.locateIndexOverLevels(getIndexScheme, getTilePyramid, getNumXBins, getNumYBins)
+		val parameters = BinningParameters(true, getNumXBins, getNumYBins, getConsolidationPartitions, getConsolidationPartitions, None)
+
+		new FusedTaskBinning[PT, DT, AT, BT](getRecordConverter(columns), getRegionFilter, locFcn(levels),
+		                                     getBinningAnalytic, if (getIncremental) None else tileAnalytics,
+		                                     dataAnalytics, parameters)
+	}
+
 	/**
 	 * Creates a blank metadata describing this tiling task
 	 */
@@ -278,16 +384,71 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 	 * @param tileIO An object that knows how to save tiles.
 	 */
 	def doTiling (tileIO: TileIO): Unit = {
-		doParameterizedTiling(
-			tileIO,
-			StandardBinningFunctions.locateIndexOverLevels(getIndexScheme, getTilePyramid, getNumXBins, getNumYBins),
-			StandardBinningFunctions.populateTileIdentity
-		)
+		if (getColumnar && canBinColumns) {
+			doColumnarTiling(tileIO)
+		} else {
+			if (getColumnar)
+				warn("Task "+getName+" can't be binned straight from its columns; binning it normally")
+			doParameterizedTiling(
+				tileIO,
+				StandardBinningFunctions.locateIndexOverLevels(getIndexScheme, getTilePyramid, getNumXBins, getNumYBins),
+				StandardBinningFunctions.populateTileIdentity,
+				getBottomUp
+			)
+		}
 	}
 
+	/**
+	 * Perform tiling by reading index and value fields straight from their columns, and save tiles.
+	 * Only valid if canBinColumns is true.
+	 * @param tileIO An object that knows how to save tiles.
+	 */
+	def doColumnarTiling (tileIO: TileIO): Unit = {
+		val binner = new ColumnarBinner
+		val sc = sqlc.sparkContext
+
+		val fields = (indexer.fields ++ valuer.fields).map(field => TilingTask.backtickEscapeFieldName(field))
+		val data = sqlc.sql(fields.mkString("SELECT ", ", ", " FROM "+table))
+		val columns = data.columns
+		val xColumn = columns(0)
+		val yColumn = if (indexer.fields.size > 1) Some(columns(1)) else None
+		val valueColumn = if (valuer.fields.isEmpty) None else Some(columns(indexer.fields.size))
+
+		tileAnalytics.map(_.addGlobalAccumulator(sc))
+
+		getLevels.map{levels =>
+			tileAnalytics.map(analytic => levels.map(level => analytic.addLevelAccumulator(sc, level)))
+
+			// When adding to existing tiles, tile analytics are applied to the merged tiles, as they're written
+			val mergeAnalytic =
+				if (getIncremental) Some(UniversalBinner.getMergeableAnalytic(getBinningAnalytic))
+				else None
+			val binningTileAnalytics = if (getIncremental) None else tileAnalytics
+
+			val parameters = BinningParameters(true, getNumXBins, getNumYBins, getConsolidationPartitions, getConsolidationPartitions, None)
+			val tiles = binner.processData[PT, AT, BT](data, xColumn, yColumn, valueColumn, getBinningAnalytic,
+			                                           binningTileAnalytics, getTilePyramid, levels, parameters)
+
+			tileIO.writeTileSet(getTilePyramid, getName, tiles, getTileSerializer,
+				tileAnalytics, dataAnalytics, getName, getDescription, mergeAnalytic)
+		}
+	}
+
+	/**
+	 * Perform tiling with custom location and population functions, and save tiles.
+	 * @param tileIO An object that knows how to save tiles.
+	 * @param locFcn The function used to locate data on tiles, given the levels to tile
+	 * @param popFcn The function used to populate tiles with located data
+	 * @param bottomUp True to bin data only on the deepest level of each level set, and to build
+	 *                 the rest from that by aggregating tiles into their parents; only valid if
+	 *                 the two functions above place data on each level in the parent of the bin
+	 *                 in which they place it on the next level down. See
+	 *                 UniversalBinner.processDataBottomUp.
+	 */
 	def doParameterizedTiling (tileIO: TileIO,
 														 locFcn: Traversable[Int] => Seq[Any] => Traversable[(TileIndex, Array[BinIndex])],
-														 popFcn: (TileIndex, Array[BinIndex], PT) => MutableMap[BinIndex, PT]): Unit = {
+														 popFcn: (TileIndex, Array[BinIndex], PT) => MutableMap[BinIndex, PT],
+														 bottomUp: Boolean = false): Unit = {
 		val binner = new UniversalBinner
 		val sc = sqlc.sparkContext
 
@@ -298,14 +459,26 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 			tileAnalytics.map(analytic => levels.map(level => analytic.addLevelAccumulator(sc, level)))
 			dataAnalytics.map(analytic => levels.map(level => analytic.addLevelAccumulator(sc, level)))
 
+			// When adding to existing tiles, tile analytics are applied to the merged tiles, as they're written
+			val mergeAnalytic =
+				if (getIncremental) Some(UniversalBinner.getMergeableAnalytic(getBinningAnalytic))
+				else None
+			val binningTileAnalytics = if (getIncremental) None else tileAnalytics
+
 			val procFcn: RDD[(Seq[Any], PT, Option[DT])] => Unit =
 				rdd => {
-					val tiles = binner.processData[Seq[Any], PT, AT, DT, BT](rdd, getBinningAnalytic, tileAnalytics, dataAnalytics,
-																																	 locFcn(levels), popFcn,
-						BinningParameters(true, getNumXBins, getNumYBins, getConsolidationPartitions, getConsolidationPartitions, None))
+					val parameters =
+						BinningParameters(true, getNumXBins, getNumYBins, getConsolidationPartitions, getConsolidationPartitions, None,
+						                  preAggregation = getPreAggregationCells.map(new PreAggregation(_, sc)),
+						                  skewPartitioning = getSkewPartitioning)
+					val tiles =
+						if (bottomUp) binner.processDataBottomUp[Seq[Any], PT, AT, DT, BT](rdd, getBinningAnalytic, binningTileAnalytics, dataAnalytics,
+						                                                                  locFcn, popFcn, levels, parameters)
+						else binner.processData[Seq[Any], PT, AT, DT, BT](rdd, getBinningAnalytic, binningTileAnalytics, dataAnalytics,
+						                                                  locFcn(levels), popFcn, parameters)
 
 					tileIO.writeTileSet(getTilePyramid, getName, tiles, getTileSerializer,
-						tileAnalytics, dataAnalytics, getName, getDescription)
+						tileAnalytics, dataAnalytics, getName, getDescription, mergeAnalytic)
 				}
 
 			process(procFcn, None)
@@ -404,6 +577,8 @@ class StaticTilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 {
 	type STRATEGY_TYPE = StaticTilingTaskProcessingStrategy
 	override protected var strategy: STRATEGY_TYPE = null
+	// Our strategy just reads our fields from our table
+	override protected def readsTableDirectly: Boolean = true
 	def initialize (): TilingTask[PT, DT, AT, BT] = {
 		strategy = new StaticTilingTaskProcessingStrategy()
 		this
@@ -412,7 +587,7 @@ class StaticTilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 			extends StaticProcessingStrategy[Seq[Any], PT, DT](sqlc.sparkContext)
 	{
 		protected def getData: RDD[(Seq[Any], PT, Option[DT])] = {
-			val allFields = indexer.fields ++ valuer.fields ++ dataAnalyticFields
+			val allFields = getFields
 			val allFieldsEscaped = allFields.map(v => TilingTask.backtickEscapeFieldName(v))
 
 			val selectStmt =
@@ -420,36 +595,12 @@ class StaticTilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 
 			val data = sqlc.sql(selectStmt)
 
-			val indexFields = indexer.fields.length
-			val valueFields = valuer.fields.length
-			val localDataAnalytics = dataAnalytics
-			val localValuer = valuer
-			val mappedData: RDD[(Seq[Any], PT, Option[DT])] = data.map(row =>
-				{
-					val index = (0 until indexFields).map(n => row(n))
-
-					val values = (indexFields until (indexFields+valueFields)).map(n => row(n))
-					val value = localValuer.convert(values)
-
-					val analyticInputs = ((indexFields+valueFields) until row.length).map(n => row(n))
-					val analysis = localDataAnalytics.map(analytic => analytic.convert(analyticInputs))
-
-					(index, value, analysis)
-				}
-			)
+			val mappedData: RDD[(Seq[Any], PT, Option[DT])] = data.map(getRecordConverter(0 until allFields.length))
 
 			// If set, filter bins that are out of the level 0 tile bounds
-			if (config.filterToRegion) {
-				val iScheme = indexer.indexScheme
-				val area = getTilePyramid.getTileBounds(new TileIndex(0, 0, 0))
-
-				mappedData.filter(lineSeq => {
-					val (x, y) = iScheme.toCartesian(lineSeq._1)
-
-					area.contains(x, y)
-				})
-			} else {
-				mappedData
+			getRegionFilter match {
+				case Some(inRegion) => mappedData.filter(record => inRegion(record._1))
+				case None => mappedData
 			}
 		}
 
@@ -50,6 +50,16 @@ import com.oculusinfo.tilegen.util.OptionsFactoryMixin
  * @param consolidationPartitions The number of partitions into which to consolidate data when performign reduce operations
  * @param tileType The type of tile in which to store our data (dense or sparse).	Unspecified for automatic,
  *								 tile-by-tile heuristic choice
+ * @param filterToRegion Whether to filter out data outside the level 0 tile
+ * @param bottomUp Whether to bin data only on the deepest level of each level set, building the other levels of
+ *                 the set by aggregating tiles into their parents
+ * @param preAggregationCells If given, records are combined by tile and bin within each partition, in up to this many
+ *                            distinct cells at a time, before being shuffled
+ * @param incremental Whether to add the data to any existing tiles, rather than replacing them
+ * @param columnar Whether to bin data straight from its columns, where the task allows it (see
+ *                 TilingTask.canBinColumns)
+ * @param skewSampleFraction If given, this fraction of located records is sampled to find the busiest tiles, which
+ *                           are then spread over several partitions each when records are combined into tiles
  */
 case class TilingTaskParameters (name: String,
 																 description: String,
@@ -59,7 +69,12 @@ case class TilingTaskParameters (name: String,
 																 tileHeight: Int,
 																 consolidationPartitions: Option[Int],
 																 tileType: Option[StorageType],
-																 filterToRegion: Boolean = false)
+																 filterToRegion: Boolean = false,
+																 bottomUp: Boolean = false,
+																 preAggregationCells: Option[Int] = None,
+																 incremental: Boolean = false,
+																 columnar: Boolean = false,
+																 skewSampleFraction: Option[Double] = None)
 {
 }
 
@@ -75,6 +90,11 @@ object TilingTaskParametersFactory {
 	val PARTITIONS_PROPERTY = new IntegerProperty("consolidationPartitions", "The number of partitions into which to consolidate data when performing reduce operations", 0)
 	val TILE_TYPE_PROPERTY = new StringProperty("tileType", "The type of tile storage to use when creating tiles.	If unspecified, a heuristic will be used that is ideal for tiles whose bin values are the size of doubles.	If tiles have bins significantly larger than doubles, sparse is recommended.", "unspecified", Array("unspecified", "dense", "sparse"))
 	val FILTER_TO_REGION = new BooleanProperty("filterToRegion", "Filters out data outside of valid level 0 tile", false)
+	val PRE_AGGREGATION_PROPERTY = new IntegerProperty("preAggregationCells", "If set, records are combined by tile and bin within each partition before being shuffled, holding up to this many distinct tile and bin combinations at a time.	Greatly reduces shuffle size for dense data, but only valid for simple point binning.", 0)
+	val INCREMENTAL_PROPERTY = new BooleanProperty("incremental", "If true, the data is added to any tiles already in the pyramid, rather than replacing them.	Only numeric sum, minimum, and maximum binning support this.", false)
+	val COLUMNAR_PROPERTY = new BooleanProperty("columnar", "If true, and the task uses cartesian indexing, at most one value field, numeric sum, minimum, maximum, or mean binning, no data analytics, and none of bottomUp, preAggregationCells, or skewSampleFraction, data is binned straight from its numeric columns, without converting each record into generic objects first.	Records with null or NaN fields, or outside the pyramid's area, are skipped.", false)
+	val SKEW_SAMPLE_PROPERTY = new DoubleProperty("skewSampleFraction", "If set, this fraction of located records is sampled to estimate how many records fall on each tile, and the busiest tiles are split over several partitions each when records are combined into tiles, while the rest are packed together.	Helps when a few tiles hold most of the data, at the cost of an extra pass over it.", 0.0)
+	val BOTTOM_UP_PROPERTY = new BooleanProperty("bottomUp", "If true, only the deepest level of each group of levels is binned from the raw data; the other levels in the group are built from it by aggregating tiles into their parents.	This is much faster for large groups of levels, but only valid for simple point binning.", false)
 }
 class TilingTaskParametersFactory (parent: ConfigurableFactory[_], path: JavaList[String])
 		extends ConfigurableFactory[TilingTaskParameters](classOf[TilingTaskParameters], parent, path, true)
@@ -90,6 +110,11 @@ class TilingTaskParametersFactory (parent: ConfigurableFactory[_], path: JavaLis
 	addProperty(PARTITIONS_PROPERTY)
 	addProperty(TILE_TYPE_PROPERTY)
 	addProperty(FILTER_TO_REGION)
+	addProperty(BOTTOM_UP_PROPERTY)
+	addProperty(PRE_AGGREGATION_PROPERTY)
+	addProperty(INCREMENTAL_PROPERTY)
+	addProperty(COLUMNAR_PROPERTY)
+	addProperty(SKEW_SAMPLE_PROPERTY)
 
 	private def parseLevels (levelsDescriptions: Seq[String]): Seq[Seq[Int]] = {
 		levelsDescriptions.map(levelSet =>
@@ -119,7 +144,12 @@ class TilingTaskParametersFactory (parent: ConfigurableFactory[_], path: JavaLis
 														 getPropertyValue(TILE_HEIGHT_PROPERTY),
 														 optionalGet(PARTITIONS_PROPERTY).map(_.intValue()),
 														 tileType,
-														 getPropertyValue(FILTER_TO_REGION)
+														 getPropertyValue(FILTER_TO_REGION),
+														 getPropertyValue(BOTTOM_UP_PROPERTY),
+														 optionalGet(PRE_AGGREGATION_PROPERTY).map(_.intValue()).filter(_ > 0),
+														 getPropertyValue(INCREMENTAL_PROPERTY),
+														 getPropertyValue(COLUMNAR_PROPERTY),
+														 optionalGet(SKEW_SAMPLE_PROPERTY).map(_.doubleValue()).filter(_ > 0.0)
 		)
 	}
 }
@@ -31,7 +31,7 @@ import java.io.FileInputStream
 import java.util.Properties
 
 import com.oculusinfo.tilegen.datasets.{CSVReader, CSVDataSource, TilingTask}
-import com.oculusinfo.tilegen.tiling.{UniversalBinner, TileIO}
+import com.oculusinfo.tilegen.tiling.{PreAggregation, UniversalBinner, TileIO}
 import com.oculusinfo.tilegen.util.PropertiesWrapper
 import org.apache.spark.SparkContext
 import org.apache.spark.rdd.RDD
@@ -132,7 +132,10 @@ object CSVBinner {
 					                                      task.getNumXBins,
 					                                      task.getNumYBins,
 					                                      task.getConsolidationPartitions,
-					                                      task.getTileType)
+					                                      task.getTileType,
+					                                      task.getBottomUp,
+					                                      task.getPreAggregationCells.map(new PreAggregation(_, sc)),
+					                                      task.getSkewPartitioning)
 
 					tileIO.writeTileSet(task.getTilePyramid,
 					                    task.getName,
@@ -32,7 +32,7 @@ import java.util.Properties
 
 import com.oculusinfo.binning.BinIndex
 import com.oculusinfo.tilegen.datasets.{CSVReader, CSVDataSource, TilingTask}
-import com.oculusinfo.tilegen.tiling.{UniversalBinner, RDDLineBinner, TileIO}
+import com.oculusinfo.tilegen.tiling.{LevelOfDetail, UniversalBinner, RDDLineBinner, TileIO}
 import com.oculusinfo.tilegen.util.{EndPointsToLine, PropertiesWrapper}
 import org.apache.spark.SparkContext
 import org.apache.spark.rdd.RDD
@@ -84,6 +84,15 @@ import scala.util.Try
  *   	only pixels within 1 tile-length of an endpoint drawn instead of the whole line segment
  *    	being discarded.  Also, line segments will be faded out as they get farther away from an endpoint
  *
+ *  oculus.binning.line.lod.maxbins
+ *  	If set, line segments are binned in level-of-detail mode: segments are clipped to the pyramid,
+ *   	routed to 'point' or 'tile' based binning by their length (instead of by level.threshold), and no
+ *    	segment draws more than this many bins in any one tile.  Not set by default.
+ *
+ *  oculus.binning.line.lod.threshold
+ *  	In level-of-detail mode, the length (in bins) above which line segments use tile-based binning.
+ *   	Default = the number of bins across a tile.
+ *
  *  oculus.binning.hierarchical.clusters
  *  	To configure tile generation of hierarchical clustered data.  Set to false [default] for 'regular'
  *   	tile generation (ie non-clustered data).  If set to true then one needs to assign different source
@@ -145,6 +154,8 @@ object CSVGraphBinner {
 	private var _bDrawLineEnds = false	// [Boolean] switch to draw just the ends of very long line segments
 	private var _bLinesAsArcs = false	// [Boolean] switch to draw line segments as straight lines (default) or as clock-wise arcs.
 	private var _bDrawDirectedArcs = false	// [Boolean] switch to draw directed arcs (direction is inferred by clock-wise curve of arc)
+	private var _lineLODMaxBins: Option[Int] = None	// [bins] max bins per segment per tile, in level-of-detail mode
+	private var _lineLODThres: Option[Int] = None	// [bins] segment length above which level-of-detail mode uses tile-based binning
 
 	def processTask[PT: ClassTag,
 	                   DT: ClassTag,
@@ -164,6 +175,8 @@ object CSVGraphBinner {
 
 			val lenThres = if (_bDrawLineEnds) _lineMaxBins else Int.MaxValue
 			val lineDrawer = new EndPointsToLine(lenThres, task.getNumXBins, task.getNumYBins)
+			val levelOfDetail = _lineLODMaxBins.map(maxBins =>
+				new LevelOfDetail(maxBins, _lineLODThres.getOrElse(task.getNumXBins), sc))
 
 			binner.debug = true
 			task.getLevels.map(levels =>
@@ -215,7 +228,8 @@ object CSVGraphBinner {
 						                                      calcLinePixels,
 						                                      bUsePointBinner,
 						                                      _bLinesAsArcs,
-										 					  _bDrawDirectedArcs)
+										 					  _bDrawDirectedArcs,
+						                                      levelOfDetail)
 						tileIO.writeTileSet(task.getTilePyramid,
 						                    task.getName,
 						                    tiles,
@@ -228,6 +242,10 @@ object CSVGraphBinner {
 					task.process(procFcn, None)
 				}
 			)
+			levelOfDetail.foreach(lod =>
+				println("Level of detail: "+lod.pointSegments.value+" segments drawn by point, "+
+					        lod.tileSegments.value+" by tile; "+lod.clipped.value+" clipped, "+
+					        lod.dropped.value+" dropped, "+lod.thinned.value+" thinned"))
 		}
 		else  {//if (_graphDataType == "nodes")
 			val binner = new UniversalBinner
@@ -356,6 +374,10 @@ object CSVGraphBinner {
 			// Draw directed arcs instead of undirected (direction is inferred by clockwise curve of arc)
 			_bDrawDirectedArcs = Try(props.getProperty("oculus.binning.line.directed.arcs").toBoolean).getOrElse(false)
 
+			// Level-of-detail mode, with a cap on the bins each segment draws in each tile
+			_lineLODMaxBins = Try(props.getProperty("oculus.binning.line.lod.maxbins").toInt).toOption
+			_lineLODThres = Try(props.getProperty("oculus.binning.line.lod.threshold").toInt).toOption
+
 			// check if hierarchical mode is enabled
 			var valTemp = props.getProperty("oculus.binning.hierarchical.clusters","false");
 			var hierarchicalClusters = if (valTemp=="true") true else false
@@ -37,23 +37,40 @@ import com.oculusinfo.binning.TileData
 import com.oculusinfo.binning.TilePyramid
 import com.oculusinfo.binning.impl.DenseTileData
 
+import com.oculusinfo.tilegen.tiling.SpatialPartitionIndex
 import com.oculusinfo.tilegen.tiling.analytics.BinningAnalytic
 
 
 
+/**
+ * Generates single tiles on request from a data set.
+ *
+ * @param indexLevel If given, the data is first spatially partitioned at this level (see
+ *                   SpatialPartitionIndex), so that each tile request only reads the partitions
+ *                   that could contain data on that tile.  If not given, each tile request reads
+ *                   the whole data set.
+ */
 class LiveTileGenerator[PT: ClassTag,
                         BT: ClassTag] (data: RDD[(Double, Double, PT)],
                                        pyramidScheme: TilePyramid,
                                        binAnalytic: BinningAnalytic[PT, BT],
                                        numXBins: Int = 256,
-                                       numYBins: Int = 256) {
+                                       numYBins: Int = 256,
+                                       indexLevel: Option[Int] = None) {
+	private val index = indexLevel.map(level =>
+		SpatialPartitionIndex[(Double, Double, PT)](data, pyramidScheme, record => (record._1, record._2),
+		                                            level, data.partitions.size)
+	)
+
 	def getTile (tileLevel: Int, tileX: Int, tileY: Int): TileData[BT] = {
 		// Localize some of our fields to avoid the need for serialization
 		val localPyramidScheme = pyramidScheme
 		val localBinAnalytic = binAnalytic
 		val targetTile = new TileIndex(tileLevel, tileX, tileY, numXBins, numYBins)
 
-		val bins = data.filter(record =>
+		val tileData = index.map(_.getDataFor(Seq(targetTile))).getOrElse(data)
+
+		val bins = tileData.filter(record =>
 			{
 				val tile = localPyramidScheme.rootToTile(record._1, record._2, tileLevel)
 				tileX == tile.getX() && tileY == tile.getY()
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.live
+
+
+
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+
+import scala.collection.mutable.ArrayBuffer
+import scala.reflect.ClassTag
+
+import grizzled.slf4j.Logging
+
+import org.json.JSONArray
+import org.json.JSONObject
+
+import org.apache.spark.HashPartitioner
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+import org.apache.spark.streaming.dstream.DStream
+
+import com.oculusinfo.binning.BinIndex
+import com.oculusinfo.binning.TileData
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.TilePyramid
+import com.oculusinfo.binning.io.serialization.TileSerializer
+
+import com.oculusinfo.tilegen.tiling.BinningParameters
+import com.oculusinfo.tilegen.tiling.IndexScheme
+import com.oculusinfo.tilegen.tiling.TileIO
+import com.oculusinfo.tilegen.tiling.UniversalBinner
+import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
+import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescriptionTileWrapper
+import com.oculusinfo.tilegen.tiling.analytics.BinningAnalytic
+import com.oculusinfo.tilegen.tiling.analytics.CompositeAnalysisDescription
+import com.oculusinfo.tilegen.tiling.analytics.NumericMaxTileAnalytic
+import com.oculusinfo.tilegen.tiling.analytics.NumericMinTileAnalytic
+import com.oculusinfo.tilegen.util.ExtendedNumeric
+import com.oculusinfo.tilegen.util.TypeConversion
+
+
+
+/**
+ * Something that wants to know when a streaming binner has rewritten tiles - for instance, a
+ * tile server that needs to drop those tiles from its cache (see TileServerUpdateListener).
+ */
+trait TileUpdateListener {
+	/**
+	 * Called on the driver, once the given tiles have been written.
+	 */
+	def onTilesUpdated (pyramidId: String, tiles: Seq[TileIndex]): Unit
+}
+
+/**
+ * Tells a tile server when a streaming binner has rewritten tiles, so that the server drops them
+ * from its tile cache, along with any images rendered from them.  Failures are logged, rather than
+ * stopping the stream; the server's caches are then stale until the tiles are next rewritten.
+ *
+ * @param serverUrl The base URL of the tile server's REST interface, to which
+ *                  /cache/invalidate is appended
+ */
+class TileServerUpdateListener (serverUrl: String, timeout: Int = 10000)
+		extends TileUpdateListener with Logging
+{
+	private val invalidationUrl = new URL(serverUrl.stripSuffix("/")+"/cache/invalidate")
+
+	def onTilesUpdated (pyramidId: String, tiles: Seq[TileIndex]): Unit = {
+		val request = new JSONObject()
+		request.put("pyramidId", pyramidId)
+		val tileArray = new JSONArray()
+		tiles.foreach(tile => tileArray.put(tile.getLevel+"/"+tile.getX+"/"+tile.getY))
+		request.put("tiles", tileArray)
+
+		try {
+			val connection = invalidationUrl.openConnection().asInstanceOf[HttpURLConnection]
+			try {
+				connection.setConnectTimeout(timeout)
+				connection.setReadTimeout(timeout)
+				connection.setRequestMethod("POST")
+				connection.setRequestProperty("Content-Type", "application/json")
+				connection.setDoOutput(true)
+				val output = connection.getOutputStream
+				try {
+					output.write(request.toString.getBytes("UTF-8"))
+				} finally {
+					output.close()
+				}
+				val status = connection.getResponseCode
+				if (status < 200 || 300 <= status)
+					warn("Tile server refused to invalidate "+tiles.size+" tiles of "+pyramidId+": HTTP "+status)
+			} finally {
+				connection.disconnect()
+			}
+		} catch {
+			case e: IOException =>
+				warn("Error telling tile server to invalidate "+tiles.size+" tiles of "+pyramidId, e)
+		}
+	}
+}
+
+/**
+ * The running state of a single tile in a streaming binner: the aggregated, unfinished bin values
+ * of each batch of data still counted on the tile, newest first, and whether the tile has changed
+ * since it was last written.  Without a window, there is only ever one entry, holding all the data
+ * seen so far.
+ */
+case class StreamingTileState[PT] (batches: List[(Long, Map[BinIndex, PT])], dirty: Boolean)
+
+object StreamingTileBinner {
+	private[live] def addBin[PT] (bins: Map[BinIndex, PT], bin: BinIndex, value: PT,
+	                              aggregate: (PT, PT) => PT): Map[BinIndex, PT] =
+		bins + (bin -> bins.get(bin).map(aggregate(_, value)).getOrElse(value))
+
+	private[live] def mergeBins[PT] (a: Map[BinIndex, PT], b: Map[BinIndex, PT],
+	                                 aggregate: (PT, PT) => PT): Map[BinIndex, PT] =
+		if (a.size < b.size) mergeBins(b, a, aggregate)
+		else b.foldLeft(a)((bins, entry) => addBin(bins, entry._1, entry._2, aggregate))
+
+	/**
+	 * Update the state of a single tile with a new batch of data.
+	 *
+	 * @param previous The state of the tile before this batch, if any
+	 * @param update The bins of this batch that fall on the tile, if any
+	 * @param time The time of this batch, in milliseconds
+	 * @param cutoff If given, data from batches at or before this time is dropped
+	 * @return The new state of the tile, or None if the tile no longer needs to be kept.  A tile
+	 *         whose data has all expired is kept for one more batch, with no data, so that it is
+	 *         written out empty.
+	 */
+	private[live] def updateState[PT] (previous: Option[StreamingTileState[PT]],
+	                                   update: Option[Map[BinIndex, PT]],
+	                                   time: Long, cutoff: Option[Long],
+	                                   aggregate: (PT, PT) => PT): Option[StreamingTileState[PT]] = {
+		val previousBatches = previous.map(_.batches).getOrElse(Nil)
+		val retained = cutoff.map(c => previousBatches.filter(_._1 > c)).getOrElse(previousBatches)
+		val expired = retained.size < previousBatches.size
+
+		val batches = (update, cutoff) match {
+			case (None, _) => retained
+			// Windowed - keep each batch separately, so it can expire on its own
+			case (Some(bins), Some(_)) => (time, bins) :: retained
+			// Unwindowed - fold everything into a single entry
+			case (Some(bins), None) =>
+				List((time, retained.headOption.map(b => mergeBins(b._2, bins, aggregate)).getOrElse(bins)))
+		}
+
+		if (batches.isEmpty && !expired) None
+		else Some(StreamingTileState(batches, update.isDefined || expired))
+	}
+
+	/**
+	 * Tile analytics recording the minimum and maximum bin values of each level, as the tile server
+	 * needs to render numeric tiles.  Each call creates new analytics, so each batch is measured
+	 * afresh.
+	 *
+	 * @tparam T The numeric type in which to measure bin values
+	 * @tparam JT The type of bin values in the tiles (generally a Java version of T)
+	 */
+	def minMaxAnalytics[T: ClassTag, JT] (implicit numeric: ExtendedNumeric[T], conversion: TypeConversion[T, JT]):
+			() => Option[AnalysisDescription[TileData[JT], (T, T)]] =
+		() => Some(new CompositeAnalysisDescription(
+			           new AnalysisDescriptionTileWrapper[JT, T](conversion.backwards(_), new NumericMinTileAnalytic[T]()),
+			           new AnalysisDescriptionTileWrapper[JT, T](conversion.backwards(_), new NumericMaxTileAnalytic[T]())))
+
+	private[live] def createTile[PT, BT] (index: TileIndex, state: StreamingTileState[PT],
+	                                      binAnalytic: BinningAnalytic[PT, BT]): TileData[BT] = {
+		val aggregate: (PT, PT) => PT = binAnalytic.aggregate(_, _)
+		val bins = state.batches.map(_._2).reduceOption(mergeBins(_, _, aggregate)).getOrElse(Map[BinIndex, PT]())
+		val tile = UniversalBinner.createEmptyTile(index, bins.size, binAnalytic, BinningParameters())
+		bins.foreach { case (bin, value) => tile.setBin(bin.getX, bin.getY, binAnalytic.finish(value)) }
+		UniversalBinner.compactTile(tile)
+		tile
+	}
+}
+
+/**
+ * Maintains a tile pyramid from a stream of data, one micro-batch at a time.
+ *
+ * The binner keeps the running, unfinished bin values of every tile with data, in a cached RDD
+ * keyed by tile.  Each batch of data is aggregated by tile and bin, and merged into that state with
+ * the bin analytic's aggregation.  Only tiles changed by the batch are then written, replacing
+ * their previous versions, and any registered listeners are told which tiles those were.
+ *
+ * If a window is given, each tile keeps the data of each batch separately, and drops it once it is
+ * older than the window; tiles whose data has all expired are written out empty, and then
+ * forgotten.  Without a window, data is kept indefinitely, and tiles are only ever added to.  A
+ * window multiplies the state kept by up to the number of batches in the window, so should be
+ * used with batch intervals that are not too short relative to it.
+ *
+ * The binner itself lives on the driver, and is not serializable, so cannot be used with a
+ * checkpointed streaming context.  Its own state is checkpointed every checkpointInterval batches,
+ * if the spark context has a checkpoint directory, to keep its lineage from growing without bound.
+ *
+ * The state is hash partitioned by tile, and each batch is aggregated straight into the same
+ * partitioning, so merging a batch into the state only shuffles the batch, never the state.
+ *
+ * @param window The length of time for which data is counted, in milliseconds.  If not given,
+ *               data is counted forever.
+ * @param numPartitions The number of partitions into which to divide the state.  If not given, the
+ *                      default parallelism of the spark context of the first batch is used.
+ * @param tileAnalytics Creates the tile analytics to record in the pyramid's metadata with each
+ *                      batch (see StreamingTileBinner.minMaxAnalytics).  These are measured over
+ *                      every tile with data, not just those rewritten by the batch, so they
+ *                      describe the whole pyramid.
+ */
+class StreamingTileBinner[IT: ClassTag, PT: ClassTag, BT] (pyramidId: String,
+                                                           tileIO: TileIO,
+                                                           serializer: TileSerializer[BT],
+                                                           pyramid: TilePyramid,
+                                                           levels: Seq[Int],
+                                                           indexScheme: IndexScheme[IT],
+                                                           binAnalytic: BinningAnalytic[PT, BT],
+                                                           xBins: Int = 256,
+                                                           yBins: Int = 256,
+                                                           window: Option[Long] = None,
+                                                           checkpointInterval: Int = 10,
+                                                           numPartitions: Option[Int] = None,
+                                                           name: String = "unknown",
+                                                           description: String = "unknown",
+                                                           tileAnalytics: () => Option[AnalysisDescription[TileData[BT], _]] = () => None) {
+	private val listeners = ArrayBuffer[TileUpdateListener]()
+	private var state: Option[RDD[(TileIndex, StreamingTileState[PT])]] = None
+	private var partitioner: Option[HashPartitioner] = None
+	private var batchCount = 0
+
+	def addListener (listener: TileUpdateListener): Unit = listeners.synchronized {
+		listeners += listener
+	}
+
+	def removeListener (listener: TileUpdateListener): Unit = listeners.synchronized {
+		listeners -= listener
+	}
+
+	/**
+	 * Bin each micro-batch of the given stream as it arrives.
+	 */
+	def process (data: DStream[(IT, PT)]): Unit =
+		data.foreachRDD((rdd, time) => processBatch(rdd, time.milliseconds))
+
+	/**
+	 * Bin a single batch of data, write any tiles that have changed, and notify listeners.
+	 *
+	 * @param time The time of this batch, in milliseconds, against which the window is measured
+	 * @return The tiles that were written
+	 */
+	def processBatch (data: RDD[(IT, PT)], time: Long): Seq[TileIndex] = {
+		// Localize some of our fields to avoid the need for serialization
+		val localIndexScheme = indexScheme
+		val localPyramid = pyramid
+		val localLevels = levels
+		val localXBins = xBins
+		val localYBins = yBins
+		val localBinAnalytic = binAnalytic
+		val aggregate: (PT, PT) => PT = localBinAnalytic.aggregate(_, _)
+		val cutoff = window.map(time - _)
+		val statePartitioner = partitioner.getOrElse {
+			val created = new HashPartitioner(numPartitions.getOrElse(data.context.defaultParallelism))
+			partitioner = Some(created)
+			created
+		}
+
+		val bounds = pyramid.getTileBounds(new TileIndex(0, 0, 0))
+		val (minX, minY, maxX, maxY) = (bounds.getMinX, bounds.getMinY, bounds.getMaxX, bounds.getMaxY)
+
+		val batch: RDD[(TileIndex, Map[BinIndex, PT])] = data.flatMap { case (index, value) =>
+			val (x, y) = localIndexScheme.toCartesian(index)
+			if (minX <= x && x < maxX && minY <= y && y < maxY) {
+				localLevels.map { level =>
+					val tile = localPyramid.rootToTile(x, y, level, localXBins, localYBins)
+					(tile, (localPyramid.rootToBin(x, y, tile), value))
+				}
+			} else {
+				Seq()
+			}
+		}.aggregateByKey(Map[BinIndex, PT](), statePartitioner)(
+			(bins, binValue) => StreamingTileBinner.addBin(bins, binValue._1, binValue._2, aggregate),
+			(a, b) => StreamingTileBinner.mergeBins(a, b, aggregate)
+		)
+
+		val newState: RDD[(TileIndex, StreamingTileState[PT])] = state match {
+			case None =>
+				batch.mapValues(bins => StreamingTileState(List((time, bins)), true))
+			case Some(oldState) =>
+				// Both sides share our partitioner, so this is a narrow dependency on the state
+				oldState.cogroup(batch, statePartitioner).flatMapValues { case (previous, update) =>
+					StreamingTileBinner.updateState(previous.headOption, update.headOption, time, cutoff, aggregate).toSeq
+				}
+		}
+		newState.persist(StorageLevel.MEMORY_AND_DISK)
+		batchCount += 1
+		if (0 == batchCount % checkpointInterval && newState.context.getCheckpointDir.isDefined)
+			newState.checkpoint()
+
+		// Write out the tiles that have changed
+		val dirtyIndices = newState.filter(_._2.dirty).keys.collect().toSeq
+		if (!dirtyIndices.isEmpty) {
+			val analytics = tileAnalytics()
+			if (analytics.isDefined) writeTiles(newState, analytics.get)
+			else tileIO.writeTileSet(pyramid, pyramidId, dirtyTiles(newState, None), serializer, None, None, name, description)
+		}
+
+		// The new state is now materialized, so we are done with the old one
+		state.foreach(_.unpersist(false))
+		state = Some(newState)
+
+		if (!dirtyIndices.isEmpty) {
+			listeners.synchronized(listeners.toList).foreach(_.onTilesUpdated(pyramidId, dirtyIndices))
+		}
+		dirtyIndices
+	}
+
+	// Create the tiles that have changed, recording the tile analytics of each, if any, in it
+	private def dirtyTiles[AT] (state: RDD[(TileIndex, StreamingTileState[PT])],
+	                            analytics: Option[AnalysisDescription[TileData[BT], AT]]): RDD[TileData[BT]] = {
+		val localBinAnalytic = binAnalytic
+		state.filter(_._2.dirty).map { case (index, tileState) =>
+			val tile = StreamingTileBinner.createTile(index, tileState, localBinAnalytic)
+			analytics.foreach(analytic => AnalysisDescription.record(analytic.convert(tile), analytic, tile))
+			tile
+		}
+	}
+
+	// Write the tiles that have changed, along with tile analytics measured over all tiles with data
+	private def writeTiles[AT] (state: RDD[(TileIndex, StreamingTileState[PT])],
+	                            analytics: AnalysisDescription[TileData[BT], AT]): Unit = {
+		val localBinAnalytic = binAnalytic
+		analytics.addGlobalAccumulator(state.context)
+		levels.foreach(level => analytics.addLevelAccumulator(state.context, level))
+		state.filter(!_._2.batches.isEmpty).foreach { case (index, tileState) =>
+			val tile = StreamingTileBinner.createTile(index, tileState, localBinAnalytic)
+			analytics.accumulate(index, analytics.convert(tile))
+		}
+		tileIO.writeTileSet(pyramid, pyramidId, dirtyTiles(state, Some(analytics)), serializer,
+		                    Some(analytics), None, name, description)
+	}
+
+	// The current state, for testing purposes only
+	private[live] def getState: Option[RDD[(TileIndex, StreamingTileState[PT])]] = state
+
+	/**
+	 * Get the number of tiles currently holding data
+	 */
+	def getTileCount: Long = state.map(_.filter(!_._2.batches.isEmpty).count()).getOrElse(0L)
+}
@@ -1010,13 +1010,8 @@ object PipelineOperations {
 									 valueColSpec: Option[String] = None,
 									 valueColType: Option[String] = None)
 									(input: PipelineData) = {
-		val tileIO = hbaseParameters match {
-			case Some(p) => new HBaseTileIO(p.zookeeperQuorum, p.zookeeperPort, p.hbaseMaster)
-			case None => new LocalTileIO("avro")
-		}
-		val properties = Map("oculus.binning.projection.type" -> "webmercator")
-
-		heatMapOpImpl(xColSpec, yColSpec, operation, valueColSpec, valueColType, tilingParams, tileIO, properties)(input)
+		heatMapOpImpl(xColSpec, yColSpec, operation, valueColSpec, valueColType, tilingParams,
+		              heatMapTileIO(hbaseParameters), geoHeatMapProperties)(input)
 	}
 
 	/**
@@ -1045,12 +1040,51 @@ object PipelineOperations {
 												 valueColType: Option[String] = None,
 												 bounds: Option[Bounds] = None)
 												(input: PipelineData) = {
-		val tileIO = hbaseParameters match {
+		heatMapOpImpl(xColSpec, yColSpec, operation, valueColSpec, valueColType, tilingParams,
+		              heatMapTileIO(hbaseParameters), crossplotHeatMapProperties(bounds))(input)
+	}
+
+	/**
+	 * A heatmap tile generator that produces several heatmaps from the same data at once.  Separate
+	 * geoHeatMapOp and crossplotHeatMapOp stages each read, convert, and shuffle the input data anew; this
+	 * reads the input data once, and combines the tiles of every heatmap in a single shuffle (see FusedTiling),
+	 * before writing each heatmap as its own tile set.
+	 *
+	 * @param heatmaps Descriptions of the heatmaps to produce
+	 * @param partitions The number of partitions to use when combining records into tiles.  None to use the
+	 *                   largest number of consolidation partitions given for any of the heatmaps.
+	 * @param input Pipeline data to tile.
+	 * @return Unmodified input data.
+	 */
+	def multiHeatMapOp(heatmaps: Seq[HeatMapSpec],
+	                   partitions: Option[Int] = None)
+	                  (input: PipelineData) = {
+		val tableName = PipelineOperations.getOrGenTableName(input, "heatmap_op")
+
+		val outputs: Seq[(TilingTask[_, _, _, _], TileIO)] = heatmaps.map { heatmap =>
+			val properties =
+				if (heatmap.crossplot) crossplotHeatMapProperties(heatmap.bounds)
+				else geoHeatMapProperties
+			val tilingTask = createHeatMapTask(heatmap.xColSpec, heatmap.yColSpec, heatmap.operation,
+			                                   heatmap.valueColSpec, heatmap.valueColType, heatmap.tilingParams,
+			                                   properties)(input.sqlContext, tableName)
+			(tilingTask, heatMapTileIO(heatmap.hbaseParameters))
+		}
+		FusedTiling(input.sqlContext, tableName, outputs, partitions)
+
+		PipelineData(input.sqlContext, input.srdd, Option(tableName))
+	}
+
+	private def heatMapTileIO(hbaseParameters: Option[HBaseParameters]): TileIO =
+		hbaseParameters match {
 			case Some(p) => new HBaseTileIO(p.zookeeperQuorum, p.zookeeperPort, p.hbaseMaster)
 			case None => new LocalTileIO("avro")
 		}
 
+	private def geoHeatMapProperties: Map[String, String] =
+		Map("oculus.binning.projection.type" -> "webmercator")
 
+	private def crossplotHeatMapProperties(bounds: Option[Bounds]): Map[String, String] = {
 		val properties = Map("oculus.binning.projection.type" -> "areaofinterest")
 		val boundsProps = bounds match {
 			case Some(b) => Map("oculus.binning.projection.autobounds" -> "false",
@@ -1060,9 +1094,7 @@ object PipelineOperations {
 													"oculus.binning.projection.maxY" -> b.maxY.toString)
 			case None => Map("oculus.binning.projection.autobounds" -> "true")
 		}
-
-		heatMapOpImpl(xColSpec, yColSpec, operation, valueColSpec, valueColType, tilingParams, tileIO,
-									properties ++ boundsProps)(input)
+		properties ++ boundsProps
 	}
 
 	private def heatMapOpImpl(xColSpec: String,
@@ -1074,6 +1106,23 @@ object PipelineOperations {
 														tileIO: TileIO,
 														properties: Map[String, String])
 													 (input: PipelineData) = {
+		val tableName = PipelineOperations.getOrGenTableName(input, "heatmap_op")
+
+		val tilingTask = createHeatMapTask(xColSpec, yColSpec, operation, valueColSpec, valueColType, taskParameters,
+		                                   properties)(input.sqlContext, tableName)
+		tilingTask.doTiling(tileIO)
+
+		PipelineData(input.sqlContext, input.srdd, Option(tableName))
+	}
+
+	private def createHeatMapTask(xColSpec: String,
+	                              yColSpec: String,
+	                              operation: OperationType,
+	                              valueColSpec: Option[String],
+	                              valueColType: Option[String],
+	                              taskParameters: TilingTaskParameters,
+	                              properties: Map[String, String])
+	                             (sqlc: SQLContext, tableName: String): TilingTask[_, _, _, _] = {
 		// Populate baseline args
 		val args = Map(
 			"oculus.binning.name" -> taskParameters.name,
@@ -1100,12 +1149,7 @@ object PipelineOperations {
 		// Parse bounds and level args
 		val levelsProps = createLevelsProps("oculus.binning", taskParameters.levels)
 
-		val tableName = PipelineOperations.getOrGenTableName(input, "heatmap_op")
-
-		val tilingTask = TilingTask(input.sqlContext, tableName, args ++ levelsProps ++ valueProps ++ properties)
-		tilingTask.doTiling(tileIO)
-
-		PipelineData(input.sqlContext, input.srdd, Option(tableName))
+		TilingTask(sqlc, tableName, args ++ levelsProps ++ valueProps ++ properties)
 	}
 
 	def heatMapBlurredImpl(xColSpec: String,
@@ -1347,6 +1391,24 @@ case class HBaseParameters(zookeeperQuorum: String, zookeeperPort: String, hbase
  */
 case class Bounds(minX: Double, minY: Double, maxX: Double, maxY: Double)
 
+/**
+ * A description of a single heatmap produced by multiHeatMapOp.  The parameters are those of geoHeatMapOp,
+ * or, for a crossplot heatmap, of crossplotHeatMapOp.
+ *
+ * @param crossplot True for a crossplot heatmap over an area of interest, false for a geographic heatmap.
+ * @param bounds The bounds of a crossplot heatmap.  None indicates that bounds will be auto-generated
+ *               based on input data.
+ */
+case class HeatMapSpec(xColSpec: String,
+                       yColSpec: String,
+                       tilingParams: TilingTaskParameters,
+                       hbaseParameters: Option[HBaseParameters] = None,
+                       operation: OperationType.OperationType = OperationType.COUNT,
+                       valueColSpec: Option[String] = None,
+                       valueColType: Option[String] = None,
+                       crossplot: Boolean = false,
+                       bounds: Option[Bounds] = None)
+
 /**
  * Supported heatmap aggregation types.	Count assigns a value of 1 to for each record and sums,
  * Sum extracts a value from each record and sums, Max/Min extracts a value from each record and takes
@@ -47,6 +47,21 @@ object StandardBinningFunctions
 
 
 
+/**
+ * The population function behind StandardBinningFunctions.populateTileIdentity.  It is a single,
+ * named instance so that the binner can recognize it, and skip it when it can place values in
+ * bins more cheaply itself.
+ */
+object IdentityTilePopulation
+		extends ((TileIndex, Array[BinIndex], Any) => MutableMap[BinIndex, Any])
+		with Serializable
+{
+	def apply (tile: TileIndex, bins: Array[BinIndex], value: Any): MutableMap[BinIndex, Any] =
+		MutableMap(bins.map(bin => (TileIndex.universalBinIndexToTileBinIndex(tile, bin).getBin, value)): _*)
+}
+
+
+
 /**
  * A repository of standard index location and tile population functions for point inputs,
  * for use with the UniversalBinner
@@ -100,7 +115,7 @@ trait StandardPointBinningFunctions {
 	 * correct coordinate system.
 	 */
 	def populateTileIdentity[T]: (TileIndex, Array[BinIndex], T) => MutableMap[BinIndex, T] =
-		(tile, bins, value) => MutableMap(bins.map(bin => (TileIndex.universalBinIndexToTileBinIndex(tile, bin).getBin, value)): _*)
+		IdentityTilePopulation.asInstanceOf[(TileIndex, Array[BinIndex], T) => MutableMap[BinIndex, T]]
 
   /**
    * Returns a two dimensional array with diameter radius*2+1 and given then standard deviation
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2015 Uncharted Software Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import grizzled.slf4j.Logging
+
+import scala.collection.mutable.{Map => MutableMap}
+import scala.reflect.ClassTag
+
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.{DataFrame, Row}
+import org.apache.spark.sql.types.{ByteType, DoubleType, FloatType, IntegerType, LongType, ShortType}
+
+import com.oculusinfo.binning.TileData
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.TilePyramid
+import com.oculusinfo.binning.impl.AOITilePyramid
+import com.oculusinfo.binning.impl.WebMercatorTilePyramid
+import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
+import com.oculusinfo.tilegen.tiling.analytics.BinningAnalytic
+
+
+
+/**
+ * Locates chunks of points on tiles and bins, filling arrays of tile and bin coordinates rather
+ * than creating index objects for each point.  Each chunk is prepared once, and then located on
+ * each level in turn.  Locators keep per-chunk state, so each thread needs its own.
+ */
+abstract class ChunkLocator {
+	/** Prepare to locate the first n points of the given coordinate arrays */
+	def prepare (xs: Array[Double], ys: Array[Double], n: Int): Unit
+
+	/**
+	 * Locate the prepared points on the given level.  Bin coordinates are within the tile, with y
+	 * running down the tile, as from TilePyramid.rootToBin.
+	 */
+	def locate (level: Int, xBins: Int, yBins: Int,
+	            tileXs: Array[Int], tileYs: Array[Int], binXs: Array[Int], binYs: Array[Int]): Unit
+}
+
+object ChunkLocator {
+	/**
+	 * Get a locator for the given pyramid.  Area-of-interest and web mercator pyramids are located
+	 * arithmetically, with the same operations those pyramids use, so give the same tiles and bins;
+	 * any other pyramid is asked to locate each point.
+	 */
+	def apply (pyramid: TilePyramid, chunkSize: Int): ChunkLocator = pyramid match {
+		case aoi: AOITilePyramid =>
+			val bounds = aoi.getBounds
+			new LinearChunkLocator(bounds.getMinX, bounds.getMinY, bounds.getWidth, bounds.getHeight, chunkSize)
+		case mercator: WebMercatorTilePyramid => new MercatorChunkLocator(chunkSize)
+		case _ => new PyramidChunkLocator(pyramid)
+	}
+}
+
+/**
+ * Locates points on pyramids whose tiles evenly divide a space, given the fraction of the way
+ * across that space of each point.  Since the number of tiles across each level is a power of two,
+ * scaling these fractions by it is exact, so gives just what the pyramid itself does.
+ */
+abstract class FractionalChunkLocator (chunkSize: Int) extends ChunkLocator {
+	protected val us = new Array[Double](chunkSize)
+	protected val vs = new Array[Double](chunkSize)
+	private var n = 0
+
+	/** Fill in the fractions of the way across (us) and up or down (vs) the first n points */
+	protected def toFractions (xs: Array[Double], ys: Array[Double], n: Int): Unit
+	/** Get the vertical position of a point on a level, in tiles from the bottom */
+	protected def toTileY (v: Double, numTiles: Double): Double
+
+	def prepare (xs: Array[Double], ys: Array[Double], n: Int): Unit = {
+		toFractions(xs, ys, n)
+		this.n = n
+	}
+
+	def locate (level: Int, xBins: Int, yBins: Int,
+	            tileXs: Array[Int], tileYs: Array[Int], binXs: Array[Int], binYs: Array[Int]): Unit = {
+		val numTiles = (1L << level).toDouble
+		var i = 0
+		while (i < n) {
+			val fx = numTiles * us(i)
+			val fy = toTileY(vs(i), numTiles)
+			val tileX = math.floor(fx).toInt
+			val tileY = math.floor(fy).toInt
+			tileXs(i) = tileX
+			tileYs(i) = tileY
+			binXs(i) = math.floor((fx - tileX) * xBins).toInt
+			binYs(i) = yBins - 1 - math.floor((fy - tileY) * yBins).toInt
+			i += 1
+		}
+	}
+}
+
+/**
+ * Locates points on an area-of-interest pyramid.
+ */
+class LinearChunkLocator (minX: Double, minY: Double, width: Double, height: Double, chunkSize: Int)
+		extends FractionalChunkLocator(chunkSize)
+{
+	private val recipDiffX = 1.0 / width
+	private val recipDiffY = 1.0 / height
+
+	protected def toFractions (xs: Array[Double], ys: Array[Double], n: Int): Unit = {
+		var i = 0
+		while (i < n) {
+			us(i) = (xs(i) - minX) * recipDiffX
+			vs(i) = (ys(i) - minY) * recipDiffY
+			i += 1
+		}
+	}
+
+	protected def toTileY (v: Double, numTiles: Double): Double = numTiles * v
+}
+
+/**
+ * Locates points, given in longitude and latitude, on a web mercator pyramid.
+ */
+class MercatorChunkLocator (chunkSize: Int) extends FractionalChunkLocator(chunkSize) {
+	protected def toFractions (xs: Array[Double], ys: Array[Double], n: Int): Unit = {
+		var i = 0
+		while (i < n) {
+			val latR = math.toRadians(ys(i))
+			us(i) = (xs(i) + 180.0) / 360.0
+			// The fraction of the way down the pyramid
+			vs(i) = (1 - math.log(math.tan(latR) + 1 / math.cos(latR)) / math.Pi) / 2
+			i += 1
+		}
+	}
+
+	protected def toTileY (v: Double, numTiles: Double): Double = numTiles - v * numTiles
+}
+
+/**
+ * Locates points on an arbitrary pyramid, by asking the pyramid where each one is.
+ */
+class PyramidChunkLocator (pyramid: TilePyramid) extends ChunkLocator {
+	private var xs: Array[Double] = null
+	private var ys: Array[Double] = null
+	private var n = 0
+
+	def prepare (xs: Array[Double], ys: Array[Double], n: Int): Unit = {
+		this.xs = xs
+		this.ys = ys
+		this.n = n
+	}
+
+	def locate (level: Int, xBins: Int, yBins: Int,
+	            tileXs: Array[Int], tileYs: Array[Int], binXs: Array[Int], binYs: Array[Int]): Unit = {
+		var i = 0
+		while (i < n) {
+			val tile = pyramid.rootToTile(xs(i), ys(i), level, xBins, yBins)
+			val bin = pyramid.rootToBin(xs(i), ys(i), tile)
+			tileXs(i) = tile.getX
+			tileYs(i) = tile.getY
+			binXs(i) = bin.getX
+			binYs(i) = bin.getY
+			i += 1
+		}
+	}
+}
+
+
+
+object ColumnarBinner {
+	/** The number of rows read into each chunk of column values */
+	val CHUNK_SIZE = 4096
+
+	/**
+	 * Get a function that reads a numeric column of a row as a double, using the getter specific to
+	 * the column's type.
+	 */
+	def columnReader (data: DataFrame, column: String): Row => Double = {
+		val index = data.schema.fieldNames.indexOf(column)
+		if (index < 0) throw new IllegalArgumentException("No column "+column+" in data")
+		data.schema.fields(index).dataType match {
+			case DoubleType => row => row.getDouble(index)
+			case FloatType => row => row.getFloat(index).toDouble
+			case LongType => row => row.getLong(index).toDouble
+			case IntegerType => row => row.getInt(index).toDouble
+			case ShortType => row => row.getShort(index).toDouble
+			case ByteType => row => row.getByte(index).toDouble
+			case other => throw new IllegalArgumentException("Column "+column+" has non-numeric type "+other)
+		}
+	}
+
+	// Tile coordinates are non-negative, and less than 2^29 on any level we can bin, so the level
+	// and both coordinates fit in a single long.
+	private def tileKey (level: Int, x: Int, y: Int): Long = (level.toLong << 58) | (x.toLong << 29) | y.toLong
+
+	private def keyToTile (key: Long, xBins: Int, yBins: Int): TileIndex =
+		new TileIndex((key >>> 58).toInt, ((key >>> 29) & 0x1fffffffL).toInt, (key & 0x1fffffffL).toInt, xBins, yBins)
+
+	/**
+	 * Accumulate the bins of every tile on which the rows of each partition fall, reading the rows
+	 * in chunks of CHUNK_SIZE primitive coordinates and values, and locating each chunk on each
+	 * level in turn.
+	 *
+	 * Rows with a null in any column, or NaN coordinates, are skipped, as are points outside the
+	 * area covered by the pyramid.
+	 *
+	 * @param valueColumn The column holding the value of each row; if not given, each row has a
+	 *                    value of 1, for counting.
+	 * @return The accumulated bins of each tile on which each partition has data; a tile can appear
+	 *         once per partition.
+	 */
+	def aggregateColumns (data: DataFrame,
+	                      xColumn: String,
+	                      yColumn: Option[String],
+	                      valueColumn: Option[String],
+	                      binning: PrimitiveBinning[_],
+	                      pyramid: TilePyramid,
+	                      levels: Seq[Int],
+	                      xBins: Int,
+	                      yBins: Int): RDD[(TileIndex, PrimitiveBinAccumulator)] = {
+		val readX = columnReader(data, xColumn)
+		val readY: Row => Double = yColumn.map(columnReader(data, _)).getOrElse(row => 0.0)
+		val readValue: Row => Double = valueColumn.map(columnReader(data, _)).getOrElse(row => 1.0)
+		val nullableColumns = (Seq(xColumn) ++ yColumn ++ valueColumn).map(data.schema.fieldNames.indexOf(_)).toArray
+		val levelArray = levels.toArray
+
+		data.rdd.mapPartitions { rows =>
+			val locator = ChunkLocator(pyramid, CHUNK_SIZE)
+			val xs = new Array[Double](CHUNK_SIZE)
+			val ys = new Array[Double](CHUNK_SIZE)
+			val values = new Array[Double](CHUNK_SIZE)
+			val tileXs = new Array[Int](CHUNK_SIZE)
+			val tileYs = new Array[Int](CHUNK_SIZE)
+			val binXs = new Array[Int](CHUNK_SIZE)
+			val binYs = new Array[Int](CHUNK_SIZE)
+			val accumulators = MutableMap[Long, PrimitiveBinAccumulator]()
+
+			def binChunk (n: Int): Unit = {
+				locator.prepare(xs, ys, n)
+				var l = 0
+				while (l < levelArray.length) {
+					val level = levelArray(l)
+					val numTiles = 1L << level
+					locator.locate(level, xBins, yBins, tileXs, tileYs, binXs, binYs)
+
+					// Consecutive points are often on the same tile, so remember the last one
+					var lastKey = -1L
+					var lastAccumulator: PrimitiveBinAccumulator = null
+					var i = 0
+					while (i < n) {
+						val tileX = tileXs(i)
+						val tileY = tileYs(i)
+						if (0 <= tileX && tileX < numTiles && 0 <= tileY && tileY < numTiles) {
+							val key = tileKey(level, tileX, tileY)
+							if (key != lastKey) {
+								lastKey = key
+								lastAccumulator = accumulators.getOrElseUpdate(key, new PrimitiveBinAccumulator(xBins, yBins))
+							}
+							lastAccumulator.add(binXs(i), binYs(i), values(i), 1L, binning)
+						}
+						i += 1
+					}
+					l += 1
+				}
+			}
+
+			var n = 0
+			rows.foreach { row =>
+				var hasNull = false
+				var c = 0
+				while (c < nullableColumns.length) {
+					hasNull = hasNull || row.isNullAt(nullableColumns(c))
+					c += 1
+				}
+				if (!hasNull) {
+					val x = readX(row)
+					val y = readY(row)
+					if (!x.isNaN && !y.isNaN) {
+						xs(n) = x
+						ys(n) = y
+						values(n) = readValue(row)
+						n += 1
+						if (CHUNK_SIZE == n) {
+							binChunk(n)
+							n = 0
+						}
+					}
+				}
+			}
+			if (n > 0) binChunk(n)
+
+			accumulators.iterator.map { case (key, accumulator) => (keyToTile(key, xBins, yBins), accumulator) }
+		}
+	}
+}
+
+/**
+ * A binner that reads numeric index and value columns straight from a DataFrame, as primitives,
+ * rather than extracting each row into generic index and value objects first, as the
+ * UniversalBinner does.  Binning is done with primitive accumulators (see PrimitiveBinAccumulator),
+ * so is only available for numeric sum (including count), minimum, maximum, and mean binning,
+ * of simple points, with no data analytics.
+ *
+ * Each partition is read in chunks, and each chunk located on all levels, with bins of each tile
+ * accumulated within the partition before anything is shuffled.  This bounds the shuffle to one
+ * accumulator per tile per partition, but holds the bins of every tile a partition touches in
+ * memory until the partition is done.
+ *
+ * For the best performance with column stores such as parquet, the data should have only the
+ * needed columns selected, so that no others are read.
+ */
+class ColumnarBinner extends Logging {
+	import ColumnarBinner._
+
+	/**
+	 * @param data The data to bin
+	 * @param xColumn The column holding the x coordinate of each point
+	 * @param yColumn The column holding the y coordinate of each point; if not given, y is 0, for
+	 *                one-dimensional binning.
+	 * @param valueColumn The column holding the value of each point; if not given, each point has
+	 *                    a value of 1.
+	 * @param binAnalytic The aggregation function to use to tile the data
+	 * @param tileAnalytics Optional analytics to apply to each produced tile
+	 * @param levels The levels on which to bin the data
+	 * @param parameters General binning parameters affecting how this tiling will be done.
+	 */
+	def processData[PT: ClassTag, AT: ClassTag, BT] (data: DataFrame,
+	                                                 xColumn: String,
+	                                                 yColumn: Option[String],
+	                                                 valueColumn: Option[String],
+	                                                 binAnalytic: BinningAnalytic[PT, BT],
+	                                                 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+	                                                 pyramid: TilePyramid,
+	                                                 levels: Seq[Int],
+	                                                 parameters: BinningParameters = new BinningParameters()): RDD[TileData[BT]] =
+	{
+		val binning: PrimitiveBinning[PT] = PrimitiveBinning(binAnalytic).getOrElse(
+			throw new IllegalArgumentException("Columnar binning only supports numeric sum, minimum, maximum, and mean binning of doubles")
+		)
+		info("Columnar binning of levels "+levels.mkString("[", ", ", "]")+" from columns "
+			     +(Seq(xColumn) ++ yColumn ++ valueColumn).mkString(", "))
+
+		val partitionBins = aggregateColumns(data, xColumn, yColumn, valueColumn, binning, pyramid, levels,
+		                                     parameters.xBins, parameters.yBins)
+		val mergeFcn: (PrimitiveBinAccumulator, PrimitiveBinAccumulator) => PrimitiveBinAccumulator =
+			(a, b) => a.merge(b, binning)
+		val tileBins = parameters.maxPartitions match {
+			case Some(partitions) => partitionBins.reduceByKey(mergeFcn, partitions)
+			case None => partitionBins.reduceByKey(mergeFcn)
+		}
+
+		val noDataAnalytics: Option[AnalysisDescription[_, Any]] = None
+		new UniversalBinner().createPrimitiveTiles[PT, AT, Any, BT](tileBins.mapValues(bins => (bins, None: Option[Any])),
+		                                                          binning, binAnalytic, tileAnalytics, noDataAnalytics,
+		                                                          parameters)
+	}
+}
@@ -49,7 +49,7 @@ import com.oculusinfo.binning.io.impl.{HBaseSlicedPyramidIO, HBasePyramidIO}
 import com.oculusinfo.binning.io.serialization.TileSerializer
 
 import com.oculusinfo.tilegen.spark.IntMaxAccumulatorParam
-import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
+import com.oculusinfo.tilegen.tiling.analytics.{AnalysisDescription, MergeableBinningAnalytic}
 import com.oculusinfo.tilegen.util.ArgumentParser
 
 
@@ -143,6 +143,9 @@ class HBaseTileIO ( zookeeperQuorum: String,
 	 * Write a tile set directly to HBase.
 	 *
 	 * Note that this uses the old Hadoop API
+	 *
+	 * When writing incrementally, existing tiles are read in the same tasks that write the merged
+	 * tiles, so no extra shuffle is needed; see TileIO.writeTileSet.
 	 */
 	override def writeTileSet[BT, AT, DT] (pyramider: TilePyramid,
 	                                       baseLocation: String,
@@ -151,7 +154,10 @@ class HBaseTileIO ( zookeeperQuorum: String,
 	                                       tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
 	                                       dataAnalytics: Option[AnalysisDescription[_, DT]],
 	                                       name: String = "unknown",
-	                                       description: String = "unknown"): Unit = {
+	                                       description: String = "unknown",
+	                                       mergeAnalytic: Option[MergeableBinningAnalytic[_, BT]] = None): Unit = {
+		if (mergeAnalytic.isDefined) checkIncrementalTileAnalytics(tileAnalytics)
+
 		val pyramidIO = getPyramidIO
 
 		// We need some TableOutputFormat constants in here.
@@ -175,7 +181,11 @@ class HBaseTileIO ( zookeeperQuorum: String,
 		// we go.  Note that none of the min/max/count accumulation is actually
 		// done until the file is writting - this just sets it up, it doesn't
 		// run it
-		val HBaseTiles = data.mapPartitions(iter =>
+		val tiles = mergeAnalytic.map(analytic =>
+			mergeWithExistingTiles(baseLocation, data, serializer, analytic, tileAnalytics, dataAnalytics)
+		).getOrElse(data)
+
+		val HBaseTiles = tiles.mapPartitions(iter =>
 			{
 				iter.map(tile =>
 					{
@@ -224,7 +234,9 @@ class HBaseTileIO ( zookeeperQuorum: String,
 											levelSet.value.toSet,
 											tileAnalytics, dataAnalytics,
 											xbins.value, ybins.value,
-											name, description)
+											name, description,
+											mergeAnalytic.isDefined)
+		recordTileSchemas(serializer, metaData)
 		writeMetaData(baseLocation, metaData)
 
 	}
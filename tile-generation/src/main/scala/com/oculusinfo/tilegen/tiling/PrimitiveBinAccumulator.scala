@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2015 Uncharted Software Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import java.util.BitSet
+
+import com.oculusinfo.tilegen.tiling.analytics.{BinningAnalytic, NumericMeanBinningAnalytic}
+import com.oculusinfo.tilegen.tiling.analytics.{NumericMaxBinningAnalytic, NumericMinBinningAnalytic, NumericSumBinningAnalytic}
+import com.oculusinfo.tilegen.util.ExtendedNumeric
+
+
+
+/**
+ * A description of how to aggregate the processed values of a binning analytic as primitives - a
+ * double value and a long count per bin - rather than as objects.
+ *
+ * Values are held as doubles, so only analytics of doubles are accumulated this way; integral
+ * sums held as doubles would silently lose exactness past 2^53.
+ *
+ * @tparam PT The processed type of the binning analytic described
+ */
+abstract class PrimitiveBinning[PT] extends Serializable {
+	/** Get the primitive value of a processed value */
+	def value (processed: PT): Double
+	/** Get the number of data points a processed value represents */
+	def count (processed: PT): Long
+	/** Combine two primitive values */
+	def combine (a: Double, b: Double): Double
+	/** Get the processed value represented by a primitive value and count */
+	def processed (value: Double, count: Long): PT
+}
+
+object PrimitiveBinning {
+	/**
+	 * Get the primitive description of a binning analytic, if it has one.  Numeric sums, minimums,
+	 * maximums and means (and so counts, which are just sums) of doubles have one; anything else,
+	 * including the same analytics over other numeric types, does not.
+	 */
+	def apply[PT] (analytic: BinningAnalytic[PT, _]): Option[PrimitiveBinning[PT]] = {
+		val binning: Option[PrimitiveBinning[_]] = analytic match {
+			case sum: NumericSumBinningAnalytic[_, _] if isDouble(sum.numericType) =>
+				Some(new ScalarPrimitiveBinning(sum.numericType, (a, b) => a + b))
+			case min: NumericMinBinningAnalytic[_, _] if isDouble(min.numericType) =>
+				Some(new ScalarPrimitiveBinning(min.numericType, (a, b) =>
+					     if (a.isNaN) b else if (b.isNaN) a else math.min(a, b)))
+			case max: NumericMaxBinningAnalytic[_, _] if isDouble(max.numericType) =>
+				Some(new ScalarPrimitiveBinning(max.numericType, (a, b) =>
+					     if (a.isNaN) b else if (b.isNaN) a else math.max(a, b)))
+			case mean: NumericMeanBinningAnalytic[_] if isDouble(mean.rawNumericType) =>
+				Some(new MeanPrimitiveBinning(mean.rawNumericType))
+			case _ => None
+		}
+		binning.map(_.asInstanceOf[PrimitiveBinning[PT]])
+	}
+
+	private def isDouble (numeric: ExtendedNumeric[_]): Boolean =
+		numeric.isInstanceOf[ExtendedNumeric.ExtendedDouble]
+}
+
+/**
+ * Primitive binning of analytics whose processed value is a simple number
+ */
+class ScalarPrimitiveBinning[T] (numeric: ExtendedNumeric[T], combineFcn: (Double, Double) => Double)
+		extends PrimitiveBinning[T]
+{
+	def value (processed: T): Double = numeric.toDouble(processed)
+	def count (processed: T): Long = 1L
+	def combine (a: Double, b: Double): Double = combineFcn(a, b)
+	def processed (value: Double, count: Long): T = numeric.fromDouble(value)
+}
+
+/**
+ * Primitive binning of mean analytics, whose processed value is a total and a count
+ */
+class MeanPrimitiveBinning[T] (numeric: ExtendedNumeric[T]) extends PrimitiveBinning[(T, Int)] {
+	def value (processed: (T, Int)): Double = numeric.toDouble(processed._1)
+	def count (processed: (T, Int)): Long = processed._2
+	def combine (a: Double, b: Double): Double = a + b
+	def processed (value: Double, count: Long): (T, Int) = {
+		// The processed count is an Int; fail rather than wrap
+		if (count > Int.MaxValue)
+			throw new ArithmeticException("Mean of "+count+" values overflows its count")
+		(numeric.fromDouble(value), count.toInt)
+	}
+}
+
+
+
+object PrimitiveBinAccumulator {
+	private val EMPTY = -1
+	private val INITIAL_CAPACITY = 16
+}
+
+/**
+ * Accumulates the values of the bins of a single tile in primitive arrays, rather than in a map of
+ * bin objects to boxed values.
+ *
+ * Bins are kept in a small open-addressed hash table keyed by bin number (y * xBins + x) while
+ * few of them are filled; once enough are filled that flat arrays would take less space, the
+ * accumulator switches to flat arrays of the full tile size.
+ *
+ * @param xBins The number of bins across the tile
+ * @param yBins The number of bins down the tile
+ */
+class PrimitiveBinAccumulator (val xBins: Int, val yBins: Int) extends Serializable {
+	import PrimitiveBinAccumulator._
+
+	private val numBins = xBins * yBins
+	// A hash entry takes 20 bytes, at a load factor of at most 1/2; a flat bin takes 16 bytes and a bit
+	private val denseThreshold = numBins / 4
+
+	private var keys: Array[Int] = Array.fill(INITIAL_CAPACITY)(EMPTY)
+	private var values: Array[Double] = new Array[Double](INITIAL_CAPACITY)
+	private var counts: Array[Long] = new Array[Long](INITIAL_CAPACITY)
+	// Which bins are filled, once dense
+	private var filled: BitSet = null
+	private var used = 0
+
+	/** The number of filled bins */
+	def size: Int = used
+
+	def isDense: Boolean = null != filled
+
+	/**
+	 * Add a value to a bin.
+	 *
+	 * @param x The horizontal bin coordinate, within the tile
+	 * @param y The vertical bin coordinate, within the tile
+	 * @param value The primitive value to add
+	 * @param count The number of data points the value represents
+	 * @param binning How to combine values
+	 */
+	def add (x: Int, y: Int, value: Double, count: Long, binning: PrimitiveBinning[_]): Unit =
+		addBin(y * xBins + x, value, count, binning)
+
+	/**
+	 * Merge two accumulators, in place.  The larger of the two accumulators is updated and returned;
+	 * the other should no longer be used.
+	 */
+	def merge (that: PrimitiveBinAccumulator, binning: PrimitiveBinning[_]): PrimitiveBinAccumulator = {
+		val (target, source) = if (this.used >= that.used) (this, that) else (that, this)
+		source.foreachBin((bin, value, count) => target.addBin(bin, value, count, binning))
+		target
+	}
+
+	/**
+	 * Apply a function to each filled bin.
+	 *
+	 * @param fcn A function taking the horizontal and vertical bin coordinates, the value, and the
+	 *            count of a bin
+	 */
+	def foreach (fcn: (Int, Int, Double, Long) => Unit): Unit =
+		foreachBin((bin, value, count) => fcn(bin % xBins, bin / xBins, value, count))
+
+	private def foreachBin (fcn: (Int, Double, Long) => Unit): Unit = {
+		if (isDense) {
+			var bin = filled.nextSetBit(0)
+			while (bin >= 0) {
+				fcn(bin, values(bin), counts(bin))
+				bin = filled.nextSetBit(bin + 1)
+			}
+		} else {
+			var slot = 0
+			while (slot < keys.length) {
+				if (EMPTY != keys(slot)) fcn(keys(slot), values(slot), counts(slot))
+				slot += 1
+			}
+		}
+	}
+
+	private def addBin (bin: Int, value: Double, count: Long, binning: PrimitiveBinning[_]): Unit = {
+		if (isDense) {
+			if (filled.get(bin)) {
+				values(bin) = binning.combine(values(bin), value)
+				counts(bin) += count
+			} else {
+				filled.set(bin)
+				values(bin) = value
+				counts(bin) = count
+				used += 1
+			}
+		} else {
+			val slot = findSlot(keys, bin)
+			if (EMPTY == keys(slot)) {
+				keys(slot) = bin
+				values(slot) = value
+				counts(slot) = count
+				used += 1
+				if (used > denseThreshold) densify()
+				else if (2 * used > keys.length) rehash(2 * keys.length)
+			} else {
+				values(slot) = binning.combine(values(slot), value)
+				counts(slot) += count
+			}
+		}
+	}
+
+	// Linear probing; the table is never more than half full, so there is always an empty slot
+	private def findSlot (table: Array[Int], bin: Int): Int = {
+		val mask = table.length - 1
+		val hash = bin * 0x9E3779B9
+		var slot = (hash ^ (hash >>> 16)) & mask
+		while (EMPTY != table(slot) && bin != table(slot)) slot = (slot + 1) & mask
+		slot
+	}
+
+	private def rehash (capacity: Int): Unit = {
+		val newKeys = Array.fill(capacity)(EMPTY)
+		val newValues = new Array[Double](capacity)
+		val newCounts = new Array[Long](capacity)
+		var slot = 0
+		while (slot < keys.length) {
+			if (EMPTY != keys(slot)) {
+				val newSlot = findSlot(newKeys, keys(slot))
+				newKeys(newSlot) = keys(slot)
+				newValues(newSlot) = values(slot)
+				newCounts(newSlot) = counts(slot)
+			}
+			slot += 1
+		}
+		keys = newKeys
+		values = newValues
+		counts = newCounts
+	}
+
+	private def densify (): Unit = {
+		val newValues = new Array[Double](numBins)
+		val newCounts = new Array[Long](numBins)
+		val newFilled = new BitSet(numBins)
+		var slot = 0
+		while (slot < keys.length) {
+			val bin = keys(slot)
+			if (EMPTY != bin) {
+				newValues(bin) = values(slot)
+				newCounts(bin) = counts(slot)
+				newFilled.set(bin)
+			}
+			slot += 1
+		}
+		keys = null
+		values = newValues
+		counts = newCounts
+		filled = newFilled
+	}
+}
@@ -33,6 +33,7 @@ import scala.collection.mutable.{Map => MutableMap}
 import scala.reflect.ClassTag
 import scala.util.Try
 
+import org.apache.spark.SparkContext
 import org.apache.spark.SparkContext._
 import org.apache.spark.rdd.RDD
 import org.apache.spark.storage.StorageLevel
@@ -115,6 +116,140 @@ object RDDLineBinner {
 				     (bin, value)
 			     })
 	}
+
+	/**
+	 * The projected length of a line segment, in bins - i.e., the number of bins along its
+	 * major axis.
+	 */
+	def projectedLength (start: BinIndex, end: BinIndex): Int =
+		math.abs(start.getX() - end.getX()) max math.abs(start.getY() - end.getY())
+
+	/**
+	 * Clip a line segment to a rectangle of bins, using the Liang-Barsky algorithm.
+	 *
+	 * @param start The start of the segment, in universal bin coordinates
+	 * @param end The end of the segment, in universal bin coordinates
+	 * @return The clipped endpoints, in the same order as the originals, or None if no part
+	 *         of the segment lies inside the rectangle
+	 */
+	def clipSegment (start: BinIndex, end: BinIndex, minX: Int, minY: Int, maxX: Int, maxY: Int):
+			Option[(BinIndex, BinIndex)] =
+	{
+		def inside (bin: BinIndex): Boolean =
+			minX <= bin.getX() && bin.getX() <= maxX && minY <= bin.getY() && bin.getY() <= maxY
+
+		if (inside(start) && inside(end)) {
+			Some((start, end))
+		} else {
+			val x0 = start.getX().toDouble
+			val y0 = start.getY().toDouble
+			val dx = end.getX() - x0
+			val dy = end.getY() - y0
+			var t0 = 0.0
+			var t1 = 1.0
+
+			// Narrow the parametric range of the segment to the part inside one edge of the
+			// rectangle; false if nothing is left.
+			def narrow (p: Double, q: Double): Boolean =
+				if (0.0 == p) {
+					q >= 0.0
+				} else {
+					val r = q / p
+					if (p < 0.0) {
+						if (r > t1) false
+						else { t0 = t0 max r; true }
+					} else {
+						if (r < t0) false
+						else { t1 = t1 min r; true }
+					}
+				}
+
+			if (narrow(-dx, x0 - minX) && narrow(dx, maxX - x0) &&
+				    narrow(-dy, y0 - minY) && narrow(dy, maxY - y0)) {
+				def at (t: Double): BinIndex =
+					new BinIndex(((math.round(x0 + t * dx).toInt) max minX) min maxX,
+					             ((math.round(y0 + t * dy).toInt) max minY) min maxY)
+				Some((at(t0), at(t1)))
+			} else {
+				None
+			}
+		}
+	}
+
+	/**
+	 * Clip a line segment to the bounds of the pyramid.
+	 *
+	 * @param segment The start and end of the segment, in universal bin coordinates, and a
+	 *                tile indicating the level and tile size on which they lie
+	 * @return The clipped segment, with the tile of its new start, or None if it lies
+	 *         entirely outside the pyramid
+	 */
+	def clipToPyramid (segment: (BinIndex, BinIndex, TileIndex)): Option[(BinIndex, BinIndex, TileIndex)] = {
+		val (start, end, tile) = segment
+		val pow2 = 1 << tile.getLevel()
+		clipSegment(start, end, 0, 0, pow2 * tile.getXBins() - 1, pow2 * tile.getYBins() - 1).map{
+			case (clippedStart, clippedEnd) =>
+				if (clippedStart == start) (start, clippedEnd, tile)
+				else (clippedStart, clippedEnd,
+				      TileIndex.universalBinIndexToTileBinIndex(tile, clippedStart).getTile())
+		}
+	}
+
+	/**
+	 * Clip a line segment to the bounds of a single tile.
+	 *
+	 * @return The part of the segment in the given tile, in universal bin coordinates, or None
+	 *         if the segment doesn't cross the tile
+	 */
+	def clipToTile (start: BinIndex, end: BinIndex, tile: TileIndex): Option[(BinIndex, BinIndex)] = {
+		val topLeft = TileIndex.tileBinIndexToUniversalBinIndex(tile, new BinIndex(0, 0))
+		clipSegment(start, end, topLeft.getX(), topLeft.getY(),
+		            topLeft.getX() + tile.getXBins() - 1, topLeft.getY() + tile.getYBins() - 1)
+	}
+
+	/**
+	 * Evenly subsample the bins a segment draws in a single tile, down to at most maxBins
+	 * bins.  Values of the remaining bins are unchanged.
+	 */
+	def thinBins[T] (bins: IndexedSeq[T], maxBins: Int): IndexedSeq[T] =
+		if (bins.size <= maxBins) bins
+		else {
+			val step = bins.size.toDouble / maxBins
+			(0 until maxBins).map(n => bins((n * step).toInt))
+		}
+}
+
+
+
+/**
+ * Parameters and statistics for level-of-detail line binning (see RDDLineBinner.processData).
+ *
+ * In level-of-detail mode, segments are clipped to the pyramid before they are drawn, and
+ * routed by their clipped projected length: short segments are drawn point by point (see
+ * consolidateByPoints), and long ones tile by tile (see consolidateByTiles), where each tile
+ * draws only its own piece of the segment.  No segment draws more than maxBinsPerTile bins in
+ * any one tile.
+ *
+ * The statistics are kept in accumulators, so are only complete once the binning job using
+ * them has run; they also show up, by name, in the Spark UI.  They count segments once per
+ * level, after segments identical within a partition have been combined.
+ *
+ * @param maxBinsPerTile The maximum number of bins any one segment may draw in any one tile;
+ *                       segments with more are evenly subsampled
+ * @param tileThreshold The projected length, in bins, above which a segment is drawn tile by
+ *                      tile instead of point by point.
+ */
+class LevelOfDetail (val maxBinsPerTile: Int, val tileThreshold: Int, sc: SparkContext) extends Serializable {
+	/** The number of segments partly outside the pyramid, that were clipped to it */
+	val clipped = sc.accumulator(0L, "Line segments clipped")
+	/** The number of segments entirely outside the pyramid, that were dropped */
+	val dropped = sc.accumulator(0L, "Line segments dropped")
+	/** The number of times a segment was subsampled to fit in a tile */
+	val thinned = sc.accumulator(0L, "Line segments thinned")
+	/** The number of segments drawn point by point */
+	val pointSegments = sc.accumulator(0L, "Line segments drawn by point")
+	/** The number of segments drawn tile by tile */
+	val tileSegments = sc.accumulator(0L, "Line segments drawn by tile")
 }
 
 
@@ -149,6 +284,9 @@ class RDDLineBinner(minBins: Int = 2,
 	 * @tparam AT The type of tile analytic to apply to tiles
 	 * @tparam DT The type of data analytic to apply to raw data
 	 * @tparam BT The output bin type
+	 * @param levelOfDetail If given, long segments are clipped to each tile before they are
+	 *                      drawn, and no segment draws too many bins in any tile; see
+	 *                      LevelOfDetail.
 	 */
 	def binAndWriteData[RT: ClassTag, IT: ClassTag, PT: ClassTag, AT: ClassTag, DT: ClassTag, BT] (
 		data: RDD[RT],
@@ -170,7 +308,8 @@ class RDDLineBinner(minBins: Int = 2,
 		xBins: Int = 256,
 		yBins: Int = 256,
 		name: String = "unknown",
-		description: String = "unknown") =
+		description: String = "unknown",
+		levelOfDetail: Option[LevelOfDetail] = None) =
 	{
 		if (debug) {
 			println("Binning data")
@@ -183,6 +322,9 @@ class RDDLineBinner(minBins: Int = 2,
 			println("\tY Bins: "+yBins)
 			println("\tName: "+name)
 			println("\tDescription: "+description)
+			levelOfDetail.foreach(lod =>
+				println("\tLevel of detail: at most "+lod.maxBinsPerTile+" bins per segment per tile, "+
+					        "drawing by tile above "+lod.tileThreshold+" bins"))
 		}
 
 		val startTime = System.currentTimeMillis()
@@ -207,7 +349,8 @@ class RDDLineBinner(minBins: Int = 2,
 				                               yBins,
 				                               consolidationPartitions,
 				                               tileType,
-				                               calcLinePixels)
+				                               calcLinePixels,
+				                               levelOfDetail = levelOfDetail)
 				// ... and write them out.
 				tileIO.writeTileSet(tileScheme, writeLocation, tiles,
 				                    serializer, tileAnalytics, dataAnalytics,
@@ -223,6 +366,10 @@ class RDDLineBinner(minBins: Int = 2,
 		bareData.unpersist(false)
 
 		if (debug) {
+			levelOfDetail.foreach(lod =>
+				println("Level of detail: "+lod.pointSegments.value+" segments drawn by point, "+
+					        lod.tileSegments.value+" by tile; "+lod.clipped.value+" clipped, "+
+					        lod.dropped.value+" dropped, "+lod.thinned.value+" thinned"))
 			val endTime = System.currentTimeMillis()
 			println("Finished binning data set " + name + " into "
 				        + levelSets.map(_.size).reduce(_+_)
@@ -263,6 +410,8 @@ class RDDLineBinner(minBins: Int = 2,
 	 *                       or by tile.  Defaults to using point based consolidation.
 	 * @param linesAsArcs Indicates whether the endpoints have lines drawn between them,
 	 *                    or arcs.  Defaults to lines.
+	 * @param levelOfDetail If given, segments are routed to point or tile consolidation by
+	 *                      length, instead of by usePointBinner; see LevelOfDetail.
 	 * @tparam IT the index type, convertible to a cartesian pair with the coordinateFromIndex function
 	 * @tparam PT The bin type, when processing and aggregating
 	 * @tparam AT The type of tile-level analytic to calculate for each tile.
@@ -285,7 +434,8 @@ class RDDLineBinner(minBins: Int = 2,
 			 new EndPointsToLine().endpointsToLineBins,
 		 usePointBinner: Boolean = true,
 		 linesAsArcs: Boolean = false,
-		 drawDirectedArcs: Boolean = false):
+		 drawDirectedArcs: Boolean = false,
+		 levelOfDetail: Option[LevelOfDetail] = None):
 			RDD[TileData[BT]] =
 	{
 		val tileBinToUniBin = (TileIndex.tileBinIndexToUniversalBinIndex)_
@@ -347,7 +497,7 @@ class RDDLineBinner(minBins: Int = 2,
 
 		processData(data, binAnalytic, tileAnalytics, dataAnalytics,
 		            mapOverLevels, xBins, yBins, consolidationPartitions, tileType, calcLinePixels,
-		            usePointBinner, linesAsArcs)
+		            usePointBinner, linesAsArcs, levelOfDetail)
 	}
 
 
@@ -380,6 +530,10 @@ class RDDLineBinner(minBins: Int = 2,
 	 *                       or by tile.  Defaults to using point based consolidation.
 	 * @param linesAsArcs Indicates whether the endpoints have lines drawn between them,
 	 *                    or arcs.  Defaults to lines.
+	 * @param levelOfDetail If given, straight segments are clipped to the pyramid, and each
+	 *                      segment is routed to point or tile consolidation by its projected
+	 *                      length, instead of by usePointBinner.  Arcs are not clipped, as they
+	 *                      leave the bounding box of their endpoints.  See LevelOfDetail.
 	 * @tparam IT The index type, convertable to tile and bin
 	 * @tparam PT The bin type, when processing and aggregating
 	 * @tparam AT The type of tile-level analytic to calculate for each tile.
@@ -399,7 +553,8 @@ class RDDLineBinner(minBins: Int = 2,
 		 calcLinePixels: (BinIndex, BinIndex, PT) => IndexedSeq[(BinIndex, PT)] =
 			 new EndPointsToLine().endpointsToLineBins,
 		 usePointBinner: Boolean = true,
-		 linesAsArcs: Boolean = false): RDD[TileData[BT]] =
+		 linesAsArcs: Boolean = false,
+		 levelOfDetail: Option[LevelOfDetail] = None): RDD[TileData[BT]] =
 	{
 		val metaData = processMetaData(data, indexToUniversalBins, dataAnalytics)
 
@@ -439,14 +594,52 @@ class RDDLineBinner(minBins: Int = 2,
 		}
 
 		// Now, combine by-partition bins into global bins, and turn them into tiles.
-		if (usePointBinner) {
-			consolidateByPoints(partitionBins, binAnalytic, tileAnalytics, dataAnalytics,
-			                    metaData, consolidationPartitions, tileType,
-			                    xBins, yBins, uniBinToTileBin, calcLinePixels)
-		} else {
-			consolidateByTiles(partitionBins, binAnalytic, tileAnalytics, dataAnalytics,
-			                   metaData, consolidationPartitions,
-			                   xBins, yBins, uniBinToTileBin, calcLinePixels)
+		levelOfDetail match {
+			case Some(lod) =>
+				// Clip segments to the pyramid, and route them by their clipped length.
+				val threshold = lod.tileThreshold
+				val clip: ((BinIndex, BinIndex, TileIndex)) => Option[(BinIndex, BinIndex, TileIndex)] =
+					if (linesAsArcs) segment => Some(segment)
+					else segment => RDDLineBinner.clipToPyramid(segment)
+
+				// Clip and route each segment once, tagging it with its route (true for tile
+				// consolidation).  Both routes read the tagged segments, so they are persisted
+				// rather than recomputed (along with the partition binning before them) for each;
+				// spark drops them once they're no longer referenced.
+				val routedSegments = partitionBins.flatMap{case (segment, value) =>
+					val clipped = clip(segment)
+					clipped match {
+						case None => lod.dropped += 1
+						case Some(c) => if (c._1 != segment._1 || c._2 != segment._2) lod.clipped += 1
+					}
+					clipped.map{c =>
+						val byTile = RDDLineBinner.projectedLength(c._1, c._2) > threshold
+						if (byTile) lod.tileSegments += 1 else lod.pointSegments += 1
+						(byTile, (c, value))
+					}
+				}
+				routedSegments.persist(StorageLevel.MEMORY_AND_DISK)
+				val pointSegments = routedSegments.filter(!_._1).map(_._2)
+				val tileSegments = routedSegments.filter(_._1).map(_._2)
+
+				// Short segments are consolidated into bins, and those bins are drawn into the
+				// same tiles as the long segments, so each tile is only created once.
+				val points = consolidatePoints(pointSegments, binAnalytic, consolidationPartitions,
+				                               uniBinToTileBin, calcLinePixels, levelOfDetail)
+				consolidateByTiles(tileSegments, binAnalytic, tileAnalytics, dataAnalytics,
+				                   metaData, consolidationPartitions,
+				                   xBins, yBins, uniBinToTileBin, calcLinePixels,
+				                   Some(points), levelOfDetail, !linesAsArcs)
+			case None =>
+				if (usePointBinner) {
+					consolidateByPoints(partitionBins, binAnalytic, tileAnalytics, dataAnalytics,
+					                    metaData, consolidationPartitions, tileType,
+					                    xBins, yBins, uniBinToTileBin, calcLinePixels)
+				} else {
+					consolidateByTiles(partitionBins, binAnalytic, tileAnalytics, dataAnalytics,
+					                   metaData, consolidationPartitions,
+					                   xBins, yBins, uniBinToTileBin, calcLinePixels)
+				}
 		}
 	}
 
@@ -498,6 +691,49 @@ class RDDLineBinner(minBins: Int = 2,
 
 
 
+	/**
+	 * Draw lines (based on endpoint bins), convert all results from universal bins to tile,bin
+	 * coords, and aggregate the values in each bin.
+	 */
+	private def consolidatePoints[PT: ClassTag]
+		(data: RDD[((BinIndex, BinIndex, TileIndex), PT)],
+		 binAnalytic: BinningAnalytic[PT, _],
+		 consolidationPartitions: Option[Int],
+		 uniBinToTileBin: (TileIndex, BinIndex) => TileAndBinIndices,
+		 calcLinePixels: (BinIndex, BinIndex, PT) => IndexedSeq[(BinIndex, PT)],
+		 levelOfDetail: Option[LevelOfDetail]):
+			RDD[((TileIndex, BinIndex), PT)] =
+	{
+		val expanded = data.flatMap(p =>
+			{
+				val ((lineStart, lineEnd, tile), procValue) = p
+				val located = calcLinePixels(lineStart, lineEnd, procValue).map(b =>
+					{
+						val (bin, scaledValue) = b
+						val tb = uniBinToTileBin(tile, bin)
+						((tb.getTile(), tb.getBin()), scaledValue)
+					}
+				)
+				levelOfDetail match {
+					case Some(lod) if located.size > lod.maxBinsPerTile =>
+						// Make sure no tile gets too many bins from this segment
+						located.groupBy(_._1._1).values.flatMap(tileBins =>
+							{
+								if (tileBins.size > lod.maxBinsPerTile) lod.thinned += 1
+								RDDLineBinner.thinBins(tileBins, lod.maxBinsPerTile)
+							}
+						)
+					case _ => located
+				}
+			}
+		)
+
+		expanded.reduceByKey(binAnalytic.aggregate(_, _),
+		                     RDDLineBinner.getNumSplits(consolidationPartitions, expanded))
+	}
+
+
+
 	private def consolidateByPoints[PT: ClassTag, AT: ClassTag, DT: ClassTag, BT]
 		(data: RDD[((BinIndex, BinIndex, TileIndex), PT)],
 		 binAnalytic: BinningAnalytic[PT, BT],
@@ -528,27 +764,13 @@ class RDDLineBinner(minBins: Int = 2,
 		//
 		// First, the binning data half.
 
-		//     Draw lines (based on endpoint bins), and convert all results from
-		//     universal bins to tile,bin coords
-		val expanded = data.flatMap(p =>
-			{
-				val ((lineStart, lineEnd, tile), procValue) = p
-				calcLinePixels(lineStart, lineEnd, procValue).map(b =>
-					{
-						val (bin, scaledValue) = b
-						val tb = uniBinToTileBin(tile, bin)
-						((tb.getTile(), tb.getBin()), scaledValue)
-					}
-				)
-			}
-		)
-
+		//     Draw lines (based on endpoint bins), and aggregate them into bins.
 		//     Rest of process is same as regular RDDBinner (reduceByKey, convert
 		//     to (tile,(bin,value)), groupByKey, and create tiled results)
 		val reduced: RDD[(TileIndex, (Option[(BinIndex, PT)],
 		                              Option[DT]))] =
-			expanded.reduceByKey(binAnalytic.aggregate(_, _),
-			                     RDDLineBinner.getNumSplits(consolidationPartitions, expanded)
+			consolidatePoints(data, binAnalytic, consolidationPartitions,
+			                  uniBinToTileBin, calcLinePixels, None
 			).map(p => (p._1._1, (Some((p._1._2, p._2)), None)))
 
 		// Now the metadata half (in a way that should take no work if there is no metadata)
@@ -636,7 +858,10 @@ class RDDLineBinner(minBins: Int = 2,
 		 xBins: Int = 256,
 		 yBins: Int = 256,
 		 uniBinToTileBin: (TileIndex, BinIndex) => TileAndBinIndices,
-		 calcLinePixels: (BinIndex, BinIndex, PT) => IndexedSeq[(BinIndex, PT)]):
+		 calcLinePixels: (BinIndex, BinIndex, PT) => IndexedSeq[(BinIndex, PT)],
+		 points: Option[RDD[((TileIndex, BinIndex), PT)]] = None,
+		 levelOfDetail: Option[LevelOfDetail] = None,
+		 clipToTiles: Boolean = false):
 			RDD[TileData[BT]] = {
 
 
@@ -661,36 +886,52 @@ class RDDLineBinner(minBins: Int = 2,
 		// Need flatMap here, else result is an RDD IndexedSeq
 		// val reduced2 = reduced1.flatMap(p => {
 
+		//
+		// When clipping to tiles, the tiles a straight segment crosses are found
+		// without drawing it, and each tile gets only its own piece of the segment.
 		val segmentsByTile: RDD[(TileIndex, (Option[(BinIndex, BinIndex, PT)],
+		                                     Option[(BinIndex, PT)],
 		                                     Option[DT]))] =
 			data.flatMap(p =>
 				{
 					val ((lineStart, lineEnd, tile), procType) = p
 
-					RDDLineBinner.universalBinsToTiles(tile,
-					                                   calcLinePixels(lineStart, lineEnd, procType),
-					                                   uniBinToTileBin).map(tile =>
-						(tile, (Some((lineStart, lineEnd, procType)), None))
-					)
+					if (clipToTiles) {
+						StandardBinningFunctions.linearTiles(lineStart, lineEnd, tile).flatMap(tile =>
+							RDDLineBinner.clipToTile(lineStart, lineEnd, tile).map(piece =>
+								(tile, (Some((piece._1, piece._2, procType)), None, None))
+							)
+						)
+					} else {
+						RDDLineBinner.universalBinsToTiles(tile,
+						                                   calcLinePixels(lineStart, lineEnd, procType),
+						                                   uniBinToTileBin).map(tile =>
+							(tile, (Some((lineStart, lineEnd, procType)), None, None))
+						)
+					}
 				}
 			)
 
+		// Next, any pre-consolidated points to draw into the same tiles
+		val pointsByTile: Option[RDD[(TileIndex, (Option[(BinIndex, BinIndex, PT)],
+		                                          Option[(BinIndex, PT)],
+		                                          Option[DT]))]] =
+			points.map(_.map{case ((index, bin), value) => (index, (None, Some((bin, value)), None))})
 
 		// Now, the metadata half (in a way that should take no work if there
 		// is no metadata)
 		val metaData: Option[RDD[(TileIndex, (Option[(BinIndex, BinIndex, PT)],
+		                                      Option[(BinIndex, PT)],
 		                                      Option[DT]))]] =
-			tileMetaData.map(_.map{case (index, metaData) => (index, (None, Some(metaData)))})
+			tileMetaData.map(_.map{case (index, metaData) => (index, (None, None, Some(metaData)))})
 
-		// Get the combination of the two sets, again in a way that does no
+		// Get the combination of the sets, again in a way that does no
 		// extra work if there is no metadata
 		//
 		// Note that we don't do a simple join because we want all entries from
 		// the segmentsByTile dataset, whether or not they have a corresponding
 		// entry in the metadata dataset
-		val toTile =
-			if (metaData.isDefined) segmentsByTile union metaData.get
-			else segmentsByTile
+		val toTile = (pointsByTile ++ metaData).foldLeft(segmentsByTile)(_ union _)
 
 		// Consolidate segments for each tile index, and any associated metadata,
 		// and draw a tile data based on the consolidated results
@@ -722,9 +963,16 @@ class RDDLineBinner(minBins: Int = 2,
 						val (lineStart, lineEnd, procValue) = segment
 						// get all universal bins in line, discard ones not in current tile,
 						// and convert bins to 'regular' tile/bin units
-						RDDLineBinner.universalBinsToBins(index,
-						                                  calcLinePixels(lineStart, lineEnd, procValue),
-						                                  uniBinToTileBin).foreach(b =>
+						val bins = RDDLineBinner.universalBinsToBins(index,
+						                                             calcLinePixels(lineStart, lineEnd, procValue),
+						                                             uniBinToTileBin)
+						val cappedBins = levelOfDetail match {
+							case Some(lod) if bins.size > lod.maxBinsPerTile =>
+								lod.thinned += 1
+								RDDLineBinner.thinBins(bins, lod.maxBinsPerTile)
+							case _ => bins
+						}
+						cappedBins.foreach(b =>
 							{
 								val (bin, scaledValue) = b
 								val x = bin.getX()
@@ -734,6 +982,12 @@ class RDDLineBinner(minBins: Int = 2,
 						)
 					}
 				)
+				tileData.filter(_._2.isDefined).foreach(p =>
+					{
+						val (bin, value) = p._2.get
+						binValues(bin.getX())(bin.getY()) = binAnalytic.aggregate(binValues(bin.getX())(bin.getY()), value)
+					}
+				)
 
 				// convert aggregated bin values from type PT to BT, and save tile results
 				// Create our tile
@@ -749,9 +1003,9 @@ class RDDLineBinner(minBins: Int = 2,
 				}
 
 				// Add in any pre-calculated metadata
-				tileData.filter(_._2.isDefined).foreach(p =>
+				tileData.filter(_._3.isDefined).foreach(p =>
 					{
-						val analyticValue = p._2.get
+						val analyticValue = p._3.get
 						dataAnalytics.map(da => AnalysisDescription.record(analyticValue, da, tile))
 					}
 				)
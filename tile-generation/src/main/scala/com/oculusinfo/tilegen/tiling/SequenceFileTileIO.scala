@@ -62,7 +62,7 @@ import com.oculusinfo.binning.io.serialization.TileSerializer
 import com.oculusinfo.binning.metadata.PyramidMetaData
 
 import com.oculusinfo.tilegen.spark.IntMaxAccumulatorParam
-import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
+import com.oculusinfo.tilegen.tiling.analytics.{AnalysisDescription, MergeableBinningAnalytic}
 import com.oculusinfo.tilegen.util.ArgumentParser
 import com.oculusinfo.tilegen.util.MissingArgumentException
 
@@ -150,6 +150,8 @@ class SequenceFileTileIO (connection: String) extends TileIO {
 
 	/**
 	 * Write a tile set directly to an HDFS sequence file
+	 *
+	 * Incremental writes aren't supported, as tiles can't be read back by index.
 	 */
 	override def writeTileSet[BT, AT, DT] (pyramider: TilePyramid,
 	                                       baseLocation: String,
@@ -158,7 +160,10 @@ class SequenceFileTileIO (connection: String) extends TileIO {
 	                                       tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
 	                                       dataAnalytics: Option[AnalysisDescription[_, DT]],
 	                                       name: String = "unknown",
-	                                       description: String = "unknown"): Unit = {
+	                                       description: String = "unknown",
+	                                       mergeAnalytic: Option[MergeableBinningAnalytic[_, BT]] = None): Unit = {
+		if (mergeAnalytic.isDefined)
+			throw new UnsupportedOperationException("Incremental writes are not supported for sequence files")
 		checkBaseLocation(fs, baseLocation, true)
 
 		// Record and report the total number of tiles we write, because it's
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015 Uncharted Software Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import grizzled.slf4j.Logging
+
+import scala.collection.mutable.PriorityQueue
+import scala.reflect.ClassTag
+
+import org.apache.spark.Partitioner
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.{PartitionPruningRDD, RDD}
+
+import com.oculusinfo.binning.TileIndex
+
+
+
+/**
+ * Parameters for skew-aware partitioning of the shuffle that consolidates binned records into
+ * tiles (see SkewedTilePartitioner).
+ *
+ * @param sampleFraction The fraction of located records to sample when estimating how many
+ *                       records fall on each tile
+ * @param partitions The number of partitions among which to spread the records; None to use as
+ *                   many as the located records already have
+ * @param maxPlacedTiles The maximum number of sampled tiles to place explicitly.  Tiles beyond
+ *                       this, with the fewest sampled records, are hash partitioned, as are
+ *                       tiles that weren't sampled at all.
+ * @param seed The seed for sampling, so that layouts are repeatable
+ */
+case class SkewPartitioning (sampleFraction: Double = 0.01,
+                             partitions: Option[Int] = None,
+                             maxPlacedTiles: Int = 10000,
+                             seed: Long = 15485863L)
+
+
+
+object SkewedTilePartitioner extends Logging {
+	/**
+	 * Sample the tiles of a set of located records, and lay out partitions to balance the
+	 * estimated number of records in each.
+	 *
+	 * @param tiles The tile of each located record
+	 * @param skew How to sample the records
+	 * @param partitions The approximate number of partitions to create
+	 */
+	def apply (tiles: RDD[TileIndex], skew: SkewPartitioning, partitions: Int): SkewedTilePartitioner = {
+		// Count the whole sample, and keep the busiest tiles, in the same job.  The total comes
+		// from the result of that job, rather than an accumulator, which could count records
+		// more than once if tasks were retried.
+		val maxPlacedTiles = skew.maxPlacedTiles
+		val busiestFirst = Ordering.by[(TileIndex, Long), Long](-_._2)
+		val (sampled, counts) = tiles.sample(false, skew.sampleFraction, skew.seed)
+			.map(tile => (tile, 1L))
+			.reduceByKey(_ + _)
+			.mapPartitions{tileCounts =>
+				val all = tileCounts.toList
+				Iterator((all.map(_._2).sum, all.sorted(busiestFirst).take(maxPlacedTiles)))
+			}
+			.fold((0L, List[(TileIndex, Long)]())){(a, b) =>
+				(a._1 + b._1, (a._2 ++ b._2).sorted(busiestFirst).take(maxPlacedTiles))
+			}
+		val scale = 1.0 / skew.sampleFraction
+
+		fromCounts((sampled * scale).toLong, counts.map{case (tile, count) => (tile, (count * scale).toLong)},
+		           partitions)
+	}
+
+	/**
+	 * Lay out partitions for a set of tiles with known (or estimated) numbers of records.
+	 *
+	 * Each tile with more records than would fit in an evenly balanced partition is hot, and gets
+	 * partitions of its own, its records divided between them by bin row.  The remaining tiles are
+	 * cold, and are packed, busiest first, into whichever of the remaining partitions has the
+	 * fewest records so far.
+	 *
+	 * @param total The total number of records
+	 * @param counts The number of records on each of the busiest tiles
+	 * @param partitions The approximate number of partitions to create
+	 */
+	def fromCounts (total: Long, counts: Seq[(TileIndex, Long)], partitions: Int): SkewedTilePartitioner = {
+		val target = math.max(1.0, total.toDouble / math.max(1, partitions))
+		val (hot, cold) = counts.sortBy(-_._2).partition(_._2 > target)
+
+		var nextPartition = 0
+		val hotTiles = hot.map{case (tile, count) =>
+			val splits = math.min(tile.getYBins, math.ceil(count / target).toInt)
+			val placement = (tile, (nextPartition, splits))
+			nextPartition += splits
+			placement
+		}.toMap
+
+		val coldPartitions = math.max(1, partitions - nextPartition)
+		// Lightest partition first, lowest-numbered first among equals
+		val loads = PriorityQueue[(Long, Int)]()(Ordering.by[(Long, Int), (Long, Int)](load => (-load._1, -load._2)))
+		(0 until coldPartitions).foreach(p => loads.enqueue((0L, p)))
+		val coldTiles = cold.map{case (tile, count) =>
+			val (load, partition) = loads.dequeue()
+			loads.enqueue((load + count, partition))
+			(tile, partition)
+		}.toMap
+
+		val partitioner = new SkewedTilePartitioner(hotTiles, coldTiles, coldPartitions)
+		info("Skewed tile partitioning: "+partitioner.numPartitions+" partitions for an estimated "+total
+			     +" records ("+target.toLong+" per partition)")
+		info("\t"+hotTiles.size+" hot tiles split over "+nextPartition+" partitions")
+		hot.take(10).foreach{case (tile, count) =>
+			info("\t\t"+tile+": "+count+" records in "+hotTiles(tile)._2+" partitions")
+		}
+		info("\t"+coldTiles.size+" cold tiles packed into "+coldPartitions+" partitions, with at most "
+			     +loads.map(_._1).max+" records each; other tiles are hashed into the same partitions")
+		partitioner
+	}
+}
+
+/**
+ * A partitioner for records keyed by tile and split, which gives each busy ("hot") tile several
+ * partitions of its own, split by bin row, and packs the rest ("cold") into shared partitions.
+ *
+ * Hot tiles come out of the shuffle in pieces, which mergeSplits puts back together; only the
+ * pieces of hot tiles are shuffled again to do so.
+ *
+ * @param hotTiles The first partition of each hot tile, and the number of partitions it has
+ * @param coldTiles The cold partition, numbered from 0, of each explicitly placed cold tile
+ * @param coldPartitions The number of partitions to share among cold tiles
+ */
+class SkewedTilePartitioner (hotTiles: Map[TileIndex, (Int, Int)],
+                             coldTiles: Map[TileIndex, Int],
+                             coldPartitions: Int) extends Partitioner {
+	private val hotPartitions = hotTiles.values.map(_._2).sum
+
+	override def numPartitions: Int = hotPartitions + coldPartitions
+
+	override def getPartition (key: Any): Int = {
+		val (tile, split) = key.asInstanceOf[(TileIndex, Int)]
+		hotTiles.get(tile) match {
+			case Some((first, splits)) => first + split
+			case None =>
+				val hash = tile.hashCode % coldPartitions
+				hotPartitions + coldTiles.getOrElse(tile, if (hash < 0) hash + coldPartitions else hash)
+		}
+	}
+
+	/** The number of tiles given partitions of their own */
+	def hotTileCount: Int = hotTiles.size
+
+	/** Whether the given tile is split over several partitions */
+	def isHot (tile: TileIndex): Boolean = hotTiles.contains(tile)
+
+	/**
+	 * Get the split of a tile into which records on a given bin row go.  Cold tiles have only one
+	 * split.
+	 *
+	 * @param row The bin row, in tile or universal bin coordinates
+	 */
+	def getSplit (tile: TileIndex, row: Int): Int =
+		hotTiles.get(tile) match {
+			case Some((first, splits)) =>
+				val yBins = tile.getYBins
+				val tileRow = ((row % yBins) + yBins) % yBins
+				tileRow * splits / yBins
+			case None => 0
+		}
+
+	/**
+	 * Merge the pieces of hot tiles, combined separately by this partitioner, back together.
+	 * Cold tiles pass through untouched.
+	 */
+	def mergeSplits[C: ClassTag] (combined: RDD[((TileIndex, Int), C)], mergeCombiners: (C, C) => C): RDD[(TileIndex, C)] = {
+		val firstCold = hotPartitions
+		val cold = PartitionPruningRDD.create(combined, _ >= firstCold).map{case ((tile, split), c) => (tile, c)}
+		if (0 == firstCold) {
+			cold
+		} else {
+			val hot = PartitionPruningRDD.create(combined, _ < firstCold).map{case ((tile, split), c) => (tile, c)}
+			cold union hot.reduceByKey(mergeCombiners, hotTiles.size)
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015 Uncharted Software Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.tiling
+
+
+
+import scala.reflect.ClassTag
+
+import org.apache.spark.RangePartitioner
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.{PartitionPruningRDD, RDD}
+import org.apache.spark.storage.StorageLevel
+
+import com.oculusinfo.binning.PyramidComparator
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.TilePyramid
+
+import com.oculusinfo.tilegen.util.Rectangle
+
+
+
+object SpatialPartitionIndex {
+	/**
+	 * Range-partition a data set along a Z-order curve, and note which area each partition covers.
+	 *
+	 * @param data The data to partition
+	 * @param pyramid The tile pyramid through which data locations are converted to tiles
+	 * @param coordFcn A function to get the location of each record, in the pyramid's raw coordinates
+	 * @param baseLevel The level at which records are ordered, and partition areas are recorded.  Partitions
+	 *                  can be excluded from queries for tiles on this level or deeper with complete precision;
+	 *                  shallower tiles cover more than one base-level tile, so prune less.
+	 * @param partitions The number of partitions into which to divide the data
+	 * @tparam T The type of record in the data set
+	 */
+	def apply[T: ClassTag] (data: RDD[T],
+	                        pyramid: TilePyramid,
+	                        coordFcn: T => (Double, Double),
+	                        baseLevel: Int,
+	                        partitions: Int): SpatialPartitionIndex[T] = {
+		val comparator = new PyramidComparator(pyramid, baseLevel)
+		val keyed = data.map { record =>
+			val (x, y) = coordFcn(record)
+			(comparator.getComparisonKey(x, y), record)
+		}
+		val partitioned = keyed.partitionBy(new RangePartitioner(partitions, keyed)).map(_._2)
+		partitioned.persist(StorageLevel.MEMORY_AND_DISK)
+
+		// Find the range of base-level tiles in each partition
+		val bounds: Array[Option[Rectangle[Int]]] = partitioned.mapPartitionsWithIndex { (partition, records) =>
+			var minX, minY = Int.MaxValue
+			var maxX, maxY = Int.MinValue
+			records.foreach { record =>
+				val (x, y) = coordFcn(record)
+				val tile = pyramid.rootToTile(x, y, baseLevel)
+				minX = minX min tile.getX
+				maxX = maxX max tile.getX
+				minY = minY min tile.getY
+				maxY = maxY max tile.getY
+			}
+			val partitionBounds =
+				if (minX > maxX) None
+				else Some(new Rectangle[Int](minX, maxX, minY, maxY))
+			Iterator((partition, partitionBounds))
+		}.collect.sortBy(_._1).map(_._2)
+
+		new SpatialPartitionIndex[T](partitioned, bounds, baseLevel)
+	}
+}
+
+/**
+ * A data set partitioned so that queries for the data on a few tiles only need to look at the few
+ * partitions that could contain it, rather than the whole data set.  Records are range-partitioned by
+ * their Z-order (Morton) key at a base level, as given by PyramidComparator, so each partition covers
+ * a compact area; the range of base-level tiles actually covered by each partition is recorded.
+ *
+ * Use SpatialPartitionIndex.apply to create one.
+ *
+ * @param data The partitioned data
+ * @param partitionBounds The range of base-level tiles covered by each partition, in partition order;
+ *                        None for empty partitions
+ * @param baseLevel The level at which partitions were created
+ * @tparam T The type of record in the data set
+ */
+class SpatialPartitionIndex[T: ClassTag] private (val data: RDD[T],
+                                                  val partitionBounds: Array[Option[Rectangle[Int]]],
+                                                  val baseLevel: Int)
+		extends Serializable
+{
+	/**
+	 * Get the range of base-level tiles that a tile overlaps
+	 */
+	def getBaseLevelBounds (tile: TileIndex): Rectangle[Int] = {
+		val level = tile.getLevel
+		if (level >= baseLevel) {
+			val shift = level - baseLevel
+			val x = tile.getX >> shift
+			val y = tile.getY >> shift
+			new Rectangle[Int](x, x, y, y)
+		} else {
+			val shift = baseLevel - level
+			new Rectangle[Int](tile.getX << shift, ((tile.getX + 1) << shift) - 1,
+			                   tile.getY << shift, ((tile.getY + 1) << shift) - 1)
+		}
+	}
+
+	/**
+	 * Get the indices of the partitions that may contain data on any of the given tiles
+	 */
+	def getPartitionsFor (tiles: Iterable[TileIndex]): Seq[Int] = {
+		val tileBounds = tiles.map(getBaseLevelBounds).toSeq
+		partitionBounds.zipWithIndex.filter { case (bounds, partition) =>
+			bounds.exists(b => tileBounds.exists(t => overlaps(b, t)))
+		}.map(_._2).toSeq
+	}
+
+	/**
+	 * Get a view of our data that only includes those partitions that may contain data on any of the
+	 * given tiles.  Records that aren't on any of the tiles may still be included, and still need to
+	 * be filtered out.
+	 */
+	def getDataFor (tiles: Iterable[TileIndex]): RDD[T] = {
+		val partitions = getPartitionsFor(tiles).toSet
+		PartitionPruningRDD.create(data, partitions.contains)
+	}
+
+	/** Release the partitioned data */
+	def unpersist (): Unit = data.unpersist(false)
+
+	private def overlaps (a: Rectangle[Int], b: Rectangle[Int]): Boolean =
+		a.minX <= b.maxX && b.minX <= a.maxX && a.minY <= b.maxY && b.minY <= a.maxY
+}
@@ -42,16 +42,19 @@ import org.apache.avro.file.CodecFactory
 import com.oculusinfo.binning.TileIndex
 import com.oculusinfo.binning.TilePyramid
 import com.oculusinfo.binning.TileData
+import com.oculusinfo.binning.impl.PackedSparseTileData
 import com.oculusinfo.binning.io.PyramidIO
 import com.oculusinfo.binning.io.impl.FileBasedPyramidIO
 import com.oculusinfo.binning.io.impl.FileSystemPyramidSource
 import com.oculusinfo.binning.io.impl.SQLitePyramidIO
+import com.oculusinfo.binning.io.serialization.AvroSchemaRegistry
+import com.oculusinfo.binning.io.serialization.GenericAvroSerializer
 import com.oculusinfo.binning.io.serialization.TileSerializer
 import com.oculusinfo.binning.io.serialization.impl.PairArrayAvroSerializer
 import com.oculusinfo.binning.metadata.PyramidMetaData
 import com.oculusinfo.factory.util.Pair
 import com.oculusinfo.tilegen.spark.IntMaxAccumulatorParam
-import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
+import com.oculusinfo.tilegen.tiling.analytics.{AnalysisDescription, MergeableBinningAnalytic}
 import com.oculusinfo.tilegen.util.ArgumentParser
 import com.oculusinfo.tilegen.util.KeyValueArgumentSource
 import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer
@@ -104,6 +107,41 @@ object TileIO {
 			)
 		}
 	}
+
+	/**
+	 * Merge the bins of an existing tile into a newly binned tile at the same index.  The new tile is
+	 * updated in place, and returned.
+	 *
+	 * Bins holding their tile's default value are taken to be empty, and are not merged.
+	 *
+	 * @param existing The previously written tile
+	 * @param update The newly binned tile
+	 * @param binAnalytic The analytic with which the bins of both tiles were created
+	 */
+	def mergeTiles[BT] (existing: TileData[BT], update: TileData[BT],
+	                    binAnalytic: MergeableBinningAnalytic[_, BT]): TileData[BT] = {
+		val existingDefault = existing.getDefaultValue
+		val updateDefault = update.getDefaultValue
+		def mergeBin (x: Int, y: Int, value: BT): Unit =
+			if (value != existingDefault) {
+				val newValue = update.getBin(x, y)
+				update.setBin(x, y,
+				              if (newValue == updateDefault) value
+				              else binAnalytic.mergeFinished(value, newValue))
+			}
+
+		existing match {
+			case sparse: PackedSparseTileData[BT] =>
+				for (n <- 0 until sparse.getEntryCount)
+					mergeBin(sparse.getEntryX(n), sparse.getEntryY(n), sparse.getEntryValue(n))
+			case _ =>
+				val index = existing.getDefinition
+				for (x <- 0 until index.getXBins; y <- 0 until index.getYBins)
+					mergeBin(x, y, existing.getBin(x, y))
+		}
+		UniversalBinner.compactTile(update)
+		update
+	}
 }
 
 trait TileIO extends Serializable {
@@ -141,8 +179,84 @@ trait TileIO extends Serializable {
 		)
 	}
 
+	/**
+	 * Merge newly binned tiles with any tiles already written at the same indices, reading the
+	 * existing tiles in the same task that will write the merged ones.
+	 *
+	 * Tile analytics are calculated on, and recorded in, the merged tiles, so should not have been
+	 * applied to the new tiles when binning them.  Data analytic values recorded in the tiles are
+	 * combined with the existing ones, where the analytic can read its stored values back.
+	 *
+	 * @param binAnalytic The analytic with which bins of both new and existing tiles were created
+	 */
+	def mergeWithExistingTiles[BT, AT, DT] (baseLocation: String,
+	                                        data: RDD[TileData[BT]],
+	                                        serializer: TileSerializer[BT],
+	                                        binAnalytic: MergeableBinningAnalytic[_, BT],
+	                                        tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+	                                        dataAnalytics: Option[AnalysisDescription[_, DT]]): RDD[TileData[BT]] =
+		data.mapPartitions(iter =>
+			{
+				val pyramidIO = getPyramidIO
+				iter.grouped(1024).flatMap(group =>
+					{
+						val existingTiles = Option(pyramidIO.readTiles(baseLocation, serializer, group.map(_.getDefinition).asJava))
+							.map(_.asScala.filter(null != _).map(tile => (tile.getDefinition, tile)).toMap)
+							.getOrElse(Map[TileIndex, TileData[BT]]())
+
+						group.map(tile =>
+							{
+								existingTiles.get(tile.getDefinition).foreach(existing =>
+									{
+										TileIO.mergeTiles(existing, tile, binAnalytic)
+										dataAnalytics.foreach(da => mergeRecorded(da, existing, tile))
+									}
+								)
+								tileAnalytics.foreach(ta =>
+									{
+										val value = ta.convert(tile)
+										ta.accumulate(tile.getDefinition, value)
+										AnalysisDescription.record(value, ta, tile)
+									}
+								)
+								tile
+							}
+						)
+					}
+				)
+			}
+		)
+
+	/**
+	 * Make sure the given tile analytics can be written incrementally.  Level and global tile analytic
+	 * values are combined with those already in the pyramid metadata, but are computed from merged
+	 * tiles, which already include the old values of the tiles they replace; that is only correct for
+	 * analytics, like minimums and maximums, for which counting a value twice doesn't matter.
+	 */
+	def checkIncrementalTileAnalytics (tileAnalytics: Option[AnalysisDescription[_, _]]): Unit =
+		tileAnalytics.foreach(ta =>
+			if (!ta.analytic.idempotent)
+				throw new IllegalArgumentException(
+					"Tile analytic "+ta.analytic+" can't be written incrementally: its level and global values "+
+						"would count the data of merged tiles twice.  Only idempotent tile analytics (like "+
+						"minimums and maximums) may be used when merging with existing tiles")
+		)
+
+	private def mergeRecorded[T] (analysis: AnalysisDescription[_, T], existing: TileData[_], update: TileData[_]): Unit =
+		for (oldValue <- AnalysisDescription.readRecorded(analysis, existing);
+		     newValue <- AnalysisDescription.readRecorded(analysis, update))
+			AnalysisDescription.record(analysis.analytic.aggregate(oldValue, newValue), analysis, update)
+
 	/**
 	 * Write all tiles contained in the given data
+	 *
+	 * @param mergeAnalytic If given, tiles are written incrementally: each tile is merged with any
+	 *                      existing tile at the same index, using this analytic (see
+	 *                      mergeWithExistingTiles), and pyramid metadata is combined with the
+	 *                      existing metadata rather than replacing it.  Level and global tile
+	 *                      analytic values are combined with the analytic's aggregation, which is
+	 *                      exact for data analytics; tile analytics must be idempotent (see
+	 *                      checkIncrementalTileAnalytics).
 	 */
 	def writeTileSet[BT, AT, DT] (pyramider: TilePyramid,
 	                              baseLocation: String,
@@ -151,11 +265,18 @@ trait TileIO extends Serializable {
 	                              tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
 	                              dataAnalytics: Option[AnalysisDescription[_, DT]],
 	                              name: String = "unknown",
-	                              description: String = "unknown"): Unit = {
+	                              description: String = "unknown",
+	                              mergeAnalytic: Option[MergeableBinningAnalytic[_, BT]] = None): Unit = {
+
+		if (mergeAnalytic.isDefined) checkIncrementalTileAnalytics(tileAnalytics)
 
 		// Do any needed initialization
 		getPyramidIO.initializeForWrite(baseLocation)
 
+		val tiles = mergeAnalytic.map(analytic =>
+			mergeWithExistingTiles(baseLocation, data, serializer, analytic, tileAnalytics, dataAnalytics)
+		).getOrElse(data)
+
 		// Record and report the total number of tiles we write, because it's
 		// basically free and easy
 		val tileCount = data.context.accumulator(0)
@@ -166,11 +287,11 @@ trait TileIO extends Serializable {
 		val ybins = data.context.accumulator(0)(new IntMaxAccumulatorParam)
 
 		println("Writing tile set from")
-		println(data.toDebugString)
+		println(tiles.toDebugString)
 		println("Writing tile set to "+baseLocation)
 
 		// write each tile, storing away info we'll need to write the metadata
-		data.mapPartitions(_.grouped(1024)).foreach(group =>
+		tiles.mapPartitions(_.grouped(1024)).foreach(group =>
 			{
 				val pyramidIO = getPyramidIO
 				// Write out tje group of tiles
@@ -203,13 +324,28 @@ trait TileIO extends Serializable {
 											levelSet.value.toSet,
 											tileAnalytics, dataAnalytics,
 											xbins.value, ybins.value,
-											name, description)
+											name, description,
+											mergeAnalytic.isDefined)
+		recordTileSchemas(serializer, metaData)
 		writeMetaData(baseLocation, metaData)
 	}
 
+	/**
+	 * Record the schemas with which a serializer writes compact avro tiles in the metadata
+	 * of the pyramid it writes, so that readers of the pyramid can read them.
+	 */
+	def recordTileSchemas (serializer: TileSerializer[_], metaData: PyramidMetaData): Unit =
+		serializer match {
+			case avroSerializer: GenericAvroSerializer[_] => avroSerializer.recordTileSchemas(metaData)
+			case _ =>
+		}
+
 	/**
 	 * Takes a map of levels to (mins, maxes) and combines them with the current metadata
 	 * that already exists, or creates a new one if none exists.
+	 *
+	 * @param incremental If true, accumulated analytic values are aggregated with those already in
+	 *                    the existing metadata, where possible, rather than replacing them
 	 */
 	def combineMetaData[BT, DT, AT](pyramider: TilePyramid,
 	                                baseLocation: String,
@@ -219,7 +355,8 @@ trait TileIO extends Serializable {
 	                                tileSizeX: Int,
 	                                tileSizeY: Int,
 	                                name: String = "unknown",
-	                                description: String = "unknown"): PyramidMetaData = {
+	                                description: String = "unknown",
+	                                incremental: Boolean = false): PyramidMetaData = {
 		val bounds = pyramider.getTileBounds(new TileIndex(0, 0, 0))
 		val projection = pyramider.getProjection()
 		val scheme = pyramider.getTileScheme()
@@ -238,15 +375,23 @@ trait TileIO extends Serializable {
 				metaData
 			}
 		}
-		tileAnalytics.map(AnalysisDescription.record(_, metaData))
-		dataAnalytics.map(AnalysisDescription.record(_, metaData))
+		if (incremental && oldMetaData.isDefined) {
+			tileAnalytics.map(AnalysisDescription.recordIncrement(_, metaData))
+			dataAnalytics.map(AnalysisDescription.recordIncrement(_, metaData))
+		} else {
+			tileAnalytics.map(AnalysisDescription.record(_, metaData))
+			dataAnalytics.map(AnalysisDescription.record(_, metaData))
+		}
 
 		metaData
 	}
 
 	def readMetaData (baseLocation: String): Option[PyramidMetaData] =
 		try {
-			Some(new PyramidMetaData(getPyramidIO.readMetaData(baseLocation)))
+			val metaData = new PyramidMetaData(getPyramidIO.readMetaData(baseLocation))
+			// Make sure any compact tiles in the pyramid can be read
+			AvroSchemaRegistry.register(metaData)
+			Some(metaData)
 		} catch {
 			case e: Exception => None
 		}
@@ -26,9 +26,9 @@ package com.oculusinfo.tilegen.tiling
 
 
 import grizzled.slf4j.Logging
-import org.apache.spark.Accumulator
+import org.apache.spark.{Accumulator, SparkContext}
 
-import scala.collection.mutable.{Map => MutableMap}
+import scala.collection.mutable.{Buffer => MutableBuffer, Map => MutableMap}
 import scala.util.Try
 
 import scala.reflect.ClassTag
@@ -42,11 +42,12 @@ import com.oculusinfo.binning.TileIndex
 import com.oculusinfo.binning.TileData
 import com.oculusinfo.binning.TilePyramid
 import com.oculusinfo.binning.impl.DenseTileData
-import com.oculusinfo.binning.impl.SparseTileData
+import com.oculusinfo.binning.impl.PackedSparseTileData
 import com.oculusinfo.binning.io.serialization.TileSerializer
 import com.oculusinfo.binning.TileData.StorageType
 import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
 import com.oculusinfo.tilegen.tiling.analytics.BinningAnalytic
+import com.oculusinfo.tilegen.tiling.analytics.MergeableBinningAnalytic
 
 
 
@@ -105,6 +106,167 @@ object UniversalBinner {
 		}
 	}
 
+	/**
+	 * Get the bin, in a tile's parent, that contains a given bin of that tile.
+	 */
+	def getParentBin (child: TileIndex, bin: BinIndex): BinIndex = {
+		// Universal bin coordinates on the parent's level are half those on the child's; this is
+		// the same calculation, short-circuited. Tiles count up from the bottom, but bins count
+		// down from the top, so odd rows of child tiles fill the top half of their parents.
+		val x = ((child.getX % 2) * child.getXBins + bin.getX) / 2
+		val y = ((1 - child.getY % 2) * child.getYBins + bin.getY) / 2
+		new BinIndex(x, y)
+	}
+
+	/**
+	 * Get a binning analytic in the form needed to merge new tiles into existing ones.
+	 *
+	 * @throws IllegalArgumentException if the analytic's finished values can't be merged
+	 */
+	def getMergeableAnalytic[BT] (binAnalytic: BinningAnalytic[_, BT]): MergeableBinningAnalytic[_, BT] =
+		binAnalytic match {
+			case mergeable: MergeableBinningAnalytic[_, _] => mergeable.asInstanceOf[MergeableBinningAnalytic[_, BT]]
+			case _ => throw new IllegalArgumentException(
+				"Binning analytic "+binAnalytic+" can't merge finished tiles, so can't be used incrementally")
+		}
+
+	/**
+	 * Pre-aggregate located records within a single partition, combining records that fall on the
+	 * same bins of the same tile, so that fewer, combined records go to the shuffle.
+	 *
+	 * At most a bounded number of distinct cells are held at once; when that many are held, they
+	 * are all passed on, and aggregation starts again from scratch.
+	 *
+	 * @param records The located records of one partition
+	 * @param binAggregator The function with which to combine bin values
+	 * @param analyticAggregator The function with which to combine data analytic values, if any
+	 * @param preAggregation The bound on held cells, and the counters to update
+	 */
+	def preAggregate[PT, DT] (records: Iterator[(TileIndex, Array[BinIndex], PT, Option[DT])],
+	                          binAggregator: (PT, PT) => PT,
+	                          analyticAggregator: Option[(DT, DT) => DT],
+	                          preAggregation: PreAggregation): Iterator[(TileIndex, Array[BinIndex], PT, Option[DT])] =
+		new Iterator[(TileIndex, Array[BinIndex], PT, Option[DT])] {
+			private val cells = MutableMap[(TileIndex, Seq[BinIndex]), (TileIndex, Array[BinIndex], PT, Option[DT])]()
+			private var pending: Iterator[(TileIndex, Array[BinIndex], PT, Option[DT])] = Iterator.empty
+
+			def hasNext: Boolean = {
+				if (!pending.hasNext && records.hasNext) fill()
+				pending.hasNext
+			}
+
+			def next(): (TileIndex, Array[BinIndex], PT, Option[DT]) = {
+				if (!hasNext) throw new NoSuchElementException("No more pre-aggregated records")
+				pending.next()
+			}
+
+			private def fill(): Unit = {
+				var count = 0L
+				while (records.hasNext && cells.size < preAggregation.maxCells) {
+					val record = records.next()
+					val key = (record._1, record._2.toSeq)
+					count += 1
+					cells(key) = cells.get(key).map(cell =>
+						(cell._1, cell._2, binAggregator(cell._3, record._3), optAggregate(analyticAggregator, cell._4, record._4))
+					).getOrElse(record)
+				}
+				preAggregation.records += count
+				preAggregation.cells += cells.size
+				pending = cells.values.toList.iterator
+				cells.clear()
+			}
+		}
+
+	/**
+	 * Combine located records by tile.  With skew partitioning, the located records are sampled,
+	 * and the busiest tiles are split by bin row over partitions of their own, then merged back
+	 * together, while the rest are packed into shared partitions; see SkewedTilePartitioner.
+	 * Otherwise, records are hash partitioned by tile.
+	 */
+	def combineByTile[PT, DT, C: ClassTag]
+		(located: RDD[(TileIndex, (TileIndex, Array[BinIndex], PT, Option[DT]))],
+		 createCombiner: ((TileIndex, Array[BinIndex], PT, Option[DT])) => C,
+		 mergeValue: (C, (TileIndex, Array[BinIndex], PT, Option[DT])) => C,
+		 mergeCombiners: (C, C) => C,
+		 skewPartitioning: Option[SkewPartitioning]): RDD[(TileIndex, C)] =
+		skewPartitioning match {
+			case Some(skew) =>
+				val partitions = skew.partitions.getOrElse(located.partitions.size)
+				// The located records are read once to sample them, and again to combine them, so
+				// they are persisted rather than located twice; spark drops them once they're no
+				// longer referenced.
+				if (StorageLevel.NONE == located.getStorageLevel)
+					located.persist(StorageLevel.MEMORY_AND_DISK)
+				val partitioner = SkewedTilePartitioner(located.keys, skew, partitions)
+				val split = located.map{case (tile, record) =>
+					val bins = record._2
+					((tile, if (bins.isEmpty) 0 else partitioner.getSplit(tile, bins(0).getY)), record)
+				}
+				partitioner.mergeSplits(split.combineByKey[C](createCombiner, mergeValue, mergeCombiners, partitioner),
+				                        mergeCombiners)
+			case None =>
+				located.combineByKey[C](createCombiner, mergeValue, mergeCombiners)
+		}
+
+	/**
+	 * Create an empty tile to hold the given number of bin values; tiles with more than half their
+	 * bins filled are dense, others sparse, unless the binning parameters specify otherwise.
+	 */
+	def createEmptyTile[PT, BT] (index: TileIndex, numValues: Int,
+	                             binAnalytic: BinningAnalytic[PT, BT],
+	                             parameters: BinningParameters): TileData[BT] = {
+		// Determine if we need a dense or sparse tile
+		val xLimit = index.getXBins
+		val yLimit = index.getYBins
+		val typeToUse = parameters.tileType.getOrElse(
+			if (numValues > xLimit*yLimit/2) StorageType.Dense
+			else StorageType.Sparse
+		)
+
+		// Create our tile
+		val defaultBinValue = binAnalytic.finish(binAnalytic.defaultProcessedValue)
+		typeToUse match {
+			// Numeric bin types get a primitive-backed dense tile
+			case StorageType.Dense => DenseTileData.createDenseTile[BT](index, defaultBinValue)
+			case StorageType.Sparse => new PackedSparseTileData[BT](index, defaultBinValue, numValues)
+		}
+	}
+
+	/**
+	 * Compact a tile once all its bins are set, so that packed sparse tiles filled out of bin
+	 * order are sorted before anything reads them.
+	 */
+	def compactTile[BT] (tile: TileData[BT]): Unit = tile match {
+		case packed: PackedSparseTileData[BT] => packed.compact()
+		case _ =>
+	}
+
+	/**
+	 * Record data analytics and tile analytics in a finished tile.
+	 */
+	def addAnalytics[AT, DT, BT] (tile: TileData[BT], analyticValue: Option[DT],
+	                              tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+	                              dataAnalytics: Option[AnalysisDescription[_, DT]]): Unit = {
+		// Add in data analytics
+		dataAnalytics.foreach(da =>
+			analyticValue.foreach(a =>
+				AnalysisDescription.record(a, da, tile)
+			)
+		)
+
+		// Add in tile analytics
+		tileAnalytics.map(ta =>
+			{
+				// Figure out the value for this tile
+				val analyticValue = ta.convert(tile)
+				// Add it into any appropriate accumulators
+				ta.accumulate(tile.getDefinition(), analyticValue)
+				// And store it in the tile's metadata
+				AnalysisDescription.record(analyticValue, ta, tile)
+			}
+		)
+	}
+
 	//	def oldAggregateMaps[K, V](aggFcn: (V, V) => V, map1: MutableMap[K, V], map2: MutableMap[K, V]): MutableMap[K, V] = {
 	//		(map1.toSeq ++ map2.toSeq).groupBy(_._1).map { case (k, v) => (k, v.map(_._2).reduce(aggFcn)) }
 	//	}
@@ -115,7 +277,16 @@ object UniversalBinner {
 class UniversalBinner extends Logging {
 	import UniversalBinner._
 
-	/** Helper function to mimic RDDBinner interface */
+	/**
+	 * Helper function to mimic RDDBinner interface
+	 *
+	 * @param incremental If true, the data is taken to be new data to add to an existing pyramid:
+	 *                    each new tile is merged with the existing tile at its index, rather than
+	 *                    replacing it.  This requires a binning analytic whose finished values
+	 *                    can be merged (see MergeableBinningAnalytic).
+	 * @param skewPartitioning If given, the busiest tiles are spread over several partitions when
+	 *                         records are combined into tiles.  See BinningParameters.
+	 */
 	def binAndWriteData[RT: ClassTag, IT: ClassTag, PT: ClassTag,
 	                    AT: ClassTag, DT: ClassTag, BT] (
 		data: RDD[RT],
@@ -135,7 +306,11 @@ class UniversalBinner extends Logging {
 		xBins: Int = 256,
 		yBins: Int = 256,
 		name: String = "unknown",
-		description: String = "unknown") =
+		description: String = "unknown",
+		bottomUp: Boolean = false,
+		preAggregationCells: Option[Int] = None,
+		incremental: Boolean = false,
+		skewPartitioning: Option[SkewPartitioning] = None) =
 	{
 		info("Binning data")
 		info("\tConsolidation partitions: "+consolidationPartitions)
@@ -146,6 +321,16 @@ class UniversalBinner extends Logging {
 		info("\tY Bins: "+yBins)
 		info("\tName: "+name)
 		info("\tDescription: "+description)
+		info("\tBottom-up: "+bottomUp)
+		info("\tPre-aggregation cells: "+preAggregationCells)
+		info("\tIncremental: "+incremental)
+		info("\tSkew partitioning: "+skewPartitioning)
+
+		val mergeAnalytic: Option[MergeableBinningAnalytic[_, BT]] =
+			if (incremental) Some(getMergeableAnalytic(binAnalytic))
+			else None
+		// When merging, tile analytics are applied to the merged tiles, as they're written
+		val binningTileAnalytics = if (incremental) None else tileAnalytics
 
 		val startTime = System.currentTimeMillis()
 
@@ -171,25 +356,33 @@ class UniversalBinner extends Logging {
 		levelSets.foreach(levels =>
 			{
 				val levelStartTime = System.currentTimeMillis()
+				val preAggregation = preAggregationCells.map(cells => new PreAggregation(cells, data.context))
 				// For each level set, process the bare data into tiles...
 				var tiles = processDataByLevel(bareData,
 				                               indexScheme,
 				                               binAnalytic,
-				                               tileAnalytics,
+				                               binningTileAnalytics,
 				                               dataAnalytics,
 				                               tileScheme,
 				                               levels,
 				                               xBins,
 				                               yBins,
 				                               consolidationPartitions,
-				                               tileType)
+				                               tileType,
+				                               bottomUp,
+				                               preAggregation,
+				                               skewPartitioning)
 				// ... and write them out.
 				tileIO.writeTileSet(tileScheme, writeLocation, tiles,
 				                    serializer, tileAnalytics, dataAnalytics,
-				                    name, description)
+				                    name, description, mergeAnalytic)
 				val levelEndTime = System.currentTimeMillis()
 				info("Finished binning levels ["+levels.mkString(", ")+"] of data set "
 					     + name + " in " + ((levelEndTime-levelStartTime)/60000.0) + " minutes")
+				preAggregation.foreach(pa =>
+					info("\tPre-aggregation combined "+pa.records.value+" records into "+pa.cells.value
+						     +" (ratio "+pa.combineRatio+")")
+				)
 			}
 		)
 
@@ -202,7 +395,18 @@ class UniversalBinner extends Logging {
 			     + ((endTime-startTime)/60000.0) + " minutes")
 	}
 
-	/** Helper function to mimic RDDBinner interface */
+	/**
+	 * Helper function to mimic RDDBinner interface
+	 *
+	 * @param bottomUp If true, only the deepest of the given levels is binned from the raw data;
+	 *                 the rest are built from it by child-to-parent aggregation.  See
+	 *                 processDataBottomUp.
+	 * @param preAggregation If given, records are combined by tile and bin within each partition
+	 *                       before being shuffled.  See BinningParameters.
+	 * @param skewPartitioning If given, the busiest tiles are spread over several partitions when
+	 *                         records are combined into tiles.  If it doesn't specify a number of
+	 *                         partitions, consolidationPartitions is used.  See BinningParameters.
+	 */
 	def processDataByLevel[IT: ClassTag, PT: ClassTag, AT: ClassTag, DT: ClassTag, BT]
 		(data: RDD[(IT, PT, Option[DT])],
 		 indexScheme: IndexScheme[IT],
@@ -214,12 +418,28 @@ class UniversalBinner extends Logging {
 		 xBins: Int = 256,
 		 yBins: Int = 256,
 		 consolidationPartitions: Option[Int] = None,
-		 tileType: Option[StorageType] = None): RDD[TileData[BT]] =
+		 tileType: Option[StorageType] = None,
+		 bottomUp: Boolean = false,
+		 preAggregation: Option[PreAggregation] = None,
+		 skewPartitioning: Option[SkewPartitioning] = None): RDD[TileData[BT]] =
 	{
-		processData[IT, PT, AT, DT, BT](data, binAnalytic, tileAnalytics, dataAnalytics,
-		                                StandardBinningFunctions.locateIndexOverLevels(indexScheme, tileScheme, xBins, yBins)(levels),
-		                                StandardBinningFunctions.populateTileIdentity,
-		                                BinningParameters(true, xBins, yBins, consolidationPartitions, consolidationPartitions, tileType))
+		val locateFcn: Traversable[Int] => IT => Traversable[(TileIndex, Array[BinIndex])] =
+			StandardBinningFunctions.locateIndexOverLevels(indexScheme, tileScheme, xBins, yBins)
+		val parameters = BinningParameters(true, xBins, yBins, consolidationPartitions, consolidationPartitions, tileType,
+		                                   preAggregation = preAggregation,
+		                                   skewPartitioning = skewPartitioning.map(skew =>
+			                                   if (skew.partitions.isDefined) skew
+			                                   else skew.copy(partitions = consolidationPartitions)))
+		if (bottomUp) {
+			processDataBottomUp[IT, PT, AT, DT, BT](data, binAnalytic, tileAnalytics, dataAnalytics,
+			                                        locateFcn, StandardBinningFunctions.populateTileIdentity,
+			                                        levels, parameters)
+		} else {
+			processData[IT, PT, AT, DT, BT](data, binAnalytic, tileAnalytics, dataAnalytics,
+			                                locateFcn(levels),
+			                                StandardBinningFunctions.populateTileIdentity,
+			                                parameters)
+		}
 	}
 
 	/**
@@ -248,8 +468,125 @@ class UniversalBinner extends Logging {
 		 populateTileFcn: (TileIndex, Array[BinIndex], PT) => MutableMap[BinIndex, PT],
 		 parameters: BinningParameters = new BinningParameters()): RDD[TileData[BT]] =
 	{
-		// Convert raw indices into tiles and bins
-		val consolidatedByPartition: RDD[(TileIndex, Array[BinIndex], PT, Option[DT])] =
+		val primitiveBinning =
+			if (parameters.primitiveAccumulation) PrimitiveBinning(binAnalytic)
+			else None
+
+		primitiveBinning match {
+			case Some(binning) =>
+				val tileInfos = aggregatePrimitiveBins[IT, PT, DT](data, binAnalytic, binning, dataAnalytics, locateIndexFcn,
+				                                                   populateTileFcn, parameters.preAggregation,
+				                                                   parameters.skewPartitioning)
+				createPrimitiveTiles[PT, AT, DT, BT](tileInfos, binning, binAnalytic, tileAnalytics, dataAnalytics, parameters)
+			case None =>
+				val tileInfos = aggregateBins[IT, PT, DT](data, binAnalytic, dataAnalytics, locateIndexFcn, populateTileFcn,
+				                                          parameters.preAggregation, parameters.skewPartitioning)
+				createTiles[PT, AT, DT, BT](tileInfos, binAnalytic, tileAnalytics, dataAnalytics, parameters)
+		}
+	}
+
+	/**
+	 * Bin data from the deepest of the given levels only, and build all the other given levels
+	 * from those bins, by repeatedly aggregating each tile's bins into its parent tile.  This
+	 * replaces the one full pass over the data per level, in processData, with a single pass
+	 * at the deepest level, followed by one pass per level over progressively fewer tiles.
+	 *
+	 * This gives the same results as processData if the location and population functions
+	 * place a record, on each level, in the parent of the bin in which they place it on the
+	 * next level down - as is true of simple point binning (locateIndexOverLevels with
+	 * populateTileIdentity), but not of line binning or kernel smoothing.
+	 *
+	 * @param data The data to tile
+	 * @param binAnalytic The aggregation function to use to tile the data
+	 * @param tileAnalytics Optional analytics to apply to each produced tile
+	 * @param dataAnalytics Optional analytics to apply to each raw data point, and bin along with
+	 *                      the tiles.
+	 * @param locateIndexFcn A function that takes a set of levels, and returns a function that
+	 *                       locates an input index on those levels, as in processData
+	 * @param populateTileFcn A function that populates a tile with a located value, as in
+	 *                        processData
+	 * @param levels The levels to produce
+	 * @param parameters General binning parameters affecting how this tiling will be done.
+	 */
+	def processDataBottomUp[IT: ClassTag, PT: ClassTag, AT: ClassTag, DT: ClassTag, BT]
+		(data: RDD[(IT, PT, Option[DT])],
+		 binAnalytic: BinningAnalytic[PT, BT],
+		 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 locateIndexFcn: Traversable[Int] => IT => Traversable[(TileIndex, Array[BinIndex])],
+		 populateTileFcn: (TileIndex, Array[BinIndex], PT) => MutableMap[BinIndex, PT],
+		 levels: Seq[Int],
+		 parameters: BinningParameters = new BinningParameters()): RDD[TileData[BT]] =
+	{
+		val orderedLevels = levels.distinct.sorted.reverse
+		var level = orderedLevels.head
+		var levelInfos = aggregateBins[IT, PT, DT](data, binAnalytic, dataAnalytics,
+		                                           locateIndexFcn(Seq(level)), populateTileFcn,
+		                                           parameters.preAggregation, parameters.skewPartitioning)
+		val allInfos = MutableBuffer(levelInfos)
+
+		orderedLevels.tail.foreach { nextLevel =>
+			// Step up through any unrequested intermediate levels
+			while (level > nextLevel) {
+				levelInfos = aggregateToParents[PT, DT](levelInfos, binAnalytic, dataAnalytics)
+				level = level - 1
+			}
+			// Data analytics on the deepest level are accumulated record by record as they are
+			// binned; on derived levels, we accumulate the aggregate values of each tile instead.
+			allInfos += levelInfos.map { tileInfo =>
+				val (tile, (binValues, analyticValue)) = tileInfo
+				analyticValue.foreach(av => dataAnalytics.foreach(analytic => analytic.accumulate(tile, av)))
+				tileInfo
+			}
+		}
+
+		createTiles[PT, AT, DT, BT](data.context.union(allInfos), binAnalytic, tileAnalytics, dataAnalytics, parameters)
+	}
+
+	/**
+	 * Aggregate each tile's bins into the appropriate bins of its parent tile, one level up.
+	 *
+	 * @param tileInfos The bin values and data analytic values of each tile on a single level,
+	 *                  as produced by aggregateBins
+	 * @param binAnalytic The aggregation function to use to combine bins
+	 * @param dataAnalytics Optional analytics to combine along with the bins
+	 * @return The bin values and data analytic values of each tile one level up
+	 */
+	def aggregateToParents[PT: ClassTag, DT: ClassTag]
+		(tileInfos: RDD[(TileIndex, (MutableMap[BinIndex, PT], Option[DT]))],
+		 binAnalytic: BinningAnalytic[PT, _],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]]): RDD[(TileIndex, (MutableMap[BinIndex, PT], Option[DT]))] =
+	{
+		val parentInfos = tileInfos.map { case (child, (binValues, analyticValue)) =>
+			val parent = TileIndex.getParent(child)
+			val parentValues = MutableMap[BinIndex, PT]()
+			binValues.foreach { case (bin, value) =>
+				val parentBin = getParentBin(child, bin)
+				parentValues(parentBin) = parentValues.get(parentBin).map(binAnalytic.aggregate(_, value)).getOrElse(value)
+			}
+			(parent, (parentValues, analyticValue))
+		}
+
+		parentInfos.reduceByKey { (tileValues1, tileValues2) =>
+			val binAggregator = binAnalytic.aggregate(_, _)
+			val analyticAggregator = dataAnalytics.map(analytic => analytic.analytic.aggregate(_, _))
+			(aggregateMaps(binAggregator, tileValues1._1, tileValues2._1),
+			 optAggregate(analyticAggregator, tileValues1._2, tileValues2._2))
+		}
+	}
+
+	/**
+	 * Find the tiles and bins on which each record falls, optionally pre-aggregating records that
+	 * fall on the same bins within each partition.
+	 */
+	def locateData[IT: ClassTag, PT: ClassTag, DT: ClassTag]
+		(data: RDD[(IT, PT, Option[DT])],
+		 binAnalytic: BinningAnalytic[PT, _],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 locateIndexFcn: IT => Traversable[(TileIndex, Array[BinIndex])],
+		 preAggregation: Option[PreAggregation]): RDD[(TileIndex, Array[BinIndex], PT, Option[DT])] =
+	{
+		val located: RDD[(TileIndex, Array[BinIndex], PT, Option[DT])] =
 			data.flatMap { record =>
 				val indices: Traversable[(TileIndex, Array[BinIndex])] = locateIndexFcn(record._1)
 				val value: PT = record._2
@@ -257,6 +594,51 @@ class UniversalBinner extends Logging {
 				indices.map(index => (index._1, index._2, value, analyticValue))
 			}
 
+		preAggregation match {
+			case Some(pa) =>
+				val binAggregator: (PT, PT) => PT = binAnalytic.aggregate(_, _)
+				val analyticAggregator = dataAnalytics.map(analytic => analytic.analytic.aggregate(_, _))
+				located.mapPartitions(records => preAggregate(records, binAggregator, analyticAggregator, pa), true)
+			case None => located
+		}
+	}
+
+	/**
+	 * Pre-aggregation combines records before they are passed to the population function, so is
+	 * only valid when that function places each value directly in its bin; see
+	 * StandardBinningFunctions.populateTileIdentity.  For any other population function, it is
+	 * ignored, with a warning.
+	 */
+	private def usablePreAggregation[PT] (preAggregation: Option[PreAggregation],
+	                                      populateTileFcn: (TileIndex, Array[BinIndex], PT) => MutableMap[BinIndex, PT])
+			: Option[PreAggregation] =
+		preAggregation.filter { _ =>
+			val identityPopulation = IdentityTilePopulation eq populateTileFcn.asInstanceOf[AnyRef]
+			if (!identityPopulation)
+				warn("Pre-aggregation is only valid for simple point binning; ignoring it for population function "+populateTileFcn)
+			identityPopulation
+		}
+
+	/**
+	 * Aggregate data into bins on the tiles on which it falls.
+	 *
+	 * @return For each tile on which any data falls, the aggregated, unfinished values of every
+	 *         bin with data, and the aggregated data analytic value of the tile
+	 */
+	def aggregateBins[IT: ClassTag, PT: ClassTag, DT: ClassTag]
+		(data: RDD[(IT, PT, Option[DT])],
+		 binAnalytic: BinningAnalytic[PT, _],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 locateIndexFcn: IT => Traversable[(TileIndex, Array[BinIndex])],
+		 populateTileFcn: (TileIndex, Array[BinIndex], PT) => MutableMap[BinIndex, PT],
+		 preAggregation: Option[PreAggregation] = None,
+		 skewPartitioning: Option[SkewPartitioning] = None): RDD[(TileIndex, (MutableMap[BinIndex, PT], Option[DT]))] =
+	{
+		// Convert raw indices into tiles and bins
+		val consolidatedByPartition: RDD[(TileIndex, Array[BinIndex], PT, Option[DT])] =
+			locateData[IT, PT, DT](data, binAnalytic, dataAnalytics, locateIndexFcn,
+			                       usablePreAggregation(preAggregation, populateTileFcn))
+
 		// Combine all information from a single tile
 		val createCombiner: ((TileIndex, Array[BinIndex], PT, Option[DT])) => (MutableMap[BinIndex, PT], Option[DT]) =
 			c => {
@@ -298,54 +680,153 @@ class UniversalBinner extends Logging {
 		val a = consolidatedByPartition.map{case (tile, bins, value, analyticValue) =>
 			(tile, (tile, bins, value, analyticValue))
 		}
-		val tileInfos = a.combineByKey[(MutableMap[BinIndex, PT], Option[DT])](createCombiner, mergeValue, mergeCombiners)
+		combineByTile[PT, DT, (MutableMap[BinIndex, PT], Option[DT])](a, createCombiner, mergeValue, mergeCombiners,
+		                                                             skewPartitioning)
+	}
+
+	/**
+	 * Aggregate data into bins on the tiles on which it falls, as aggregateBins does, but accumulating
+	 * bin values in primitive arrays rather than maps of boxed values.
+	 *
+	 * When tiles are populated with populateTileIdentity, values are placed directly in their bins;
+	 * otherwise, the population function is still called for each record, and its output added in.
+	 *
+	 * @param binning How to accumulate the values of the binning analytic as primitives
+	 * @return For each tile on which any data falls, the accumulated values of every bin with data,
+	 *         and the aggregated data analytic value of the tile
+	 */
+	def aggregatePrimitiveBins[IT: ClassTag, PT: ClassTag, DT: ClassTag]
+		(data: RDD[(IT, PT, Option[DT])],
+		 binAnalytic: BinningAnalytic[PT, _],
+		 binning: PrimitiveBinning[PT],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 locateIndexFcn: IT => Traversable[(TileIndex, Array[BinIndex])],
+		 populateTileFcn: (TileIndex, Array[BinIndex], PT) => MutableMap[BinIndex, PT],
+		 preAggregation: Option[PreAggregation] = None,
+		 skewPartitioning: Option[SkewPartitioning] = None): RDD[(TileIndex, (PrimitiveBinAccumulator, Option[DT]))] =
+	{
+		val identityPopulation = IdentityTilePopulation eq populateTileFcn.asInstanceOf[AnyRef]
+
+		// Convert raw indices into tiles and bins
+		val located: RDD[(TileIndex, (TileIndex, Array[BinIndex], PT, Option[DT]))] =
+			locateData[IT, PT, DT](data, binAnalytic, dataAnalytics, locateIndexFcn,
+			                       usablePreAggregation(preAggregation, populateTileFcn))
+				.map(record => (record._1, record))
+
+		// Add a single record into a tile's accumulator
+		val addRecord: (PrimitiveBinAccumulator, (TileIndex, Array[BinIndex], PT, Option[DT])) => Unit =
+			(accumulator, record) => {
+				val (tile, bins, value, analyticValue) = record
+
+				// Accumulate data analytic metadata
+				analyticValue.foreach(av => dataAnalytics.foreach(analytic => analytic.accumulate(tile, av)))
+
+				if (identityPopulation) {
+					// Convert from universal to tile bin coordinates directly, as populateTileIdentity
+					// would.  Like it, this takes the offset of the tile from the bin itself, not from the
+					// tile given, so it leaves bins already in tile coordinates alone.
+					val primitiveValue = binning.value(value)
+					val primitiveCount = binning.count(value)
+					val xBins = tile.getXBins
+					val yBins = tile.getYBins
+					bins.foreach(bin =>
+						accumulator.add(bin.getX % xBins, bin.getY % yBins, primitiveValue, primitiveCount, binning)
+					)
+				} else {
+					populateTileFcn(tile, bins, value).foreach { case (bin, binValue) =>
+						accumulator.add(bin.getX, bin.getY, binning.value(binValue), binning.count(binValue), binning)
+					}
+				}
+			}
 
-		// Now, go through those results and convert to tiles.
+		// Combine all information from a single tile
+		val createCombiner: ((TileIndex, Array[BinIndex], PT, Option[DT])) => (PrimitiveBinAccumulator, Option[DT]) =
+			record => {
+				val tile = record._1
+				val accumulator = new PrimitiveBinAccumulator(tile.getXBins, tile.getYBins)
+				addRecord(accumulator, record)
+				(accumulator, record._4)
+			}
+		val mergeValue: ((PrimitiveBinAccumulator, Option[DT]),
+		                 (TileIndex, Array[BinIndex], PT, Option[DT])) => (PrimitiveBinAccumulator, Option[DT]) =
+			(aggregateValue, record) => {
+				val analyticAggregator = dataAnalytics.map(analytic => analytic.analytic.aggregate(_, _))
+				addRecord(aggregateValue._1, record)
+				(aggregateValue._1, optAggregate(analyticAggregator, aggregateValue._2, record._4))
+			}
+		val mergeCombiners: ((PrimitiveBinAccumulator, Option[DT]),
+		                     (PrimitiveBinAccumulator, Option[DT])) => (PrimitiveBinAccumulator, Option[DT]) =
+			(tileValues1, tileValues2) => {
+				val analyticAggregator = dataAnalytics.map(analytic => analytic.analytic.aggregate(_, _))
+				(tileValues1._1.merge(tileValues2._1, binning),
+				 optAggregate(analyticAggregator, tileValues1._2, tileValues2._2))
+			}
+		combineByTile[PT, DT, (PrimitiveBinAccumulator, Option[DT])](located, createCombiner, mergeValue, mergeCombiners,
+		                                                            skewPartitioning)
+	}
+
+	/**
+	 * Convert primitively accumulated bin values into finished tiles, and apply tile analytics to
+	 * them, as createTiles does for map-accumulated values.
+	 *
+	 * @param tileInfos The bin values and data analytic values of each tile, as produced by
+	 *                  aggregatePrimitiveBins
+	 * @param binning How the bin values were accumulated
+	 */
+	def createPrimitiveTiles[PT: ClassTag, AT: ClassTag, DT: ClassTag, BT]
+		(tileInfos: RDD[(TileIndex, (PrimitiveBinAccumulator, Option[DT]))],
+		 binning: PrimitiveBinning[PT],
+		 binAnalytic: BinningAnalytic[PT, BT],
+		 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 parameters: BinningParameters): RDD[TileData[BT]] =
+	{
 		tileInfos.map{tileInfo =>
 			val index = tileInfo._1
 			val binValues = tileInfo._2._1
 			val analyticValue = tileInfo._2._2
 
-			// Determine if we need a dense or sparse tile
-			val numValues = binValues.size
-			val xLimit = index.getXBins
-			val yLimit = index.getYBins
-			val typeToUse = parameters.tileType.getOrElse(
-				if (numValues > xLimit*yLimit/2) StorageType.Dense
-				else StorageType.Sparse
+			val tile = createEmptyTile(index, binValues.size, binAnalytic, parameters)
+
+			// Populate our tile with basic bin data
+			binValues.foreach((x, y, value, count) =>
+				tile.setBin(x, y, binAnalytic.finish(binning.processed(value, count)))
 			)
+			compactTile(tile)
 
-			// Create our tile
-			val defaultBinValue = binAnalytic.finish(binAnalytic.defaultProcessedValue)
-			val tile: TileData[BT] = typeToUse match {
-				case StorageType.Dense => new DenseTileData[BT](index, defaultBinValue)
-				case StorageType.Sparse => new SparseTileData[BT](index, defaultBinValue)
-			}
+			addAnalytics(tile, analyticValue, tileAnalytics, dataAnalytics)
+			tile
+		}
+	}
+
+	/**
+	 * Convert aggregated bin values into finished tiles, and apply tile analytics to them.
+	 *
+	 * @param tileInfos The bin values and data analytic values of each tile, as produced by
+	 *                  aggregateBins
+	 */
+	def createTiles[PT: ClassTag, AT: ClassTag, DT: ClassTag, BT]
+		(tileInfos: RDD[(TileIndex, (MutableMap[BinIndex, PT], Option[DT]))],
+		 binAnalytic: BinningAnalytic[PT, BT],
+		 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 parameters: BinningParameters): RDD[TileData[BT]] =
+	{
+		// Go through the aggregated bins and convert to tiles.
+		tileInfos.map{tileInfo =>
+			val index = tileInfo._1
+			val binValues = tileInfo._2._1
+			val analyticValue = tileInfo._2._2
+
+			val tile = createEmptyTile(index, binValues.size, binAnalytic, parameters)
 
 			// Populate our tile with basic bin data
 			binValues.foreach{case (bin, value) =>
 				tile.setBin(bin.getX, bin.getY, binAnalytic.finish(value))
 			}
+			compactTile(tile)
 
-			// Add in data analytics
-			dataAnalytics.foreach(da =>
-				analyticValue.foreach(a =>
-					AnalysisDescription.record(a, da, tile)
-				)
-			)
-
-			// Add in tile analytics
-			tileAnalytics.map(ta =>
-				{
-					// Figure out the value for this tile
-					val analyticValue = ta.convert(tile)
-					// Add it into any appropriate accumulators
-					ta.accumulate(tile.getDefinition(), analyticValue)
-					// And store it in the tile's metadata
-					AnalysisDescription.record(analyticValue, ta, tile)
-				}
-			)
-
+			addAnalytics(tile, analyticValue, tileAnalytics, dataAnalytics)
 			tile
 		}
 	}
@@ -361,9 +842,42 @@ class UniversalBinner extends Logging {
  * @param maxPartitions The maximum number of partitions to use during reduce operations
  * @param tileType The type of tile to generate (dense or sparse); None for a fairly good
  *                 heuristic to decide on a tile-by-tile basis.
+ * @param primitiveAccumulation Whether to accumulate bin values in primitive arrays, rather than
+ *                              maps, for those binning analytics that allow it (numeric sums,
+ *                              minimums, maximums, and means of doubles; see PrimitiveBinning).
+ * @param preAggregation If given, records are combined by tile and bin within each partition before
+ *                       being shuffled.  This is only valid for populateTileIdentity, which places
+ *                       values directly in their bins; with any other population function, it is
+ *                       ignored, with a warning.
+ * @param skewPartitioning If given, located records are sampled to find the busiest tiles, and
+ *                         the shuffle that combines them into tiles is laid out to spread those
+ *                         tiles over several partitions.  See SkewedTilePartitioner.
  */
 case class BinningParameters (debug: Boolean = true,
                               xBins: Int = 256, yBins: Int = 256,
                               minPartitions: Option[Int] = None,
                               maxPartitions: Option[Int] = None,
-                              tileType: Option[StorageType] = None)
+                              tileType: Option[StorageType] = None,
+                              primitiveAccumulation: Boolean = true,
+                              preAggregation: Option[PreAggregation] = None,
+                              skewPartitioning: Option[SkewPartitioning] = None)
+
+/**
+ * Parameters and statistics for map-side pre-aggregation of binned records (see
+ * UniversalBinner.preAggregate).  The statistics are kept in accumulators, so are only complete
+ * once the binning job using them has run; they also show up, by name, in the Spark UI.
+ *
+ * @param maxCells The maximum number of distinct tile and bin combinations to hold in each
+ *                 partition at once
+ */
+class PreAggregation (val maxCells: Int, sc: SparkContext) extends Serializable {
+	/** The number of located records that went into pre-aggregation */
+	val records = sc.accumulator(0L, "Pre-aggregated records")
+	/** The number of combined records that came out of pre-aggregation */
+	val cells = sc.accumulator(0L, "Pre-aggregated cells")
+
+	/** The average number of records combined into each record sent to the shuffle */
+	def combineRatio: Double =
+		if (0L == cells.value) 1.0
+		else records.value.toDouble / cells.value
+}
@@ -35,6 +35,7 @@ import java.util.{List => JavaList}
 import com.oculusinfo.binning.util.JsonUtilities
 import org.json.{JSONArray, JSONObject}
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable.MutableList
 import scala.collection.mutable.{Map => MutableMap}
 import scala.reflect.ClassTag
@@ -113,6 +114,28 @@ trait BinningAnalytic[PROCESSING_TYPE, RESULT_TYPE] extends Analytic[PROCESSING_
 	def finish (value: PROCESSING_TYPE): RESULT_TYPE
 }
 
+/**
+ * A binning analytic whose finished bin values can be turned back into processing values, so that
+ * finished tiles can be merged with new ones without re-binning the data behind them.
+ *
+ * @tparam PROCESSING_TYPE The type of value used when aggregating bins
+ * @tparam RESULT_TYPE The type of value written into finished bins
+ */
+trait MergeableBinningAnalytic[PROCESSING_TYPE, RESULT_TYPE] extends BinningAnalytic[PROCESSING_TYPE, RESULT_TYPE] {
+	/**
+	 * Convert a finished bin value back into the processing value from which it was finished
+	 */
+	def unfinish (value: RESULT_TYPE): PROCESSING_TYPE
+
+	/**
+	 * Merge two finished bin values
+	 */
+	def mergeFinished (a: RESULT_TYPE, b: RESULT_TYPE): RESULT_TYPE =
+		finish(aggregate(unfinish(a), unfinish(b)))
+}
+
+
+
 /**
  * A TileAnalytic extends Analytic with a few simple pices that allow values to
  * be written to metadata, both on each individual tile, and globally.
@@ -147,6 +170,24 @@ trait TileAnalytic[T] extends Analytic[T] {
 		Some(result)
 	}
 
+	/**
+	 * Read a value back from the JSON form written by storableValue, if possible.  Analytics that can
+	 * do so can have their pyramid metadata updated incrementally; those that can't have it replaced.
+	 *
+	 * @param stored The stored JSON, which may contain the values of other analytics too
+	 * @return The stored value of this analytic, or None if it isn't there or can't be read
+	 */
+	def valueFromStorable (stored: JSONObject): Option[T] = None
+
+	/**
+	 * Whether aggregating a value with itself leaves it unchanged, as for minimums and maximums, and
+	 * stored values can be read back (see valueFromStorable).  When tiles are merged into existing
+	 * ones, the level and global values of the merged tiles include the old values of the tiles they
+	 * replace; only analytics for which that double counting does no harm can be combined with the
+	 * values already in the pyramid metadata.
+	 */
+	def idempotent: Boolean = false
+
 	override def toString = "["+name+"]"
 }
 object TileAnalytic {
@@ -176,6 +217,7 @@ class ComposedTileAnalytic[T1, T2]
 		(val1.defaultProcessedValue, val2.defaultProcessedValue)
 	def defaultUnprocessedValue: (T1, T2) =
 		(val1.defaultUnprocessedValue, val2.defaultUnprocessedValue)
+	override def idempotent: Boolean = val1.idempotent && val2.idempotent
 	override def storableValue (value: (T1, T2), location: TileAnalytic.Locations.Value): Option[JSONObject] = {
 		// We want to combine the results of both our components into a single return value.
 		val v1 = val1.storableValue(value._1, location)
@@ -263,6 +305,20 @@ object AnalysisDescription {
 		metaData.setCustomMetaData(analysis.accumulatedResults);
 	}
 
+	// Combine accumulated metadata info with that already in the global metadata for a pyramid
+	def recordIncrement[T] (analysis: AnalysisDescription[_, T], metaData: PyramidMetaData): Unit = {
+		val previous: String => Option[JSONObject] = key =>
+			Option(metaData.getCustomMetaData(key)).flatMap(value => Try(new JSONObject(value)).toOption)
+		metaData.setCustomMetaData(analysis.accumulatedResults(previous))
+	}
+
+	// Read a value previously recorded in a tile, if the analysis can read its values back
+	def readRecorded[T] (analysis: AnalysisDescription[_, T], tile: TileData[_]): Option[T] = {
+		val stored = new JSONObject()
+		Option(tile.getMetaDataProperties).foreach(_.asScala.foreach(key => stored.put(key, tile.getMetaData(key))))
+		analysis.analytic.valueFromStorable(stored)
+	}
+
 	// Apply accumulated metadata info to an actual tile
 	def record[T] (value: T, analysis: AnalysisDescription[_, T], tile: TileData[_]): Unit = {
 		analysis.analytic.storableValue(value, TileAnalytic.Locations.Tile).foreach { json =>
@@ -302,6 +358,13 @@ trait AnalysisDescription[RT, AT] extends Serializable {
 	// Deal with accumulators
 	def addAccumulator (sc: SparkContext, name: String, test: (TileIndex) => Boolean): Unit
 	def accumulatedResults: JSONObject
+	/**
+	 * Get accumulated results, combined with previously stored results where possible.  By default,
+	 * previous results are ignored.
+	 *
+	 * @param previous A function to get the previously stored value of each accumulator, by name
+	 */
+	def accumulatedResults (previous: String => Option[JSONObject]): JSONObject = accumulatedResults
 
 	// Standard accumulators
 	def addLevelAccumulator (sc: SparkContext, level: Int): Unit =
@@ -364,6 +427,20 @@ class MonolithicAnalysisDescription[RT, AT: ClassTag]
 		result
 	}
 
+	override def accumulatedResults (previous: String => Option[JSONObject]): JSONObject = {
+		val result = new JSONObject
+		accumulatorInfos.map{case (key, accum) =>
+			val value = previous(key).flatMap(analytic.valueFromStorable) match {
+				case Some(previousValue) => analytic.aggregate(previousValue, accum.accumulator.value)
+				case None => accum.accumulator.value
+			}
+			analytic.storableValue(value, TileAnalytic.Locations.Pyramid).foreach(value =>
+				result.put(key, value)
+			)
+		}
+		result
+	}
+
 	override def toString = analyticParam.toString
 }
 
@@ -424,6 +501,12 @@ class CompositeAnalysisDescription[RT, AT1: ClassTag, AT2: ClassTag]
 		JsonUtilities.overlayInPlace(res1, res2)
 	}
 
+	override def accumulatedResults (previous: String => Option[JSONObject]): JSONObject = {
+		val res1 = analysis1.accumulatedResults(previous)
+		val res2 = analysis2.accumulatedResults(previous)
+		JsonUtilities.overlayInPlace(res1, res2)
+	}
+
 
 	// Helper functions for testing purposes only
 	/** Count all composed sub-components.  For testing purposes only. */
@@ -509,6 +592,8 @@ class CustomMetadataAnalytic extends TileAnalytic[String]
 	def defaultProcessedValue: String = ""
 	def defaultUnprocessedValue: String = ""
 	def name: String = "VariableSeries"
+	// Custom metadata is constant, so is the same no matter how often it's combined
+	override def idempotent: Boolean = true
 	override def storableValue (value: String, location: TileAnalytic.Locations.Value): Option[JSONObject] =
 		if (TileAnalytic.Locations.Pyramid == location) super.storableValue(value, location) else None
 }
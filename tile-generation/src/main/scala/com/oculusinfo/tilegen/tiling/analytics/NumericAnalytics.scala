@@ -36,6 +36,7 @@ import com.oculusinfo.tilegen.tiling.IPv4ZCurveIndexScheme._
 import com.oculusinfo.tilegen.util.{NumericallyConfigurableFactory, ExtendedNumeric, TypeConversion}
 import org.json.JSONObject
 import scala.reflect.ClassTag
+import scala.util.Try
 import com.oculusinfo.tilegen.util.OptionsFactoryMixin
 
 
@@ -139,6 +140,23 @@ trait NumericType[T] {
 	val numericType: ExtendedNumeric[T]
 }
 
+/**
+ * A tile analytic of simple numbers, which can read its values back from metadata
+ */
+trait NumericTileAnalytic[T] extends TileAnalytic[T] with NumericType[T] {
+	override def valueFromStorable (stored: JSONObject): Option[T] =
+		Option(stored.opt(name)).flatMap(value => Try(numericType.fromAny(value)).toOption)
+}
+
+/**
+ * A binning analytic of simple numbers, finished by a reversible type conversion
+ */
+trait NumericMergeableBinningAnalytic[T, JT] extends MergeableBinningAnalytic[T, JT] {
+	protected val conversion: TypeConversion[T, JT]
+	def finish (value: T): JT = conversion.forwards(value)
+	def unfinish (value: JT): T = conversion.backwards(value)
+}
+
 /**
  * The simplest of numeric analytics, this takes in numbers and spits out their
  * sum.
@@ -161,9 +179,9 @@ class NumericSumAnalytic[T] (implicit numeric: ExtendedNumeric[T]) extends Analy
 class NumericSumBinningAnalytic[T, JT] (implicit numeric: ExtendedNumeric[T],
                                         converter: TypeConversion[T, JT])
 		extends NumericSumAnalytic[T]
-		with BinningAnalytic[T, JT]
+		with NumericMergeableBinningAnalytic[T, JT]
 {
-	def finish (value: T): JT = converter.forwards(value)
+	protected val conversion = converter
 }
 /**
  * {@see NumericSumAnalytic}
@@ -172,7 +190,7 @@ class NumericSumBinningAnalytic[T, JT] (implicit numeric: ExtendedNumeric[T],
  */
 class NumericSumTileAnalytic[T] (analyticName: Option[String] = None)(implicit numeric: ExtendedNumeric[T])
 		extends NumericSumAnalytic[T]
-		with TileAnalytic[T]
+		with NumericTileAnalytic[T]
 {
 	def name = analyticName.getOrElse("sum")
 }
@@ -204,9 +222,9 @@ class NumericMaxAnalytic[T] (implicit numeric: ExtendedNumeric[T]) extends Analy
 class NumericMaxBinningAnalytic[T, JT] (implicit numeric: ExtendedNumeric[T],
                                         converter: TypeConversion[T, JT])
 		extends NumericMaxAnalytic[T]
-		with BinningAnalytic[T, JT]
+		with NumericMergeableBinningAnalytic[T, JT]
 {
-	def finish (value: T): JT = converter.forwards(value)
+	protected val conversion = converter
 }
 /**
  * {@see NumericMaxAnalytic}
@@ -215,9 +233,10 @@ class NumericMaxBinningAnalytic[T, JT] (implicit numeric: ExtendedNumeric[T],
  */
 class NumericMaxTileAnalytic[T] (analyticName: Option[String] = None)(implicit numeric: ExtendedNumeric[T])
 		extends NumericMaxAnalytic[T]
-		with TileAnalytic[T]
+		with NumericTileAnalytic[T]
 {
 	def name = analyticName.getOrElse("maximum")
+	override def idempotent: Boolean = true
 }
 
 
@@ -304,9 +323,9 @@ class NumericMinAnalytic[T] (implicit numeric: ExtendedNumeric[T]) extends Analy
 class NumericMinBinningAnalytic[T, JT] (implicit numeric: ExtendedNumeric[T],
                                         converter: TypeConversion[T, JT])
 		extends NumericMinAnalytic[T]
-		with BinningAnalytic[T, JT]
+		with NumericMergeableBinningAnalytic[T, JT]
 {
-	def finish (value: T): JT = converter.forwards(value)
+	protected val conversion = converter
 }
 /**
  * {@see NumericMinAnalytic}
@@ -315,9 +334,10 @@ class NumericMinBinningAnalytic[T, JT] (implicit numeric: ExtendedNumeric[T],
  */
 class NumericMinTileAnalytic[T] (analyticName: Option[String] = None)(implicit numeric: ExtendedNumeric[T])
 		extends NumericMinAnalytic[T]
-		with TileAnalytic[T]
+		with NumericTileAnalytic[T]
 {
 	def name = analyticName.getOrElse("minimum")
+	override def idempotent: Boolean = true
 }
 
 
@@ -388,6 +408,8 @@ class NumericMeanAnalytic[T] (emptyValue: Double = JavaDouble.NaN,
 		extends Analytic[(T, Int)] with NumericType[Double]
 {
 	val numericType = ExtendedNumeric.ExtendedDouble
+	/** The numeric type of the raw data being averaged */
+	val rawNumericType = numeric
 	def aggregate (a: (T, Int), b: (T, Int)): (T, Int) =
 		(numeric.plus(a._1, b._1), (a._2 + b._2))
 	def defaultProcessedValue: (T, Int) = (numeric.zero, 0)
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 Uncharted Software Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.datasets
+
+
+
+import java.util.Properties
+
+import org.apache.spark.SharedSparkContext
+import org.scalatest.FunSuite
+
+import com.oculusinfo.tilegen.tiling.TestTileIO
+
+
+
+/**
+ * Tests for tiling several tasks in a single pass
+ */
+class FusedTilingTestSuite extends FunSuite with SharedSparkContext with TileAssertions {
+	private def createTask (name: String, properties: Map[String, String]): TilingTask[_, _, _, _] = {
+		val props = new Properties()
+		props.setProperty("oculus.binning.name", name)
+		props.setProperty("oculus.binning.projection.autobounds", "false")
+		props.setProperty("oculus.binning.projection.type", "areaofinterest")
+		props.setProperty("oculus.binning.projection.minX", "0.0")
+		props.setProperty("oculus.binning.projection.maxX", "7.9999")
+		props.setProperty("oculus.binning.projection.minY", "0.0")
+		props.setProperty("oculus.binning.projection.maxY", "7.9999")
+		props.setProperty("oculus.binning.index.type", "cartesian")
+		properties.foreach{case (property, value) => props.setProperty(property, value)}
+
+		TilingTask(sqlc, "fused", props)
+	}
+
+	// Two heatmaps of the same data, with different index fields, values, levels, and tile sizes
+	private def createTasks: Seq[TilingTask[_, _, _, _]] = Seq(
+		createTask("fused.count",
+		           Map("oculus.binning.index.field.0" -> "x",
+		               "oculus.binning.index.field.1" -> "y",
+		               "oculus.binning.levels.0" -> "0",
+		               "oculus.binning.levels.1" -> "1",
+		               "oculus.binning.tileWidth" -> "2",
+		               "oculus.binning.tileHeight" -> "2")),
+		createTask("fused.sum",
+		           Map("oculus.binning.index.field.0" -> "y",
+		               "oculus.binning.index.field.1" -> "x",
+		               "oculus.binning.levels.0" -> "1",
+		               "oculus.binning.tileWidth" -> "4",
+		               "oculus.binning.tileHeight" -> "4",
+		               "oculus.binning.value.type" -> "field",
+		               "oculus.binning.value.field" -> "v",
+		               "oculus.binning.value.valueType" -> "double",
+		               "oculus.binning.value.aggregation" -> "sum",
+		               "oculus.binning.value.serializer" -> "[double]-a"))
+	)
+
+	test("Fused tiling matches separate tiling") {
+		val data = sqlc.jsonRDD(sc.parallelize(Range(0, 64)).map(n =>
+			"{\"x\": %f, \"y\": %f, \"v\": %f}".format((n % 8).toDouble, ((n * 3) % 8).toDouble, n.toDouble)
+		))
+		data.registerTempTable("fused")
+		val names = List("fused.count", "fused.sum")
+		val tileIO = new TestTileIO
+
+		try {
+			createTasks.foreach(_.doTiling(tileIO))
+			val expected = names.map(name => tileIO.getPyramid(name).get.toMap)
+			names.foreach(name => tileIO.clearPyramid(name))
+
+			FusedTiling(sqlc, "fused", createTasks.map(task => (task, tileIO)), Some(3))
+
+			names.zip(expected).foreach{case (name, expectedTiles) =>
+				assert(tileIO.getMetaData(name).isDefined)
+				val actualTiles = tileIO.getPyramid(name).get
+				assert(expectedTiles.keySet === actualTiles.keySet)
+				expectedTiles.foreach{case (index, tile) => assertTileContents(tile, actualTiles(index))}
+			}
+			// Levels 0 and 1 at 2x2 bins, and level 1 at 4x4 bins
+			assert(5 === expected(0).size)
+			assert(4 === expected(1).size)
+		} finally {
+			names.foreach(name => tileIO.clearPyramid(name))
+		}
+	}
+}
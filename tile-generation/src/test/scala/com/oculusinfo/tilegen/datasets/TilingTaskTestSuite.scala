@@ -90,6 +90,19 @@ class TilingTaskTestSuite extends FunSuite with SharedSparkContext with BeforeAn
 		pyramidIo.initializeDirectly(pyramidId, task)
 	}
 
+	private def createColumnarTask (extraProperties: (String, String)*): TilingTask[_, _, _, _] = {
+		val props = new Properties()
+		props.setProperty("oculus.binning.source.type", "schema")
+		props.setProperty("oculus.binning.table", "test")
+		props.setProperty("oculus.binning.index.type", "cartesian")
+		props.setProperty("oculus.binning.index.field.0", "x")
+		props.setProperty("oculus.binning.index.field.1", "y")
+		props.setProperty("oculus.binning.levels.0", "1")
+		props.setProperty("oculus.binning.columnar", "true")
+		extraProperties.foreach { case (key, value) => props.setProperty("oculus.binning."+key, value) }
+		TilingTask(sqlc, "test", props)
+	}
+
 	private def cleanupTask: Unit = {
 		data = null
 		pyramidIo = null
@@ -134,4 +147,11 @@ class TilingTaskTestSuite extends FunSuite with SharedSparkContext with BeforeAn
 			                    List(new TileIndex(1, 1, 1, 2, 2)).asJava).asScala
 		assert(0 === tile111.size)
 	}
+
+	test("Columnar binning is only used where it gives the same results") {
+		assert(createColumnarTask().canBinColumns)
+		assert(!createColumnarTask("bottomUp" -> "true").canBinColumns)
+		assert(!createColumnarTask("preAggregationCells" -> "1000").canBinColumns)
+		assert(!createColumnarTask("skewSampleFraction" -> "0.1").canBinColumns)
+	}
 }
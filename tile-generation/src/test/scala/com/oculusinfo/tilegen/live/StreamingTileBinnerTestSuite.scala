@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.live
+
+
+
+import java.io.File
+import java.io.PrintWriter
+import java.lang.{Double => JavaDouble}
+import java.net.InetSocketAddress
+import java.nio.file.Files
+
+import scala.io.Source
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.json.JSONObject
+
+import org.scalatest.FunSuite
+
+import org.apache.spark.SharedSparkContext
+import org.apache.spark.streaming.Seconds
+import org.apache.spark.streaming.StreamingContext
+import org.apache.spark.streaming.dstream.LocalFileInputDStream
+
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.impl.AOITilePyramid
+import com.oculusinfo.binning.metadata.PyramidMetaData
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+
+import com.oculusinfo.tilegen.tiling.CartesianIndexScheme
+import com.oculusinfo.tilegen.tiling.TestTileIO
+import com.oculusinfo.tilegen.tiling.analytics.NumericSumBinningAnalytic
+
+
+
+class StreamingTileBinnerTestSuite extends FunSuite with SharedSparkContext {
+	private val pyramid = new AOITilePyramid(0.0, 0.0, 8.0, 8.0)
+
+	private def createBinner (pyramidId: String, tileIO: TestTileIO, window: Option[Long]) =
+		new StreamingTileBinner[(Double, Double), Double, JavaDouble](
+			pyramidId, tileIO, null, pyramid, Seq(1), new CartesianIndexScheme,
+			new NumericSumBinningAnalytic[Double, JavaDouble](), xBins = 4, yBins = 4, window = window,
+			tileAnalytics = StreamingTileBinner.minMaxAnalytics[Double, JavaDouble])
+
+	private def getBin (tileIO: TestTileIO, pyramidId: String, tile: TileIndex, x: Int, y: Int): Double =
+		tileIO.getTile(pyramidId, tile).get.getBin(x, y).asInstanceOf[JavaDouble].doubleValue
+
+	private def getLevelMaximum (tileIO: TestTileIO, pyramidId: String, level: Int): Double =
+		new PyramidMetaData(tileIO.getMetaData(pyramidId).get).getCustomMetaData(""+level, "maximum").toDouble
+
+	test("Streamed batches accumulate, and only changed tiles are written") {
+		val pyramidId = "streaming accumulation test"
+		val tileIO = new TestTileIO
+		val binner = createBinner(pyramidId, tileIO, None)
+		val updates = ArrayBuffer[Seq[TileIndex]]()
+		binner.addListener(new TileUpdateListener {
+			def onTilesUpdated (id: String, tiles: Seq[TileIndex]): Unit = updates += tiles
+		})
+
+		// Read each batch the way a local file stream would
+		val directory = Files.createTempDirectory("streaming-binner").toFile
+		val ssc = new StreamingContext(sc, Seconds(1))
+		val stream = new LocalFileInputDStream(ssc, directory.getAbsolutePath)
+		def readBatch (name: String, lines: String*) = {
+			val file = new File(directory, name)
+			val writer = new PrintWriter(file)
+			lines.foreach(writer.println)
+			writer.close()
+			stream.filesToRDD(Seq(file)).map { line =>
+				val fields = line.split(",")
+				((fields(0).toDouble, fields(1).toDouble), 1.0)
+			}
+		}
+
+		try {
+			val lowerLeft = new TileIndex(1, 0, 0, 4, 4)
+			val upperRight = new TileIndex(1, 1, 1, 4, 4)
+
+			assert(List(lowerLeft) === binner.processBatch(readBatch("a", "0.5,0.5", "0.5,0.5"), 1000L))
+			assert(2.0 === getBin(tileIO, pyramidId, lowerLeft, 0, 3))
+
+			val written = binner.processBatch(readBatch("b", "0.5,0.5", "7.5,7.5"), 2000L)
+			assert(Set(lowerLeft, upperRight) === written.toSet)
+			assert(3.0 === getBin(tileIO, pyramidId, lowerLeft, 0, 3))
+			assert(1.0 === getBin(tileIO, pyramidId, upperRight, 3, 0))
+
+			// Only the tile with new data is rewritten
+			assert(List(upperRight) === binner.processBatch(readBatch("c", "7.5,7.5"), 3000L))
+			assert(2.0 === getBin(tileIO, pyramidId, upperRight, 3, 0))
+			// ... but the level extrema still cover the tile that wasn't
+			assert(3.0 === getLevelMaximum(tileIO, pyramidId, 1))
+
+			assert(3 === updates.size)
+			assert(2 === binner.getTileCount)
+		} finally {
+			// Leave the shared spark context for the other tests
+			ssc.stop(stopSparkContext = false)
+			tileIO.clearPyramid(pyramidId)
+			directory.listFiles.foreach(_.delete)
+			directory.delete
+		}
+	}
+
+	test("Streaming state stays partitioned by tile") {
+		val pyramidId = "streaming partitioning test"
+		val tileIO = new TestTileIO
+		val binner = new StreamingTileBinner[(Double, Double), Double, JavaDouble](
+			pyramidId, tileIO, null, pyramid, Seq(1), new CartesianIndexScheme,
+			new NumericSumBinningAnalytic[Double, JavaDouble](), xBins = 4, yBins = 4, numPartitions = Some(3))
+		def batch (points: (Double, Double)*) = sc.parallelize(points.map(p => (p, 1.0)))
+
+		try {
+			binner.processBatch(batch((0.5, 0.5)), 1000L)
+			val first = binner.getState.get.partitioner
+			binner.processBatch(batch((0.5, 0.5), (7.5, 7.5)), 2000L)
+			val second = binner.getState.get.partitioner
+			assert(first.isDefined)
+			assert(3 === first.get.numPartitions)
+			assert(first === second)
+		} finally {
+			tileIO.clearPyramid(pyramidId)
+		}
+	}
+
+	test("Windowed streaming drops old data") {
+		val pyramidId = "streaming window test"
+		val tileIO = new TestTileIO
+		val binner = createBinner(pyramidId, tileIO, Some(1500L))
+		def batch (points: (Double, Double)*) = sc.parallelize(points.map(p => (p, 1.0)))
+
+		try {
+			val lowerLeft = new TileIndex(1, 0, 0, 4, 4)
+			val upperRight = new TileIndex(1, 1, 1, 4, 4)
+
+			binner.processBatch(batch((0.5, 0.5)), 1000L)
+			binner.processBatch(batch((0.5, 0.5), (7.5, 7.5)), 2000L)
+			assert(2.0 === getBin(tileIO, pyramidId, lowerLeft, 0, 3))
+
+			// The first batch falls out of the window
+			assert(List(lowerLeft) === binner.processBatch(batch(), 3000L))
+			assert(1.0 === getBin(tileIO, pyramidId, lowerLeft, 0, 3))
+			assert(1.0 === getLevelMaximum(tileIO, pyramidId, 1))
+
+			// Now everything has - both tiles are written empty, and then forgotten
+			assert(Set(lowerLeft, upperRight) === binner.processBatch(batch(), 4000L).toSet)
+			assert(0.0 === getBin(tileIO, pyramidId, lowerLeft, 0, 3))
+			assert(0.0 === getBin(tileIO, pyramidId, upperRight, 3, 0))
+			assert(binner.processBatch(batch(), 5000L).isEmpty)
+			assert(0 === binner.getTileCount)
+		} finally {
+			tileIO.clearPyramid(pyramidId)
+		}
+	}
+
+	test("Tile server listener posts updated tiles for invalidation") {
+		val requests = ArrayBuffer[(String, JSONObject)]()
+		val server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+		server.createContext("/tile-service/rest/cache/invalidate", new HttpHandler {
+			def handle (exchange: HttpExchange): Unit = {
+				val body = Source.fromInputStream(exchange.getRequestBody, "UTF-8").mkString
+				requests.synchronized(requests += ((exchange.getRequestMethod, new JSONObject(body))))
+				exchange.sendResponseHeaders(200, -1)
+				exchange.close()
+			}
+		})
+		server.start()
+		try {
+			val listener = new TileServerUpdateListener("http://localhost:"+server.getAddress.getPort+"/tile-service/rest/")
+			listener.onTilesUpdated("pyramid", Seq(new TileIndex(1, 0, 0, 4, 4), new TileIndex(1, 1, 1, 4, 4)))
+
+			assert(1 === requests.size)
+			val (method, request) = requests(0)
+			assert("POST" === method)
+			assert("pyramid" === request.getString("pyramidId"))
+			val tiles = request.getJSONArray("tiles")
+			assert(List("1/0/0", "1/1/1") === (0 until tiles.length).map(tiles.getString).toList)
+		} finally {
+			server.stop(0)
+		}
+	}
+}
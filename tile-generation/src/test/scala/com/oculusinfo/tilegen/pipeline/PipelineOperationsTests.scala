@@ -42,7 +42,7 @@ import com.oculusinfo.binning.io.impl.{FileSystemPyramidSource, FileBasedPyramid
 import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer
 import com.oculusinfo.binning.metadata.PyramidMetaData
 import com.oculusinfo.binning.util.JSONUtilitiesTests
-import com.oculusinfo.tilegen.datasets.{TileAssertions, SchemaTypeUtilities}
+import com.oculusinfo.tilegen.datasets.{TileAssertions, SchemaTypeUtilities, TilingTaskParameters}
 import com.oculusinfo.tilegen.tiling.LocalTileIO
 import org.apache.avro.file.CodecFactory
 import org.apache.spark.SharedSparkContext
@@ -607,6 +607,53 @@ class PipelineOperationsTests extends FunSuite with SharedSparkContext with Tile
 		}
 	}
 
+	test("Test multiple heatmap operation") {
+
+		try {
+			// pipeline stage to create test data
+			def createDataOp(count: Int)(input: PipelineData) = {
+				val jsonData = for (x <- 0 until count; y <- 0 until count/2) yield {
+					val lon = -180.0 + (x / count.toFloat * 360.0)
+					val lat = -45.0 + (y  * 90.0 / (count / 2))
+					s"""{"x":$lon, "y":$lat, "data":${(x * count + y).toDouble}}\n"""
+				}
+				val srdd = sqlc.jsonRDD(sc.parallelize(jsonData))
+				PipelineData(sqlc, srdd)
+			}
+
+			def tilingParams(name: String) =
+				new TilingTaskParameters(name, "a test description", None, Seq(Seq(0)), 4, 4, None, None)
+
+			// Produce a count heatmap and a sum heatmap of the same data in one stage
+			val heatmaps = Seq(HeatMapSpec("x", "y", tilingParams("test.multi.count")),
+			                   HeatMapSpec("x", "y", tilingParams("test.multi.sum"), None, OperationType.SUM,
+			                               Some("data"), Some("double")))
+
+			val rootStage = PipelineStage("create_data", createDataOp(8)(_))
+			rootStage.addChild(PipelineStage("multi_heatmap_op", multiHeatMapOp(heatmaps)(_)))
+			PipelineTree.execute(rootStage, sqlc)
+
+			val tileIO = new LocalTileIO("avro")
+			val countMetaData = tileIO.readMetaData("test.multi.count").getOrElse(fail("Count metadata not created"))
+			JSONUtilitiesTests.assertJsonEqual(new JSONObject("""{"minimum":0, "maximum":4}"""),
+			                                   new JSONObject(countMetaData.getCustomMetaData("global").toString))
+
+			val sumMetaData = tileIO.readMetaData("test.multi.sum").getOrElse(fail("Sum metadata not created"))
+			JSONUtilitiesTests.assertJsonEqual(new JSONObject("""{"minimum":0, "maximum":218}"""),
+			                                   new JSONObject(sumMetaData.getCustomMetaData("global").toString))
+		} finally {
+			// Remove the tile sets we created
+			def removeRecursively (file: File): Unit = {
+				if (file.isDirectory) {
+					file.listFiles().foreach(removeRecursively)
+				}
+				file.delete()
+			}
+			removeRecursively(new File("test.multi.count"))
+			removeRecursively(new File("test.multi.sum"))
+		}
+	}
+
 	def round(d: Any, places: Int) = {
 		BigDecimal(d.asInstanceOf[Double]).setScale(places, BigDecimal.RoundingMode.HALF_UP).toDouble
 	}
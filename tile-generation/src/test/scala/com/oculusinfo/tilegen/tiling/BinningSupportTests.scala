@@ -26,10 +26,13 @@ package com.oculusinfo.tilegen.tiling
 
 
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable.{Map => MutableMap}
 
 import org.scalatest.FunSuite
 
+import com.oculusinfo.binning.{BinIndex, TileIndex}
+
 
 
 /**
@@ -76,4 +79,19 @@ class BinningSupportTests extends FunSuite {
 		assert(None == UniversalBinner.optAggregate(Some(aggFcn), None, None))
 		assert(None == UniversalBinner.optAggregate(None, None, None))
 	}
+
+	test("Test parent bin calculation") {
+		// Compare with a calculation through universal bin coordinates
+		val parent = new TileIndex(2, 1, 2, 4, 4)
+		TileIndex.getChildren(parent).asScala.foreach { child =>
+			for (x <- 0 until 4; y <- 0 until 4) {
+				val bin = new BinIndex(x, y)
+				val universal = TileIndex.tileBinIndexToUniversalBinIndex(child, bin)
+				val expected = TileIndex.universalBinIndexToTileBinIndex(
+					parent, new BinIndex(universal.getX / 2, universal.getY / 2))
+				assert(parent === expected.getTile)
+				assert(expected.getBin === UniversalBinner.getParentBin(child, bin))
+			}
+		}
+	}
 }
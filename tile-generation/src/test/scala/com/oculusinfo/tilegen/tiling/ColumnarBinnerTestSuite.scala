@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import java.lang.{Double => JavaDouble}
+
+import scala.util.Random
+
+import org.scalatest.FunSuite
+
+import org.apache.spark.SharedSparkContext
+import org.apache.spark.rdd.RDD
+
+import com.oculusinfo.binning.TileData
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.TilePyramid
+import com.oculusinfo.binning.impl.AOITilePyramid
+import com.oculusinfo.binning.impl.WebMercatorTilePyramid
+import com.oculusinfo.tilegen.tiling.analytics.{BinningAnalytic, NumericMaxBinningAnalytic, NumericSumBinningAnalytic}
+
+
+
+case class ColumnarTestRecord (x: Double, y: Int, value: Option[Double])
+
+class ColumnarBinnerTestSuite extends FunSuite with SharedSparkContext with RandomPointsFixture {
+	private val levels = Seq(0, 1, 2, 3)
+
+	// Bin the same points with the universal binner, for comparison
+	private def universalTiles (points: Seq[((Double, Double), Double)], pyramid: TilePyramid,
+	                            analytic: BinningAnalytic[Double, JavaDouble]): Map[TileIndex, TileData[JavaDouble]] = {
+		val data: RDD[((Double, Double), Double, Option[Int])] = sc.parallelize(points, 3).map(p => (p._1, p._2, None))
+		new UniversalBinner().processData[(Double, Double), Double, Int, Int, JavaDouble](
+			data, analytic, None, None,
+			StandardBinningFunctions.locateIndexOverLevels(new CartesianIndexScheme, pyramid, 4, 4)(levels),
+			StandardBinningFunctions.populateTileIdentity,
+			BinningParameters(xBins = 4, yBins = 4)
+		).collect.map(tile => (tile.getDefinition, tile)).toMap
+	}
+
+	private def assertSameTiles (expected: Map[TileIndex, TileData[JavaDouble]],
+	                             actual: Map[TileIndex, TileData[JavaDouble]]): Unit = {
+		assert(expected.keySet === actual.keySet)
+		expected.foreach { case (index, tile) =>
+			for (x <- 0 until 4; y <- 0 until 4) {
+				assert(math.abs(tile.getBin(x, y) - actual(index).getBin(x, y)) < 1E-9,
+				       "Bin ["+x+", "+y+"] of "+index+" differs")
+			}
+		}
+	}
+
+	test("Columnar binning matches universal binning") {
+		// Integral y coordinates, and some missing values
+		val records = randomPoints().zipWithIndex.map { case (((x, y), value), n) =>
+			ColumnarTestRecord(x, y.toInt, if (0 == n % 10) None else Some(value))
+		}
+		val valued = sc.parallelize(records.filter(_.value.isDefined).map(r => ((r.x, r.y.toDouble), r.value.get, None: Option[Int])), 3)
+		val data = sqlc.createDataFrame(sc.parallelize(records, 3))
+
+		Seq(new NumericSumBinningAnalytic[Double, JavaDouble](), new NumericMaxBinningAnalytic[Double, JavaDouble]()).foreach { analytic =>
+			assertSameBins(binUniversally(valued, levels, analytic),
+			               binsOf(new ColumnarBinner().processData[Double, Int, JavaDouble](
+				               data, "x", Some("y"), Some("value"), analytic, None, pointPyramid, levels,
+				               BinningParameters(xBins = pointBins, yBins = pointBins))))
+		}
+	}
+
+	test("Columnar counts on a mercator pyramid match universal binning") {
+		val random = new Random(32452843)
+		val records = (0 until 1000).map(n =>
+			ColumnarTestRecord(random.nextDouble * 360.0 - 180.0, random.nextInt(170) - 85, None))
+		val pyramid = new WebMercatorTilePyramid
+		val analytic = new NumericSumBinningAnalytic[Double, JavaDouble]()
+		val data = sqlc.createDataFrame(sc.parallelize(records, 3))
+
+		val expected = universalTiles(records.map(r => ((r.x, r.y.toDouble), 1.0)), pyramid, analytic)
+		val actual = new ColumnarBinner().processData[Double, Int, JavaDouble](
+			data, "x", Some("y"), None, analytic, None, pyramid, levels, BinningParameters(xBins = 4, yBins = 4)
+		).collect.map(tile => (tile.getDefinition, tile)).toMap
+
+		assertSameTiles(expected, actual)
+	}
+
+	test("Chunk locators match their pyramids") {
+		val random = new Random(49979687)
+		val n = 100
+		val xs = Array.fill(n)(random.nextDouble * 360.0 - 180.0)
+		val ys = Array.fill(n)(random.nextDouble * 170.0 - 85.0)
+		val (tileXs, tileYs, binXs, binYs) = (new Array[Int](n), new Array[Int](n), new Array[Int](n), new Array[Int](n))
+
+		Seq(new AOITilePyramid(-180.0, -85.0, 180.0, 85.0), new WebMercatorTilePyramid).foreach { pyramid =>
+			val locator = ChunkLocator(pyramid, n)
+			locator.prepare(xs, ys, n)
+			Seq(0, 5, 17).foreach { level =>
+				locator.locate(level, 256, 256, tileXs, tileYs, binXs, binYs)
+				for (i <- 0 until n) {
+					val tile = pyramid.rootToTile(xs(i), ys(i), level, 256, 256)
+					val bin = pyramid.rootToBin(xs(i), ys(i), tile)
+					assert(tile.getX === tileXs(i) && tile.getY === tileYs(i))
+					assert(bin.getX === binXs(i) && bin.getY === binYs(i))
+				}
+			}
+		}
+	}
+}
@@ -37,6 +37,8 @@ import org.apache.spark.rdd.RDD
 import org.json.JSONObject
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.{Map => MutableMap}
+import scala.reflect.ClassTag
 import scala.util.{Try, Success, Failure}
 
 import org.scalatest.FunSuite
@@ -49,11 +51,14 @@ import com.oculusinfo.binning.impl.AOITilePyramid
 import com.oculusinfo.binning._
 import com.oculusinfo.binning.impl.DenseTileData
 import com.oculusinfo.binning.impl.SparseTileData
+import com.oculusinfo.binning.impl.PackedSparseTileData
 
 import com.oculusinfo.tilegen.tiling.analytics.{MonolithicAnalysisDescription, NumericSumTileAnalytic, AnalysisDescription, NumericSumBinningAnalytic}
+import com.oculusinfo.tilegen.tiling.analytics.{BinningAnalytic, NumericMaxBinningAnalytic, NumericMinBinningAnalytic, NumericMeanBinningAnalytic}
+import com.oculusinfo.tilegen.tiling.analytics.{TileAnalytic, NumericMaxTileAnalytic, NumericMinTileAnalytic}
 
 
-class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAssertions {
+class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAssertions with RandomPointsFixture {
 	test("Simple binning") {
 		val data = sc.parallelize(Range(0, 8)).map(n =>
 			((n.toDouble, (7-n).toDouble), 1.0)
@@ -228,6 +233,205 @@ class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAsser
 	}
 
 
+	test("Bottom-up binning matches level-by-level binning") {
+		val data = randomData()
+		val binner = new UniversalBinner
+		val analytic = new NumericSumBinningAnalytic[Double, JavaDouble]()
+		val tileAnalytics: Option[AnalysisDescription[TileData[JavaDouble], Int]] = None
+		val dataAnalytics: Option[AnalysisDescription[((Double, Double), Double), Int]] = None
+		// Include a gap, so some levels are passed through without being produced
+		val levels = List(0, 1, 3, 4)
+
+		val byLevel = binsOf(binner.processDataByLevel(data, new CartesianIndexScheme, analytic, tileAnalytics,
+		                                               dataAnalytics, pointPyramid, levels, 4, 4))
+		val bottomUp = binsOf(binner.processDataByLevel(data, new CartesianIndexScheme, analytic, tileAnalytics,
+		                                                dataAnalytics, pointPyramid, levels, 4, 4, bottomUp = true))
+
+		assert(levels.toSet === bottomUp.keys.map(_.getLevel).toSet)
+		assertSameBins(byLevel, bottomUp)
+		// Every point should be counted once per level
+		val total = data.map(_._2).reduce(_ + _)
+		levels.foreach(level =>
+			assert(total === bottomUp.filter(_._1.getLevel == level).values.map(_.sum).sum)
+		)
+	}
+
+
+	test("Incremental binning adds to existing tiles") {
+		val allData = randomPoints(200)
+		val binner = new UniversalBinner
+		val tileIO = new TestTileIO
+		val coordFcn: (((Double, Double), Double)) => Try[(Double, Double)] = record => Try(record._1)
+		val valueFcn: (((Double, Double), Double)) => Try[Double] = record => Try(record._2)
+		val tileAnalytics: Option[AnalysisDescription[TileData[JavaDouble], Double]] = None
+		val dataAnalytics: Option[AnalysisDescription[((Double, Double), Double), Double]] = None
+		val levels = List(List(0, 1, 2))
+
+		def binInto (pyramidId: String, data: Seq[((Double, Double), Double)], incremental: Boolean): Unit =
+			binner.binAndWriteData(sc.parallelize(data), coordFcn, valueFcn, new CartesianIndexScheme,
+			                       new NumericSumBinningAnalytic[Double, JavaDouble](), tileAnalytics, dataAnalytics,
+			                       new PrimitiveAvroSerializer(classOf[JavaDouble], CodecFactory.bzip2Codec()),
+			                       pointPyramid, None, None, pyramidId, tileIO, levels, 4, 4, incremental = incremental)
+
+		try {
+			binInto("all at once", allData, false)
+			// Put the second half only on the right half of the data set, so some tiles are untouched
+			val (firstHalf, secondHalf) = allData.partition(record => record._1._1 < 4.0 || record._1._2 < 2.0)
+			binInto("incremental", firstHalf, false)
+			binInto("incremental", secondHalf, true)
+
+			val expected = tileIO.getPyramid("all at once").get
+			val actual = tileIO.getPyramid("incremental").get
+			assert(expected.keySet === actual.keySet)
+			expected.foreach { case (index, expectedTile) =>
+				val actualTile = actual(index)
+				for (x <- 0 until 4; y <- 0 until 4)
+					assert(expectedTile.getBin(x, y) === actualTile.getBin(x, y), "Tile "+index+", bin ["+x+", "+y+"] differs")
+			}
+		} finally {
+			tileIO.clearPyramid("all at once")
+			tileIO.clearPyramid("incremental")
+		}
+	}
+
+	test("Incremental writes only accept idempotent tile analytics") {
+		val tileIO = new TestTileIO
+		def describe (analytic: TileAnalytic[Double]): Option[AnalysisDescription[TileData[JavaDouble], Double]] =
+			Some(new MonolithicAnalysisDescription[TileData[JavaDouble], Double](tile => 0.0, analytic))
+
+		tileIO.checkIncrementalTileAnalytics(None)
+		tileIO.checkIncrementalTileAnalytics(describe(new NumericMaxTileAnalytic[Double]()))
+		tileIO.checkIncrementalTileAnalytics(describe(new NumericMinTileAnalytic[Double]()))
+		intercept[IllegalArgumentException] {
+			tileIO.checkIncrementalTileAnalytics(describe(new NumericSumTileAnalytic[Double]()))
+		}
+	}
+
+	test("Finished numeric bins can be merged") {
+		val analytic = new NumericSumBinningAnalytic[Int, JavaInt]()
+		val existing = new DenseTileData[JavaInt](new TileIndex(0, 0, 0, 2, 2), 0)
+		existing.setBin(0, 0, 3)
+		existing.setBin(1, 1, 4)
+		val update = new PackedSparseTileData[JavaInt](new TileIndex(0, 0, 0, 2, 2), 0)
+		update.setBin(1, 1, 5)
+		update.setBin(1, 0, 6)
+
+		val merged = TileIO.mergeTiles(existing, update, analytic)
+		assert(3 === merged.getBin(0, 0).intValue)
+		assert(6 === merged.getBin(1, 0).intValue)
+		assert(0 === merged.getBin(0, 1).intValue)
+		assert(9 === merged.getBin(1, 1).intValue)
+	}
+
+	test("Primitive accumulation matches map accumulation") {
+		val data = randomData()
+		val levels = List(0, 1, 2, 3)
+
+		def assertSame[PT: ClassTag] (analytic: BinningAnalytic[PT, JavaDouble], valueFcn: Double => PT): Unit = {
+			val values = data.map(record => (record._1, valueFcn(record._2), record._3))
+			assertSameBins(binUniversally(values, levels, analytic),
+			               binUniversally(values, levels, analytic, BinningParameters(true, 4, 4)))
+		}
+
+		assertSame(new NumericSumBinningAnalytic[Double, JavaDouble](), v => v)
+		assertSame(new NumericMaxBinningAnalytic[Double, JavaDouble](), v => v)
+		assertSame(new NumericMinBinningAnalytic[Double, JavaDouble](), v => v)
+		assertSame(new NumericMeanBinningAnalytic[Double](0.0), v => (v, 1))
+
+		// Integral values would lose exactness as doubles, so they stay in maps
+		assert(PrimitiveBinning(new NumericSumBinningAnalytic[Int, JavaInt]()).isEmpty)
+		assert(PrimitiveBinning(new NumericMeanBinningAnalytic[Int](0.0)).isEmpty)
+	}
+
+	test("Pre-aggregation matches direct binning") {
+		val data = randomData(2)
+		val analytic = new NumericSumBinningAnalytic[Double, JavaDouble]()
+		val levels = List(0, 1)
+
+		Seq(false, true).foreach { primitive =>
+			// Few enough cells that each partition has to pass on its cells several times
+			val preAggregation = new PreAggregation(20, sc)
+			assertMatchesDirectBinning(data, levels) {
+				binUniversally(data, levels, analytic,
+				               BinningParameters(true, 4, 4, primitiveAccumulation = primitive, preAggregation = Some(preAggregation)))
+			}
+			assert(1000L === preAggregation.records.value)
+			assert(preAggregation.cells.value < 1000L)
+			assert(preAggregation.combineRatio > 1.0)
+		}
+
+		// Other population functions needn't give the same results for combined records, so
+		// pre-aggregation is skipped for them
+		val ignored = new PreAggregation(20, sc)
+		val populateFirstBin: (TileIndex, Array[BinIndex], Double) => MutableMap[BinIndex, Double] =
+			(tile, bins, value) => MutableMap(bins(0) -> value)
+		val tileAnalytics: Option[AnalysisDescription[TileData[JavaDouble], Int]] = None
+		val dataAnalytics: Option[AnalysisDescription[((Double, Double), Double), Int]] = None
+		new UniversalBinner().processData[(Double, Double), Double, Int, Int, JavaDouble](
+			data, analytic, tileAnalytics, dataAnalytics,
+			StandardBinningFunctions.locateIndexOverLevels(new CartesianIndexScheme, pointPyramid, 4, 4)(levels),
+			populateFirstBin, new BinningParameters(true, 4, 4, preAggregation = Some(ignored))
+		).count
+		assert(0L === ignored.records.value)
+	}
+
+	test("Skew partitioning matches direct binning") {
+		// Most of the data in one corner, so that the tiles over it are hot
+		val data = randomData(2, n => if (n < 400) 1.0 else 8.0)
+		val analytic = new NumericSumBinningAnalytic[Double, JavaDouble]()
+		val levels = List(0, 1)
+
+		Seq(false, true).foreach { primitive =>
+			assertMatchesDirectBinning(data, levels) {
+				binUniversally(data, levels, analytic,
+				               BinningParameters(true, 4, 4, primitiveAccumulation = primitive,
+				                                 skewPartitioning = Some(SkewPartitioning(1.0, Some(4)))))
+			}
+		}
+	}
+
+	test("Skewed tile partition layout") {
+		val hot = new TileIndex(0, 0, 0, 4, 4)
+		val cold = List(new TileIndex(1, 0, 0, 4, 4), new TileIndex(1, 1, 0, 4, 4), new TileIndex(1, 0, 1, 4, 4))
+		val partitioner = SkewedTilePartitioner.fromCounts(1000L, List((hot, 500L), (cold(0), 100L), (cold(1), 80L), (cold(2), 50L)), 4)
+
+		assert(4 === partitioner.numPartitions)
+		assert(1 === partitioner.hotTileCount)
+		// The hot tile gets two partitions, split between the top and bottom halves of the tile
+		assert(0 === partitioner.getSplit(hot, 1))
+		assert(1 === partitioner.getSplit(hot, 2))
+		assert(0 === partitioner.getPartition((hot, 0)))
+		assert(1 === partitioner.getPartition((hot, 1)))
+		// Cold tiles are packed into the remaining two, into the lightest one first
+		assert(0 === partitioner.getSplit(cold(0), 3))
+		assert(2 === partitioner.getPartition((cold(0), 0)))
+		assert(3 === partitioner.getPartition((cold(1), 0)))
+		assert(3 === partitioner.getPartition((cold(2), 0)))
+	}
+
+	test("Primitive accumulators switch from sparse to dense storage") {
+		val binning = PrimitiveBinning(new NumericSumBinningAnalytic[Double, JavaDouble]()).get
+		val accumulator = new PrimitiveBinAccumulator(8, 8)
+		for (x <- 0 until 8; y <- 0 until 8) {
+			accumulator.add(x, y, x + y, 1L, binning)
+			if (x < 2) assert(!accumulator.isDense)
+		}
+		assert(accumulator.isDense)
+		val other = new PrimitiveBinAccumulator(8, 8)
+		other.add(3, 5, 10.0, 1L, binning)
+		val merged = other.merge(accumulator, binning)
+
+		assert(64 === merged.size)
+		var total = 0.0
+		merged.foreach((x, y, value, count) => {
+			if (3 == x && 5 == y) assert(18.0 === value && 2L === count)
+			else assert(x + y === value && 1L === count)
+			total += value
+		})
+		assert(8*7*8 + 10.0 === total)
+	}
+
+
 	test("Test data analytics") {
 		val data: RDD[((Double, Double), Int, Option[Int])] =
 			sc.parallelize(List(((1.0, 1.0), 1, Some(1)),
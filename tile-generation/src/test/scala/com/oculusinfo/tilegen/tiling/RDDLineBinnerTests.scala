@@ -207,6 +207,63 @@ class RDDLineBinnerTestSuite extends FunSuite with SharedSparkContext {
 
 
 
+	/*
+	 * Tests level-of-detail line binning, on a pyramid where, at level 1, each unit is one bin.
+	 * Long segments should be drawn tile by tile, short ones point by point, and segments off
+	 * the pyramid should be clipped or dropped.
+	 */
+	test("Level of detail line binning") {
+		val rawData = sc.parallelize(List(
+			                             // Long, across the bottom two tiles
+			                             (new Segment(0.5, 0.5, 7.5, 0.5), 1.0),
+			                             // Short, in the upper left tile
+			                             (new Segment(1.5, 6.5, 2.5, 6.5), 2.0),
+			                             // Off the right edge, clipped to the upper right tile
+			                             (new Segment(4.5, 4.5, 12.5, 4.5), 3.0),
+			                             // Entirely off the pyramid
+			                             (new Segment(20.0, 20.0, 30.0, 20.0), 4.0)))
+		val noDouble: Option[Double] = None
+		val data = rawData.map{case (segment, value) => (segment, value, noDouble)}
+		val tileAnalytics: Option[AnalysisDescription[TileData[JavaDouble], Double]] = None
+		val dataAnalytics: Option[AnalysisDescription[(Segment, Double), Double]] = None
+		val lod = new LevelOfDetail(4, 3, sc)
+
+		val binner = new RDDLineBinner(1, 1024)
+		val tiles = binner.processDataByLevel[Segment, Double, Double, Double, JavaDouble](
+			data, new SegmentIndexScheme, new NumericSumBinningAnalytic[Double, JavaDouble](),
+			tileAnalytics, dataAnalytics, new AOITilePyramid(0.0, 0.0, 8.0, 8.0), List(1), 4, 4,
+			levelOfDetail = Some(lod)
+		).collect.map(tile => (tile.getDefinition, tile)).toMap
+
+		assert(Set(new TileIndex(1, 0, 0, 4, 4), new TileIndex(1, 1, 0, 4, 4),
+		           new TileIndex(1, 0, 1, 4, 4), new TileIndex(1, 1, 1, 4, 4)) === tiles.keySet)
+		def binValues (tile: TileIndex): Seq[Double] =
+			for (y <- 0 until 4; x <- 0 until 4) yield tiles(tile).getBin(x, y).doubleValue
+		def expected (y: Int, xs: Seq[Int], value: Double): Seq[Double] =
+			for (by <- 0 until 4; bx <- 0 until 4) yield if (by == y && xs.contains(bx)) value else 0.0
+
+		assert(expected(3, 0 to 3, 1.0) === binValues(new TileIndex(1, 0, 0, 4, 4)))
+		assert(expected(3, 0 to 3, 1.0) === binValues(new TileIndex(1, 1, 0, 4, 4)))
+		assert(expected(1, 1 to 2, 2.0) === binValues(new TileIndex(1, 0, 1, 4, 4)))
+		assert(expected(3, 0 to 3, 3.0) === binValues(new TileIndex(1, 1, 1, 4, 4)))
+
+		assert(1L === lod.tileSegments.value)
+		assert(2L === lod.pointSegments.value)
+		assert(1L === lod.clipped.value)
+		assert(1L === lod.dropped.value)
+		assert(0L === lod.thinned.value)
+	}
+
+	test("Level of detail thinning") {
+		assert(List(0, 2, 4, 6, 8) === RDDLineBinner.thinBins(0 until 10, 5).toList)
+		assert(List(0, 1, 2) === RDDLineBinner.thinBins(0 until 3, 5).toList)
+		assert(Some((new BinIndex(0, 2), new BinIndex(3, 2))) ===
+			       RDDLineBinner.clipSegment(new BinIndex(-2, 2), new BinIndex(6, 2), 0, 0, 3, 3))
+		assert(None === RDDLineBinner.clipSegment(new BinIndex(-2, 5), new BinIndex(6, 5), 0, 0, 3, 3))
+	}
+
+
+
 	/*
 	 * Helper function to run line binning based on a mercator tile pyramid.
 	 */
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import java.lang.{Double => JavaDouble}
+
+import scala.reflect.ClassTag
+import scala.util.Random
+
+import org.apache.spark.SparkContext
+import org.apache.spark.rdd.RDD
+
+import com.oculusinfo.binning.TileData
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.TilePyramid
+import com.oculusinfo.binning.impl.AOITilePyramid
+import com.oculusinfo.tilegen.tiling.analytics.{AnalysisDescription, BinningAnalytic, NumericSumBinningAnalytic}
+
+
+
+/**
+ * A common fixture for tests that check other ways of binning against direct binning: a
+ * repeatable set of random points over an 8x8 area, with integral values from 0 to 9, binned
+ * into tiles of 4x4 bins.
+ */
+trait RandomPointsFixture {
+	def sc: SparkContext
+
+	protected val pointSeed = 15485863
+	protected val pointCount = 500
+	protected val pointPyramid: TilePyramid = new AOITilePyramid(0.0, 0.0, 7.9999, 7.9999)
+	protected val pointBins = 4
+
+	/**
+	 * Get the fixture points.
+	 *
+	 * @param count The number of points to get
+	 * @param scale The size of the square, from the origin, over which the nth point is spread
+	 */
+	protected def randomPoints (count: Int = pointCount,
+	                            scale: Int => Double = n => 8.0): Seq[((Double, Double), Double)] = {
+		val random = new Random(pointSeed)
+		Range(0, count).map{n =>
+			val size = scale(n)
+			((random.nextDouble()*size, random.nextDouble()*size), random.nextInt(10).toDouble)
+		}
+	}
+
+	/** Get the fixture points as binner input */
+	protected def randomData (partitions: Int = sc.defaultParallelism,
+	                          scale: Int => Double = n => 8.0): RDD[((Double, Double), Double, Option[Int])] =
+		sc.parallelize(randomPoints(pointCount, scale).map(p => (p._1, p._2, None: Option[Int])), partitions)
+
+	/** Get the bins of each of a set of tiles, in row-major order */
+	protected def binsOf (tiles: Seq[TileData[JavaDouble]]): Map[TileIndex, List[Double]] =
+		tiles.map(tile =>
+			(tile.getDefinition, (for (y <- 0 until pointBins; x <- 0 until pointBins) yield tile.getBin(x, y).doubleValue).toList)
+		).toMap
+
+	protected def binsOf (tiles: RDD[TileData[JavaDouble]]): Map[TileIndex, List[Double]] =
+		binsOf(tiles.collect.toSeq)
+
+	/**
+	 * Bin data on the fixture pyramid with the universal binner, and get the resultant bins.
+	 * With the default parameters, this bins the data directly, with none of the optional
+	 * binning strategies.
+	 */
+	protected def binUniversally[PT: ClassTag] (data: RDD[((Double, Double), PT, Option[Int])],
+	                                            levels: Seq[Int],
+	                                            analytic: BinningAnalytic[PT, JavaDouble],
+	                                            parameters: BinningParameters =
+		                                            BinningParameters(true, 4, 4, primitiveAccumulation = false))
+			: Map[TileIndex, List[Double]] = {
+		val tileAnalytics: Option[AnalysisDescription[TileData[JavaDouble], Int]] = None
+		val dataAnalytics: Option[AnalysisDescription[(Double, Double), Int]] = None
+		binsOf(new UniversalBinner().processData[(Double, Double), PT, Int, Int, JavaDouble](
+			data, analytic, tileAnalytics, dataAnalytics,
+			StandardBinningFunctions.locateIndexOverLevels(new CartesianIndexScheme, pointPyramid, pointBins, pointBins)(levels),
+			StandardBinningFunctions.populateTileIdentity,
+			parameters
+		))
+	}
+
+	/**
+	 * Check that some other way of binning the data matches direct binning of the same data,
+	 * summing point values.
+	 *
+	 * @param binOtherwise A function that bins the data on the fixture pyramid, returning
+	 *                     the resultant bins
+	 */
+	protected def assertMatchesDirectBinning (data: RDD[((Double, Double), Double, Option[Int])],
+	                                          levels: Seq[Int])
+	                                         (binOtherwise: => Map[TileIndex, List[Double]]): Unit =
+		assertSameBins(binUniversally(data, levels, new NumericSumBinningAnalytic[Double, JavaDouble]()), binOtherwise)
+
+	protected def assertSameBins (expected: Map[TileIndex, List[Double]], actual: Map[TileIndex, List[Double]]): Unit = {
+		assert(expected.keySet == actual.keySet, "Tiles differ: expected "+expected.keySet+", got "+actual.keySet)
+		expected.foreach { case (index, bins) =>
+			assert(bins == actual(index), "Tile "+index+" differs: expected "+bins+", got "+actual(index))
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import org.scalatest.FunSuite
+
+import org.apache.spark.SharedSparkContext
+
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.impl.AOITilePyramid
+
+
+
+class SpatialPartitionIndexTestSuite extends FunSuite with SharedSparkContext {
+	private val pyramid = new AOITilePyramid(0.0, 0.0, 16.0, 16.0)
+
+	private def createIndex = {
+		val data = sc.parallelize(for (x <- 0 until 16; y <- 0 until 16) yield (x + 0.5, y + 0.5), 4)
+		SpatialPartitionIndex[(Double, Double)](data, pyramid, p => p, 4, 8)
+	}
+
+	test("Test base-level bounds of tiles") {
+		val index = createIndex
+		try {
+			val below = index.getBaseLevelBounds(new TileIndex(6, 13, 6))
+			assert(3 === below.minX && 3 === below.maxX && 1 === below.minY && 1 === below.maxY)
+
+			val above = index.getBaseLevelBounds(new TileIndex(2, 1, 2))
+			assert(4 === above.minX && 7 === above.maxX && 8 === above.minY && 11 === above.maxY)
+		} finally {
+			index.unpersist()
+		}
+	}
+
+	test("Test pruned data includes everything on the requested tile") {
+		val index = createIndex
+		try {
+			val tile = new TileIndex(2, 1, 2)
+			val onTile: ((Double, Double)) => Boolean = p => {
+				val t = pyramid.rootToTile(p._1, p._2, 2)
+				t.getX == 1 && t.getY == 2
+			}
+
+			assert(index.getPartitionsFor(Seq(tile)).size < 8)
+			assert(16 === index.getDataFor(Seq(tile)).filter(onTile).count)
+			assert(index.getDataFor(Seq(tile)).count < 256)
+		} finally {
+			index.unpersist()
+		}
+	}
+
+	test("Test whole-world tile reads every partition") {
+		val index = createIndex
+		try {
+			assert(256 === index.getDataFor(Seq(new TileIndex(0, 0, 0))).count)
+		} finally {
+			index.unpersist()
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rendering.impl;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseDoubleTileData;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.WareColorRamp;
+import com.oculusinfo.tile.rendering.transformations.value.Log10ValueTransformer;
+import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to render a single 256x256 heatmap tile with
+ * {@link NumberImageRenderer}, against the per-pixel ramp evaluation it
+ * used to do.
+ *
+ * Run with <code>gradlew :tile-rendering:jmh</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NumberImageRendererBenchmark {
+	private static final int BINS = 256;
+	private static final Color COLOR_BLANK = new Color( 255, 255, 255, 0 );
+
+	@Param({"generic", "primitive"})
+	public String tileType;
+
+	@Param({"linear", "cull"})
+	public String mode;
+
+	private TileData<Number>         _data;
+	private ValueTransformer<Number> _transformer;
+	private ColorRamp                _ramp;
+	private BufferedImage            _image;
+	private NumberImageRenderer      _renderer;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@Setup
+	public void setup () {
+		TileIndex index = new TileIndex(8, 17, 23, BINS, BINS);
+		Random random = new Random(1);
+		if ("primitive".equals(tileType)) {
+			DenseDoubleTileData tile = new DenseDoubleTileData(index, 0.0);
+			for (int x=0; x<BINS; ++x) {
+				for (int y=0; y<BINS; ++y) {
+					tile.setDouble(x, y, Math.floor(random.nextDouble()*1000.0));
+				}
+			}
+			_data = (TileData) tile;
+		} else {
+			DenseTileData<Number> tile = new DenseTileData<Number>(index, 0.0);
+			for (int x=0; x<BINS; ++x) {
+				for (int y=0; y<BINS; ++y) {
+					tile.setBin(x, y, Math.floor(random.nextDouble()*1000.0));
+				}
+			}
+			_data = tile;
+		}
+		_transformer = (ValueTransformer) new Log10ValueTransformer(1.0, 1000.0);
+		_ramp = new WareColorRamp(false, 1.0);
+		_image = new BufferedImage(BINS, BINS, BufferedImage.TYPE_INT_ARGB);
+		_renderer = new NumberImageRenderer();
+	}
+
+	@Benchmark
+	public BufferedImage lookupTable () {
+		return _renderer.renderImage(_data, _transformer, 0.1, 0.9, mode, _ramp, _image, "square");
+	}
+
+	@Benchmark
+	public BufferedImage perPixelRamp () {
+		return renderPerPixel(_data, _transformer, 0.1, 0.9, mode, _ramp, _image);
+	}
+
+	// The unscaled rendering loop as it was before color lookup tables and
+	// primitive transforms, for comparison
+	private static BufferedImage renderPerPixel (TileData<Number> data, ValueTransformer<Number> t,
+	                                             double valueMin, double valueMax, String mode,
+	                                             ColorRamp colorRamp, BufferedImage bi) {
+		int outWidth = bi.getWidth();
+		int xBins = data.getDefinition().getXBins();
+		int yBins = data.getDefinition().getYBins();
+		double oneOverScaledRange = 1.0 / ( valueMax - valueMin );
+		int[] rgbArray = ( ( DataBufferInt ) bi.getRaster().getDataBuffer() ).getData();
+
+		for ( int ty = 0; ty < yBins; ty++ ) {
+			for ( int tx = 0; tx < xBins; tx++ ) {
+				double binCount = data.getBin( tx, ty ).doubleValue();
+				double transformedValue = t.transform( binCount ).doubleValue();
+				int rgb;
+				if ( ( mode.equals( "dropZero" ) && binCount != 0 ) || binCount > 0 ) {
+					if ( mode.equals( "cull" ) ) {
+						if ( transformedValue >= valueMin && transformedValue <= valueMax ) {
+							rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
+						} else {
+							rgb = COLOR_BLANK.getRGB();
+						}
+					} else {
+						rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
+					}
+				} else {
+					rgb = COLOR_BLANK.getRGB();
+				}
+				rgbArray[ty * outWidth + tx] = rgb;
+			}
+		}
+		return bi;
+	}
+}
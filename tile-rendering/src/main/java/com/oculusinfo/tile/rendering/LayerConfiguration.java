@@ -35,6 +35,7 @@ import com.oculusinfo.factory.ConfigurationProperty;
 import com.oculusinfo.factory.properties.*;
 import com.oculusinfo.factory.providers.FactoryProvider;
 import com.oculusinfo.factory.util.Pair;
+import com.oculusinfo.tile.rendering.color.ColorRamp;
 import com.oculusinfo.tile.rendering.transformations.combine.TileCombinerFactory;
 import com.oculusinfo.tile.rendering.transformations.tile.TileTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.ValueTransformerFactory;
@@ -45,7 +46,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 
@@ -137,11 +140,27 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
             LEVEL_MINIMUMS
         )));
 
+	// Goods whose construction depends only on the configuration of their
+	// own factory, and which hold no per-tile state, so may be shared between
+	// layer configurations. Value and tile transformers are excluded, as
+	// they capture the level extrema of the tile being rendered.
+	private static Set<Class<?>> SHAREABLE_GOODS =
+		Collections.unmodifiableSet(new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			PyramidIO.class,
+			TileSerializer.class,
+			TileDataImageRenderer.class,
+			ColorRamp.class
+		)));
+
 	private ValueTransformerFactory _transformFactory;
 	private ValueTransformerFactory _alphaTransformFactory;
 	private TileIndex _tileCoordinate;
 	private String _levelMinimum;
 	private String _levelMaximum;
+	private Map<String, Object> _sharedGoods;
+	private Map<String, String> _sharedGoodsKeys;
+	private volatile String _configurationHash;
+	private Object _owner;
 
 	public LayerConfiguration( FactoryProvider<PyramidIO> pyramidIOFactoryProvider,
                                FactoryProvider<TilePyramid> tilePyramidFactoryProvider,
@@ -205,6 +224,90 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
 		return this;
 	}
 
+	/**
+	 * Share shareable goods (pyramid IO, serializers, renderers and color
+	 * ramps) with other layer configurations. Once set, such goods are only
+	 * created the first time any configuration using the given map asks for
+	 * them with a given factory configuration; thereafter the same instance is
+	 * returned.
+	 *
+	 * @param sharedGoods A thread-safe map in which to keep shared goods, keyed
+	 *            by goods type and the SHA-256 hash of their factory's
+	 *            configuration. Null to stop sharing goods.
+	 */
+	public void setSharedGoods (Map<String, Object> sharedGoods) {
+		_sharedGoods = sharedGoods;
+		_sharedGoodsKeys = (null == sharedGoods) ? null : new ConcurrentHashMap<String, String>();
+	}
+
+	/**
+	 * Record the object that built this configuration, and to which it should
+	 * be returned when no longer needed (such as a pool of idle instances).
+	 * Keeping it here, rather than in a map keyed by configuration, means it
+	 * lives exactly as long as the configuration does.
+	 */
+	public void setOwner (Object owner) {
+		_owner = owner;
+	}
+
+	/**
+	 * @return The object that built this configuration, as set by
+	 *         {@link #setOwner(Object)}, or null if none was set.
+	 */
+	public Object getOwner () {
+		return _owner;
+	}
+
+	@Override
+	public <GT> GT produce (String name, Class<GT> goodsType) throws ConfigurationException {
+		Map<String, Object> sharedGoods = _sharedGoods;
+		if (null == sharedGoods || !SHAREABLE_GOODS.contains(goodsType)) {
+			return super.produce(name, goodsType);
+		}
+
+		String key = getSharedGoodsKey(name, goodsType);
+		if (null == key) {
+			return super.produce(name, goodsType);
+		}
+		Object goods = sharedGoods.get(key);
+		if (null == goods) {
+			GT created = super.produce(name, goodsType);
+			if (null == created) {
+				return null;
+			}
+			// Someone else may have created one at the same time; make sure
+			// everyone ends up with the same instance.
+			synchronized (sharedGoods) {
+				goods = sharedGoods.get(key);
+				if (null == goods) {
+					sharedGoods.put(key, created);
+					goods = created;
+				}
+			}
+		}
+		return goodsType.cast(goods);
+	}
+
+	// The key under which to share the given goods. Our configuration never
+	// changes once read, so this is only calculated once per goods type.
+	private String getSharedGoodsKey (String name, Class<?> goodsType) {
+		String localKey = name + ":" + goodsType.getName();
+		String key = _sharedGoodsKeys.get(localKey);
+		if (null == key) {
+			ConfigurableFactory<?> producer = getProducer(name, goodsType);
+			if (null == producer) {
+				return null;
+			}
+			String hash = producer.generateSHA256();
+			if (hash.isEmpty()) {
+				return null;
+			}
+			key = localKey + ":" + producer.getClass().getName() + ":" + hash;
+			_sharedGoodsKeys.put(localKey, key);
+		}
+		return key;
+	}
+
 	@Override
 	public <PT> PT getPropertyValue (ConfigurationProperty<PT> property) throws ConfigurationException {
 		if (LOCAL_PROPERTIES.contains(property)) {
@@ -251,6 +354,52 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
 		}
 	}
 
+	/**
+	 * Clear the tile index and level extrema set by
+	 * {@link #setLevelProperties(TileIndex, String, String)}, returning this
+	 * configuration to the state it was in when first configured, so it can
+	 * be reused for another request.
+	 */
+	public void clearLevelProperties () {
+		_tileCoordinate = null;
+		_levelMaximum = null;
+		_levelMinimum = null;
+		_transformFactory.setExtrema(0.0, 0.0);
+		_alphaTransformFactory.setExtrema(0.0, 0.0);
+	}
+
+
+	/**
+	 * Get a hash of everything that determines how a tile rendered with this
+	 * configuration looks, other than the tile itself: the configuration as
+	 * read, and the level extrema currently set. The hash of the
+	 * configuration is only calculated the first time this is called, since
+	 * it never changes once read.
+	 *
+	 * @return The hash, or null if the configuration couldn't be hashed
+	 */
+	public String getRenderingHash () {
+		String configurationHash = _configurationHash;
+		if (null == configurationHash) {
+			// Hash without any per-tile properties, so the same hash does for
+			// every tile.
+			TileIndex tileCoordinate = _tileCoordinate;
+			String levelMinimum = _levelMinimum;
+			String levelMaximum = _levelMaximum;
+			boolean levelPropertiesSet = null != tileCoordinate || null != levelMinimum || null != levelMaximum;
+			if (levelPropertiesSet) clearLevelProperties();
+			try {
+				configurationHash = generateSHA256();
+			} finally {
+				if (levelPropertiesSet) setLevelProperties(tileCoordinate, levelMinimum, levelMaximum);
+			}
+			_configurationHash = configurationHash;
+		}
+		if (configurationHash.isEmpty()) {
+			return null;
+		}
+		return configurationHash + ":" + _levelMinimum + ":" + _levelMaximum;
+	}
 
 	/**
 	 * This is a placeholder for the caching configuration to override; it does
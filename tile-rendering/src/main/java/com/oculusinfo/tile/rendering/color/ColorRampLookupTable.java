@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rendering.color;
+
+import com.oculusinfo.binning.util.SynchronizedLRUCache;
+import com.oculusinfo.factory.util.Pair;
+
+/**
+ * A precomputed table of the colors of a color ramp, so that renderers
+ * coloring many values don't have to evaluate the ramp for each one.
+ *
+ * Scales within [0, 1] are looked up in the table; the few scales outside
+ * that range are passed through to the ramp, since not all ramps clamp
+ * them.
+ *
+ * Tables are immutable, and are shared between equal ramps through
+ * {@link #getLookupTable(ColorRamp)}.
+ */
+public class ColorRampLookupTable {
+	public static final int DEFAULT_SIZE = 4096;
+	private static final int CACHE_SIZE = 64;
+
+	private static final SynchronizedLRUCache<Pair<ColorRamp, Double>, ColorRampLookupTable> TABLES =
+		new SynchronizedLRUCache<>(CACHE_SIZE);
+
+	/**
+	 * Get the lookup table for the plain colors of a ramp, building it if no
+	 * table for an equal ramp has been built recently.
+	 */
+	public static ColorRampLookupTable getLookupTable (ColorRamp ramp) {
+		return getLookupTable(ramp, null);
+	}
+
+	/**
+	 * Get the lookup table for the colors of a ramp at a fixed alpha scale,
+	 * building it if no table for an equal ramp has been built recently.
+	 *
+	 * @param ramp The ramp to tabulate
+	 * @param alphaScale The alpha scale to pass to
+	 *            {@link ColorRamp#getRGBA(double, double)}, or null to use
+	 *            {@link ColorRamp#getRGB(double)}
+	 */
+	public static ColorRampLookupTable getLookupTable (ColorRamp ramp, Double alphaScale) {
+		Pair<ColorRamp, Double> key = new Pair<>(ramp, alphaScale);
+		ColorRampLookupTable table = TABLES.get(key);
+		if (null == table) {
+			table = new ColorRampLookupTable(ramp, alphaScale, DEFAULT_SIZE);
+			TABLES.put(key, table);
+		}
+		return table;
+	}
+
+
+
+	private ColorRamp _ramp;
+	private Double    _alphaScale;
+	private int[]     _colors;
+	private double    _maxIndex;
+
+	/**
+	 * @param ramp The ramp to tabulate
+	 * @param alphaScale The alpha scale to pass to
+	 *            {@link ColorRamp#getRGBA(double, double)}, or null to use
+	 *            {@link ColorRamp#getRGB(double)}
+	 * @param size The number of entries in the table
+	 */
+	public ColorRampLookupTable (ColorRamp ramp, Double alphaScale, int size) {
+		if (size < 2) {
+			throw new IllegalArgumentException("Color lookup tables need at least 2 entries");
+		}
+		_ramp = ramp;
+		_alphaScale = alphaScale;
+		_colors = new int[size];
+		_maxIndex = size - 1;
+		for (int i=0; i<size; ++i) {
+			_colors[i] = getRampColor(i / _maxIndex);
+		}
+	}
+
+	private int getRampColor (double scale) {
+		if (null == _alphaScale) {
+			return _ramp.getRGB(scale);
+		} else {
+			return _ramp.getRGBA(scale, _alphaScale);
+		}
+	}
+
+	/**
+	 * Get the color for a given scale value
+	 *
+	 * @param scale A value, normally between 0 and 1
+	 * @return The ARGB color of that value
+	 */
+	public int getColor (double scale) {
+		if (scale >= 0.0 && scale <= 1.0) {
+			return _colors[(int) (scale * _maxIndex + 0.5)];
+		} else {
+			return getRampColor(scale);
+		}
+	}
+
+	/**
+	 * Get the number of entries in the table
+	 */
+	public int getSize () {
+		return _colors.length;
+	}
+}
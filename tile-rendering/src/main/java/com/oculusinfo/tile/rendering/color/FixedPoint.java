@@ -53,4 +53,10 @@ public class FixedPoint {
 		if (this.value != that.value) return false;
 		return true;
 	}
+
+	@Override
+	public int hashCode () {
+		long bits = Double.doubleToLongBits(scale)*31 + Double.doubleToLongBits(value);
+		return (int) (bits ^ (bits >>> 32));
+	}
 }
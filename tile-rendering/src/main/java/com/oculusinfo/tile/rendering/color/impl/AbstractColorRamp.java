@@ -68,6 +68,28 @@ public abstract class AbstractColorRamp implements ColorRamp {
 			(this.isInverted ? 1-alphaScale : alphaScale));
 	}
 
+	@Override
+	public boolean equals (Object obj) {
+		if (this == obj) return true;
+		if (null == obj) return false;
+		if (!getClass().equals(obj.getClass())) return false;
+
+		AbstractColorRamp that = (AbstractColorRamp) obj;
+		return this.isInverted == that.isInverted
+			&& this.reds.equals(that.reds) && this.greens.equals(that.greens)
+			&& this.blues.equals(that.blues) && this.alphas.equals(that.alphas);
+	}
+
+	@Override
+	public int hashCode () {
+		int h = (isInverted ? 1 : 0);
+		h = h*31 + reds.hashCode();
+		h = h*31 + greens.hashCode();
+		h = h*31 + blues.hashCode();
+		h = h*31 + alphas.hashCode();
+		return h;
+	}
+
 	public static double luminosity(int r, int g, int b) {
 		return (r*0.2126f + g*0.7152f + b*0.0722f)/0xFF;
 	}
@@ -64,4 +64,15 @@ public class FlatColorRamp implements ColorRamp {
 		return col;
 	}
 
+	@Override
+	public boolean equals (Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof FlatColorRamp)) return false;
+		return col == ((FlatColorRamp) obj).col;
+	}
+
+	@Override
+	public int hashCode () {
+		return col;
+	}
 }
@@ -62,6 +62,22 @@ public class HueColorRamp implements ColorRamp {
 		return hslToRGB((toVal - fromVal) * scale + fromVal, 1.0, 0.5);
 	}
 
+	@Override
+	public boolean equals (Object obj) {
+		if (this == obj) return true;
+		if (null == obj) return false;
+		if (!getClass().equals(obj.getClass())) return false;
+
+		HueColorRamp that = (HueColorRamp) obj;
+		return fromVal == that.fromVal && toVal == that.toVal;
+	}
+
+	@Override
+	public int hashCode () {
+		long bits = Double.doubleToLongBits(fromVal)*31 + Double.doubleToLongBits(toVal);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
 	protected double hueToRGB(double p, double q, double t) {
 		if (t < 0) t += 1;
 		if (t > 1) t -= 1;
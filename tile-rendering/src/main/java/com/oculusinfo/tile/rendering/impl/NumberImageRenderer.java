@@ -25,6 +25,7 @@
 package com.oculusinfo.tile.rendering.impl;
 
 import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.impl.AbstractDenseNumericTileData;
 import com.oculusinfo.binning.metadata.PyramidMetaData;
 import com.oculusinfo.binning.util.TypeDescriptor;
 import com.oculusinfo.factory.util.Pair;
@@ -33,6 +34,8 @@ import com.oculusinfo.factory.properties.StringProperty;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.ColorRampLookupTable;
+import com.oculusinfo.tile.rendering.transformations.value.DoubleValueTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
 
 import org.slf4j.Logger;
@@ -107,96 +110,75 @@ public class NumberImageRenderer implements TileDataImageRenderer<Number> {
 
 		float xScale = outWidth / xBins;
 		float yScale = outHeight / yBins;
+		boolean scaled = ( xScale != 1.0 ) || ( yScale != 1.0 );
 		double radius2 = pow2( Math.min( xScale, yScale ) * 0.5 );    // min squared 'radius' of final scaled bin
 
 		double oneOverScaledRange = 1.0 / ( valueMax - valueMin );
 		boolean bCoarseCircles = pixelShape.equals( "circle" );    // render 'coarse' bins as circles or squares?
+		boolean dropZero = mode.equals( "dropZero" );
+		boolean cull = mode.equals( "cull" );
+		int blank = COLOR_BLANK.getRGB();
 
 		int[] rgbArray = ( ( DataBufferInt ) bi.getRaster().getDataBuffer() ).getData();
 
-		if ( ( xScale == 1.0 ) && ( yScale == 1.0 ) ) {
-			// no bin scaling needed
-
-			for ( int ty = 0; ty < yBins; ty++ ) {
-				for ( int tx = 0; tx < xBins; tx++ ) {
-					// get bin count
-					double binCount = data.getBin( tx, ty ).doubleValue();
+		// primitive-backed tiles can be read without boxing each bin
+		AbstractDenseNumericTileData<?> numericData = null;
+		if ( data instanceof AbstractDenseNumericTileData ) {
+			numericData = ( AbstractDenseNumericTileData<?> ) data;
+		}
+		// as can primitive transforms
+		DoubleValueTransformer doubleTransformer = null;
+		if ( t instanceof DoubleValueTransformer ) {
+			doubleTransformer = ( DoubleValueTransformer ) t;
+		}
+		ColorRampLookupTable colors = ColorRampLookupTable.getLookupTable( colorRamp );
+
+		for ( int ty = 0; ty < yBins; ty++ ) {
+			for ( int tx = 0; tx < xBins; tx++ ) {
+				// get bin count
+				double binCount = ( null == numericData ) ? data.getBin( tx, ty ).doubleValue() : numericData.getDouble( tx, ty );
+				// get pixel value
+				int rgb = blank;
+				if ( ( dropZero && binCount != 0 ) || binCount > 0 ) {
 					// transform value
-					double transformedValue = t.transform( binCount ).doubleValue();
-					// set pixel value
-					int rgb;
-					if ( ( mode.equals( "dropZero" ) && binCount != 0 ) || binCount > 0 ) {
-						if ( mode.equals( "cull" ) ) {
-							if ( transformedValue >= valueMin && transformedValue <= valueMax ) {
-								rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
-							} else {
-								rgb = COLOR_BLANK.getRGB();
-							}
-						} else {
-							rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
-						}
-					} else {
-						rgb = COLOR_BLANK.getRGB();
+					double transformedValue = ( null == doubleTransformer ) ? t.transform( binCount ).doubleValue() : doubleTransformer.transformDouble( binCount );
+					if ( !cull || ( transformedValue >= valueMin && transformedValue <= valueMax ) ) {
+						rgb = colors.getColor( ( transformedValue - valueMin ) * oneOverScaledRange );
 					}
-
-					// set pixel
-					int i = ty * outWidth + tx;
-					rgbArray[i] = rgb;
 				}
-			}
-		} else {
-			// perform bin scaling (i.e. if bin coarseness != 1.0)
 
-			for ( int ty = 0; ty < yBins; ty++ ) {
-				for ( int tx = 0; tx < xBins; tx++ ) {
+				if ( !scaled ) {
+					// no bin scaling needed
+					rgbArray[ty * outWidth + tx] = rgb;
+				} else {
+					// perform bin scaling (i.e. if bin coarseness != 1.0)
 					//calculate the scaled dimensions of this 'pixel' within the image
 					int minX = Math.round( tx * xScale );
 					int maxX = Math.round( ( tx + 1 ) * xScale );
 					int minY = Math.round( ty * yScale );
 					int maxY = Math.round( ( ty + 1 ) * yScale );
-					double centreX = ( maxX + minX ) * 0.5;
-					double centreY = ( maxY + minY ) * 0.5;
-					// get bin count
-					double binCount = data.getBin( tx, ty ).doubleValue();
-					// transform value
-					double transformedValue = t.transform( binCount ).doubleValue();
-					// set pixel value
-					int rgb;
-					if ( ( mode.equals( "dropZero" ) && binCount != 0 ) || binCount > 0 ) {
-						if ( mode.equals( "cull" ) ) {
-							if ( transformedValue >= valueMin && transformedValue <= valueMax ) {
-								rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
-							} else {
-								rgb = COLOR_BLANK.getRGB();
-							}
-						} else {
-							rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
-						}
-					} else {
-						rgb = COLOR_BLANK.getRGB();
-					}
 
 					//'draw' out the scaled 'pixel'
 					if ( bCoarseCircles && radius2 > 1.0 ) {
 						// draw scaled (coarse) bin as a circle (Note: need radius to be > 1.0 pixels in order to render a circle)
-						for ( int ix = minX; ix < maxX; ++ix ) {
-							for ( int iy = minY; iy < maxY; ++iy ) {
+						double centreX = ( maxX + minX ) * 0.5;
+						double centreY = ( maxY + minY ) * 0.5;
+						for ( int iy = minY; iy < maxY; ++iy ) {
+							for ( int ix = minX; ix < maxX; ++ix ) {
 								int i = iy * outWidth + ix;
 								double dist = ( pow2( ix + 0.5 - centreX ) + pow2( iy + 0.5 - centreY ) );
 								if ( dist <= radius2 ) {
 									rgbArray[i] = rgb;        // scaled bin is within bin's valid radius, so render normally
 								} else {
-									rgbArray[i] = COLOR_BLANK.getRGB();    // scaled bin is outside bin's valid radius, so force to be blank
+									rgbArray[i] = blank;    // scaled bin is outside bin's valid radius, so force to be blank
 								}
 							}
 						}
 					} else {
 						// draw scaled bin simply as a square
-						for ( int ix = minX; ix < maxX; ++ix ) {
-							for ( int iy = minY; iy < maxY; ++iy ) {
-								int i = iy * outWidth + ix;
-								rgbArray[i] = rgb;
-							}
+						for ( int iy = minY; iy < maxY; ++iy ) {
+							int rowStart = iy * outWidth;
+							Arrays.fill( rgbArray, rowStart + minX, rowStart + maxX, rgb );
 						}
 					}
 				}
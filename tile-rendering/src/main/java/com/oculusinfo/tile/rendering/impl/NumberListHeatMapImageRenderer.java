@@ -32,6 +32,8 @@ import java.util.List;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.ColorRampLookupTable;
+import com.oculusinfo.tile.rendering.transformations.value.DoubleValueTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.LinearValueTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.Log10ValueTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
@@ -109,8 +111,9 @@ public class NumberListHeatMapImageRenderer implements TileDataImageRenderer<Lis
 	private double sumBinContents(List<Number> binContents) {
 		double binCount = 0;
 		for ( int i = 0; i < binContents.size(); i++ ) {
-			if ( binContents.get( i ) != null ) {
-				binCount += binContents.get( i ).doubleValue();
+			Number value = binContents.get( i );
+			if ( value != null ) {
+				binCount += value.doubleValue();
 			}
 		}
 		return binCount;
@@ -169,33 +172,40 @@ public class NumberListHeatMapImageRenderer implements TileDataImageRenderer<Lis
 
 		int[] rgbArray = ( ( DataBufferInt ) bi.getRaster().getDataBuffer() ).getData();
 
+		boolean dropZero = mode.contains( "dropZero" );
+		boolean cull = mode.contains( "cull" );
+		int blank = COLOR_BLANK.getRGB();
+		DoubleValueTransformer doubleTransformer = null;
+		if ( t instanceof DoubleValueTransformer ) {
+			doubleTransformer = ( DoubleValueTransformer ) t;
+		}
+		// Without alpha data, every bin gets full alpha, so its color can be looked up
+		ColorRampLookupTable colors = null;
+		if ( null == alphaData ) {
+			colors = ColorRampLookupTable.getLookupTable( colorRamp, 1.0 );
+		}
+
 		for ( int ty = 0; ty < yBins; ty++ ) {
 			for ( int tx = 0; tx < xBins; tx++ ) {
 				List<Number> binContents = data.getBin( tx, ty ); // Colour ramp bin contents
 				// sum buckets for bin count
 				double binCount = sumBinContents(binContents);
-				double alpha = 1;
-				// transform value
-				double transformedValue = t.transform( binCount ).doubleValue();
-				// Get alpha value if any
-				if (alphaData != null) {
-					List<Number> alphaBinContents = alphaData.getBin(tx, ty);
-					alpha = alphaTransformer.transform(sumBinContents(alphaBinContents)).doubleValue();
-				}
 				// set pixel value
-				int rgb;
-				if ( ( mode.contains( "dropZero" ) && binCount != 0 ) || binCount > 0 ) {
-					if ( mode.contains("cull" ) ) {
-						if ( transformedValue >= valueMin && transformedValue <= valueMax ) {
-							rgb = colorRamp.getRGBA((transformedValue - valueMin) * oneOverScaledRange, alpha);
+				int rgb = blank;
+				if ( ( dropZero && binCount != 0 ) || binCount > 0 ) {
+					// transform value
+					double transformedValue = ( null == doubleTransformer ) ? t.transform( binCount ).doubleValue() : doubleTransformer.transformDouble( binCount );
+					if ( !cull || ( transformedValue >= valueMin && transformedValue <= valueMax ) ) {
+						double scale = ( transformedValue - valueMin ) * oneOverScaledRange;
+						if ( null == colors ) {
+							// Get alpha value
+							List<Number> alphaBinContents = alphaData.getBin( tx, ty );
+							double alpha = alphaTransformer.transform( sumBinContents( alphaBinContents ) ).doubleValue();
+							rgb = colorRamp.getRGBA( scale, alpha );
 						} else {
-							rgb = COLOR_BLANK.getRGB();
+							rgb = colors.getColor( scale );
 						}
-					} else {
-						rgb = colorRamp.getRGBA((transformedValue - valueMin) * oneOverScaledRange, alpha);
 					}
-				} else {
-					rgb = COLOR_BLANK.getRGB();
 				}
 
 				// set the pixel
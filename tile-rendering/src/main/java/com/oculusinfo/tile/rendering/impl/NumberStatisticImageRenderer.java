@@ -44,6 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.AbstractDenseNumericTileData;
 import com.oculusinfo.binning.metadata.PyramidMetaData;
 import com.oculusinfo.binning.util.TypeDescriptor;
 import com.oculusinfo.factory.ConfigurationException;
@@ -99,10 +100,16 @@ public class NumberStatisticImageRenderer implements TileDataImageRenderer<Numbe
 			double maxBinCount = 0;
 			double totalNonEmptyBins = 0;
 
+			// primitive-backed tiles can be read without boxing each bin
+			AbstractDenseNumericTileData<?> numericData = null;
+			if (data instanceof AbstractDenseNumericTileData) {
+				numericData = (AbstractDenseNumericTileData<?>) data;
+			}
+
 			for(int ty = 0; ty < yBins; ty++){
 				for(int tx = 0; tx < xBins; tx++){
 
-					double binCount = data.getBin(tx, ty).doubleValue();
+					double binCount = (null == numericData) ? data.getBin(tx, ty).doubleValue() : numericData.getDouble(tx, ty);
 					if (binCount > 0 ){
 
 						totalNonEmptyBins += 1;
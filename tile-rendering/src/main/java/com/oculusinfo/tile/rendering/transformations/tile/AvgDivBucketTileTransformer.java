@@ -41,7 +41,6 @@ import com.oculusinfo.tile.rendering.LayerConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 
@@ -66,11 +65,6 @@ public class AvgDivBucketTileTransformer<T extends Number> extends BucketTileTra
 	}
 
 
-	@Override
-	public JSONObject transform (JSONObject inputJSON) throws JSONException {
-		return inputJSON; // not implemented
-	}
-
 	/*
 	 * (non-Javadoc)
 	 * @see com.oculusinfo.tile.rendering.transformations.tile.TileTransformer#transform(com.oculusinfo.binning.TileData)
@@ -31,7 +31,6 @@ import com.oculusinfo.binning.util.UnaryOperator;
 import com.oculusinfo.factory.ConfigurationException;
 import com.oculusinfo.factory.util.Pair;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,12 +47,6 @@ public class AvgLogBucketTileTransformer<T extends Number> extends BucketTileTra
 		super(arguments);
 	}
 
-	@Override
-	public JSONObject transform(JSONObject json) throws JSONException {
-		LOGGER.warn("Not implemented");
-		return json;
-	}
-
 	@Override
 	public TileData<List<T>> transform(TileData<List<T>> data) throws Exception {
 		AverageTileBucketView<T> avgView = new AverageTileBucketView<>(data, _startBucket, _endBucket);
@@ -38,7 +38,6 @@ import com.oculusinfo.tile.rendering.LayerConfiguration;
 import org.json.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 
@@ -57,11 +56,6 @@ public class FilterByBucketTileTransformer<T> extends BucketTileTransformer<T> {
 	}
 
 
-	@Override
-	public JSONObject transform (JSONObject inputJSON) throws JSONException {
-		return inputJSON; // not implemented
-	}
-
 	/*
 	 * (non-Javadoc)
 	 * @see com.oculusinfo.tile.rendering.transformations.tile.TileTransformer#transform(com.oculusinfo.binning.TileData)
@@ -52,43 +52,27 @@ public class FilterTopicByBucketTileTransformer<T> extends BucketTileTransformer
 		super(arguments);
 	}
 
-	@Override
-	public JSONObject transform (JSONObject inputJSON) throws JSONException {
-		JSONObject resultJSON = new JSONObject(inputJSON);
-		if (inputJSON.has("meta")) {
-			resultJSON.put("meta", filterKeywordMetadata( inputJSON.getJSONObject("meta") ));
-		}
-		return resultJSON;
-	}
-
+	// The bucketed keywords are held, as a JSON array, in the tile's "bins" metadata
 	@Override
 	public TileData<List<T>> transform (TileData<List<T>> inputData) throws Exception {
 		TileData<List<T>> resultTile = inputData;
 
-		// add in metadata to the tile
-		JSONObject metadata = new JSONObject(inputData.getMetaData("meta"));
-		JSONObject filteredMetadata = null;
-		if ( metadata.length() > 0 ) {
-			filteredMetadata = filterKeywordMetadata(metadata);
-			if (null != filteredMetadata) {
-				resultTile.setMetaData("meta", filteredMetadata);
-			}
+		String bins = inputData.getMetaData("bins");
+		if ( null != bins ) {
+			resultTile.setMetaData("bins", filterKeywordBins(new JSONArray(bins)).toString());
 		}
 
 		return resultTile;
 	}
 
 
-	public JSONObject filterKeywordMetadata(JSONObject inputMetadata) throws JSONException {
+	public JSONArray filterKeywordBins(JSONArray bins) throws JSONException {
 		if ( _startBucket != null && _endBucket != null ) {
 			if ( _startBucket > _endBucket ) {
 				throw new IllegalArgumentException("Filter by keyword bucket transformer arguments are invalid.  start time bucket: " + _startBucket + ", end time bucket: " + _endBucket);
 			}
 		}
 
-		JSONObject map = inputMetadata.getJSONObject("map");
-		JSONArray bins = map.getJSONArray("bins");
-
 		JSONArray filteredBins = new JSONArray();
 
 		int binSize = bins.length();
@@ -102,9 +86,7 @@ public class FilterTopicByBucketTileTransformer<T> extends BucketTileTransformer
 				filteredBins.put(i, (JSONArray)null);
 			}
 		}
-		map.put("bins", filteredBins);
-
-		return inputMetadata;
+		return filteredBins;
 	}
 
 	@Override
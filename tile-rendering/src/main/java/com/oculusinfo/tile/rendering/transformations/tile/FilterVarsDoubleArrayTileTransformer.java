@@ -39,16 +39,17 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import static com.oculusinfo.tile.rendering.LayerConfiguration.*;
 
 
 /**
- * 	This transformer will take in JSON or tileData object representing bins of a double array
+ * 	This transformer will take in a tileData object representing bins of a double array
  * 		tile and will filter out all variables except the variables contained in the variable
  * 		array passed in during construction.  The double arrays passed back will be in the
- * 		order that they are sequenced in the JSON or tileData array passed in.
+ * 		order that they are sequenced in the tileData array passed in.
  *
  */
 
@@ -79,65 +80,17 @@ public class FilterVarsDoubleArrayTileTransformer<T> extends BucketTileTransform
 		}
 	}
 
-	// For each bin in the tile described by the input JSON, extract the values from the
-	//	bin's array only at the indexes stored in the _variables list and build the resulting'
-	// 	JSON based on this criteria
-	@Override
-	public JSONObject transform (JSONObject inputJSON) throws JSONException {
-		JSONObject resultJSON;
-
-		if ( _variables == null ) {
-			resultJSON = inputJSON;
-		}
-		else {
-			resultJSON = new JSONObject();
-			resultJSON.put("level", inputJSON.getInt("level"));
-			resultJSON.put("xIndex", inputJSON.getInt("xIndex"));
-			resultJSON.put("yIndex", inputJSON.getInt("yIndex"));
-			resultJSON.put("xBinCount", inputJSON.getInt("xBinCount"));
-			resultJSON.put("yBinCount", inputJSON.getInt("yBinCount"));
-
-			JSONArray bins = inputJSON.getJSONArray("values");
-			JSONArray resultBins = new JSONArray();
-
-			for (int binIndex = 0; binIndex < bins.length(); binIndex++) {
-				JSONObject singleBin = bins.getJSONObject (binIndex);
-				JSONArray valuesInBin = singleBin.getJSONArray("value");
-
-				JSONObject resultSingleBin = new JSONObject();
-				JSONArray resultValuesInSingleBin = new JSONArray();
-
-				// just loop through variable indexes in _variables
-				for (int varIndex = 0; varIndex < _variables.size(); varIndex++) {
-					int arrayIndex = _variables.get(varIndex);
-					if (arrayIndex < valuesInBin.length()) {
-						JSONObject value = valuesInBin.getJSONObject(arrayIndex);
-						JSONObject resultValue = new JSONObject();
-						resultValue.put("value", value.getDouble("value"));
-						resultValuesInSingleBin.put(resultValue);
-					}
-				}
-				resultSingleBin.put("value", resultValuesInSingleBin);
-				resultBins.put(resultSingleBin);
-			}
-			resultJSON.put("values", resultBins);
-
-			if (inputJSON.has("meta")) {
-				resultJSON.put("meta", inputJSON.getJSONObject("meta"));
-			}
-		}
-		return resultJSON;
-	}
-
+	// For each bin in the tile, extract the values from the bin's array only at the
+	// indexes stored in the _variables list
     @Override
     public TileData<List<T>> transform (TileData<List<T>> inputData) throws Exception {
 
         //list of indices to keep
         TileData<List<T>> resultTile;
 
-        //If there are none to keep, return empty list
+        //If no variables were specified, pass the tile through unfiltered
         if (_variables == null) {
-            resultTile = null;
+            resultTile = inputData;
         } else {
 			TileIndex index = inputData.getDefinition();
 			List<List<T>> rawData = DenseTileData.getData(inputData);
@@ -154,6 +107,12 @@ public class FilterVarsDoubleArrayTileTransformer<T> extends BucketTileTransform
 			}
 
             resultTile = new DenseTileData<>(inputData.getDefinition(), transformedData);
+			Collection<String> properties = inputData.getMetaDataProperties();
+			if (null != properties) {
+				for (String property: properties) {
+					resultTile.setMetaData(property, inputData.getMetaData(property));
+				}
+			}
         }
 
         return resultTile;
@@ -28,19 +28,13 @@ import com.oculusinfo.factory.ConfigurationException;
 import com.oculusinfo.factory.properties.StringProperty;
 import com.oculusinfo.factory.util.Pair;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import com.oculusinfo.binning.TileData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * A TileTransformer is an interface that can take a JSON representation of
- * 		a tile and perform a transform on it. This can include a filter on the data or
- *		perform an action on all sets of the data in a uniform way.  The resulting tile
- *		is passed back in JSON format
+ * A TileTransformer that passes tiles through unchanged.
  *
  * @author tlachapelle
  */
@@ -48,16 +42,6 @@ public class IdentityTileTransformer<T> implements TileTransformer<T> {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(IdentityTileTransformer.class);
 
-	/**
-	 * Transforms the tile data in JSON format based on transform type and returns result
-	 *
-	 * @param json representing the tile data in JSON form to be transformed
-	 * @return JSONObject representing the fully transformed tile based on the transform type
-	 */
-	public JSONObject transform(JSONObject json) throws JSONException {
-		return json;
-	}
-
 	/**
 	 * Same transformation on the raw tile form
 	 * @param data the tile data
@@ -28,31 +28,21 @@ import com.oculusinfo.binning.TileData;
 import com.oculusinfo.factory.ConfigurationException;
 import com.oculusinfo.factory.util.Pair;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 
 /**
- * A TileTransformer is an interface that can take a JSON representation of
- * 		a tile and perform a transform on it. This can include a filter on the data or
- *		perform an action on all sets of the data in a uniform way.  The resulting tile
- *		is passed back in JSON format
+ * A TileTransformer is an interface that can take a tile and perform a transform
+ * 		on it. This can include a filter on the data or perform an action on all sets
+ *		of the data in a uniform way.  Transforms work on the typed tile data, both
+ *		for rendering and for JSON tile requests, which write the transformed tile
+ *		straight out as JSON.
  *
  * @author tlachapelle
  */
 public interface TileTransformer<T> {
 
 	/**
-	 * Transforms the tile data in JSON format based on transform type and returns result
-	 *
-	 * @param json representing the tile data in JSON form to be transformed
-	 * @return JSONObject representing the fully transformed tile based on the transform type
-	 */
-	JSONObject transform(JSONObject json) throws JSONException;
-
-
-	/**
-	 * Same transformation on the raw tile form
+	 * Transforms the tile data based on transform type and returns the result
 	 * @param data The tile data to be transformed
 	 * @return TileData containing the transformed data
 	 * @throws Exception
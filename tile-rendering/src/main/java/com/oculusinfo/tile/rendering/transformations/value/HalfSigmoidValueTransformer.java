@@ -32,7 +32,7 @@ package com.oculusinfo.tile.rendering.transformations.value;
  * 
  * @author nkronenfeld
  */
-public class HalfSigmoidValueTransformer implements ValueTransformer<Double> {
+public class HalfSigmoidValueTransformer implements ValueTransformer<Double>, DoubleValueTransformer {
     private double _center;
     private double _scale;
 
@@ -43,6 +43,11 @@ public class HalfSigmoidValueTransformer implements ValueTransformer<Double> {
 
     @Override
     public Double transform (Double value) {
+        return transformDouble(value);
+    }
+
+    @Override
+    public double transformDouble (double value) {
         double scaledInput = (value-_center) / (_scale - _center);
 
         // We only care about the top half.
@@ -24,7 +24,7 @@
  */
 package com.oculusinfo.tile.rendering.transformations.value;
 
-public class LinearValueTransformer implements ValueTransformer<Double> {
+public class LinearValueTransformer implements ValueTransformer<Double>, DoubleValueTransformer {
 	private final double _min;
 	private final double _max;
 	private final double _range;
@@ -38,6 +38,11 @@ public class LinearValueTransformer implements ValueTransformer<Double> {
 
 	@Override
 	public Double transform(Double value) {
+		return transformDouble(value);
+	}
+
+	@Override
+	public double transformDouble(double value) {
 		return (Math.max(Math.min(value, _max), _min) - _min) / _range;
 	}
 
@@ -24,7 +24,7 @@
  */
 package com.oculusinfo.tile.rendering.transformations.value;
 
-public class Log10ValueTransformer implements ValueTransformer<Double> {
+public class Log10ValueTransformer implements ValueTransformer<Double>, DoubleValueTransformer {
 	private final double _min;
 	private final double _max;
 
@@ -48,6 +48,11 @@ public class Log10ValueTransformer implements ValueTransformer<Double> {
 
 	@Override
 	public Double transform(Double value) {
+		return transformDouble(value);
+	}
+
+	@Override
+	public double transformDouble(double value) {
 		// Out of range is clamped
 		return ( Math.log10( Math.max(Math.min(value, _max), _min)) - _logMin ) * _oneOverLogRange;
 	}
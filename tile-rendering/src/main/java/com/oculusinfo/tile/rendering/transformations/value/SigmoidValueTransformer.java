@@ -33,7 +33,7 @@ package com.oculusinfo.tile.rendering.transformations.value;
  *
  * @author nkronenfeld
  */
-public class SigmoidValueTransformer implements ValueTransformer<Double> {
+public class SigmoidValueTransformer implements ValueTransformer<Double>, DoubleValueTransformer {
 	private double _distance;
 	private double _scale;
 
@@ -48,6 +48,11 @@ public class SigmoidValueTransformer implements ValueTransformer<Double> {
 
 	@Override
 	public Double transform (Double value) {
+		return transformDouble(value);
+	}
+
+	@Override
+	public double transformDouble (double value) {
 		double scaledInput = value / (_scale * _distance);
 		return (1/(1+Math.exp(-scaledInput)));
 	}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rendering.color;
+
+import com.oculusinfo.tile.rendering.color.impl.HueColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.WareColorRamp;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColorRampLookupTableTests {
+	private static int channelDifference (int a, int b, int shift) {
+		return Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff));
+	}
+
+	// Table colors should be within a step of the ramp's own colors
+	@Test
+	public void testMatchesRamp () {
+		ColorRamp ramp = new WareColorRamp(false, 1.0);
+		ColorRampLookupTable table = new ColorRampLookupTable(ramp, null, ColorRampLookupTable.DEFAULT_SIZE);
+		for (int i=0; i<=1000; ++i) {
+			double scale = i/1000.0;
+			int expected = ramp.getRGB(scale);
+			int actual = table.getColor(scale);
+			for (int shift = 0; shift < 32; shift += 8) {
+				Assert.assertTrue(channelDifference(expected, actual, shift) <= 1);
+			}
+		}
+		Assert.assertEquals(ramp.getRGB(0.0), table.getColor(0.0));
+		Assert.assertEquals(ramp.getRGB(1.0), table.getColor(1.0));
+	}
+
+	// Out-of-range values go straight to the ramp, which may not clamp them
+	@Test
+	public void testOutOfRange () {
+		ColorRamp ramp = new HueColorRamp(0.2, 0.4);
+		ColorRampLookupTable table = ColorRampLookupTable.getLookupTable(ramp);
+		Assert.assertEquals(ramp.getRGB(-0.5), table.getColor(-0.5));
+		Assert.assertEquals(ramp.getRGB(1.5), table.getColor(1.5));
+	}
+
+	// Equal ramps should share a table
+	@Test
+	public void testSharing () {
+		ColorRampLookupTable a = ColorRampLookupTable.getLookupTable(new WareColorRamp(true, 1.0));
+		ColorRampLookupTable b = ColorRampLookupTable.getLookupTable(new WareColorRamp(true, 1.0));
+		ColorRampLookupTable c = ColorRampLookupTable.getLookupTable(new WareColorRamp(false, 1.0));
+		ColorRampLookupTable d = ColorRampLookupTable.getLookupTable(new WareColorRamp(true, 1.0), 1.0);
+		Assert.assertSame(a, b);
+		Assert.assertNotSame(a, c);
+		Assert.assertNotSame(a, d);
+	}
+}
@@ -46,10 +46,14 @@ import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.PackedSparseTileData;
+import com.oculusinfo.binning.io.serialization.GenericAvroSerializer;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.binning.io.serialization.impl.PairArrayAvroSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
 import com.oculusinfo.binning.util.AvroJSONConverter;
 import com.oculusinfo.factory.util.Pair;
 
@@ -136,4 +140,65 @@ public class AvroJSONConverterTests {
 		JSONObject result = AvroJSONConverter.convert(new ByteArrayInputStream(serializedTileData));
 		System.out.println(result.toString());
 	}
+
+	// Make sure JSON written straight from a tile matches the JSON converted
+	// from that tile's avro serialization
+	private static <T> void assertStreamedJSONMatches (GenericAvroSerializer<T> serializer, TileData<T> tile)
+		throws IOException, JSONException {
+		ByteArrayOutputStream avro = new ByteArrayOutputStream();
+		serializer.serialize(tile, avro);
+		JSONObject converted = AvroJSONConverter.convert(new ByteArrayInputStream(avro.toByteArray()));
+
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		serializer.serializeJSON(tile, json);
+		JSONObject streamed = new JSONObject(json.toString("UTF-8"));
+
+		Assert.assertEquals(converted.toString(), streamed.toString());
+	}
+
+	@Test
+	public void testStreamedDenseTile () throws IOException, JSONException {
+		GenericAvroSerializer<List<Pair<String, Double>>> serializer =
+			new PairArrayAvroSerializer<>(String.class, Double.class, CodecFactory.nullCodec());
+		TileIndex index = new TileIndex(2, 1, 3, 2, 2);
+		TileData<List<Pair<String, Double>>> tile =
+			new DenseTileData<List<Pair<String, Double>>>(index, new ArrayList<Pair<String, Double>>());
+		for (int x=0; x<2; ++x) {
+			for (int y=0; y<2; ++y) {
+				List<Pair<String, Double>> bin = new ArrayList<>();
+				for (int i=0; i<=x+y; ++i) {
+					bin.add(new Pair<String, Double>("topic"+i, i*1.5));
+				}
+				tile.setBin(x, y, bin);
+			}
+		}
+		tile.setMetaData("bins", "[[\"abc\", 1], null, [\"def\"]]");
+		tile.setMetaData("maximum", "4.5");
+		assertStreamedJSONMatches(serializer, tile);
+	}
+
+	@Test
+	public void testStreamedSparseTile () throws IOException, JSONException {
+		GenericAvroSerializer<Double> serializer = new PrimitiveAvroSerializer<>(Double.class, CodecFactory.nullCodec());
+		TileIndex index = new TileIndex(4, 7, 2, 8, 8);
+		TileData<Double> tile = new PackedSparseTileData<>(index, 0.0);
+		tile.setBin(1, 2, 3.25);
+		tile.setBin(7, 0, -1.5);
+		assertStreamedJSONMatches(serializer, tile);
+	}
+
+	// Make sure "bins" metadata that only starts out as JSON is streamed whole,
+	// as a string
+	@Test
+	public void testStreamedPartialJSONBins () throws IOException, JSONException {
+		GenericAvroSerializer<Double> serializer = new PrimitiveAvroSerializer<>(Double.class, CodecFactory.nullCodec());
+		TileData<Double> tile = new PackedSparseTileData<>(new TileIndex(1, 0, 1, 2, 2), 0.0);
+		for (String bins: new String[] {"[1, 2] and more", "[1, [2", "{\"a\": 1} }"}) {
+			tile.setMetaData("bins", bins);
+			ByteArrayOutputStream json = new ByteArrayOutputStream();
+			serializer.serializeJSON(tile, json);
+			JSONObject streamed = new JSONObject(json.toString("UTF-8"));
+			Assert.assertEquals(bins, streamed.getJSONObject("meta").getJSONObject("map").getString("bins"));
+		}
+	}
 }
@@ -25,6 +25,7 @@ package com.oculusinfo.tile.init.providers;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -41,16 +42,22 @@ import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.ConfigurationException;
 import com.oculusinfo.factory.providers.FactoryProvider;
 import com.oculusinfo.factory.providers.AbstractFactoryProvider;
+import com.oculusinfo.factory.properties.IntegerProperty;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.transformations.tile.TileTransformer;
 import com.oculusinfo.tile.rest.tile.caching.CachingPyramidIO;
 import com.oculusinfo.tile.rest.tile.caching.CachingPyramidIO.LayerDataChangedListener;
+import com.oculusinfo.tile.rest.tile.caching.TileCache;
 
 @Singleton
 public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<LayerConfiguration>{
 	private static final Logger LOGGER = LoggerFactory.getLogger(CachingLayerConfigurationProvider.class);
 
+	public static final IntegerProperty CACHE_SIZE = new IntegerProperty("cacheSize",
+		"The maximum estimated size, in megabytes, of the tiles cached for this layer",
+		(int) (CachingPyramidIO.DEFAULT_LAYER_CACHE_SIZE / (1024L * 1024L)));
+
     private FactoryProvider<PyramidIO> _pyramidIOFactoryProvider;
     private FactoryProvider<TilePyramid> _tilePyramidFactoryProvider;
     private FactoryProvider<TileSerializer<?>> _serializationFactoryProvider;
@@ -83,6 +90,26 @@ public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<L
 		_pyramidIO.removeLayerListener(listener);
 	}
 
+	/**
+	 * Drop some rewritten tiles of a pyramid from the cache, and tell layer
+	 * listeners (see {@link CachingPyramidIO#invalidateTiles})
+	 *
+	 * @param pyramidId The pyramid whose tiles have changed
+	 * @param indices The tiles that have changed
+	 */
+	public void invalidateTiles (String pyramidId, Iterable<TileIndex> indices) {
+		_pyramidIO.invalidateTiles(pyramidId, indices);
+	}
+
+	/**
+	 * Get the tile caches of each layer, for reporting of sizes and statistics
+	 *
+	 * @return The caches, keyed by pyramid id
+	 */
+	public Map<String, TileCache<?>> getTileCaches () {
+		return _pyramidIO.getTileCaches();
+	}
+
 	@Override
 	public ConfigurableFactory<LayerConfiguration> createFactory (String name,
 	                                                              ConfigurableFactory<?> parent,
@@ -151,6 +178,7 @@ public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<L
 			_baseInitialized = false;
 
 			addProperty(PyramidIOFactory.INITIALIZATION_DATA);
+			addProperty(CACHE_SIZE);
 		}
 
 		@Override
@@ -163,7 +191,8 @@ public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<L
 			if (!_baseInitialized) {
 				try {
 					String pyramidId = _parent.getPropertyValue(LayerConfiguration.LAYER_ID);
-					_pyramidIO.setupBasePyramidIO(pyramidId, _baseFactory);
+					long cacheSize = getPropertyValue(CACHE_SIZE) * 1024L * 1024L;
+					_pyramidIO.setupBasePyramidIO(pyramidId, _baseFactory, cacheSize);
 					_baseInitialized = true;
 				} catch (ConfigurationException e) {
 					LOGGER.warn("Error determining layer id", e);
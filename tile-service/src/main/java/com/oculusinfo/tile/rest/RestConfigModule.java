@@ -31,7 +31,10 @@ import com.oculusinfo.tile.rest.layer.KMLLayerResource;
 import com.oculusinfo.tile.rest.layer.LayerResource;
 import com.oculusinfo.tile.rest.layer.StateResource;
 import com.oculusinfo.tile.rest.legend.LegendResource;
+import com.oculusinfo.tile.rest.tile.TileBatchResource;
 import com.oculusinfo.tile.rest.tile.TileResource;
+import com.oculusinfo.tile.rest.tile.caching.CacheStatsResource;
+import com.oculusinfo.tile.rest.tile.caching.TileInvalidationResource;
 import com.oculusinfo.tile.rest.translation.TileTranslationResource;
 
 import org.restlet.resource.ServerResource;
@@ -65,6 +68,12 @@ public class RestConfigModule extends AbstractModule {
 
 		resourceBinder.addBinding( "/{version}/tile/{layer}/{level}/{x}/{y}.{ext}" ).toInstance( TileResource.class );
 		resourceBinder.addBinding( "/tile/{layer}/{level}/{x}/{y}.{ext}" ).toInstance( TileResource.class );
+		resourceBinder.addBinding( "/{version}/tiles.{ext}" ).toInstance( TileBatchResource.class );
+		resourceBinder.addBinding( "/tiles.{ext}" ).toInstance( TileBatchResource.class );
+		resourceBinder.addBinding( "/{version}/cache" ).toInstance( CacheStatsResource.class );
+		resourceBinder.addBinding( "/cache" ).toInstance( CacheStatsResource.class );
+		resourceBinder.addBinding( "/{version}/cache/invalidate" ).toInstance( TileInvalidationResource.class );
+		resourceBinder.addBinding( "/cache/invalidate" ).toInstance( TileInvalidationResource.class );
 
 		resourceBinder.addBinding( "/{version}/legend/{layer}" ).toInstance( LegendResource.class );
 		resourceBinder.addBinding( "/legend/{layer}" ).toInstance( LegendResource.class );
@@ -57,6 +57,12 @@ public interface LayerService {
      */
     public List< String > getLayerIds();
 
+    /**
+     * Return the identification strings of all layers showing the given data
+     * @param dataId The id of the data (i.e., of the pyramid) of interest
+     */
+    public List< String > getLayerIdsForData( String dataId );
+
     /**
      * Returns the layer configuration object for a given layer id. Request parameters
      * will override any default config attributes.
@@ -65,6 +71,15 @@ public interface LayerService {
      */
     public LayerConfiguration getLayerConfiguration( String layerId, JSONObject requestParams );
 
+    /**
+     * Hands a layer configuration obtained from getLayerConfiguration back to the
+     * service once the caller is done with it, so that it may be reused by later
+     * requests for the same layer and parameters. The configuration must not be
+     * used by the caller after it has been released.
+     * @param config The layer configuration to release; null is ignored
+     */
+    public void releaseLayerConfiguration( LayerConfiguration config );
+
     /**
      * Returns a SHA-256 hex string containing the state of the layer.
      * @param layerId The layer identification string
@@ -29,6 +29,7 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.PyramidIOFactory;
+import com.oculusinfo.binning.io.serialization.AvroSchemaRegistry;
 import com.oculusinfo.binning.metadata.PyramidMetaData;
 import com.oculusinfo.binning.util.JsonUtilities;
 import com.oculusinfo.factory.ConfigurableFactory;
@@ -54,18 +55,37 @@ import java.net.URI;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Singleton
 public class LayerServiceImpl implements LayerService {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(LayerServiceImpl.class);
 
+	// How many compiled layer configurations we keep, how many idle, ready-
+	// to-use instances we keep of each, and how many shared goods (pyramid
+	// IOs, serializers, renderers, and color ramps) we keep across all of them
+	private static final int MAX_COMPILED_CONFIGURATIONS = 256;
+	private static final int MAX_IDLE_CONFIGURATIONS = 16;
+	private static final int MAX_SHARED_GOODS = 1024;
+
+	// Request parameters that select tiles, layers or a saved state rather
+	// than configure the layer (including those of tile batch requests - see
+	// TileBatchResource); they are dropped before request parameters are
+	// merged into a layer's configuration, so requests for different tiles
+	// share one compiled configuration.
+	private static final Set<String> NON_CONFIGURATION_PARAMETERS = new HashSet<>( Arrays.asList(
+		"state", "tileset", "minX", "maxX", "minY", "maxY", "minZ", "maxZ", "mintile", "maxtile",
+		"layers", "tiles", "level" ) );
+
 	private List< JSONObject > _layers;
 	private Map< String, JSONObject > _layersById;
     private Map< String, JSONObject > _layersBySha;
 	private Map< String, JSONObject > _metaDataCache;
     private FactoryProvider< LayerConfiguration > _layerConfigurationProvider;
     private final ConfigService _configService;
+	private Map< String, CompiledConfiguration > _compiledConfigurations;
+	private Map< String, Object > _sharedGoods;
 
 	@Inject
 	public LayerServiceImpl( @Named("com.oculusinfo.tile.layer.config") String layerConfigurationLocation,
@@ -74,15 +94,23 @@ public class LayerServiceImpl implements LayerService {
 		_layers = new ArrayList<>();
 		_layersById = new HashMap<>();
         _layersBySha = new HashMap<>();
-		_metaDataCache = new HashMap<>();
+		// Cleared from tile-reading threads by the layer listener below
+		_metaDataCache = new ConcurrentHashMap<>();
         _layerConfigurationProvider = layerConfigProvider;
         _configService = configService;
+		_compiledConfigurations = Collections.synchronizedMap( new LRUMap<String, CompiledConfiguration>( MAX_COMPILED_CONFIGURATIONS ) );
+		_sharedGoods = Collections.synchronizedMap( new LRUMap<String, Object>( MAX_SHARED_GOODS ) );
 
 		if (layerConfigProvider instanceof CachingLayerConfigurationProvider) {
             CachingLayerConfigurationProvider caching = (CachingLayerConfigurationProvider)layerConfigProvider;
 			caching.addLayerListener( new LayerDataChangedListener() {
-                public void onLayerDataChanged( String layerId ) {
-                    _metaDataCache.remove( layerId );
+                public void onLayerDataChanged( String pyramidId ) {
+                    for ( String layerId: getLayerIdsForData( pyramidId ) ) {
+                        _metaDataCache.remove( layerId );
+                    }
+                }
+                public void onLayerDataInvalidated( String pyramidId ) {
+                    // Handled by onLayerDataChanged, which is also called
                 }
             } );
 		}
@@ -112,10 +140,23 @@ public class LayerServiceImpl implements LayerService {
 		return layers;
 	}
 
+	@Override
+	public List< String > getLayerIdsForData( String dataId ) {
+		List< String > layers = new ArrayList<>();
+		for ( JSONObject layerConfig : _layers ) {
+			JSONObject privateNode = layerConfig.optJSONObject( LayerConfiguration.DATA_PATH.get( 0 ) );
+			JSONObject dataNode = ( null == privateNode ) ? null : privateNode.optJSONObject( LayerConfiguration.DATA_PATH.get( 1 ) );
+			if ( null != dataNode && dataId.equals( dataNode.optString( LayerConfiguration.DATA_ID.getName(), null ) ) ) {
+				layers.add( layerConfig.optString( LayerConfiguration.LAYER_ID.getName() ) );
+			}
+		}
+		return layers;
+	}
+
 	@Override
 	public PyramidMetaData getMetaData( String layerId ) {
+		LayerConfiguration config = getLayerConfiguration( layerId, null );
 		try {
-			LayerConfiguration config = getLayerConfiguration( layerId, null );
             String dataId = config.getPropertyValue(LayerConfiguration.DATA_ID);
             if ( dataId == null ) {
 				LOGGER.error( "Couldn't determine data id for layer: "+layerId+" , please ensure the layer config file is correct." );
@@ -132,6 +173,8 @@ public class LayerServiceImpl implements LayerService {
 		} catch (ConfigurationException e) {
 			LOGGER.error( "Couldn't determine pyramid I/O method for {}", layerId, e );
 			return null;
+		} finally {
+			releaseLayerConfiguration( config );
 		}
 	}
 
@@ -146,6 +189,8 @@ public class LayerServiceImpl implements LayerService {
                     metadata = new JSONObject( s );
                 }
 				_metaDataCache.put( layerId, metadata );
+				// Make sure any compact tiles in the pyramid can be read
+				AvroSchemaRegistry.register( new PyramidMetaData( metadata ) );
 			}
 			return new PyramidMetaData( metadata );
 		} catch (JSONException e) {
@@ -179,31 +224,16 @@ public class LayerServiceImpl implements LayerService {
     @Override
 	public LayerConfiguration getLayerConfiguration( String layerId, JSONObject requestParams ) {
 		try {
-            // first check if the query parameters contains a SHA-256 hash. If so
-            // load the configured JSONObject. Otherwise take the server default.
-            JSONObject layerConfig;
-            if ( requestParams != null && requestParams.has("state") ) {
-                layerConfig = _layersBySha.get( requestParams.getString("state") );
-            } else {
-                layerConfig = _layersById.get( layerId );
-            }
-			// create layer configuration factory
-			ConfigurableFactory<? extends LayerConfiguration> factory = _layerConfigurationProvider.createFactory( null, new ArrayList<String>() );
-			// override the server configuration with supplied query parameters, this simply overlays
-            // the query parameter JSON over the server default JSON, then sets the factory upp
-            // to build our layer configuration object.
-            factory.readConfiguration( mergeQueryConfigOptions( layerConfig, requestParams ) );
-            // produce the layer configuration
-			LayerConfiguration config = factory.produce( LayerConfiguration.class );
-			JSONObject initJSON = config.getProducer( PyramidIO.class ).getPropertyValue( PyramidIOFactory.INITIALIZATION_DATA );
-            if ( initJSON != null ) {
-			    String dataId = config.getPropertyValue(LayerConfiguration.DATA_ID);
-				int width = config.getPropertyValue(LayerConfiguration.OUTPUT_WIDTH);
-				int height = config.getPropertyValue(LayerConfiguration.OUTPUT_HEIGHT);
-				Properties initProps = JsonUtilities.jsonObjToProperties(initJSON);
-                // initialize the PyramidIO for reading
-                PyramidIO pyramidIO = config.produce( PyramidIO.class );
-				pyramidIO.initializeForRead( dataId, width, height, initProps);
+			CompiledConfiguration compiled = getCompiledConfiguration( layerId, requestParams );
+			if ( null == compiled ) {
+				LOGGER.warn( "No configuration found for layer {}", layerId );
+				return null;
+			}
+			// Reuse an idle instance if there is one; only build a new one
+			// when all are in use.
+			LayerConfiguration config = compiled.takeIdle();
+			if ( null == config ) {
+				config = createLayerConfiguration( compiled );
 			}
 			return config;
 		} catch ( Exception e ) {
@@ -212,6 +242,108 @@ public class LayerServiceImpl implements LayerService {
 		}
 	}
 
+    @Override
+	public void releaseLayerConfiguration( LayerConfiguration config ) {
+		if ( null == config ) {
+			return;
+		}
+		Object owner = config.getOwner();
+		if ( owner instanceof CompiledConfiguration ) {
+			config.clearLevelProperties();
+			((CompiledConfiguration) owner).returnIdle( config );
+		}
+	}
+
+	/*
+	 * Get the compiled configuration for the given layer and request
+	 * parameters, merging the parameters into the layer's configuration only
+	 * the first time they are seen. Parameters that only select tiles are
+	 * ignored; the rest are applied over the layer's own compiled
+	 * configuration.
+	 */
+	private CompiledConfiguration getCompiledConfiguration( String layerId, JSONObject requestParams ) throws JSONException {
+		// first check if the query parameters contains a SHA-256 hash. If so
+		// load the configured JSONObject. Otherwise take the server default.
+		String key;
+		JSONObject layerConfig;
+		if ( requestParams != null && requestParams.has("state") ) {
+			String stateId = requestParams.getString("state");
+			key = "state:" + stateId;
+			layerConfig = _layersBySha.get( stateId );
+		} else {
+			key = "layer:" + layerId;
+			layerConfig = _layersById.get( layerId );
+		}
+		if ( null == layerConfig ) {
+			return null;
+		}
+
+		CompiledConfiguration base = _compiledConfigurations.get( key );
+		if ( null == base ) {
+			base = new CompiledConfiguration( mergeQueryConfigOptions( layerConfig, null ) );
+			_compiledConfigurations.put( key, base );
+		}
+		JSONObject overrides = getConfigurationOverrides( requestParams );
+		if ( null == overrides ) {
+			return base;
+		}
+
+		String overrideKey = key + "\n" + overrides.toString();
+		CompiledConfiguration compiled = _compiledConfigurations.get( overrideKey );
+		if ( null == compiled ) {
+			// override the server configuration with supplied query parameters, this simply overlays
+			// the query parameter JSON over the server default JSON.
+			compiled = new CompiledConfiguration( mergeQueryConfigOptions( base.getConfiguration(), overrides ) );
+			_compiledConfigurations.put( overrideKey, compiled );
+		}
+		return compiled;
+	}
+
+	/*
+	 * Get the request parameters that actually configure the layer, or null
+	 * if there are none.
+	 */
+	private JSONObject getConfigurationOverrides( JSONObject requestParams ) throws JSONException {
+		if ( null == requestParams ) {
+			return null;
+		}
+		JSONObject overrides = new JSONObject();
+		Iterator<?> keys = requestParams.keys();
+		while ( keys.hasNext() ) {
+			String key = keys.next().toString();
+			if ( !NON_CONFIGURATION_PARAMETERS.contains( key ) ) {
+				overrides.put( key, requestParams.get( key ) );
+			}
+		}
+		return 0 == overrides.length() ? null : overrides;
+	}
+
+	/*
+	 * Build a new layer configuration instance from a compiled configuration
+	 */
+	private LayerConfiguration createLayerConfiguration( CompiledConfiguration compiled ) throws Exception {
+		// create layer configuration factory
+		ConfigurableFactory<? extends LayerConfiguration> factory = _layerConfigurationProvider.createFactory( null, new ArrayList<String>() );
+		// Each instance reads its own copy of the compiled configuration, so
+		// nothing done to one instance can leak into the others.
+		factory.readConfiguration( JsonUtilities.deepClone( compiled.getConfiguration() ) );
+		// produce the layer configuration
+		LayerConfiguration config = factory.produce( LayerConfiguration.class );
+		config.setSharedGoods( _sharedGoods );
+		JSONObject initJSON = config.getProducer( PyramidIO.class ).getPropertyValue( PyramidIOFactory.INITIALIZATION_DATA );
+		if ( initJSON != null ) {
+			String dataId = config.getPropertyValue(LayerConfiguration.DATA_ID);
+			int width = config.getPropertyValue(LayerConfiguration.OUTPUT_WIDTH);
+			int height = config.getPropertyValue(LayerConfiguration.OUTPUT_HEIGHT);
+			Properties initProps = JsonUtilities.jsonObjToProperties(initJSON);
+			// initialize the PyramidIO for reading
+			PyramidIO pyramidIO = config.produce( PyramidIO.class );
+			pyramidIO.initializeForRead( dataId, width, height, initProps);
+		}
+		config.setOwner( compiled );
+		return config;
+	}
+
     @Override
 	public String saveLayerState( String layerId, JSONObject overrideConfiguration ) throws Exception {
         try {
@@ -221,7 +353,12 @@ public class LayerServiceImpl implements LayerService {
             LayerConfiguration config = getLayerConfiguration( layerId, overrideConfiguration );
 
             // get SHA-256 hash of state
-            String shaHex = config.generateSHA256();
+            String shaHex;
+            try {
+                shaHex = config.generateSHA256();
+            } finally {
+                releaseLayerConfiguration( config );
+            }
 
             // store the config under the SHA-256
             _layersBySha.put( shaHex, mergeQueryConfigOptions( _layersById.get( layerId ), overrideConfiguration ) );
@@ -237,16 +374,12 @@ public class LayerServiceImpl implements LayerService {
         JSONObject states = new JSONObject();
         try {
             // add default
-            states.put( "default", getLayerConfiguration( layerId, null )
-                    .getExplicitConfiguration()
-                    .getJSONObject("public") ); // only return public node
+            states.put( "default", getPublicConfiguration( layerId, null ) );
             // add saved
             for ( Map.Entry<String, JSONObject> entry : _layersBySha.entrySet() ) {
                 String key = entry.getKey();
                 JSONObject value = entry.getValue();
-                states.put( key, getLayerConfiguration( layerId, value.getJSONObject("public") )
-                        .getExplicitConfiguration()
-                        .getJSONObject("public") ); // only return public node
+                states.put( key, getPublicConfiguration( layerId, value.getJSONObject("public") ) );
             }
         } catch ( Exception e ) {
             e.printStackTrace();
@@ -261,15 +394,23 @@ public class LayerServiceImpl implements LayerService {
             if ( layer == null ) {
                 return null;
             }
-            return getLayerConfiguration( layerId, layer.getJSONObject("public") )
-                    .getExplicitConfiguration()
-                    .getJSONObject("public"); // only return public node
+            return getPublicConfiguration( layerId, layer.getJSONObject("public") );
         } catch ( Exception e ) {
             e.printStackTrace();
         }
         return null;
     }
 
+    // Get the public node of the full configuration of a layer
+    private JSONObject getPublicConfiguration( String layerId, JSONObject requestParams ) throws JSONException {
+        LayerConfiguration config = getLayerConfiguration( layerId, requestParams );
+        try {
+            return config.getExplicitConfiguration().getJSONObject("public"); // only return public node
+        } finally {
+            releaseLayerConfiguration( config );
+        }
+    }
+
 	private File[] getConfigurationFiles (String location) {
 		try {
 			// Find our configuration file.
@@ -403,4 +544,51 @@ public class LayerServiceImpl implements LayerService {
 
 		return kmlLayer;
 	}
+
+	/*
+	 * The configuration of a layer with a given set of request parameters
+	 * merged in, and the idle layer configuration instances built from it.
+	 * The merged configuration is never changed once built.
+	 */
+	private static class CompiledConfiguration {
+		private final JSONObject _configuration;
+		private final Deque<LayerConfiguration> _idle;
+
+		CompiledConfiguration( JSONObject configuration ) {
+			_configuration = configuration;
+			_idle = new ArrayDeque<>();
+		}
+
+		JSONObject getConfiguration() {
+			return _configuration;
+		}
+
+		synchronized LayerConfiguration takeIdle() {
+			return _idle.pollFirst();
+		}
+
+		synchronized void returnIdle( LayerConfiguration config ) {
+			// Guard against double releases, which would hand the same
+			// instance to two requests at once
+			if ( _idle.size() < MAX_IDLE_CONFIGURATIONS && !_idle.contains( config ) ) {
+				_idle.addFirst( config );
+			}
+		}
+	}
+
+	// A map that evicts its least recently used entries beyond a fixed size
+	private static class LRUMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int _maxSize;
+
+		LRUMap( int maxSize ) {
+			super( 16, 0.75f, true );
+			_maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<K, V> eldest ) {
+			return size() > _maxSize;
+		}
+	}
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile;
+
+import com.google.inject.Inject;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.tile.rest.QueryParamDecoder;
+import com.oculusinfo.tile.rest.tile.TileResource.ExtensionType;
+import com.oculusinfo.tile.rest.tile.TileResource.ResponseType;
+import com.oculusinfo.tile.rest.tile.TileService.TileBatchListener;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Serves a whole viewport of tiles, across one or more layers, in a single
+ * request, so that each layer's configuration is resolved and its tiles read
+ * once per viewport rather than once per tile.
+ *
+ * Request parameters:
+ * <dl>
+ * <dt>layers</dt>
+ * <dd>A comma-separated list of the layers from which to get tiles</dd>
+ * <dt>tiles</dt>
+ * <dd>A list of tiles, each given as level/x/y, separated by commas or "|"</dd>
+ * <dt>level, minX, maxX, minY, maxY</dt>
+ * <dd>A rectangular range of tiles, inclusive, on a single level</dd>
+ * </dl>
+ * Either or both of <code>tiles</code> and the range may be given. Any other
+ * parameters are applied to the layer configurations, as for single tile
+ * requests.
+ *
+ * The response is a stream of tiles, in the order in which they finish
+ * rendering. Each tile is written as:
+ * <ol>
+ * <li>the layer name (as by {@link DataOutputStream#writeUTF(String)})</li>
+ * <li>the tile level, x and y indices (each a 4-byte big-endian int)</li>
+ * <li>the length of the encoded image (a 4-byte big-endian int)</li>
+ * <li>the encoded image</li>
+ * </ol>
+ * Every requested tile of every requested layer appears exactly once.
+ */
+public class TileBatchResource extends ServerResource {
+	private static final Logger LOGGER = LoggerFactory.getLogger( TileBatchResource.class );
+
+	/** The most tiles, over all layers, that may be requested at once */
+	public static final int MAX_TILES = 4096;
+
+	private TileService _service;
+
+
+
+	@Inject
+	public TileBatchResource( TileService service ) {
+		_service = service;
+	}
+
+	/**
+	 * Get the layers requested by the given request parameters.
+	 *
+	 * @param query The decoded request parameters
+	 * @return The requested layers, in the order requested, without duplicates
+	 */
+	public static List<String> parseLayers( JSONObject query ) throws JSONException {
+		Set<String> layers = new LinkedHashSet<>();
+		for ( String layer: getStrings( query, "layers", "," ) ) {
+			layers.add( layer );
+		}
+		return new ArrayList<>( layers );
+	}
+
+	/**
+	 * Get the tiles requested by the given request parameters.
+	 *
+	 * @param query The decoded request parameters
+	 * @return The requested tiles, in the order requested, without duplicates
+	 * @throws IllegalArgumentException if a tile description can't be parsed
+	 */
+	public static List<TileIndex> parseTiles( JSONObject query ) throws JSONException {
+		Set<TileIndex> tiles = new LinkedHashSet<>();
+		for ( String description: getStrings( query, "tiles", "[,|]" ) ) {
+			String[] parts = description.split( "/" );
+			if ( 3 != parts.length ) {
+				throw new IllegalArgumentException( "Tile " + description + " not of the form level/x/y" );
+			}
+			tiles.add( new TileIndex( Integer.parseInt( parts[0].trim() ),
+			                          Integer.parseInt( parts[1].trim() ),
+			                          Integer.parseInt( parts[2].trim() ) ) );
+		}
+		if ( null != query && query.has( "level" ) ) {
+			int level = query.getInt( "level" );
+			int minX = query.getInt( "minX" );
+			int maxX = query.getInt( "maxX" );
+			int minY = query.getInt( "minY" );
+			int maxY = query.getInt( "maxY" );
+			if ( (long) (maxX - minX + 1) * (maxY - minY + 1) > MAX_TILES ) {
+				throw new IllegalArgumentException( "Tile range too large" );
+			}
+			for ( int x = minX; x <= maxX; ++x ) {
+				for ( int y = minY; y <= maxY; ++y ) {
+					tiles.add( new TileIndex( level, x, y ) );
+				}
+			}
+		}
+		return new ArrayList<>( tiles );
+	}
+
+	// Get the values of a parameter, whether it was decoded as a single string
+	// or as an array
+	private static List<String> getStrings( JSONObject query, String key, String separator ) throws JSONException {
+		List<String> values = new ArrayList<>();
+		if ( null == query || !query.has( key ) ) {
+			return values;
+		}
+		JSONArray array = query.optJSONArray( key );
+		if ( null == array ) {
+			array = new JSONArray();
+			array.put( query.getString( key ) );
+		}
+		for ( int i = 0; i < array.length(); ++i ) {
+			for ( String value: array.getString( i ).split( separator ) ) {
+				if ( !value.trim().isEmpty() ) {
+					values.add( value.trim() );
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Write one tile of a batch response.
+	 */
+	public static void writeTile( DataOutputStream output, String layer, TileIndex index, byte[] image ) throws IOException {
+		output.writeUTF( layer );
+		output.writeInt( index.getLevel() );
+		output.writeInt( index.getX() );
+		output.writeInt( index.getY() );
+		output.writeInt( image.length );
+		output.write( image );
+	}
+
+	/**
+	 * GET request. Returns the requested tiles, as images, from all requested
+	 * layers. Only image extensions are supported.
+	 */
+	@Get
+	public Representation getTiles() throws ResourceException {
+		final JSONObject query;
+		final List<String> layers;
+		final List<TileIndex> tiles;
+		final ExtensionType extType;
+		try {
+			String ext = (String) getRequest().getAttributes().get( "ext" );
+			extType = ExtensionType.valueOf( ext.trim().toLowerCase() );
+			query = QueryParamDecoder.decode( getRequest().getResourceRef().getQuery() );
+			layers = parseLayers( query );
+			tiles = parseTiles( query );
+		} catch ( Exception e ) {
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST,
+			                             "Unable to interpret requested tiles from supplied URL.", e );
+		}
+
+		if ( !ResponseType.Image.equals( extType.getResponseType() ) ) {
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST,
+			                             "Batch requests are only supported for images." );
+		}
+		if ( layers.isEmpty() || tiles.isEmpty() ) {
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST,
+			                             "Batch requests need at least one layer and one tile." );
+		}
+		if ( (long) layers.size() * tiles.size() > MAX_TILES ) {
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST,
+			                             "Batch requests are limited to " + MAX_TILES + " tiles." );
+		}
+
+		setStatus( Status.SUCCESS_OK );
+		// The work is done as the response is written, so tiles go out as
+		// soon as they are ready.
+		return new OutputRepresentation( MediaType.APPLICATION_OCTET_STREAM ) {
+			@Override
+			public void write( OutputStream outputStream ) throws IOException {
+				final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( outputStream ) );
+				try {
+					_service.getTileImageBatch( layers, tiles, query, extType.getImageFormat(), new TileBatchListener() {
+						@Override
+						public void onTileRendered( String layer, TileIndex index, byte[] image ) throws IOException {
+							writeTile( output, layer, index, image );
+							output.flush();
+						}
+					} );
+				} catch ( IOException e ) {
+					LOGGER.warn( "Error writing tile batch", e );
+					throw e;
+				}
+				output.flush();
+			}
+		};
+	}
+}
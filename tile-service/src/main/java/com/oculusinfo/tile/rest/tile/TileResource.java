@@ -27,38 +27,44 @@ package com.oculusinfo.tile.rest.tile;
 import com.google.inject.Inject;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
-import com.oculusinfo.tile.rest.ImageOutputRepresentation;
 import com.oculusinfo.tile.rest.QueryParamDecoder;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.restlet.data.MediaType;
 import org.restlet.data.Status;
-import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.OutputRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 
-import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.*;
 
 public class TileResource extends ServerResource {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	public enum ResponseType {
 		Image,
 		Tile
 	}
 	public enum ExtensionType {
-		png(ResponseType.Image, MediaType.IMAGE_PNG),
-		jpg(ResponseType.Image, MediaType.IMAGE_JPEG),
-		jpeg(ResponseType.Image, MediaType.IMAGE_JPEG),
-		json(ResponseType.Tile, MediaType.APPLICATION_JSON);
+		png(ResponseType.Image, MediaType.IMAGE_PNG, "png"),
+		jpg(ResponseType.Image, MediaType.IMAGE_JPEG, "jpeg"),
+		jpeg(ResponseType.Image, MediaType.IMAGE_JPEG, "jpeg"),
+		json(ResponseType.Tile, MediaType.APPLICATION_JSON, null);
 
 		private ResponseType _responseType;
 		private MediaType _mediaType;
-		ExtensionType (ResponseType responseType, MediaType mediaType) {
+		private String _imageFormat;
+		ExtensionType (ResponseType responseType, MediaType mediaType, String imageFormat) {
 			_responseType = responseType;
 			_mediaType = mediaType;
+			_imageFormat = imageFormat;
 		}
 		public ResponseType getResponseType () {
 			return _responseType;
@@ -66,6 +72,13 @@ public class TileResource extends ServerResource {
 		public MediaType getMediaType () {
 			return _mediaType;
 		}
+		/**
+		 * The ImageIO name of the image format for this extension, or null
+		 * for non-image extensions
+		 */
+		public String getImageFormat () {
+			return _imageFormat;
+		}
 	}
 
 	private TileService _service;
@@ -151,32 +164,31 @@ public class TileResource extends ServerResource {
             if ( version == null ) {
                 version = LayerConfiguration.DEFAULT_VERSION;
             }
-			String layer = (String) getRequest().getAttributes().get("layer");
+			final String layer = (String) getRequest().getAttributes().get("layer");
 			String levelDir = (String) getRequest().getAttributes().get("level");
 			int zoomLevel = Integer.parseInt(levelDir);
 			String xAttr = (String) getRequest().getAttributes().get("x");
 			int x = Integer.parseInt(xAttr);
 			String yAttr = (String) getRequest().getAttributes().get("y");
 			int y = Integer.parseInt(yAttr);
-			TileIndex index = new TileIndex(zoomLevel, x, y);
+			final TileIndex index = new TileIndex(zoomLevel, x, y);
             String ext = (String) getRequest().getAttributes().get("ext");
 			ExtensionType extType = ExtensionType.valueOf(ext.trim().toLowerCase());
 
             // decode and build JSONObject from request parameters
-            JSONObject decodedQueryParams = QueryParamDecoder.decode( getRequest().getResourceRef().getQuery() );
+            final JSONObject decodedQueryParams = QueryParamDecoder.decode( getRequest().getResourceRef().getQuery() );
 
             // parse parameters for tile sets or tile bounds
-			Collection<TileIndex> tileSet = parseTileSetDescription( decodedQueryParams );
+			final Collection<TileIndex> tileSet = parseTileSetDescription( decodedQueryParams );
 			tileSet.add(index);
 
 			if (null == extType) {
 				setStatus(Status.SERVER_ERROR_INTERNAL);
 			} else if (ResponseType.Image.equals(extType.getResponseType())) {
 
-				BufferedImage tile = _service.getTileImage( layer, index, tileSet, decodedQueryParams );
-				ImageOutputRepresentation imageRep = new ImageOutputRepresentation(extType.getMediaType(), tile);
+				byte[] tile = _service.getTileImageBytes( layer, index, tileSet, decodedQueryParams, extType.getImageFormat() );
 				setStatus(Status.SUCCESS_OK);
-				return imageRep;
+				return new ByteArrayRepresentation(tile, extType.getMediaType());
 
 			} else if (ResponseType.Tile.equals(extType.getResponseType())) {
 				// We return an object including the tile index ("index") and
@@ -184,16 +196,28 @@ public class TileResource extends ServerResource {
 				//
 				// The data should include index information, but it has to be
 				// there for tiles with no data too, so we can't count on it.
-				JSONObject result = new JSONObject();
+				//
+				// The tile itself is written straight into the response.
 				JSONObject tileIndex = new JSONObject();
 				tileIndex.put("level", zoomLevel);
 				tileIndex.put("xIndex", x);
 				tileIndex.put("yIndex", y);
-				result.put("index", tileIndex);
-                result.put("version", version);
-				result.put("tile", _service.getTileObject( layer, index, tileSet, decodedQueryParams ));
+				final String header = "{\"index\":" + tileIndex.toString()
+					+ ",\"version\":" + JSONObject.quote(version)
+					+ ",\"tile\":";
 				setStatus(Status.SUCCESS_OK);
-				return new JsonRepresentation(result);
+				return new OutputRepresentation(MediaType.APPLICATION_JSON) {
+					@Override
+					public void write (OutputStream outputStream) throws IOException {
+						OutputStream output = new BufferedOutputStream(outputStream);
+						output.write(header.getBytes(UTF8));
+						if (!_service.writeTileObject(layer, index, tileSet, decodedQueryParams, output)) {
+							output.write("null".getBytes(UTF8));
+						}
+						output.write('}');
+						output.flush();
+					}
+				};
 
 			} else {
 				setStatus(Status.SERVER_ERROR_INTERNAL);
@@ -25,12 +25,30 @@
 package com.oculusinfo.tile.rest.tile;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
 
 import org.json.JSONObject;
 
 import com.oculusinfo.binning.TileIndex;
 
 public interface TileService {
+	/**
+	 * Receives the tiles of a batch request as each becomes available.
+	 */
+	public interface TileBatchListener {
+		/**
+		 * Called once for each requested tile of each requested layer, always
+		 * on the thread that made the batch request.
+		 *
+		 * @param layer The layer of the tile
+		 * @param index The index of the tile, as requested
+		 * @param image The encoded rendered image
+		 */
+		public void onTileRendered( String layer, TileIndex index, byte[] image ) throws IOException;
+	}
+
 	/**
 	 * TMS tile request.
 	 *
@@ -43,13 +61,50 @@ public interface TileService {
 	public BufferedImage getTileImage( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query );
 
 	/**
-	 * TMS raw tile data request.
+	 * TMS tile request, returning the rendered image already encoded.
+	 * Encoded images may be served from a cache, in which case no rendering
+	 * happens at all.
+	 *
+	 * @param layer - The layer for which to get an image
+	 * @param index The index of the desired tile
+	 * @param tileSet A set of other tiles which will be wanted along with this
+	 *            one
+	 * @param format The ImageIO name of the format in which to encode the
+	 *            image ("png" or "jpeg")
+	 * @return The encoded rendered image.
+	 */
+	public byte[] getTileImageBytes( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query, String format ) throws IOException;
+
+	/**
+	 * TMS raw tile data request. The tile is read, transformed by the layer's
+	 * tile transformer, and written to the stream as JSON, without building
+	 * an intermediate JSON object.
 	 *
 	 * @param layer - The layer for which to get tile data
 	 * @param index The index of the desired tile
 	 * @param tileSet A set of other tiles which will be wanted along with this
 	 *            one
-	 * @return The raw data for the indicated tile
+	 * @param stream The stream to which to write the tile's JSON
+	 * @return True if the tile was written; false if there was no tile to
+	 *         write, in which case nothing was written
+	 */
+	public boolean writeTileObject( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query,
+	                                OutputStream stream ) throws IOException;
+
+	/**
+	 * Batched TMS tile request, for a whole viewport of tiles across one or
+	 * more layers. Each layer's configuration and metadata are resolved once,
+	 * and its tiles are read with one bulk read and rendered in parallel.
+	 * Tiles are handed to the listener in the order they finish, not the
+	 * order requested; tiles without data are blank, as with
+	 * {@link #getTileImageBytes}.
+	 *
+	 * @param layers The layers for which to get images
+	 * @param indices The indices of the desired tiles, in each layer
+	 * @param format The ImageIO name of the format in which to encode the
+	 *            images ("png" or "jpeg")
+	 * @param listener The recipient of the encoded images
 	 */
-	public JSONObject getTileObject( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query );
+	public void getTileImageBatch( List<String> layers, List<TileIndex> indices, JSONObject query, String format,
+	                               TileBatchListener listener ) throws IOException;
 }
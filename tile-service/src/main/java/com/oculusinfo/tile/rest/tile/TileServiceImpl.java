@@ -26,41 +26,147 @@ package com.oculusinfo.tile.rest.tile;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.SubTileDataView;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.serialization.GenericAvroSerializer;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.binning.metadata.PyramidMetaData;
-import com.oculusinfo.binning.util.AvroJSONConverter;
 import com.oculusinfo.binning.util.TileIOUtils;
 import com.oculusinfo.factory.ConfigurationException;
+import com.oculusinfo.factory.providers.FactoryProvider;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.transformations.combine.TileCombiner;
 import com.oculusinfo.tile.rendering.transformations.tile.TileTransformer;
+import com.oculusinfo.tile.init.providers.CachingLayerConfigurationProvider;
 import com.oculusinfo.tile.rest.layer.LayerService;
-import org.json.JSONException;
+import com.oculusinfo.tile.rest.tile.caching.CachingPyramidIO;
+import com.oculusinfo.tile.rest.tile.caching.CachingPyramidIO.LayerDataChangedListener;
+import com.oculusinfo.tile.rest.tile.caching.RenderedTileCache;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 @Singleton
 public class TileServiceImpl implements TileService {
 	private static final Logger LOGGER = LoggerFactory.getLogger( TileServiceImpl.class );
 	private static final Color COLOR_BLANK = new Color( 255, 255, 255, 0 );
+	private static final long MB = 1024L * 1024L;
+	private static final long DEFAULT_IMAGE_CACHE_SIZE = 64L * MB;
 
 	private LayerService _layerService;
+	private RenderedTileCache _imageCache;
+	// Created on the first batch request, so that its size can be set at
+	// startup; guarded by this
+	private int _batchThreads;
+	private ExecutorService _batchExecutor;
 
 	@Inject
-	public TileServiceImpl( LayerService layerService ) {
+	public TileServiceImpl( LayerService layerService, FactoryProvider<LayerConfiguration> layerConfigProvider ) {
 		_layerService = layerService;
+		_imageCache = new RenderedTileCache( DEFAULT_IMAGE_CACHE_SIZE );
+		_batchThreads = Runtime.getRuntime().availableProcessors();
+		_batchExecutor = null;
+
+		if ( layerConfigProvider instanceof CachingLayerConfigurationProvider ) {
+			CachingLayerConfigurationProvider caching = (CachingLayerConfigurationProvider) layerConfigProvider;
+			caching.addLayerListener( new LayerDataChangedListener() {
+				public void onLayerDataChanged( String pyramidId ) {
+					// Newly read data only matters to rendered images if it
+					// changes the layer's metadata, which is checked on every
+					// render (see RenderedTileCache.updateMetaData).
+				}
+				public void onLayerDataInvalidated( String pyramidId ) {
+					RenderedTileCache imageCache = _imageCache;
+					if ( null != imageCache ) {
+						for ( String layerId: _layerService.getLayerIdsForData( pyramidId ) ) {
+							imageCache.invalidateLayer( layerId );
+						}
+					}
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Set the maximum total size of the rendered images kept in memory.
+	 *
+	 * @param sizeInMB The size of the rendered image cache, in megabytes; 0
+	 *            turns off image caching.
+	 */
+	@Inject(optional=true)
+	public void setImageCacheSize( @Named("com.oculusinfo.tile.image.cache.size") int sizeInMB ) {
+		_imageCache = (sizeInMB > 0) ? new RenderedTileCache( sizeInMB * MB ) : null;
+	}
+
+	/**
+	 * Set the number of threads used to render the tiles of batch requests.
+	 * These threads are shared by all batch requests, so can only be set at
+	 * startup, before the first batch request.
+	 *
+	 * @param threads The number of rendering threads; 0 or less to use one
+	 *            per available processor.
+	 * @throws IllegalStateException if a batch request has already been made
+	 */
+	@Inject(optional=true)
+	public synchronized void setBatchRenderThreads( @Named("com.oculusinfo.tile.batch.threads") int threads ) {
+		if ( null != _batchExecutor ) {
+			throw new IllegalStateException( "Batch render threads can't be changed once batch requests have started" );
+		}
+		_batchThreads = ( threads <= 0 ) ? Runtime.getRuntime().availableProcessors() : threads;
+	}
+
+	private synchronized ExecutorService getBatchExecutor() {
+		if ( null == _batchExecutor ) {
+			_batchExecutor = createBatchExecutor( _batchThreads );
+		}
+		return _batchExecutor;
+	}
+
+	private static ExecutorService createBatchExecutor( int threads ) {
+		return Executors.newFixedThreadPool( threads, new ThreadFactory() {
+			private final AtomicInteger _count = new AtomicInteger( 0 );
+			@Override
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "tile-batch-renderer-" + _count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+	}
+
+	/**
+	 * Get the cache of rendered images, or null if image caching is off.
+	 */
+	public RenderedTileCache getImageCache() {
+		return _imageCache;
 	}
 
 	/* (non-Javadoc)
@@ -74,43 +180,399 @@ public class TileServiceImpl implements TileService {
 		LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
 
 		try {
-			// set level extrema
-			PyramidMetaData metadata = _layerService.getMetaData( layer );
-			String minimum = metadata.getCustomMetaData( "" + index.getLevel(), "minimum" );
-			String maximum = metadata.getCustomMetaData( "" + index.getLevel(), "maximum" );
-			config.setLevelProperties( index, minimum, maximum );
-			// produce the tile renderer from the configuration
-			TileDataImageRenderer<?> tileRenderer = config.produce( TileDataImageRenderer.class );
-			bi = renderTileImage( config, layer, index, tileSet, tileRenderer );
-
-		} catch ( ConfigurationException e ) {
+			try {
+				setLevelProperties( config, layer, index );
+				bi = renderTileImage( config, layer, index, tileSet );
+			} catch ( Exception e ) {
+				logRenderingError( e, layer, index );
+			}
+
+			// always return a blank tile if there is no data
+			if ( bi == null ) {
+				bi = getBlankImage( config );
+			}
+			return bi;
+		} finally {
+			_layerService.releaseLayerConfiguration( config );
+		}
+	}
+
+	@Override
+	public byte[] getTileImageBytes( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query, String format ) throws IOException {
+		RenderedTileCache imageCache = _imageCache;
+		BufferedImage bi = null;
+		String configHash = null;
+
+		// get layer configuration
+		LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
+
+		try {
+			try {
+				PyramidMetaData metadata = setLevelProperties( config, layer, index );
+				if ( null != imageCache ) {
+					// The rendering hash covers the level extrema set above, as
+					// well as all request parameters. Other changes to the
+					// layer's metadata drop its images here, and rewritten tiles
+					// drop them through the data change listener.
+					imageCache.updateMetaData( layer, metadata.toString() );
+					configHash = config.getRenderingHash();
+					if ( null != configHash ) {
+						byte[] cached = imageCache.get( layer, index, format, configHash );
+						if ( null != cached ) {
+							return cached;
+						}
+					}
+				}
+				bi = renderTileImage( config, layer, index, tileSet );
+			} catch ( Exception e ) {
+				logRenderingError( e, layer, index );
+				// Don't cache failures; they may be transient.
+				configHash = null;
+			}
+
+			// always return a blank tile if there is no data
+			if ( bi == null ) {
+				bi = getBlankImage( config );
+				// Don't cache blanks either; the data may not have arrived yet.
+				configHash = null;
+			}
+		} finally {
+			_layerService.releaseLayerConfiguration( config );
+		}
+
+		byte[] encoded = encodeImage( bi, format );
+		if ( null != imageCache && null != configHash ) {
+			imageCache.put( layer, index, format, configHash, encoded );
+		}
+		return encoded;
+	}
+
+	@Override
+	public void getTileImageBatch( List<String> layers, List<TileIndex> indices, JSONObject query, String format,
+	                               TileBatchListener listener ) throws IOException {
+		CompletionService<RenderedTile> renders = new ExecutorCompletionService<>( getBatchExecutor() );
+		List<Future<RenderedTile>> pending = new ArrayList<>();
+		List<LayerBatch> batches = new ArrayList<>();
+		try {
+			// Resolve every layer first, so the tiles of all of them can be
+			// read together
+			for ( String layer: layers ) {
+				batches.add( prepareLayerBatch( layer, indices, query, format, listener ) );
+			}
+			prefetchTiles( batches );
+			for ( LayerBatch batch: batches ) {
+				pending.addAll( submitLayerBatch( batch, renders ) );
+			}
+			for ( int i = 0; i < pending.size(); ++i ) {
+				RenderedTile tile = renders.take().get();
+				listener.onTileRendered( tile._layer, tile._index, tile._image );
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while rendering tile batch" );
+		} catch ( ExecutionException e ) {
+			throw new IOException( "Error rendering tile batch", e.getCause() );
+		} finally {
+			// Only has an effect if we stopped early, e.g. when the client
+			// went away
+			for ( Future<RenderedTile> future: pending ) {
+				future.cancel( false );
+			}
+			for ( LayerBatch batch: batches ) {
+				batch.releaseConfiguration();
+			}
+		}
+	}
+
+	/*
+	 * The part of a tile batch that belongs to a single layer: its
+	 * configuration and metadata, resolved once for the whole batch, and the
+	 * tiles that weren't found in the image cache.
+	 */
+	private class LayerBatch {
+		final String                 _layer;
+		final JSONObject             _query;
+		final String                 _format;
+		final PyramidMetaData        _metadata;
+		final Map<TileIndex, String> _configHashes = new HashMap<>();
+		final List<TileIndex>        _toRender = new ArrayList<>();
+		LayerConfiguration           _config;
+
+		LayerBatch( String layer, JSONObject query, String format ) {
+			_layer = layer;
+			_query = query;
+			_format = format;
+			_config = _layerService.getLayerConfiguration( layer, query );
+			_metadata = _layerService.getMetaData( layer );
+		}
+
+		boolean isRenderable() {
+			return null != _config && null != _metadata;
+		}
+
+		// Layer configurations hold the per-tile level properties, so each
+		// concurrent render needs its own. The layer service pools them,
+		// building new ones only when all are in use, so handing this one
+		// back as soon as possible lets the first render reuse it.
+		void releaseConfiguration() {
+			if ( null != _config ) {
+				_layerService.releaseLayerConfiguration( _config );
+				_config = null;
+			}
+		}
+	}
+
+	/*
+	 * Resolve the configuration and metadata of a layer once for the whole
+	 * batch, send any tiles found in the image cache straight to the
+	 * listener, and note the rest as still to be rendered.
+	 */
+	private LayerBatch prepareLayerBatch( String layer, List<TileIndex> indices, JSONObject query, String format,
+	                                      TileBatchListener listener ) throws IOException {
+		LayerBatch batch = new LayerBatch( layer, query, format );
+		RenderedTileCache imageCache = _imageCache;
+
+		if ( !batch.isRenderable() ) {
+			LOGGER.warn( "No configuration or metadata available for layer " + layer + "; returning blank tiles" );
+			batch._toRender.addAll( indices );
+		} else {
+			if ( null != imageCache ) {
+				imageCache.updateMetaData( layer, batch._metadata.toString() );
+			}
+			for ( TileIndex index: indices ) {
+				if ( null != imageCache ) {
+					setLevelProperties( batch._config, batch._metadata, index );
+					String configHash = batch._config.getRenderingHash();
+					if ( null != configHash ) {
+						byte[] cached = imageCache.get( layer, index, format, configHash );
+						if ( null != cached ) {
+							listener.onTileRendered( layer, index, cached );
+							continue;
+						}
+						batch._configHashes.put( index, configHash );
+					}
+				}
+				batch._toRender.add( index );
+			}
+		}
+		return batch;
+	}
+
+	/*
+	 * Read the tiles still to be rendered of every layer in a batch into the
+	 * tile cache, with one grouped read across all the layers that the cache
+	 * can read together, rather than one read per layer. Layers this can't
+	 * handle are read individually when they are rendered.
+	 */
+	private void prefetchTiles( List<LayerBatch> batches ) {
+		Map<CachingPyramidIO, List<CachingPyramidIO.TileRequest<?>>> requests = new LinkedHashMap<>();
+		for ( LayerBatch batch: batches ) {
+			if ( !batch.isRenderable() || batch._toRender.isEmpty() ) continue;
+			try {
+				// Coarse tiles may each come from a different level
+				int coarseness = batch._config.getPropertyValue( LayerConfiguration.COARSENESS );
+				PyramidIO pyramidIO = batch._config.produce( PyramidIO.class );
+				if ( coarseness > 1 || !( pyramidIO instanceof CachingPyramidIO ) ) continue;
+
+				String dataId = batch._config.getPropertyValue( LayerConfiguration.DATA_ID );
+				TileSerializer<?> serializer = batch._config.produce( TileSerializer.class );
+				List<CachingPyramidIO.TileRequest<?>> ioRequests = requests.get( pyramidIO );
+				if ( null == ioRequests ) {
+					ioRequests = new ArrayList<>();
+					requests.put( (CachingPyramidIO) pyramidIO, ioRequests );
+				}
+				ioRequests.add( createTileRequest( dataId, serializer, batch._toRender ) );
+			} catch ( ConfigurationException e ) {
+				LOGGER.warn( "Error preparing tile batch read for layer " + batch._layer, e );
+			}
+		}
+		for ( Map.Entry<CachingPyramidIO, List<CachingPyramidIO.TileRequest<?>>> entry: requests.entrySet() ) {
+			try {
+				entry.getKey().requestTiles( entry.getValue() );
+			} catch ( IOException e ) {
+				LOGGER.warn( "Error reading tile batch", e );
+			}
+		}
+	}
+
+	private static <T> CachingPyramidIO.TileRequest<T> createTileRequest( String dataId, TileSerializer<T> serializer,
+	                                                                      List<TileIndex> indices ) {
+		return new CachingPyramidIO.TileRequest<>( dataId, serializer, indices );
+	}
+
+	/*
+	 * Read the tiles of a layer that weren't in the image cache - from the
+	 * tile cache, if they were prefetched - and submit them for rendering,
+	 * each with its own configuration.
+	 */
+	private List<Future<RenderedTile>> submitLayerBatch( LayerBatch batch,
+	                                                     CompletionService<RenderedTile> renders ) {
+		final String layer = batch._layer;
+		final JSONObject query = batch._query;
+		final String format = batch._format;
+		final PyramidMetaData metadata = batch._metadata;
+		final Map<TileIndex, String> configHashes = batch._configHashes;
+		final RenderedTileCache imageCache = _imageCache;
+		List<TileIndex> toRender = batch._toRender;
+
+		Map<TileIndex, ? extends TileData<?>> readData = Collections.emptyMap();
+		if ( batch.isRenderable() && !toRender.isEmpty() ) {
+			try {
+				readData = readTileBatch( batch._config, toRender );
+			} catch ( Exception e ) {
+				LOGGER.warn( "Error reading tile batch for layer " + layer, e );
+			}
+		}
+		final Map<TileIndex, ? extends TileData<?>> data = readData;
+		final boolean configured = ( null != batch._config );
+		batch.releaseConfiguration();
+
+		List<Future<RenderedTile>> futures = new ArrayList<>( toRender.size() );
+		for ( final TileIndex index: toRender ) {
+			futures.add( renders.submit( new Callable<RenderedTile>() {
+				@Override
+				public RenderedTile call() throws Exception {
+					LayerConfiguration renderConfig = null;
+					if ( configured ) {
+						renderConfig = _layerService.getLayerConfiguration( layer, query );
+					}
+					try {
+						String configHash = configHashes.get( index );
+						BufferedImage bi = null;
+						if ( null != renderConfig && null != metadata ) {
+							try {
+								// The batch's tiles have all been read by now,
+								// so this only has this tile to prepare
+								renderConfig.prepareForRendering( layer, index, Collections.singleton( index ) );
+								setLevelProperties( renderConfig, metadata, index );
+								bi = renderTileData( renderConfig, index, data.get( index ) );
+							} catch ( Exception e ) {
+								logRenderingError( e, layer, index );
+								configHash = null;
+							}
+						}
+						if ( null == bi ) {
+							bi = getBlankImage( renderConfig );
+							// Don't cache blanks; the data may not have arrived yet
+							configHash = null;
+						}
+						byte[] encoded = encodeImage( bi, format );
+						if ( null != imageCache && null != configHash ) {
+							imageCache.put( layer, index, format, configHash, encoded );
+						}
+						return new RenderedTile( layer, index, encoded );
+					} finally {
+						_layerService.releaseLayerConfiguration( renderConfig );
+					}
+				}
+			} ) );
+		}
+		return futures;
+	}
+
+	private <T> Map<TileIndex, TileData<T>> readTileBatch( LayerConfiguration config, List<TileIndex> indices ) throws Exception {
+		String dataId = config.getPropertyValue( LayerConfiguration.DATA_ID );
+		PyramidIO pyramidIO = config.produce( PyramidIO.class );
+		@SuppressWarnings("unchecked")
+		TileSerializer<T> serializer = config.produce( TileSerializer.class );
+		int coarseness = config.getPropertyValue( LayerConfiguration.COARSENESS );
+		JSONObject tileProperties = config.getPropertyValue( LayerConfiguration.FILTER_PROPS );
+		return TileIOUtils.tileDataForIndices( indices, dataId, serializer, pyramidIO, coarseness, tileProperties );
+	}
+
+	private <T> BufferedImage renderTileData( LayerConfiguration config, TileIndex index, TileData<T> data ) throws Exception {
+		@SuppressWarnings("unchecked")
+		TileDataImageRenderer<T> renderer = config.produce( TileDataImageRenderer.class );
+		return renderTileData( config, index, data, renderer );
+	}
+
+	private static class RenderedTile {
+		final String    _layer;
+		final TileIndex _index;
+		final byte[]    _image;
+		RenderedTile( String layer, TileIndex index, byte[] image ) {
+			_layer = layer;
+			_index = index;
+			_image = image;
+		}
+	}
+
+	/**
+	 * Encode an image in the given format. Only png keeps transparency; for
+	 * other formats, the image is drawn onto a white background first.
+	 *
+	 * @param image The image to encode
+	 * @param format The ImageIO name of the format to use
+	 * @return The encoded image
+	 */
+	public static byte[] encodeImage( BufferedImage image, String format ) throws IOException {
+		if ( !"png".equalsIgnoreCase( format ) && image.getColorModel().hasAlpha() ) {
+			BufferedImage opaque = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB );
+			Graphics2D g = opaque.createGraphics();
+			g.drawImage( image, 0, 0, Color.WHITE, null );
+			g.dispose();
+			image = opaque;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		if ( !ImageIO.write( image, format, baos ) ) {
+			throw new IOException( "No image writer available for format " + format );
+		}
+		return baos.toByteArray();
+	}
+
+	// Set the tile coordinates and level extrema into the configuration
+	private PyramidMetaData setLevelProperties( LayerConfiguration config, String layer, TileIndex index ) throws ConfigurationException {
+		PyramidMetaData metadata = _layerService.getMetaData( layer );
+		if ( null == metadata ) {
+			throw new ConfigurationException( "No metadata available for layer " + layer );
+		}
+		setLevelProperties( config, metadata, index );
+		return metadata;
+	}
+
+	private void setLevelProperties( LayerConfiguration config, PyramidMetaData metadata, TileIndex index ) {
+		String minimum = metadata.getCustomMetaData( "" + index.getLevel(), "minimum" );
+		String maximum = metadata.getCustomMetaData( "" + index.getLevel(), "maximum" );
+		config.setLevelProperties( index, minimum, maximum );
+	}
+
+	private void logRenderingError( Exception e, String layer, TileIndex index ) {
+		if ( e instanceof ConfigurationException ) {
 			LOGGER.warn( "No renderer specified for tile request. " + e.getMessage() );
-		} catch ( IllegalArgumentException e ) {
+		} else if ( e instanceof IllegalArgumentException ) {
 			LOGGER.info( "Renderer configuration not recognized." );
-		} catch ( Exception e ) {
+		} else {
 			LOGGER.warn( "Tile is corrupt: " + layer + ":" + index );
 			LOGGER.warn( "Tile error: ", e );
 		}
+	}
 
-		// always return a blank tile if there is no data
-		if ( bi == null ) {
-			int outputWidth = 256;
-			int outputHeight = 256;
+	private BufferedImage getBlankImage( LayerConfiguration config ) {
+		int outputWidth = 256;
+		int outputHeight = 256;
+		if ( null != config ) {
 			try {
 				outputWidth = config.getPropertyValue(LayerConfiguration.OUTPUT_WIDTH);
 				outputHeight = config.getPropertyValue(LayerConfiguration.OUTPUT_HEIGHT);
 			} catch (ConfigurationException e) {
 				LOGGER.warn("Error reading image height or width; defaulting to "+outputWidth+" x "+outputHeight, e);
 			}
-			bi = new BufferedImage( outputWidth, outputHeight, BufferedImage.TYPE_INT_ARGB );
-			Graphics2D g = bi.createGraphics();
-			g.setColor( COLOR_BLANK );
-			g.fillRect( 0, 0, 256, 256 );
-			g.dispose();
 		}
+		BufferedImage bi = new BufferedImage( outputWidth, outputHeight, BufferedImage.TYPE_INT_ARGB );
+		Graphics2D g = bi.createGraphics();
+		g.setColor( COLOR_BLANK );
+		g.fillRect( 0, 0, 256, 256 );
+		g.dispose();
 		return bi;
 	}
 
+	private BufferedImage renderTileImage( LayerConfiguration config, String layer,
+	                                       TileIndex index, Iterable<TileIndex> tileSet ) throws Exception {
+		// produce the tile renderer from the configuration
+		TileDataImageRenderer<?> tileRenderer = config.produce( TileDataImageRenderer.class );
+		return renderTileImage( config, layer, index, tileSet, tileRenderer );
+	}
+
 	private <T> BufferedImage renderTileImage( LayerConfiguration config, String layer,
 											   TileIndex index, Iterable<TileIndex> tileSet,
 											   TileDataImageRenderer<T> renderer ) throws ConfigurationException, IOException, Exception {
@@ -136,71 +598,113 @@ public class TileServiceImpl implements TileService {
 		}
 
 		int coarseness = config.getPropertyValue( LayerConfiguration.COARSENESS );
-
-		@SuppressWarnings("unchecked")
-		TileTransformer<T> tileTransformer = config.produce(TileTransformer.class);
-		TileCombiner<T> tileCombiner = config.produce(TileCombiner.class);
-
 		JSONObject tileProperties = config.getPropertyValue(LayerConfiguration.FILTER_PROPS);
 
 		TileData<T> data = TileIOUtils.tileDataForIndex(index, dataId, serializer, pyramidIO, coarseness, tileProperties);
 
+		return renderTileData( config, index, data, renderer );
+	}
+
+	// Combine, transform, and render already-read tile data
+	private <T> BufferedImage renderTileData( LayerConfiguration config, TileIndex index,
+	                                          TileData<T> data, TileDataImageRenderer<T> renderer ) throws Exception {
 		if (data == null) {
 			return null;
 		}
 
+		int coarseness = config.getPropertyValue( LayerConfiguration.COARSENESS );
+
+		@SuppressWarnings("unchecked")
+		TileTransformer<T> tileTransformer = config.produce(TileTransformer.class);
+		TileCombiner<T> tileCombiner = config.produce(TileCombiner.class);
+
+		JSONObject tileProperties = config.getPropertyValue(LayerConfiguration.FILTER_PROPS);
+
 		TileData<T> modifiedData = tileCombiner.combine(data, index, coarseness, tileProperties);
 		modifiedData = tileTransformer.transform( modifiedData );
 
 		Boolean applyAlphaRamp = config.getPropertyValue( LayerConfiguration.ALPHA_RAMP );
-		if ( data != null ) {
-			return renderer.render( modifiedData, applyAlphaRamp ? data : null, config );
-		}
-		return null;
+		return renderer.render( modifiedData, applyAlphaRamp ? data : null, config );
 	}
 
 	@Override
-	public JSONObject getTileObject( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query ) {
+	public boolean writeTileObject( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query,
+	                                OutputStream stream ) throws IOException {
+		TransformedTile<?> tile = null;
+		// get layer configuration
+		LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
 		try {
-			// get layer configuration
-			LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
 
 			// get data source id, and produce the pyramidio and serializer
 			// these are all common points of failure in the config, so explicitly log these
 			String dataId = config.getPropertyValue( LayerConfiguration.DATA_ID );
 			if ( dataId == null ) {
 				LOGGER.error( "Could not determine data id for layer:" + layer + ", please confirm that it has been configured correctly." );
-				return null;
+				return false;
 			}
 			PyramidIO pyramidIO = config.produce( PyramidIO.class );
 			if ( dataId == null ) {
 				LOGGER.error( "Could not produce pyramidio for layer:" + layer + ", please confirm that it has been configured correctly and data is avalable." );
-				return null;
+				return false;
 			}
 			@SuppressWarnings("unchecked")
 			TileSerializer<?> serializer = config.produce( TileSerializer.class );
-			if ( serializer == null ) {
-				LOGGER.error( "Could not produce tile serializer, please confirm that it has been configured correctly." );
+			if ( !(serializer instanceof GenericAvroSerializer) ) {
+				LOGGER.error( "Could not produce an avro tile serializer, please confirm that it has been configured correctly." );
+				return false;
 			}
 
 			// prepare for rendering
 			config.prepareForRendering( layer, index, tileSet );
 
-			// pull tile data from pyramid io
-			InputStream tile = pyramidIO.getTileStream( dataId, serializer, index );
-			if ( null == tile ) {
-				return null;
-			}
-			// produce transformer, return transformed de-serialized data
-			TileTransformer<?> transformer = config.produce( TileTransformer.class );
-			JSONObject deserializedJSON = AvroJSONConverter.convert( tile );
-			return transformer.transform( deserializedJSON );
-
-		} catch ( IOException | JSONException | ConfigurationException e ) {
+			// pull tile data from pyramid io, and transform it
+			tile = readTransformedTile( config, dataId, pyramidIO, (GenericAvroSerializer<?>) serializer, index );
+		} catch ( IOException | ConfigurationException e ) {
 			LOGGER.warn( "Exception getting tile for {}", index, e );
 		} catch ( IllegalArgumentException e ) {
 			LOGGER.info( "Renderer configuration not recognized." );
+		} catch ( Exception e ) {
+			LOGGER.warn( "Exception transforming tile for {}", index, e );
+		} finally {
+			_layerService.releaseLayerConfiguration( config );
+		}
+		if ( null == tile ) {
+			return false;
+		}
+
+		// Only write once the tile is fully read, so a failure can't leave a partial tile
+		tile.write( stream );
+		return true;
+	}
+
+	private <T> TransformedTile<T> readTransformedTile( LayerConfiguration config, String dataId, PyramidIO pyramidIO,
+	                                                    GenericAvroSerializer<T> serializer, TileIndex index ) throws Exception {
+		List<TileData<T>> tiles = pyramidIO.readTiles( dataId, serializer, Collections.singleton( index ) );
+		if ( null == tiles || tiles.isEmpty() || null == tiles.get( 0 ) ) {
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		TileTransformer<T> transformer = config.produce( TileTransformer.class );
+		TileData<T> data = transformer.transform( tiles.get( 0 ) );
+		if ( null == data ) {
+			return null;
+		}
+		return new TransformedTile<>( serializer, data );
+	}
+
+	// A transformed tile, ready to be written out as JSON
+	private static class TransformedTile<T> {
+		private final GenericAvroSerializer<T> _serializer;
+		private final TileData<T> _data;
+
+		TransformedTile( GenericAvroSerializer<T> serializer, TileData<T> data ) {
+			_serializer = serializer;
+			_data = data;
+		}
+
+		void write( OutputStream stream ) throws IOException {
+			_serializer.serializeJSON( _data, stream );
 		}
-		return null;
 	}
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import com.google.common.cache.CacheStats;
+import com.google.inject.Inject;
+import com.oculusinfo.factory.providers.FactoryProvider;
+import com.oculusinfo.tile.init.providers.CachingLayerConfigurationProvider;
+import com.oculusinfo.tile.rendering.LayerConfiguration;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import java.util.Map;
+
+
+/**
+ * Reports the size and hit, miss, load, and eviction counts of the tile cache
+ * of each layer.  If the server isn't configured to cache tiles, this reports
+ * no layers.
+ */
+public class CacheStatsResource extends ServerResource {
+	private FactoryProvider<LayerConfiguration> _layerConfigurationProvider;
+
+	@Inject
+	public CacheStatsResource( FactoryProvider<LayerConfiguration> layerConfigurationProvider ) {
+		_layerConfigurationProvider = layerConfigurationProvider;
+	}
+
+	@Get
+	public Representation getCacheStats() {
+		try {
+			JSONObject layers = new JSONObject();
+			if ( _layerConfigurationProvider instanceof CachingLayerConfigurationProvider ) {
+				CachingLayerConfigurationProvider caching = (CachingLayerConfigurationProvider) _layerConfigurationProvider;
+				for ( Map.Entry<String, TileCache<?>> entry : caching.getTileCaches().entrySet() ) {
+					layers.put( entry.getKey(), getCacheStats( entry.getValue() ) );
+				}
+			}
+			JSONObject result = new JSONObject();
+			result.put( "layers", layers );
+			setStatus( Status.SUCCESS_OK );
+			return new JsonRepresentation( result );
+		} catch ( JSONException e ) {
+			throw new ResourceException( Status.SERVER_ERROR_INTERNAL, "Unable to report cache statistics", e );
+		}
+	}
+
+	private JSONObject getCacheStats( TileCache<?> cache ) throws JSONException {
+		CacheStats stats = cache.getStats();
+		JSONObject result = new JSONObject();
+		result.put( "tiles", cache.getTileCount() );
+		result.put( "bytes", cache.getSize() );
+		result.put( "maxBytes", cache.getMaximumSize() );
+		result.put( "hits", stats.hitCount() );
+		result.put( "misses", stats.missCount() );
+		result.put( "hitRate", stats.hitRate() );
+		result.put( "evictions", stats.evictionCount() );
+		result.put( "loads", stats.loadCount() );
+		result.put( "loadFailures", stats.loadExceptionCount() );
+		// In milliseconds
+		result.put( "totalLoadTime", stats.totalLoadTime() / 1000000.0 );
+		result.put( "averageLoadTime", stats.averageLoadPenalty() / 1000000.0 );
+		return result;
+	}
+}
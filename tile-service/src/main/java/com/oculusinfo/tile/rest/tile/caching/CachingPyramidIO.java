@@ -28,34 +28,52 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheStats;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.impl.HBasePyramidIO;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.ConfigurationException;
-import com.oculusinfo.tile.rest.tile.caching.TileCacheEntry.CacheRequestCallback;
 
+/**
+ * A read-only PyramidIO that keeps a cache of tiles for each layer in front
+ * of that layer's real PyramidIO.  Each layer's cache is bounded by its own
+ * quota of (estimated) bytes.  None of the read paths take a global lock.
+ */
 public class CachingPyramidIO implements PyramidIO {
 	private static final Logger LOGGER = LoggerFactory.getLogger(CachingPyramidIO.class);
 
-	private Map<String, TileCache<?>>                    _tileCaches;
-	private Map<String, PyramidIO>                       _basePyramidIOs;
+	// The default maximum size of the cache of each layer, in bytes
+	public static final long DEFAULT_LAYER_CACHE_SIZE = 64L * 1024L * 1024L;
+
+	private ConcurrentMap<String, TileCache<?>>          _tileCaches;
+	private ConcurrentMap<String, PyramidIO>             _basePyramidIOs;
+	private ConcurrentMap<String, Long>                  _cacheSizes;
 	private List<LayerDataChangedListener>               _layerListeners;
 
 	public CachingPyramidIO () {
-		_tileCaches = new HashMap<>();
-		_basePyramidIOs = new HashMap<>();
-		_layerListeners = new ArrayList<>();
+		_tileCaches = new ConcurrentHashMap<>();
+		_basePyramidIOs = new ConcurrentHashMap<>();
+		_cacheSizes = new ConcurrentHashMap<>();
+		_layerListeners = new CopyOnWriteArrayList<>();
 	}
 
 	public void addLayerListener (LayerDataChangedListener listener) {
@@ -66,36 +84,76 @@ public class CachingPyramidIO implements PyramidIO {
 		_layerListeners.remove(listener);
 	}
 
-	synchronized private PyramidIO getBasePyramidIO (String pyramidId) {
+	private PyramidIO getBasePyramidIO (String pyramidId) {
 		return _basePyramidIOs.get(pyramidId);
 	}
 
-	synchronized private <T> TileCache<T> getTileCache (String pyramidId) {
+	private <T> TileCache<T> getTileCache (String pyramidId) {
 		// We rely on configuration to make sure types match here
 		@SuppressWarnings({"rawtypes", "unchecked"})
-		TileCache<T> cache = (TileCache)_tileCaches.get(pyramidId);
+		TileCache<T> cache = (TileCache) _tileCaches.get(pyramidId);
 		if (null == cache) {
-			cache = new TileCache<>(10000, 100);
-			cache.addGlobalCallback(new GlobalCallback<T>(pyramidId));
-			_tileCaches.put(pyramidId, cache);
+			Long size = _cacheSizes.get(pyramidId);
+			cache = new TileCache<>(null == size ? DEFAULT_LAYER_CACHE_SIZE : size);
+			@SuppressWarnings({"rawtypes", "unchecked"})
+			TileCache<T> existing = (TileCache) _tileCaches.putIfAbsent(pyramidId, cache);
+			if (null != existing) cache = existing;
 		}
 		return cache;
 	}
 
-	// Using the callback mechanism in the tile cache, get a tile and hand it
-	// back synchronously.
-	//
-	// This does _not_ handle making the request; that must be done separately
-	// with RequestData.
-	private <T> TileData<T> getTileData (String pyramidId, TileIndex index) {
-		TileCache<T> cache = getTileCache(pyramidId);
+	/**
+	 * Get the hit, miss, load time, and eviction counts of the cache of each
+	 * layer
+	 *
+	 * @return Cache statistics, keyed by pyramid id
+	 */
+	public Map<String, CacheStats> getCacheStats () {
+		Map<String, CacheStats> stats = new HashMap<>();
+		for (Map.Entry<String, TileCache<?>> entry: _tileCaches.entrySet()) {
+			stats.put(entry.getKey(), entry.getValue().getStats());
+		}
+		return stats;
+	}
 
-		CacheListenerCallback<T> callback = new CacheListenerCallback<>();
-		cache.requestTile(index, callback);
+	/**
+	 * Get the caches of each layer, so their sizes and statistics can be
+	 * reported
+	 *
+	 * @return An unmodifiable view of the caches, keyed by pyramid id
+	 */
+	public Map<String, TileCache<?>> getTileCaches () {
+		return Collections.unmodifiableMap(_tileCaches);
+	}
 
-		TileData<T> tile = callback.waitForTile();
+	// Read the given tiles, from the cache if possible, and from the base
+	// pyramid IO (in a single read) if not
+	private <T> Map<TileIndex, TileData<T>> getTileData (final String pyramidId,
+	                                                    final TileSerializer<T> serializer,
+	                                                    Iterable<TileIndex> indices) throws IOException {
+		TileCache<T> cache = getTileCache(pyramidId);
+		return cache.getTiles(indices, new TileCache.TileLoader<T>() {
+			@Override
+			public List<TileData<T>> loadTiles (List<TileIndex> indices) throws IOException {
+				PyramidIO base = getBasePyramidIO(pyramidId);
+				if (null == base) {
+					throw new IOException("No base pyramid IO set up for pyramid "+pyramidId);
+				}
+				List<TileData<T>> tiles = base.readTiles(pyramidId, serializer, indices);
+				if (null != tiles && !tiles.isEmpty()) {
+					notifyDataLoaded(pyramidId);
+				}
+				return tiles;
+			}
+		});
+	}
 
-		return tile;
+	// New data may have arrived along with newly read tiles (as with
+	// on-demand and live layers), so let listeners refresh
+	private void notifyDataLoaded (String pyramidId) {
+		for (LayerDataChangedListener listener: _layerListeners) {
+			listener.onLayerDataChanged(pyramidId);
+		}
 	}
 
 
@@ -124,11 +182,20 @@ public class CachingPyramidIO implements PyramidIO {
 	 * Set up a base pyramid from which to read when we get a cache miss
 	 */
 	public void setupBasePyramidIO (String pyramidId, ConfigurableFactory<? extends PyramidIO> factory) {
+		setupBasePyramidIO(pyramidId, factory, DEFAULT_LAYER_CACHE_SIZE);
+	}
+
+	/*
+	 * Set up a base pyramid from which to read when we get a cache miss, and
+	 * the maximum size, in bytes, of the cache for that pyramid
+	 */
+	public void setupBasePyramidIO (String pyramidId, ConfigurableFactory<? extends PyramidIO> factory, long cacheSize) {
 		if (!_basePyramidIOs.containsKey(pyramidId)) {
 			synchronized (_basePyramidIOs) {
 				if (!_basePyramidIOs.containsKey(pyramidId)) {
 					try {
 						PyramidIO basePyramidIO = factory.produce(PyramidIO.class);
+						_cacheSizes.put(pyramidId, cacheSize);
 						_basePyramidIOs.put(pyramidId, basePyramidIO);
 					} catch (ConfigurationException e) {
 						LOGGER.warn("Error creating base pyramid IO", e);
@@ -142,16 +209,17 @@ public class CachingPyramidIO implements PyramidIO {
 	@Override
 	public void initializeForRead (String pyramidId, int width, int height,
 	                               Properties dataDescription) {
-		if (!_basePyramidIOs.containsKey(pyramidId)) {
+		PyramidIO base = getBasePyramidIO(pyramidId);
+		if (null == base) {
 			LOGGER.info("Attempt to initialize unknown pyramid" + pyramidId + "'.");
 		} else {
-			_basePyramidIOs.get(pyramidId).initializeForRead(pyramidId, width, height, dataDescription);
+			base.initializeForRead(pyramidId, width, height, dataDescription);
 		}
 	}
 
 	/**
-	 * Request a set of tiles, retrieving some of them immediately, and setting
-	 * the rest up for eventual retrieval
+	 * Request a set of tiles, so that any not yet in the cache are read (all
+	 * together) and cached, ready for when they are actually needed.
 	 *
 	 * @param pyramidId the pyramid io
 	 * @param serializer the serializer
@@ -161,26 +229,144 @@ public class CachingPyramidIO implements PyramidIO {
 	public <T> void requestTiles (String pyramidId,
 	                              TileSerializer<T> serializer,
 	                              Iterable<TileIndex> indices) throws IOException {
-		TileCache<T> cache = getTileCache(pyramidId);
+		getTileData(pyramidId, serializer, indices);
+	}
 
-		synchronized (cache) {
-			// First, request and retrieve all tiles needed over the long term
-			// Only request those we don't already have
-			List<TileIndex> newIndices = new ArrayList<>(cache.getNewRequests(indices));
-			if (newIndices.isEmpty())
-				return;
+	/**
+	 * Request the tiles of several pyramids at once, so that any not yet in
+	 * the cache are read and cached, ready for when they are actually needed.
+	 *
+	 * Missing tiles of pyramids that share an HBase pyramid IO are all read
+	 * together, in one grouped read (see
+	 * {@link HBasePyramidIO#readTiles(List)}); other pyramids are read one at
+	 * a time. Tiles that fail to read are left out of the cache, so they are
+	 * tried again when they are actually needed.
+	 *
+	 * @param requests The tiles wanted, one request per pyramid
+	 * @throws IOException
+	 */
+	public void requestTiles (List<? extends TileRequest<?>> requests) throws IOException {
+		Map<HBasePyramidIO, List<CacheFill<?>>> hbaseFills = new LinkedHashMap<>();
+		for (TileRequest<?> request: requests) {
+			PyramidIO base = getBasePyramidIO(request.getPyramidId());
+			if (null == base) {
+				// Leave this to its individual read to report
+				continue;
+			} else if (base instanceof HBasePyramidIO) {
+				CacheFill<?> fill = createCacheFill(request);
+				if (null != fill) {
+					List<CacheFill<?>> fills = hbaseFills.get(base);
+					if (null == fills) {
+						fills = new ArrayList<>();
+						hbaseFills.put((HBasePyramidIO) base, fills);
+					}
+					fills.add(fill);
+				}
+			} else {
+				requestTiles(request);
+			}
+		}
 
-			PyramidIO base = getBasePyramidIO(pyramidId);
-			List<TileData<T>> tiles = base.readTiles(pyramidId, serializer, newIndices);
+		for (Map.Entry<HBasePyramidIO, List<CacheFill<?>>> entry: hbaseFills.entrySet()) {
+			List<HBasePyramidIO.TileReadRequest<?>> reads = new ArrayList<>();
+			for (CacheFill<?> fill: entry.getValue()) {
+				reads.add(fill.getReadRequest());
+			}
+			try {
+				entry.getKey().readTiles(reads);
+			} catch (IOException e) {
+				// Leave these tiles for their individual reads to report
+				LOGGER.warn("Error reading tiles of "+reads.size()+" pyramids", e);
+				continue;
+			}
+			for (CacheFill<?> fill: entry.getValue()) {
+				fill.finish();
+			}
+		}
+	}
+
+	private <T> void requestTiles (TileRequest<T> request) throws IOException {
+		getTileData(request.getPyramidId(), request.getSerializer(), request.getIndices());
+	}
 
-			// Cache recieved tiles...
-			for (TileData<T> tile: tiles) {
-				cache.provideTile(tile);
-				newIndices.remove(tile.getDefinition());
+	private <T> CacheFill<T> createCacheFill (TileRequest<T> request) {
+		TileCache<T> cache = getTileCache(request.getPyramidId());
+		List<TileIndex> misses = cache.getMissingTiles(request.getIndices());
+		if (misses.isEmpty()) return null;
+		return new CacheFill<>(request, cache, misses);
+	}
+
+	/**
+	 * A request for some of the tiles of one pyramid
+	 */
+	public static class TileRequest<T> {
+		private String            _pyramidId;
+		private TileSerializer<T> _serializer;
+		private List<TileIndex>   _indices;
+
+		public TileRequest (String pyramidId, TileSerializer<T> serializer, List<TileIndex> indices) {
+			_pyramidId = pyramidId;
+			_serializer = serializer;
+			_indices = indices;
+		}
+
+		public String getPyramidId () {return _pyramidId;}
+		public TileSerializer<T> getSerializer () {return _serializer;}
+		public List<TileIndex> getIndices () {return _indices;}
+	}
+
+	/*
+	 * Collects the tiles of one pyramid from a grouped HBase read, and puts
+	 * them in the cache once the read is done.
+	 */
+	private class CacheFill<T> implements HBasePyramidIO.TileReadListener<T> {
+		private String          _pyramidId;
+		private TileCache<T>    _cache;
+		private List<TileIndex> _misses;
+		private HBasePyramidIO.TileReadRequest<T> _readRequest;
+		// Guarded by this
+		private List<TileData<T>> _tiles;
+		private Set<TileIndex>    _failed;
+		private Exception         _failure;
+
+		CacheFill (TileRequest<T> request, TileCache<T> cache, List<TileIndex> misses) {
+			_pyramidId = request.getPyramidId();
+			_cache = cache;
+			_misses = misses;
+			_readRequest = new HBasePyramidIO.TileReadRequest<>(_pyramidId, request.getSerializer(), misses, this);
+			_tiles = new ArrayList<>();
+			_failed = new HashSet<>();
+			_failure = null;
+		}
+
+		HBasePyramidIO.TileReadRequest<T> getReadRequest () {
+			return _readRequest;
+		}
+
+		@Override
+		public synchronized void tileRead (String pyramidId, TileIndex index, TileData<T> tile) {
+			if (null != tile) {
+				_tiles.add(tile);
 			}
-			// And the fact that some were empty
-			for (TileIndex index: newIndices) {
-				cache.provideEmptyTile(index);
+		}
+
+		@Override
+		public synchronized void tileFailed (String pyramidId, TileIndex index, Exception cause) {
+			_failed.add(index);
+			if (null == _failure) {
+				_failure = cause;
+			}
+		}
+
+		synchronized void finish () {
+			List<TileIndex> read = new ArrayList<>(_misses);
+			read.removeAll(_failed);
+			_cache.provideTiles(read, _tiles);
+			if (!_tiles.isEmpty()) {
+				notifyDataLoaded(_pyramidId);
+			}
+			if (null != _failure) {
+				LOGGER.warn("Error reading "+_failed.size()+" tiles of pyramid "+_pyramidId, _failure);
 			}
 		}
 	}
@@ -189,20 +375,15 @@ public class CachingPyramidIO implements PyramidIO {
 	public <T> List<TileData<T>> readTiles (String pyramidId,
 	                                        TileSerializer<T> serializer,
 	                                        Iterable<TileIndex> indices) throws IOException {
-		TileCache<T> cache = getTileCache(pyramidId);
-		synchronized (cache) {
-			List<TileData<T>> tiles = new ArrayList<>();
-			for (TileIndex index: indices) {
-				// We rely on configuration to make sure types match here
-				@SuppressWarnings({"unchecked", "rawtypes"})
-				TileData<T> tile = (TileData) getTileData(pyramidId, index);
-
-				if (null != tile)
-					tiles.add(tile);
-			}
+		Map<TileIndex, TileData<T>> found = getTileData(pyramidId, serializer, indices);
 
-			return(tiles);
+		List<TileData<T>> tiles = new ArrayList<>();
+		for (TileIndex index: indices) {
+			TileData<T> tile = found.get(index);
+			if (null != tile)
+				tiles.add(tile);
 		}
+		return tiles;
 	}
 
 	@Override
@@ -219,7 +400,7 @@ public class CachingPyramidIO implements PyramidIO {
 	                                      TileIndex index) throws IOException {
 		// We cache tiles, not streams, so we need to serialize the tile into a
 		// stream, in order to return a stream.
-		TileData<T> tile = getTileData(pyramidId, index);
+		TileData<T> tile = getTileData(pyramidId, serializer, Collections.singleton(index)).get(index);
 
 		if (null == tile) {
 			return null;
@@ -242,68 +423,49 @@ public class CachingPyramidIO implements PyramidIO {
 		throw new IOException("removeTiles not currently supported for CachingPyramidIO");
 	}
 
-	private class CacheListenerCallback<T> implements CacheRequestCallback<T> {
-		private TileData<T> _tile;
-		private boolean     _waiting;
-		private boolean     _notified;
-
-
-
-		public CacheListenerCallback () {
-			_tile = null;
-			_waiting = false;
-			_notified = false;
+	/**
+	 * Notify this pyramid IO that some tiles of a layer have been rewritten
+	 * (for instance, by a streaming tile generator), so that they are dropped
+	 * from the cache and re-read the next time they are requested.
+	 *
+	 * @param pyramidId The layer whose tiles have changed
+	 * @param indices The tiles that have changed
+	 */
+	public void invalidateTiles (String pyramidId, Iterable<TileIndex> indices) {
+		TileCache<?> cache = _tileCaches.get(pyramidId);
+		if (null != cache) {
+			cache.invalidate(indices);
 		}
-
-		synchronized public TileData<T> waitForTile () {
-				if (!_notified)
-					try {
-						_waiting = true;
-						wait(1000);
-					} catch (InterruptedException e) {
-						LOGGER.warn("Error waiting for return for tile.", e);
-						return null;
-					} finally {
-						_waiting = false;
-					}
-
-				return _tile;
-			}
-
-		@Override
-		synchronized public boolean onTileReceived (TileIndex index, TileData<T> tile) {
-				_tile = tile;
-				_notified = true;
-				if (_waiting)
-					this.notify();
-				return true;
-			}
-
-		@Override
-		public void onTileAbandoned (TileIndex index) {
-			if (_waiting)
-				this.notify();
+		for (LayerDataChangedListener listener: _layerListeners) {
+			listener.onLayerDataChanged(pyramidId);
+			listener.onLayerDataInvalidated(pyramidId);
 		}
 	}
 
-	private class GlobalCallback<T> implements TileCacheEntry.CacheRequestCallback<T> {
-		private String _layer;
-		GlobalCallback (String layer) {
-			_layer = layer;
-		}
-		@Override
-		public boolean onTileReceived (TileIndex index, TileData<T> tile) {
-			for (LayerDataChangedListener listener: _layerListeners) {
-				listener.onLayerDataChanged(_layer);
-			}
-			return false;
-		}
-
-		@Override
-		public void onTileAbandoned (TileIndex index) {
-		}
-	}
+	/**
+	 * A listener to be told when the data of a pyramid may have changed.
+	 *
+	 * In both methods, it is up to the listener to work out which layers show
+	 * the data of the given pyramid.
+	 */
 	public interface LayerDataChangedListener {
-		public void onLayerDataChanged (String layer);
+		/**
+		 * Called when new data has been read for a pyramid, or its tiles have
+		 * been invalidated, so that anything derived from its metadata should
+		 * be refreshed.
+		 *
+		 * @param pyramidId The id of the pyramid whose data has changed
+		 */
+		public void onLayerDataChanged (String pyramidId);
+
+		/**
+		 * Called only when tiles of a pyramid are known to have been
+		 * rewritten (see {@link CachingPyramidIO#invalidateTiles}), so that
+		 * anything rendered from them is out of date.
+		 *
+		 * @param pyramidId The id of the pyramid whose tiles have been
+		 *            rewritten
+		 */
+		public void onLayerDataInvalidated (String pyramidId);
 	}
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.oculusinfo.binning.TileIndex;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+
+/**
+ * A cache of fully rendered and encoded tile images, bounded by the total
+ * size of the encoded images it holds.
+ *
+ * Images are keyed by layer, tile, image format, and a hash of the resolved
+ * layer configuration with which they were rendered, so requests with
+ * different rendering parameters never share an image. Since the
+ * configuration hash can't see changes to the underlying data, all of a
+ * layer's images are dropped whenever that layer's data or metadata is known
+ * to have changed.
+ */
+public class RenderedTileCache {
+	private static final int ENTRY_OVERHEAD      = 128;
+	private static final int DEFAULT_CONCURRENCY = 16;
+
+
+
+	private long                                  _maxSize;
+	private Cache<RenderedTileKey, byte[]>        _cache;
+	// The last metadata seen for each layer, so we can tell when it changes
+	private ConcurrentMap<String, String>         _metaData;
+
+	public RenderedTileCache (long maxSize) {
+		this(maxSize, DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * @param maxSize The maximum total size of all images in the cache, in
+	 *            bytes
+	 * @param concurrencyLevel The number of independently locked segments
+	 *            into which to divide the cache.
+	 */
+	public RenderedTileCache (long maxSize, int concurrencyLevel) {
+		_maxSize = maxSize;
+		_metaData = new ConcurrentHashMap<>();
+		_cache = CacheBuilder.newBuilder()
+			.concurrencyLevel(concurrencyLevel)
+			.maximumWeight(maxSize)
+			.weigher(new Weigher<RenderedTileKey, byte[]>() {
+					@Override
+					public int weigh (RenderedTileKey key, byte[] value) {
+						return ENTRY_OVERHEAD + value.length;
+					}
+				})
+			.recordStats()
+			.build();
+	}
+
+	/**
+	 * Get a rendered image from the cache
+	 *
+	 * @param layer The layer of the image
+	 * @param index The tile rendered
+	 * @param format The image format in which the image was encoded
+	 * @param configurationHash A hash of the full configuration used to
+	 *            render the image
+	 * @return The encoded image, or null if it isn't in the cache
+	 */
+	public byte[] get (String layer, TileIndex index, String format, String configurationHash) {
+		return _cache.getIfPresent(new RenderedTileKey(layer, index, format, configurationHash));
+	}
+
+	/**
+	 * Add a rendered image to the cache
+	 *
+	 * @param layer The layer of the image
+	 * @param index The tile rendered
+	 * @param format The image format in which the image was encoded
+	 * @param configurationHash A hash of the full configuration used to
+	 *            render the image
+	 * @param image The encoded image
+	 */
+	public void put (String layer, TileIndex index, String format, String configurationHash, byte[] image) {
+		_cache.put(new RenderedTileKey(layer, index, format, configurationHash), image);
+	}
+
+	/**
+	 * Record the current metadata of a layer, dropping all its images if it
+	 * has changed since last recorded.
+	 *
+	 * @param layer The layer whose metadata is given
+	 * @param metaData The current metadata of the layer, in string form
+	 * @return True if the metadata has changed
+	 */
+	public boolean updateMetaData (String layer, String metaData) {
+		if (null == metaData) metaData = "";
+		String previous = _metaData.put(layer, metaData);
+		if (null != previous && !previous.equals(metaData)) {
+			invalidateLayer(layer);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove all images of the given layer from the cache
+	 */
+	public void invalidateLayer (String layer) {
+		Iterator<RenderedTileKey> i = _cache.asMap().keySet().iterator();
+		while (i.hasNext()) {
+			if (i.next()._layer.equals(layer)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove all images from the cache
+	 */
+	public void clear () {
+		_cache.invalidateAll();
+		_metaData.clear();
+	}
+
+	/**
+	 * Get the number of images in the cache
+	 */
+	public long getImageCount () {
+		return _cache.size();
+	}
+
+	/**
+	 * Get the maximum total size of all images in the cache, in bytes
+	 */
+	public long getMaximumSize () {
+		return _maxSize;
+	}
+
+	/**
+	 * Get a snapshot of the hit, miss, and eviction counts of this cache
+	 */
+	public CacheStats getStats () {
+		return _cache.stats();
+	}
+
+
+
+	private static class RenderedTileKey {
+		private String    _layer;
+		private TileIndex _index;
+		private String    _format;
+		private String    _configurationHash;
+
+		RenderedTileKey (String layer, TileIndex index, String format, String configurationHash) {
+			_layer = layer;
+			_index = index;
+			_format = format;
+			_configurationHash = configurationHash;
+		}
+
+		@Override
+		public int hashCode () {
+			return ((_layer.hashCode()*31 + _index.hashCode())*31 + _format.hashCode())*31
+				+ _configurationHash.hashCode();
+		}
+
+		@Override
+		public boolean equals (Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof RenderedTileKey)) return false;
+			RenderedTileKey that = (RenderedTileKey) obj;
+			return _layer.equals(that._layer) && _index.equals(that._index)
+				&& _format.equals(that._format)
+				&& _configurationHash.equals(that._configurationHash);
+		}
+	}
+}
@@ -24,205 +24,386 @@
 package com.oculusinfo.tile.rest.tile.caching;
 
 
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.oculusinfo.binning.BinIndex;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
-import com.oculusinfo.binning.util.LRUCache.RemovalPolicy;
+import com.oculusinfo.binning.impl.AbstractDenseNumericTileData;
+import com.oculusinfo.binning.impl.DenseIntTileData;
+import com.oculusinfo.binning.impl.PackedSparseTileData;
+import com.oculusinfo.binning.impl.SparseTileData;
 import com.oculusinfo.factory.util.Pair;
-import com.oculusinfo.binning.util.SynchronizedLRUCache;
-import com.oculusinfo.tile.rest.tile.caching.TileCacheEntry.CacheRequestCallback;
 
-import java.util.*;
-import java.util.Map.Entry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
 /**
- * An LRU cache of tiles, with its own specific removal policy and cache entry
- * type
- * 
+ * A concurrent cache of the tiles of a single layer, bounded by the estimated
+ * memory size of the tiles it holds, rather than by their number.
+ *
+ * Reads never lock; writes lock only one of several independent segments of
+ * the cache, and eviction is least-recently-used within each segment. Tiles
+ * that are known to be missing from the underlying pyramid are cached too,
+ * so repeated requests for empty areas don't go back to the pyramid.
+ *
  * @author nkronenfeld
- * 
  */
 public class TileCache<T> {
-	// The maximum amount of time an unrecieved tile is guaranteed to remain in
-	// the cache, in milliseconds
-	private long                                                    _maxTileAge;
+	// Rough memory costs used to estimate tile sizes, in bytes
+	private static final int ENTRY_OVERHEAD   = 128;
+	private static final int REFERENCE_SIZE   = 8;
+	private static final int OBJECT_SIZE      = 16;
+	private static final int MAX_VALUE_DEPTH  = 3;
+
+	private static final int DEFAULT_CONCURRENCY = 16;
+
+
+
+	// The maximum estimated size of all tiles in the cache, in bytes
+	private long                             _maxSize;
 	// The cache iteself
-	private SynchronizedLRUCache<TileIndex, TileCacheEntry<T>> _cache;
-	// A list of all keys which have recieved their data, with the time at which they were first requested.
-	private TreeSet<Pair<TileIndex, Long>>                          _haveData;
-	// A list of all keys, in the order in which they were requested.
-	private List<TileIndex>                                         _orderedKeys;
-	// A listener to attach to all entries
-	private CacheEntryListener                                      _entryListener;
-	// A list of global listeners to all requests
-	private List<CacheRequestCallback<T>>                           _globalCallbacks;
+	private Cache<TileIndex, CachedTile<T>>  _cache;
+	// Hit, miss, load, and eviction counts
+	private AbstractCache.SimpleStatsCounter _stats;
+	// The current estimated size of all tiles in the cache, in bytes
+	private AtomicLong                       _size;
+	// The keys in the cache, by level and coordinates, so tiles can be
+	// invalidated without scanning the whole cache. Guarded by itself.
+	private Map<TileIndex, Set<TileIndex>>   _keysByCoordinates;
 
-	public TileCache (long maxAge, int maxSize) {
-		_maxTileAge = maxAge;
-		_cache = new SynchronizedLRUCache<>(maxSize,
-		                                    new TileCacheRemovalPolicy());
-		_haveData= new TreeSet<>(new EntryAgeComparator());
-		_orderedKeys = new LinkedList<>();
-		_entryListener = new CacheEntryListener();
-		_globalCallbacks = new ArrayList<>();
+	public TileCache (long maxSize) {
+		this(maxSize, DEFAULT_CONCURRENCY);
 	}
 
-	public void addGlobalCallback (CacheRequestCallback<T> callback) {
-		_globalCallbacks.add(callback);
+	/**
+	 * @param maxSize The maximum estimated size of all tiles in the cache, in
+	 *            bytes
+	 * @param concurrencyLevel The number of independently locked segments
+	 *            into which to divide the cache. Each segment gets an equal
+	 *            share of the maximum size.
+	 */
+	public TileCache (long maxSize, int concurrencyLevel) {
+		_maxSize = maxSize;
+		_stats = new AbstractCache.SimpleStatsCounter();
+		_size = new AtomicLong(0L);
+		_keysByCoordinates = new HashMap<>();
+		_cache = CacheBuilder.newBuilder()
+			.concurrencyLevel(concurrencyLevel)
+			.maximumWeight(maxSize)
+			.weigher(new Weigher<TileIndex, CachedTile<T>>() {
+					@Override
+					public int weigh (TileIndex key, CachedTile<T> value) {
+						return value.getSize();
+					}
+				})
+			.removalListener(new RemovalListener<TileIndex, CachedTile<T>>() {
+					@Override
+					public void onRemoval (RemovalNotification<TileIndex, CachedTile<T>> notification) {
+						_size.addAndGet(-notification.getValue().getSize());
+						if (notification.wasEvicted()) {
+							_stats.recordEviction();
+						}
+						// A replaced entry's key is still in the cache
+						if (RemovalCause.REPLACED != notification.getCause()) {
+							unindex(notification.getKey());
+						}
+					}
+				})
+			.build();
 	}
 
-	public void removeGlobalCallback (CacheRequestCallback<T> callback) {
-		_globalCallbacks.remove(callback);
+	/**
+	 * Get a set of tiles, loading any that aren't already in the cache.
+	 *
+	 * @param indices The tiles wanted
+	 * @param loader The source from which to read tiles not in the cache. All
+	 *            missing tiles are read in a single call. If null, only
+	 *            tiles already in the cache are returned.
+	 * @return All the requested tiles that exist, keyed by the index with
+	 *         which they were requested.
+	 */
+	public Map<TileIndex, TileData<T>> getTiles (Iterable<TileIndex> indices, TileLoader<T> loader) throws IOException {
+		Map<TileIndex, TileData<T>> results = new HashMap<>();
+		List<TileIndex> misses = new ArrayList<>();
+		int hits = 0;
+		for (TileIndex index: indices) {
+			CachedTile<T> cached = _cache.getIfPresent(index);
+			if (null == cached) {
+				misses.add(index);
+			} else {
+				++hits;
+				if (null != cached.getTile()) {
+					results.put(index, cached.getTile());
+				}
+			}
+		}
+		_stats.recordHits(hits);
+		_stats.recordMisses(misses.size());
+
+		if (!misses.isEmpty() && null != loader) {
+			long start = System.nanoTime();
+			List<TileData<T>> tiles;
+			try {
+				tiles = loader.loadTiles(misses);
+			} catch (IOException|RuntimeException e) {
+				_stats.recordLoadException(System.nanoTime() - start);
+				throw e;
+			}
+			_stats.recordLoadSuccess(System.nanoTime() - start);
+
+			results.putAll(provideTiles(misses, tiles));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Find which of a set of tiles aren't in the cache, without counting
+	 * toward the cache statistics. This is for callers that read the missing
+	 * tiles themselves, and hand them back with {@link #provideTiles}.
+	 *
+	 * @param indices The tiles wanted
+	 * @return Those of the tiles wanted that aren't in the cache
+	 */
+	public List<TileIndex> getMissingTiles (Iterable<TileIndex> indices) {
+		List<TileIndex> misses = new ArrayList<>();
+		for (TileIndex index: indices) {
+			if (null == _cache.getIfPresent(index)) {
+				misses.add(index);
+			}
+		}
+		return misses;
 	}
 
 	/**
-	 * Take a list of tiles to request, and return the subset that are new
-	 * requests - i.e., ones not already in the cache.
-	 * 
-	 * Each new request will be placed in the cache.
-	 * 
-	 * @param requests
-	 *            The list of tiles needed
-	 * @return A sublist of just those tiles not already requested
+	 * Add a set of requested tiles to the cache. Tiles are matched to their
+	 * requests by level and coordinates; requests for which no tile is
+	 * provided are recorded as empty.
+	 *
+	 * @param requested The tiles that were requested
+	 * @param tiles The tiles that were found
+	 * @return The tiles found, keyed by the index with which they were
+	 *         requested
 	 */
-	public List<TileIndex> getNewRequests (Iterable<TileIndex> requests) {
-		List<TileIndex> needed = new ArrayList<>();
-		synchronized (_cache) {
-			for (TileIndex index : requests) {
-				if (!_cache.containsKey(index)) {
-					// Create the tile request, and listen for its fulfilment
-					TileCacheEntry<T> entry = new TileCacheEntry<T>(index);
-					entry.requestTile(_entryListener);
-
-					// Add to cache
-					_cache.put(index, entry);
-					// Add to list of keys in request order
-					_orderedKeys.add(index);
-
-					needed.add(index);
+	public Map<TileIndex, TileData<T>> provideTiles (Collection<TileIndex> requested, Iterable<TileData<T>> tiles) {
+		// Tiles read may not have the same bin counts as the indices requested
+		Map<TileIndex, TileIndex> unfulfilled = new HashMap<>();
+		for (TileIndex index: requested) {
+			unfulfilled.put(getCoordinates(index), index);
+		}
+
+		Map<TileIndex, TileData<T>> results = new HashMap<>();
+		if (null != tiles) {
+			for (TileData<T> tile: tiles) {
+				if (null == tile) continue;
+				TileIndex index = unfulfilled.remove(getCoordinates(tile.getDefinition()));
+				if (null == index) index = tile.getDefinition();
+				put(index, new CachedTile<T>(tile));
+				results.put(index, tile);
+			}
+		}
+		for (TileIndex index: unfulfilled.values()) {
+			put(index, new CachedTile<T>(null));
+		}
+		return results;
+	}
+
+	/**
+	 * Remove the given tiles from the cache, so they are read again the next
+	 * time they are requested. Tiles are matched by level and coordinates.
+	 *
+	 * @param indices The tiles whose data has changed
+	 */
+	public void invalidate (Iterable<TileIndex> indices) {
+		Set<TileIndex> keys = new HashSet<>();
+		synchronized (_keysByCoordinates) {
+			for (TileIndex index: indices) {
+				Set<TileIndex> indexKeys = _keysByCoordinates.get(getCoordinates(index));
+				if (null != indexKeys) {
+					keys.addAll(indexKeys);
 				}
 			}
 		}
+		_cache.invalidateAll(keys);
+	}
 
-		return needed;
+	/**
+	 * Remove all tiles from the cache
+	 */
+	public void clear () {
+		_cache.invalidateAll();
 	}
 
 	/**
-	 * Request a tile.
-	 * 
-	 * @param index
-	 *            The index of the tile being requested.
-	 * 
-	 * @param callback
-	 *            A callback to call when the request is fulfilled.
+	 * Get the number of tiles (including known missing tiles) in the cache
 	 */
-	public void requestTile (TileIndex index, CacheRequestCallback<T> callback) {
-		_cache.get(index).requestTile(callback);
+	public long getTileCount () {
+		return _cache.size();
 	}
 
-	public void provideTile (TileData<T> tile) {
-		if (null == tile)
-			return;
+	/**
+	 * Get the current estimated size of all tiles in the cache, in bytes
+	 */
+	public long getSize () {
+		return _size.get();
+	}
 
-		TileIndex index = tile.getDefinition();
-		TileCacheEntry<T> entry = _cache.get(index);
-		if (null != entry)
-			entry.setTile(tile);
+	/**
+	 * Get the maximum estimated size of all tiles in the cache, in bytes
+	 */
+	public long getMaximumSize () {
+		return _maxSize;
 	}
 
-	public void provideEmptyTile (TileIndex index) {
-		TileCacheEntry<T> entry = _cache.get(index);
-		if (null != entry)
-			entry.setTile(null);
+	/**
+	 * Get a snapshot of the hit, miss, load time, and eviction counts of this
+	 * cache
+	 */
+	public CacheStats getStats () {
+		return _stats.snapshot();
 	}
 
-	private class CacheEntryListener implements CacheRequestCallback<T> {
-		@Override
-		public boolean onTileReceived (TileIndex index, TileData<T> tile) {
-			TileCacheEntry<T> entry = _cache.get(index);
-			if (null != entry) {
-				_haveData.add(new Pair<TileIndex, Long>(index,
-				                                        entry.initialRequestTime()));
+	private void put (TileIndex index, CachedTile<T> value) {
+		_size.addAndGet(value.getSize());
+		_cache.put(index, value);
+		TileIndex coordinates = getCoordinates(index);
+		synchronized (_keysByCoordinates) {
+			Set<TileIndex> keys = _keysByCoordinates.get(coordinates);
+			if (null == keys) {
+				keys = new HashSet<>();
+				_keysByCoordinates.put(coordinates, keys);
 			}
-			// Notify any global listeners
-			if (null != _globalCallbacks && !_globalCallbacks.isEmpty()) {
-				for (CacheRequestCallback<T> callback: _globalCallbacks) {
-					callback.onTileReceived(index, tile);
+			keys.add(index);
+		}
+	}
+
+	private void unindex (TileIndex index) {
+		TileIndex coordinates = getCoordinates(index);
+		synchronized (_keysByCoordinates) {
+			// The key may have been put back since it was removed
+			if (_cache.asMap().containsKey(index)) return;
+			Set<TileIndex> keys = _keysByCoordinates.get(coordinates);
+			if (null != keys) {
+				keys.remove(index);
+				if (keys.isEmpty()) {
+					_keysByCoordinates.remove(coordinates);
 				}
 			}
-			return false;
 		}
+	}
 
-		@Override
-		public void onTileAbandoned (TileIndex index) {
-			// If we're here, everything's already handled, so there is nothing
-			// more to do.
-		}
+	private static TileIndex getCoordinates (TileIndex index) {
+		return new TileIndex(index.getLevel(), index.getX(), index.getY(), 1, 1);
 	}
 
 
 
-	private class TileCacheRemovalPolicy
-		implements
-		RemovalPolicy<TileIndex, TileCacheEntry<T>> {
-		@Override
-		public boolean shouldRemove (Entry<TileIndex, TileCacheEntry<T>> entry,
-		                             Map<TileIndex, TileCacheEntry<T>> map,
-		                             int suggestedMaxSize) {
-			if (null == entry) {
-				return false;
-			} else if (null == entry.getValue()) {
-				return true;
-			} else {
-				TileCacheEntry<T> value = entry.getValue();
-				if (value.hasBeenRetrieved() || value.age() > _maxTileAge) {
-					// This entry has been received, or is to old for us to
-					// care; just remove it.
-					return true;
-				} else {
-					// First see if there is anything which has already been
-					// handled, so can be freely deleted.
-					for (Pair<TileIndex, Long> hasData: _haveData) {
-						TileIndex index = hasData.getFirst();
-						TileCacheEntry<T> entryWithData = _cache.get(index);
-						if (entryWithData.hasBeenRetrieved()) {
-							_cache.remove(index);
-							return false;
-						}
-					}
+	/**
+	 * Estimate the in-memory size of a tile
+	 *
+	 * @return The estimated size, in bytes
+	 */
+	public static int estimateSize (TileData<?> tile) {
+		if (null == tile) return ENTRY_OVERHEAD;
 
-					// If we get this far, there was nothing already handled.
-					//
-					// See if there's anything so old we just don't care about
-					// its safety any more.
-					if (_orderedKeys.size() > 0) {
-						TileIndex oldestKey = _orderedKeys.get(0);
-						TileCacheEntry<T> oldestEntry = _cache.get(oldestKey);
-						if (oldestEntry.age() > _maxTileAge) {
-							_cache.remove(oldestKey);
-						}
-					}
-					return false;
-				}
+		TileIndex index = tile.getDefinition();
+		long bins = (long) index.getXBins() * index.getYBins();
+		long size = ENTRY_OVERHEAD;
+		if (tile instanceof AbstractDenseNumericTileData) {
+			size += bins * ((tile instanceof DenseIntTileData) ? 4 : 8);
+		} else if (tile instanceof PackedSparseTileData) {
+			PackedSparseTileData<?> packed = (PackedSparseTileData<?>) tile;
+			int entries = packed.getEntryCount();
+			Object sample = (entries > 0) ? packed.getEntryValue(0) : null;
+			size += entries * (4 + REFERENCE_SIZE + estimateValueSize(sample, 0));
+		} else if (tile instanceof SparseTileData) {
+			long entries = 0;
+			Object sample = null;
+			Iterator<? extends Pair<BinIndex, ?>> i = ((SparseTileData<?>) tile).getData();
+			while (i.hasNext()) {
+				Pair<BinIndex, ?> entry = i.next();
+				if (null == sample) sample = entry.getSecond();
+				++entries;
 			}
+			// Sparse tiles are stored as maps of maps, at about three objects per entry
+			size += entries * (3 * OBJECT_SIZE + estimateValueSize(sample, 0));
+		} else {
+			size += bins * (REFERENCE_SIZE + estimateValueSize(tile.getBin(0, 0), 0));
 		}
+		return (int) Math.min(Integer.MAX_VALUE, size);
+	}
 
-		@Override
-		public void onElementRemoved (TileIndex key,
-		                              TileCacheEntry<T> value) {
-			value.abandonTile();
+	private static long estimateValueSize (Object value, int depth) {
+		if (null == value) {
+			return 0;
+		} else if (value instanceof Number || value instanceof Boolean) {
+			return OBJECT_SIZE;
+		} else if (value instanceof String) {
+			return 2 * OBJECT_SIZE + 2 * ((String) value).length();
+		} else if (value instanceof List && depth < MAX_VALUE_DEPTH) {
+			List<?> list = (List<?>) value;
+			long elementSize = list.isEmpty() ? 0 : estimateValueSize(list.get(0), depth + 1);
+			return 2 * OBJECT_SIZE + list.size() * (REFERENCE_SIZE + elementSize);
+		} else if (value instanceof Pair && depth < MAX_VALUE_DEPTH) {
+			Pair<?, ?> pair = (Pair<?, ?>) value;
+			return OBJECT_SIZE + 2 * REFERENCE_SIZE
+				+ estimateValueSize(pair.getFirst(), depth + 1)
+				+ estimateValueSize(pair.getSecond(), depth + 1);
+		} else {
+			return 2 * OBJECT_SIZE;
 		}
 	}
 
 
 
-	// Compare two elements in our _haveData list.  This puts the older element first.
-	private class EntryAgeComparator implements
-		Comparator<Pair<TileIndex, Long>> {
-		@Override
-		public int compare (Pair<TileIndex, Long> o1, Pair<TileIndex, Long> o2) {
-			return -o1.getSecond().compareTo(o2.getSecond());
+	/**
+	 * A source of tiles for the cache
+	 */
+	public static interface TileLoader<T> {
+		/**
+		 * Read a set of tiles
+		 *
+		 * @param indices The tiles to read
+		 * @return The tiles that exist; missing tiles should be left out or
+		 *         returned as null.
+		 */
+		public List<TileData<T>> loadTiles (List<TileIndex> indices) throws IOException;
+	}
+
+	// A cache entry - a tile, or a record that the tile is missing - along
+	// with its estimated size
+	private static class CachedTile<T> {
+		private TileData<T> _tile;
+		private int         _size;
+
+		CachedTile (TileData<T> tile) {
+			_tile = tile;
+			_size = estimateSize(tile);
+		}
+
+		TileData<T> getTile () {
+			return _tile;
+		}
+
+		int getSize () {
+			return _size;
 		}
 	}
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import com.google.inject.Inject;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.factory.providers.FactoryProvider;
+import com.oculusinfo.tile.init.providers.CachingLayerConfigurationProvider;
+import com.oculusinfo.tile.rendering.LayerConfiguration;
+import com.oculusinfo.tile.rest.tile.TileBatchResource;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import java.util.List;
+
+
+/**
+ * Tells the server that some tiles of a pyramid have been rewritten (for
+ * instance, by a streaming tile generator), so that they are dropped from the
+ * tile cache, and any images rendered from that pyramid are dropped too.
+ *
+ * The request body is a JSON object with:
+ * <dl>
+ * <dt>pyramidId</dt>
+ * <dd>The id of the pyramid whose tiles have changed</dd>
+ * <dt>tiles</dt>
+ * <dd>The tiles that have changed, each given as level/x/y, as for tile
+ * batch requests (see {@link TileBatchResource})</dd>
+ * </dl>
+ * If the server isn't configured to cache tiles, this does nothing.
+ */
+public class TileInvalidationResource extends ServerResource {
+	private FactoryProvider<LayerConfiguration> _layerConfigurationProvider;
+
+	@Inject
+	public TileInvalidationResource( FactoryProvider<LayerConfiguration> layerConfigurationProvider ) {
+		_layerConfigurationProvider = layerConfigurationProvider;
+	}
+
+	@Post("json")
+	public Representation invalidateTiles( JsonRepresentation jsonRepresentation ) throws ResourceException {
+		String pyramidId;
+		List<TileIndex> tiles;
+		try {
+			JSONObject arguments = jsonRepresentation.getJsonObject();
+			pyramidId = arguments.getString( "pyramidId" );
+			tiles = TileBatchResource.parseTiles( arguments );
+		} catch ( Exception e ) {
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST,
+			                             "Unable to interpret tiles to invalidate. Check parameters.", e );
+		}
+
+		if ( _layerConfigurationProvider instanceof CachingLayerConfigurationProvider ) {
+			( (CachingLayerConfigurationProvider) _layerConfigurationProvider ).invalidateTiles( pyramidId, tiles );
+		}
+
+		try {
+			JSONObject result = new JSONObject();
+			result.put( "pyramidId", pyramidId );
+			result.put( "tiles", tiles.size() );
+			setStatus( Status.SUCCESS_OK );
+			return new JsonRepresentation( result );
+		} catch ( JSONException e ) {
+			throw new ResourceException( Status.SERVER_ERROR_INTERNAL, "Unable to report invalidated tiles", e );
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.tile.rest.tile.TileBatchResource;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class TileBatchResourceTests {
+	@Test
+	public void testParseLayers () throws Exception {
+		JSONObject query = QueryParamDecoder.decode("layers=a,b,a&tiles=1/0/0");
+		Assert.assertEquals(Arrays.asList("a", "b"), TileBatchResource.parseLayers(query));
+
+		query = QueryParamDecoder.decode("layers=a&tiles=1/0/0");
+		Assert.assertEquals(Arrays.asList("a"), TileBatchResource.parseLayers(query));
+	}
+
+	@Test
+	public void testParseTileList () throws Exception {
+		JSONObject query = QueryParamDecoder.decode("layers=a&tiles=4/3/5|4/3/6,4/4/5");
+		List<TileIndex> tiles = TileBatchResource.parseTiles(query);
+		Assert.assertEquals(Arrays.asList(new TileIndex(4, 3, 5), new TileIndex(4, 3, 6), new TileIndex(4, 4, 5)),
+		                    tiles);
+	}
+
+	@Test
+	public void testParseTileRange () throws Exception {
+		JSONObject query = QueryParamDecoder.decode("layers=a&level=3&minX=1&maxX=2&minY=4&maxY=6&tiles=3/1/4");
+		List<TileIndex> tiles = TileBatchResource.parseTiles(query);
+		Assert.assertEquals(6, tiles.size());
+		Assert.assertEquals(new TileIndex(3, 1, 4), tiles.get(0));
+		Assert.assertTrue(tiles.contains(new TileIndex(3, 2, 6)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadTile () throws Exception {
+		TileBatchResource.parseTiles(QueryParamDecoder.decode("layers=a&tiles=4/3"));
+	}
+
+	@Test
+	public void testTileRecord () throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(baos);
+		TileBatchResource.writeTile(output, "layer", new TileIndex(4, 3, 5), new byte[] {1, 2, 3});
+		output.flush();
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		Assert.assertEquals("layer", input.readUTF());
+		Assert.assertEquals(4, input.readInt());
+		Assert.assertEquals(3, input.readInt());
+		Assert.assertEquals(5, input.readInt());
+		Assert.assertEquals(3, input.readInt());
+		byte[] image = new byte[3];
+		input.readFully(image);
+		Assert.assertArrayEquals(new byte[] {1, 2, 3}, image);
+		Assert.assertEquals(-1, input.read());
+	}
+}
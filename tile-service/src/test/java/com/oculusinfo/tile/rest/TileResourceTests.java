@@ -38,6 +38,7 @@ public class TileResourceTests {
 		ext = ExtensionType.valueOf("jpg");
 		Assert.assertEquals(ResponseType.Image, ext.getResponseType());
 		Assert.assertEquals(MediaType.IMAGE_JPEG, ext.getMediaType());
+		Assert.assertEquals("jpeg", ext.getImageFormat());
 
 		ext = ExtensionType.valueOf("jpeg");
 		Assert.assertEquals(ResponseType.Image, ext.getResponseType());
@@ -46,9 +47,11 @@ public class TileResourceTests {
 		ext = ExtensionType.valueOf("png");
 		Assert.assertEquals(ResponseType.Image, ext.getResponseType());
 		Assert.assertEquals(MediaType.IMAGE_PNG, ext.getMediaType());
+		Assert.assertEquals("png", ext.getImageFormat());
 
 		ext = ExtensionType.valueOf("json");
 		Assert.assertEquals(ResponseType.Tile, ext.getResponseType());
 		Assert.assertEquals(MediaType.APPLICATION_JSON, ext.getMediaType());
+		Assert.assertNull(ext.getImageFormat());
 	}
 }
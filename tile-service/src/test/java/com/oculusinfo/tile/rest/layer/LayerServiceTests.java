@@ -23,6 +23,7 @@
  */
 package com.oculusinfo.tile.rest.layer;
 
+import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.DefaultPyramidIOFactoryProvider;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.serialization.DefaultTileSerializerFactoryProvider;
@@ -120,6 +121,31 @@ public class LayerServiceTests {
 		assert( layerIds.get(1).equals( "test-layer1" ) );
 	}
 
+	@Test
+	public void getLayerIdsForDataTest() {
+		assert( _layerService.getLayerIdsForData( "test-layer0-data" ).equals( Arrays.asList( "test-layer0" ) ) );
+		assert( _layerService.getLayerIdsForData( "test-layer1-data" ).equals( Arrays.asList( "test-layer1" ) ) );
+		assert( _layerService.getLayerIdsForData( "test-layer0" ).isEmpty() );
+	}
+
+	@Test
+	public void renderingHashTest() throws Exception {
+		LayerConfiguration config = _layerService.getLayerConfiguration( "test-layer0", null );
+		try {
+			String hash = config.getRenderingHash();
+			config.setLevelProperties( new TileIndex( 1, 0, 0 ), "0", "10" );
+			String levelHash = config.getRenderingHash();
+			assert( !hash.equals( levelHash ) );
+			// The tile itself doesn't matter, only the level extrema
+			config.setLevelProperties( new TileIndex( 2, 1, 1 ), "0", "10" );
+			assert( levelHash.equals( config.getRenderingHash() ) );
+			config.clearLevelProperties();
+			assert( hash.equals( config.getRenderingHash() ) );
+		} finally {
+			_layerService.releaseLayerConfiguration( config );
+		}
+	}
+
 	@Test
 	public void getLayerConfigurationTest() throws ConfigurationException {
 		LayerConfiguration layerConfig0 = _layerService.getLayerConfiguration( "test-layer0", null );
@@ -130,6 +156,55 @@ public class LayerServiceTests {
 		assert( layerConfig1.getPropertyValue( LayerConfiguration.LAYER_ID ).equals( "test-layer1" ) );
 	}
 
+	@Test
+	public void layerConfigurationReuseTest() throws Exception {
+		LayerConfiguration first = _layerService.getLayerConfiguration( "test-layer0", null );
+		LayerConfiguration second = _layerService.getLayerConfiguration( "test-layer0", null );
+		// both are in use at once, so must be distinct, but share their configuration-only goods
+		assert( first != second );
+		assert( first.produce( TileSerializer.class ) == second.produce( TileSerializer.class ) );
+
+		// released configurations are reused, with their per-tile state cleared
+		first.setLevelProperties( new TileIndex( 1, 0, 0 ), null, null );
+		_layerService.releaseLayerConfiguration( first );
+		LayerConfiguration reused = _layerService.getLayerConfiguration( "test-layer0", null );
+		assert( reused == first );
+		assert( reused.getPropertyValue( LayerConfiguration.TILE_COORDINATE ) == null );
+
+		// but not for requests with different parameters
+		JSONObject override = QueryParamDecoder.decode( "renderer.ramp=cool" );
+		LayerConfiguration overridden = _layerService.getLayerConfiguration( "test-layer0", override );
+		assert( overridden != first );
+		assert( overridden.getExplicitConfiguration().getJSONObject( "public" ).getJSONObject( "renderer" ).getString( "ramp" ).equals( "cool" ) );
+		assert( reused.getExplicitConfiguration().getJSONObject( "public" ).getJSONObject( "renderer" ).getString( "ramp" ).equals( "hot" ) );
+	}
+
+	@Test
+	public void tileSelectionParametersShareConfigurationTest() throws Exception {
+		LayerConfiguration first = _layerService.getLayerConfiguration( "test-layer0", null );
+		_layerService.releaseLayerConfiguration( first );
+
+		// parameters that only pick tiles don't change the configuration
+		JSONObject bounds = QueryParamDecoder.decode( "minX=0&maxX=1&minY=0&maxY=1&minZ=1&maxZ=1" );
+		LayerConfiguration bounded = _layerService.getLayerConfiguration( "test-layer0", bounds );
+		assert( bounded == first );
+		assert( !bounded.getExplicitConfiguration().getJSONObject( "public" ).has( "minX" ) );
+		_layerService.releaseLayerConfiguration( bounded );
+
+		// nor do those of tile batch requests
+		JSONObject batch = QueryParamDecoder.decode( "layers=test-layer0,test-layer1&tiles=1/0/0|1/1/1&level=1&minX=0&maxX=1&minY=0&maxY=1" );
+		LayerConfiguration batched = _layerService.getLayerConfiguration( "test-layer0", batch );
+		assert( batched == first );
+		_layerService.releaseLayerConfiguration( batched );
+
+		// and are ignored alongside real overrides
+		JSONObject override = QueryParamDecoder.decode( "renderer.ramp=cool&minX=0" );
+		LayerConfiguration overridden = _layerService.getLayerConfiguration( "test-layer0", override );
+		_layerService.releaseLayerConfiguration( overridden );
+		JSONObject otherTiles = QueryParamDecoder.decode( "renderer.ramp=cool&minX=1" );
+		assert( _layerService.getLayerConfiguration( "test-layer0", otherTiles ) == overridden );
+	}
+
 	@Test
 	public void saveAndGetLayerStateTest() {
 		try {
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015 Uncharted Software. http://www.uncharted.software/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.tile.rest.tile.TileServiceImpl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+
+
+public class RenderedTileCacheTests {
+	private static final TileIndex TILE_A = new TileIndex(2, 1, 1);
+	private static final TileIndex TILE_B = new TileIndex(2, 1, 2);
+
+	// Images should only be found under the exact key with which they were stored
+	@Test
+	public void testKeys () {
+		RenderedTileCache cache = new RenderedTileCache(1024*1024);
+		byte[] image = new byte[] {1, 2, 3};
+		cache.put("layer", TILE_A, "png", "abc", image);
+
+		Assert.assertSame(image, cache.get("layer", TILE_A, "png", "abc"));
+		Assert.assertNull(cache.get("layer2", TILE_A, "png", "abc"));
+		Assert.assertNull(cache.get("layer", TILE_B, "png", "abc"));
+		Assert.assertNull(cache.get("layer", TILE_A, "jpeg", "abc"));
+		Assert.assertNull(cache.get("layer", TILE_A, "png", "abd"));
+		Assert.assertEquals(1, cache.getStats().hitCount());
+		Assert.assertEquals(4, cache.getStats().missCount());
+	}
+
+	@Test
+	public void testLayerInvalidation () {
+		RenderedTileCache cache = new RenderedTileCache(1024*1024);
+		cache.put("layer1", TILE_A, "png", "abc", new byte[1]);
+		cache.put("layer1", TILE_B, "png", "abc", new byte[1]);
+		cache.put("layer2", TILE_A, "png", "abc", new byte[1]);
+
+		cache.invalidateLayer("layer1");
+		Assert.assertNull(cache.get("layer1", TILE_A, "png", "abc"));
+		Assert.assertNull(cache.get("layer1", TILE_B, "png", "abc"));
+		Assert.assertNotNull(cache.get("layer2", TILE_A, "png", "abc"));
+	}
+
+	@Test
+	public void testMetaDataInvalidation () {
+		RenderedTileCache cache = new RenderedTileCache(1024*1024);
+		Assert.assertFalse(cache.updateMetaData("layer", "{\"a\": 1}"));
+		cache.put("layer", TILE_A, "png", "abc", new byte[1]);
+
+		Assert.assertFalse(cache.updateMetaData("layer", "{\"a\": 1}"));
+		Assert.assertNotNull(cache.get("layer", TILE_A, "png", "abc"));
+
+		Assert.assertTrue(cache.updateMetaData("layer", "{\"a\": 2}"));
+		Assert.assertNull(cache.get("layer", TILE_A, "png", "abc"));
+	}
+
+	@Test
+	public void testSizeBound () {
+		RenderedTileCache cache = new RenderedTileCache(16*1024, 1);
+		for (int i=0; i<64; ++i) {
+			cache.put("layer", new TileIndex(4, i % 16, i / 16), "png", "abc", new byte[1024]);
+		}
+		Assert.assertTrue(cache.getImageCount() < 16);
+		Assert.assertTrue(0 < cache.getStats().evictionCount());
+	}
+
+	@Test
+	public void testJpegEncodingDropsAlpha () throws IOException {
+		BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(1, 1, 0x80ff0000);
+
+		BufferedImage png = ImageIO.read(new ByteArrayInputStream(TileServiceImpl.encodeImage(image, "png")));
+		Assert.assertTrue(png.getColorModel().hasAlpha());
+		Assert.assertEquals(0x80ff0000, png.getRGB(1, 1));
+
+		BufferedImage jpeg = ImageIO.read(new ByteArrayInputStream(TileServiceImpl.encodeImage(image, "jpeg")));
+		Assert.assertFalse(jpeg.getColorModel().hasAlpha());
+		// Transparent areas come out white
+		int corner = jpeg.getRGB(0, 0);
+		Assert.assertTrue(((corner >> 16) & 0xff) > 0xf0);
+		Assert.assertTrue(((corner >> 8) & 0xff) > 0xf0);
+		Assert.assertTrue((corner & 0xff) > 0xf0);
+	}
+}
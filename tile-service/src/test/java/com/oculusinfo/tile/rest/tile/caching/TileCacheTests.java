@@ -26,170 +26,241 @@ package com.oculusinfo.tile.rest.tile.caching;
 
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseIntTileData;
 import com.oculusinfo.binning.impl.DenseTileData;
-import com.oculusinfo.tile.rest.tile.caching.TileCacheEntry.CacheRequestCallback;
+import com.oculusinfo.tile.rest.tile.caching.TileCache.TileLoader;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
 public class TileCacheTests {
-	private TileIndex[]        _indices;
-	private int                _N;
-	private TileCache<Integer> _cache;
+	private TileIndex[]   _indices;
+	private TestLoader    _loader;
 
 
     
 	@Before
-	public void setupIndices () {
+	public void setup () {
 		_indices = new TileIndex[16];
 		for (int i=0; i<16; ++i) {
-			_indices[i] = new TileIndex(2, (int) Math.floor(i/4.0), i % 4);
+			_indices[i] = new TileIndex(2, (int) Math.floor(i/4.0), i % 4, 4, 4);
+		}
+		// Only even tiles exist
+		_loader = new TestLoader();
+		for (int i=0; i<16; i += 2) {
+			_loader._existing.add(_indices[i]);
 		}
-	}
-
-	@Before
-	public void setupCache () {
-		_N = 5;
-		// quarter-second, 5-object cache - objects past 5 are removed after 1/4
-		// second (or less, if data given), as more data is inserted.
-		_cache = new TileCache<>(250, _N);
 	}
 
 	@After
 	public void cleanup () {
-		_cache = null;
 		_indices = null;
+		_loader = null;
 	}
 
 
 
-	private void checkRequest (TileIndex index, boolean expectedNewRequest) {
-		List<TileIndex> newRequests = _cache.getNewRequests(Collections.singletonList(index));
-		if (expectedNewRequest) {
-			// Make sure the request was new
-			Assert.assertEquals(1, newRequests.size());
-			Assert.assertEquals(index, newRequests.get(0));
-		} else {
-			// Make sure there was no new request
-			Assert.assertEquals(0, newRequests.size());
-		}
-	}
-
-	// Test first to make sure when all is properly notified, in the expected
-	// normal way, the oldest element is removed first.
+	// Make sure missing tiles are loaded in one read, and found tiles are
+	// served from the cache thereafter
 	@Test
-	public void testSimpleCacheRemoval () {
-		CacheRequestCallback<Integer> callback = new NoOpCacheRequestCallback();
-
-		int i;
-		for (i=0; i<_N; ++i) {
-			TileData<Integer> data = new DenseTileData<Integer>(_indices[i], i);
-
-			// provide and listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.requestTile(_indices[i], callback);
-			_cache.provideTile(data);
+	public void testHitsAndMisses () throws IOException {
+		TileCache<Integer> cache = new TileCache<>(1024*1024);
+
+		Map<TileIndex, TileData<Integer>> tiles = cache.getTiles(Arrays.asList(_indices).subList(0, 8), _loader);
+		Assert.assertEquals(1, _loader._reads.get());
+		Assert.assertEquals(4, tiles.size());
+		for (int i=0; i<8; i += 2) {
+			Assert.assertEquals(i, tiles.get(_indices[i]).getBin(0, 0).intValue());
 		}
 
-		// Make another request
-		checkRequest(_indices[i], true);
+		tiles = cache.getTiles(Arrays.asList(_indices).subList(4, 12), _loader);
+		Assert.assertEquals(2, _loader._reads.get());
+		Assert.assertEquals(4, tiles.size());
 
-		// Make sure all but our first request is still there
-		for (i=1; i<_N; ++i) {
-			checkRequest(_indices[i], false);
-		}
+		Assert.assertEquals(4, cache.getStats().hitCount());
+		Assert.assertEquals(12, cache.getStats().missCount());
+		Assert.assertEquals(2, cache.getStats().loadCount());
+		Assert.assertEquals(12, cache.getTileCount());
+	}
 
-		// Make sure our first request is gone
-		checkRequest(_indices[0], true);
+	// Make sure tiles known to be missing don't get re-read
+	@Test
+	public void testMissingTilesCached () throws IOException {
+		TileCache<Integer> cache = new TileCache<>(1024*1024);
+
+		Assert.assertTrue(cache.getTiles(Collections.singletonList(_indices[1]), _loader).isEmpty());
+		Assert.assertEquals(1, _loader._reads.get());
+		Assert.assertTrue(cache.getTiles(Collections.singletonList(_indices[1]), _loader).isEmpty());
+		Assert.assertEquals(1, _loader._reads.get());
+		Assert.assertEquals(1, cache.getStats().hitCount());
 	}
 
-	// Make sure requests don't disappear if data hasn't been provided for them
+	// Make sure missing tiles are found without reading or counting them
 	@Test
-	public void testMissingCacheRemoval () {
-		CacheRequestCallback<Integer> callback = new NoOpCacheRequestCallback();
-
-		int i;
-		for (i=0; i<_N; ++i) {
-			// listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.requestTile(_indices[i], callback);
-		}
+	public void testMissingTileCheck () throws IOException {
+		TileCache<Integer> cache = new TileCache<>(1024*1024);
+		cache.getTiles(Arrays.asList(_indices).subList(0, 4), _loader);
+
+		List<TileIndex> missing = cache.getMissingTiles(Arrays.asList(_indices).subList(2, 6));
+		Assert.assertEquals(Arrays.asList(_indices[4], _indices[5]), missing);
+		Assert.assertEquals(1, _loader._reads.get());
+		Assert.assertEquals(0, cache.getStats().hitCount());
+		Assert.assertEquals(4, cache.getStats().missCount());
+	}
 
-		// Make another request
-		checkRequest(_indices[i], true);
+	// Make sure tiles provided ahead of time are served without a read
+	@Test
+	public void testProvidedTiles () throws IOException {
+		TileCache<Integer> cache = new TileCache<>(1024*1024);
+		cache.provideTiles(Arrays.asList(_indices[0], _indices[1]),
+		                   Collections.<TileData<Integer>>singletonList(createTile(_indices[0], 0)));
+
+		Map<TileIndex, TileData<Integer>> tiles = cache.getTiles(Arrays.asList(_indices[0], _indices[1]), _loader);
+		Assert.assertEquals(0, _loader._reads.get());
+		Assert.assertEquals(1, tiles.size());
+		Assert.assertEquals(0, tiles.get(_indices[0]).getBin(0, 0).intValue());
+	}
 
-		// Make sure all requests so far are still there
-		for (i=0; i<_N+1; ++i) {
-			checkRequest(_indices[i], false);
-		}
+	// Make sure invalidated tiles are read again, and others are not
+	@Test
+	public void testInvalidation () throws IOException {
+		TileCache<Integer> cache = new TileCache<>(1024*1024);
+		cache.getTiles(Arrays.asList(_indices[0], _indices[2]), _loader);
+		Assert.assertEquals(1, _loader._reads.get());
+
+		cache.invalidate(Collections.singletonList(_indices[2]));
+		Assert.assertEquals(1, cache.getTileCount());
+		cache.getTiles(Arrays.asList(_indices[0], _indices[2]), _loader);
+		Assert.assertEquals(2, _loader._reads.get());
 	}
 
-	// Make sure potential requests don't disappear if they have not yet been 
-	// requested.
+	// Make sure invalidation matches tiles by coordinates, whatever their bin
+	// counts, and still works once tiles have been evicted and read again
 	@Test
-	public void testUnrequestedCacheRemoval () {
-		int i;
-		for (i=0; i<_N; ++i) {
-			TileData<Integer> data = new DenseTileData<Integer>(_indices[i], i);
-
-			// provide and listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.provideTile(data);
-		}
+	public void testInvalidationByCoordinates () throws IOException {
+		TileCache<Integer> cache = new TileCache<>(1024*1024);
+		cache.getTiles(Arrays.asList(_indices[0], _indices[2]), _loader);
+		cache.clear();
+		cache.getTiles(Arrays.asList(_indices[0], _indices[2]), _loader);
+		Assert.assertEquals(2, cache.getTileCount());
+
+		TileIndex index = _indices[2];
+		cache.invalidate(Collections.singletonList(new TileIndex(index.getLevel(), index.getX(), index.getY(), 1, 1)));
+		Assert.assertEquals(1, cache.getTileCount());
+		cache.invalidate(Collections.singletonList(index));
+		Assert.assertEquals(1, cache.getTileCount());
+	}
 
-		// Make another request
-		checkRequest(_indices[i], true);
+	// Make sure the cache is bounded by size, and evicts the least recently
+	// used tiles first
+	@Test
+	public void testSizeBoundedEviction () throws IOException {
+		int tileSize = TileCache.estimateSize(createTile(_indices[0], 0));
+		// Room for 4 tiles, in a single segment so eviction order is exact
+		TileCache<Integer> cache = new TileCache<>(4 * tileSize, 1);
+
+		cache.getTiles(Arrays.asList(_indices[0], _indices[2], _indices[4], _indices[6]), _loader);
+		Assert.assertEquals(4 * tileSize, cache.getSize());
+		// Use the first tile again, so the second is now the oldest
+		cache.getTiles(Collections.singletonList(_indices[0]), _loader);
+		cache.getTiles(Collections.singletonList(_indices[8]), _loader);
+
+		Assert.assertEquals(1, cache.getStats().evictionCount());
+		Assert.assertTrue(cache.getSize() <= cache.getMaximumSize());
+
+		int reads = _loader._reads.get();
+		Assert.assertEquals(3, cache.getTiles(Arrays.asList(_indices[0], _indices[4], _indices[6]), _loader).size());
+		Assert.assertEquals(reads, _loader._reads.get());
+		Assert.assertEquals(1, cache.getTiles(Collections.singletonList(_indices[2]), _loader).size());
+		Assert.assertEquals(reads + 1, _loader._reads.get());
+	}
 
-		// Make sure all requests so far are still there
-		for (i=0; i<_N+1; ++i) {
-			checkRequest(_indices[i], false);
-		}
+	@Test
+	public void testSizeEstimates () {
+		TileIndex index = new TileIndex(0, 0, 0, 256, 256);
+		int boxed = TileCache.estimateSize(new DenseTileData<Integer>(index, 0));
+		int primitive = TileCache.estimateSize(new DenseIntTileData(index, 0));
+		Assert.assertTrue(primitive >= 256 * 256 * 4);
+		Assert.assertTrue(boxed > primitive);
+
+		DenseTileData<List<Integer>> listTile = new DenseTileData<List<Integer>>(index, Arrays.asList(1, 2, 3, 4));
+		Assert.assertTrue(TileCache.estimateSize(listTile) > boxed);
 	}
 
-	// Make sure potential requests don't disappear if they have not yet been 
-	// requested.
+	// Hammer the cache from several threads at once
 	@Test
-	public void testUnrequestedCacheRemovalTimeout () throws InterruptedException {
-		int i;
-		for (i=0; i<_N; ++i) {
-			TileData<Integer> data = new DenseTileData<Integer>(_indices[i], i);
-
-			// provide and listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.provideTile(data);
+	public void testConcurrentAccess () throws Exception {
+		final TileCache<Integer> cache = new TileCache<>(1024*1024);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<>();
+		for (int t=0; t<8; ++t) {
+			final int offset = t;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run () {
+					try {
+						for (int n=0; n<200; ++n) {
+							TileIndex index = _indices[(n + offset) % 16];
+							Map<TileIndex, TileData<Integer>> tiles = cache.getTiles(Collections.singletonList(index), _loader);
+							if (_loader._existing.contains(index)) {
+								Assert.assertEquals(index.getX() * 4 + index.getY(), tiles.get(index).getBin(0, 0).intValue());
+							} else {
+								Assert.assertTrue(tiles.isEmpty());
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
 		}
-
-		Thread.sleep(260);
-		// Make another request
-		checkRequest(_indices[i], true);
-
-		// Make sure all requests so far are still there
-		for (i=1; i<_N+1; ++i) {
-			checkRequest(_indices[i], false);
+		for (Thread thread: threads) {
+			thread.join();
 		}
-		checkRequest(_indices[0], true);
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertEquals(1600, cache.getStats().requestCount());
+		Assert.assertEquals(16, cache.getTileCount());
 	}
 
 
 
-	// Simple callback to do nothing, but act as if we've done something.
-	private class NoOpCacheRequestCallback implements CacheRequestCallback<Integer> {
-		@Override
-		public boolean onTileReceived (TileIndex index, TileData<Integer> tile) {
-			// Noop, but say we did something.
-			return true;
-		}
+	private static TileData<Integer> createTile (TileIndex index, int value) {
+		TileData<Integer> tile = new DenseTileData<Integer>(index, 0);
+		tile.setBin(0, 0, value);
+		return tile;
+	}
+
+	// Loader that counts its reads, and has tiles only for some indices
+	private class TestLoader implements TileLoader<Integer> {
+		private Set<TileIndex> _existing = Collections.synchronizedSet(new HashSet<TileIndex>());
+		private AtomicInteger  _reads    = new AtomicInteger(0);
 
 		@Override
-		public void onTileAbandoned (TileIndex index) {
-			// Noop
+		public List<TileData<Integer>> loadTiles (List<TileIndex> indices) throws IOException {
+			_reads.incrementAndGet();
+			List<TileData<Integer>> tiles = new ArrayList<>();
+			for (TileIndex index: indices) {
+				if (_existing.contains(index)) {
+					tiles.add(createTile(index, index.getX() * 4 + index.getY()));
+				}
+			}
+			return tiles;
 		}
 	}
 }